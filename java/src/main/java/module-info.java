@@ -1,4 +1,5 @@
 module org.dice {
     exports org.dice;
     requires org.apache.logging.log4j;
+    requires jdk.incubator.vector;
 }
\ No newline at end of file
@@ -2,13 +2,66 @@ package org.dice;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dice.config.Config;
+import org.dice.core.Cluster;
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
 import org.dice.server.TcpSync;
 
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+
 final public class Main {
 
     private static final Logger logger = LogManager.getLogger(Main.class);
 
-    public static void main() {
-        TcpSync.runSyncTCPServer();
+    /**
+     * Starts the server. An optional first argument names a configuration file, see {@link Config}. Any setting
+     * can then be overridden with {@code --<name> <value>}, such as {@code --port 7381} or
+     * {@code --maxmemory 1gb}. {@code --replicaof <host> <port>} starts as a replica, {@code --cluster} and
+     * {@code --near-cache} are short for {@code --cluster-enabled yes} and {@code --near-cache yes}.
+     */
+    public static void main(final String[] args) {
+        final var settings = new LinkedHashMap<String, String>();
+        String[] replicaOf = null;
+        int i = 0;
+        if (args.length > 0 && !args[0].startsWith("--")) {
+            try {Config.load(Path.of(args[i++]));}
+            catch (final IllegalArgumentException | UncheckedIOException e) {
+                logger.fatal("Invalid configuration file: {}", e.getMessage());
+                return;
+            }
+        }
+        for (; i < args.length; i++) {
+            switch (args[i]) {
+                case "--replicaof" -> {
+                    if (i + 2 >= args.length) {
+                        logger.fatal("Invalid argument: --replicaof expects a host and a port");
+                        return;
+                    }
+                    replicaOf = new String[]{args[i + 1], args[i + 2]};
+                    i += 2;
+                }
+                case "--cluster" -> settings.put("cluster-enabled", "yes");
+                case "--near-cache" -> settings.put("near-cache", "yes");
+                default -> {
+                    if (!args[i].startsWith("--") || i + 1 == args.length) {
+                        logger.warn("Ignoring unknown argument {}", args[i]);
+                        continue;
+                    }
+                    settings.put(args[i].substring(2), args[++i]);
+                }
+            }
+        }
+        try {Config.set(settings, true);}
+        catch (final IllegalArgumentException e) {
+            logger.fatal("Invalid argument: {}", e.getMessage());
+            return;
+        }
+        if (replicaOf != null) Eval.execute(new RedisCmd("REPLICAOF", replicaOf), null);
+        final int port = Config.PORT.get();
+        if (Config.CLUSTER_ENABLED.get()) Cluster.enable(port);
+        TcpSync.runSyncTCPServer(port);
     }
-}
\ No newline at end of file
+}
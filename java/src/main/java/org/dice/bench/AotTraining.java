@@ -0,0 +1,48 @@
+package org.dice.bench;
+
+import org.dice.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The training run of the AOT cache: starts a server in this JVM, drives it with the {@link Benchmark} workload
+ * and exits, so that a JVM started with {@code -XX:AOTMode=record} sees every class the server loads and links
+ * while serving. The benchmark classes end up in the cache as well, which costs a little space and nothing at
+ * startup. Usage:
+ * <pre>
+ * java -XX:AOTMode=record -XX:AOTConfiguration=target/dice.aotconf -cp target/test-1.0-SNAPSHOT.jar \
+ *     org.dice.bench.AotTraining [--port 7399] [benchmark options]
+ * </pre>
+ * The benchmark options default to a short mixed workload with pipelining, see {@link Benchmark} for the others.
+ */
+public final class AotTraining {
+
+    private AotTraining() {}
+
+    private static final List<String> DEFAULT_WORKLOAD = List.of("--duration", "5", "--connections", "16",
+            "--pipeline", "8", "--keyspace", "10000", "--value-size", "16-256", "--mix", "get=60,set=30,exists=5,del=4,ping=1");
+
+    public static void main(final String[] args) throws InterruptedException {
+        var port = "7399";
+        final var workload = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) port = args[++i];
+            else workload.add(args[i]);
+        }
+        if (workload.isEmpty()) workload.addAll(DEFAULT_WORKLOAD);
+        workload.addAll(Arrays.asList("--port", port));
+
+        final var serverArgs = new String[]{"--port", port};
+        Thread.ofPlatform().daemon().name("server").start(() -> Main.main(serverArgs));
+        if (!StartupBenchmark.awaitPong("127.0.0.1", Integer.parseInt(port), TimeUnit.SECONDS.toNanos(30))) {
+            System.err.println("The server did not start");
+            System.exit(1);
+        }
+        Benchmark.main(workload.toArray(new String[0]));
+        // the AOT configuration is written when the JVM exits
+        System.exit(0);
+    }
+}
@@ -0,0 +1,336 @@
+package org.dice.bench;
+
+import org.dice.config.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load generator that measures the throughput and latency of a running server.
+ * <p>
+ * Every connection runs on its own virtual thread and sends its commands in batches of the pipeline depth, then
+ * reads all the replies before sending the next batch. The latency of a command is the time from writing its batch
+ * to reading its reply, so with pipelining it includes the time spent behind the commands ahead of it, as it would
+ * for a real client. Keys are drawn uniformly or from a Zipfian distribution over the keyspace, the command mix and
+ * the value sizes are configurable. Usage:
+ * <pre>
+ * java -cp target/classes org.dice.bench.Benchmark [--host 127.0.0.1] [--port 7380] [--connections 50]
+ *     [--pipeline 1] [--duration 10 | --requests N] [--keyspace 100000] [--distribution uniform|zipf]
+ *     [--zipf-exponent 0.99] [--value-size 64 | --value-size 32-512] [--mix get=80,set=20] [--seed 1]
+ * </pre>
+ * Supported commands in the mix are GET, SET, DEL, EXISTS and PING.
+ */
+public final class Benchmark {
+
+    private Benchmark() {}
+
+    private static final int REPORT_INTERVAL_MS = 1000;
+
+    private record Options(String host, int port, int connections, int pipeline, long durationMs, long requests,
+                           int keyspace, boolean zipf, double zipfExponent, int minValueSize, int maxValueSize,
+                           String[] mixCommands, int[] mixWeights, long seed) {}
+
+    private static Options parse(final String[] args) {
+        String host = "127.0.0.1";
+        int port = Config.PORT.get(), connections = 50, pipeline = 1, keyspace = 100_000, minValue = 64, maxValue = 64;
+        long durationMs = 10_000, requests = 0, seed = System.nanoTime();
+        boolean zipf = false;
+        double exponent = 0.99;
+        var mix = "get=80,set=20";
+        for (int i = 0; i < args.length; i++) {
+            final var value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) throw new IllegalArgumentException("missing value for " + args[i]);
+            switch (args[i]) {
+                case "--host" -> host = value;
+                case "--port" -> port = Integer.parseInt(value);
+                case "--connections" -> connections = Integer.parseInt(value);
+                case "--pipeline" -> pipeline = Integer.parseInt(value);
+                case "--duration" -> durationMs = (long) (Double.parseDouble(value) * 1000);
+                case "--requests" -> requests = Long.parseLong(value);
+                case "--keyspace" -> keyspace = Integer.parseInt(value);
+                case "--distribution" -> zipf = switch (value.toLowerCase()) {
+                    case "uniform" -> false;
+                    case "zipf", "zipfian" -> true;
+                    default -> throw new IllegalArgumentException("unknown distribution " + value);
+                };
+                case "--zipf-exponent" -> exponent = Double.parseDouble(value);
+                case "--value-size" -> {
+                    final int dash = value.indexOf('-');
+                    minValue = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+                    maxValue = dash < 0 ? minValue : Integer.parseInt(value.substring(dash + 1));
+                }
+                case "--mix" -> mix = value;
+                case "--seed" -> seed = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+            i++;
+        }
+        if (connections < 1 || pipeline < 1 || keyspace < 1 || minValue < 0 || maxValue < minValue)
+            throw new IllegalArgumentException("connections, pipeline and keyspace must be positive, value sizes a valid range");
+        final var entries = mix.split(",");
+        final var commands = new String[entries.length];
+        final var weights = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            final var kv = entries[i].split("=");
+            commands[i] = kv[0].trim().toUpperCase();
+            weights[i] = (i == 0 ? 0 : weights[i - 1]) + (kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1);
+            switch (commands[i]) {
+                case "GET", "SET", "DEL", "EXISTS", "PING" -> {}
+                default -> throw new IllegalArgumentException("unsupported command in mix " + commands[i]);
+            }
+        }
+        if (weights[weights.length - 1] <= 0) throw new IllegalArgumentException("the command mix has no weight");
+        return new Options(host, port, connections, pipeline, durationMs, requests, keyspace, zipf, exponent,
+                minValue, maxValue, commands, weights, seed);
+    }
+
+    /**
+     * Draws key indexes following a Zipfian distribution, by binary search over the precomputed cumulative
+     * distribution. Shared by all connections, it is immutable once built.
+     */
+    private static final class Zipf {
+        private final double[] cdf;
+
+        private Zipf(final int n, final double exponent) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) cdf[i] = sum += 1 / Math.pow(i + 1, exponent);
+            for (int i = 0; i < n; i++) cdf[i] /= sum;
+        }
+
+        private int next(final SplittableRandom random) {
+            final double u = random.nextDouble();
+            int lo = 0, hi = cdf.length - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private static final class Worker implements Runnable {
+        private final Options options;
+        private final Zipf zipf;
+        private final byte[] values;
+        private final SplittableRandom random;
+        private final AtomicLong budget;
+        private final long deadline;
+        private final LongAdder completed;
+        private final LongAdder errors;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final CountDownLatch done;
+        private IOException failure;
+
+        private Worker(final Options options, final Zipf zipf, final byte[] values, final long seed,
+                       final AtomicLong budget, final long deadline, final LongAdder completed, final LongAdder errors,
+                       final CountDownLatch done) {
+            this.options = options;
+            this.zipf = zipf;
+            this.values = values;
+            this.random = new SplittableRandom(seed);
+            this.budget = budget;
+            this.deadline = deadline;
+            this.completed = completed;
+            this.errors = errors;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try (final var socket = new Socket()) {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(options.host(), options.port()));
+                final OutputStream out = socket.getOutputStream();
+                final var in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                final var batch = new ByteArrayOutputStream();
+                while (true) {
+                    int n = options.pipeline();
+                    if (budget != null) {
+                        final long left = budget.getAndAdd(-n);
+                        if (left <= 0) return;
+                        n = (int) Math.min(n, left);
+                    } else if (System.nanoTime() >= deadline) return;
+                    batch.reset();
+                    for (int i = 0; i < n; i++) writeCommand(batch);
+                    final long start = System.nanoTime();
+                    batch.writeTo(out);
+                    out.flush();
+                    for (int i = 0; i < n; i++) {
+                        if (!readReply(in)) errors.increment();
+                        histogram.record(System.nanoTime() - start);
+                    }
+                    completed.add(n);
+                }
+            } catch (final IOException e) {
+                failure = e;
+            } finally {done.countDown();}
+        }
+
+        private void writeCommand(final ByteArrayOutputStream out) {
+            final int pick = random.nextInt(options.mixWeights()[options.mixWeights().length - 1]);
+            int c = 0;
+            while (options.mixWeights()[c] <= pick) c++;
+            final var cmd = options.mixCommands()[c];
+            if (cmd.equals("PING")) {
+                writeArray(out, 1);
+                writeBulk(out, cmd.getBytes(StandardCharsets.US_ASCII), 0, cmd.length());
+                return;
+            }
+            final int index = zipf != null ? zipf.next(random) : random.nextInt(options.keyspace());
+            final var key = ("key:" + index).getBytes(StandardCharsets.US_ASCII);
+            final boolean set = cmd.equals("SET");
+            writeArray(out, set ? 3 : 2);
+            writeBulk(out, cmd.getBytes(StandardCharsets.US_ASCII), 0, cmd.length());
+            writeBulk(out, key, 0, key.length);
+            if (set) {
+                final int size = options.minValueSize() + random.nextInt(options.maxValueSize() - options.minValueSize() + 1);
+                writeBulk(out, values, random.nextInt(values.length - size + 1), size);
+            }
+        }
+
+        private static void writeArray(final ByteArrayOutputStream out, final int n) {
+            out.write('*');
+            out.writeBytes(Integer.toString(n).getBytes(StandardCharsets.US_ASCII));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private static void writeBulk(final ByteArrayOutputStream out, final byte[] b, final int off, final int len) {
+            out.write('$');
+            out.writeBytes(Integer.toString(len).getBytes(StandardCharsets.US_ASCII));
+            out.write('\r');
+            out.write('\n');
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Reads one reply, skipping any push messages in front of it.
+     *
+     * @return false if the reply is an error
+     */
+    private static boolean readReply(final InputStream in) throws IOException {
+        while (true) {
+            final int type = in.read();
+            if (type == '>') {
+                skipAggregate(in, Long.parseLong(readLine(in)));
+                continue;
+            }
+            skipValue(in, type);
+            return type != '-';
+        }
+    }
+
+    private static void skipValue(final InputStream in, final int type) throws IOException {
+        if (type < 0) throw new IOException("connection closed by the server");
+        final var line = readLine(in);
+        switch (type) {
+            case '$', '=', '!' -> {
+                final long len = Long.parseLong(line);
+                if (len >= 0) in.skipNBytes(len + 2);
+            }
+            case '*', '~', '>' -> skipAggregate(in, Long.parseLong(line));
+            case '%' -> skipAggregate(in, 2 * Long.parseLong(line));
+            case '+', '-', ':', '_', '#', ',', '(' -> {}
+            default -> throw new IOException("unexpected reply type " + (char) type);
+        }
+    }
+
+    private static void skipAggregate(final InputStream in, final long n) throws IOException {
+        for (long i = 0; i < n; i++) skipValue(in, in.read());
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final var line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) throw new IOException("connection closed by the server");
+            line.append((char) b);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        final Options options;
+        try {options = parse(args);}
+        catch (final IllegalArgumentException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        final var zipf = options.zipf() ? new Zipf(options.keyspace(), options.zipfExponent()) : null;
+        final var values = new byte[Math.max(1, options.maxValueSize() * 2)];
+        final var random = new SplittableRandom(options.seed());
+        for (int i = 0; i < values.length; i++) values[i] = (byte) ('a' + random.nextInt(26));
+
+        System.out.printf("%d connections, pipeline %d, %s keys over %d, values of %d-%d bytes, mix %s%n",
+                options.connections(), options.pipeline(),
+                options.zipf() ? "zipfian(" + options.zipfExponent() + ")" : "uniform", options.keyspace(),
+                options.minValueSize(), options.maxValueSize(), String.join(",", mixDescription(options)));
+
+        final var completed = new LongAdder();
+        final var errors = new LongAdder();
+        final var done = new CountDownLatch(options.connections());
+        final var budget = options.requests() > 0 ? new AtomicLong(options.requests()) : null;
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(options.durationMs());
+        final var workers = new ArrayList<Worker>();
+        for (int i = 0; i < options.connections(); i++) {
+            final var worker = new Worker(options, zipf, values, random.nextLong(), budget, deadline, completed, errors, done);
+            workers.add(worker);
+            Thread.ofVirtual().name("bench-" + i).start(worker);
+        }
+
+        long last = 0;
+        while (!done.await(REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            final long now = completed.sum();
+            System.out.printf("%8.1fs %12d ops/sec%n", (System.nanoTime() - start) / 1e9, (now - last) * 1000 / REPORT_INTERVAL_MS);
+            last = now;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final var histogram = new LatencyHistogram();
+        int failed = 0;
+        for (final var worker : workers) {
+            histogram.add(worker.histogram);
+            if (worker.failure != null) {
+                if (failed++ == 0) System.err.println("Connection failed: " + worker.failure.getMessage());
+            }
+        }
+        if (failed > 0) System.err.printf("%d of %d connections failed%n", failed, workers.size());
+
+        System.out.printf("%n%d requests in %.2fs, %.0f ops/sec, %d errors%n", completed.sum(), seconds,
+                completed.sum() / seconds, errors.sum());
+        System.out.printf("latency (us): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f p99.99=%.1f max=%.1f%n%n",
+                histogram.valueAt(50) / 1e3, histogram.valueAt(90) / 1e3, histogram.valueAt(99) / 1e3,
+                histogram.valueAt(99.9) / 1e3, histogram.valueAt(99.99) / 1e3, histogram.max() / 1e3);
+        histogram.print(System.out, 1e3);
+    }
+
+    private static List<String> mixDescription(final Options options) {
+        final var out = new ArrayList<String>();
+        for (int i = 0; i < options.mixCommands().length; i++) {
+            final int weight = options.mixWeights()[i] - (i == 0 ? 0 : options.mixWeights()[i - 1]);
+            out.add(options.mixCommands()[i].toLowerCase() + "=" + weight);
+        }
+        return out;
+    }
+}
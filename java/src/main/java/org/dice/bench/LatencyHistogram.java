@@ -0,0 +1,128 @@
+package org.dice.bench;
+
+import java.io.PrintStream;
+
+/**
+ * A latency histogram with a bounded relative error, in the manner of HdrHistogram.
+ * <p>
+ * Values below {@value #SUB_BUCKETS} are counted exactly. Above that every power of two range is split into
+ * {@value #HALF} equal buckets, so a recorded value is off by less than one part in {@value #HALF}, whatever its
+ * magnitude, and the whole range of a long fits in a few tens of thousands of counters. Recording is a couple of
+ * shifts and an array increment. Not thread safe, every thread records into its own histogram and the histograms
+ * are merged at the end.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 2048;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int SUB_BUCKET_BITS = 11;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 2) * HALF];
+    private long total;
+    private long max;
+    private long min = Long.MAX_VALUE;
+
+    private static int index(final long value) {
+        final int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value counted in the same bucket as the values at the index
+     */
+    private static long highestEquivalent(final int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / HALF - 1;
+        final long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param value a non-negative value, typically a latency in nanoseconds
+     */
+    public void record(final long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records the same value several times, used when a whole pipelined batch completes at once.
+     */
+    public void record(final long value, final long count) {
+        counts[index(value)] += count;
+        total += count;
+        max = Math.max(max, value);
+        min = Math.min(min, value);
+    }
+
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+        min = Math.min(min, other.min);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public long min() {
+        return total == 0 ? 0 : min;
+    }
+
+    public double mean() {
+        if (total == 0) return 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length; i++) if (counts[i] != 0) sum += (double) counts[i] * highestEquivalent(i);
+        return sum / total;
+    }
+
+    /**
+     * @param percentile the percentile, in [0, 100]
+     * @return the smallest recorded value that at least {@code percentile} percent of the values are not above
+     */
+    public long valueAt(final double percentile) {
+        if (total == 0) return 0;
+        return Math.min(highestEquivalent(indexAt(percentile)), max);
+    }
+
+    /**
+     * @return the index of the bucket holding the value at the percentile
+     */
+    private int indexAt(final double percentile) {
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return i;
+        }
+        return counts.length - 1;
+    }
+
+    /**
+     * Prints the percentile distribution, halving the distance to 100% at every step like HdrHistogram does.
+     *
+     * @param out   the stream to print to
+     * @param scale the unit of the printed values, in units of the recorded ones, e.g. 1000 for microseconds
+     */
+    public void print(final PrintStream out, final double scale) {
+        out.printf("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        double remaining = 100;
+        double percentile = 0;
+        while (true) {
+            final long value = valueAt(percentile);
+            final int index = indexAt(percentile);
+            long seen = 0;
+            for (int i = 0; i <= index; i++) seen += counts[i];
+            out.printf("%12.3f %14.12f %10d %14.2f%n", value / scale, percentile / 100, seen,
+                    percentile >= 100 ? Double.POSITIVE_INFINITY : 100 / (100 - percentile));
+            if (percentile >= 100 || seen >= total) break;
+            remaining /= 2;
+            percentile = remaining < 0.001 ? 100 : 100 - remaining;
+        }
+        out.printf("#[Mean = %.3f, Max = %.3f, Total count = %d]%n", mean() / scale, max / scale, total);
+    }
+}
@@ -0,0 +1,149 @@
+package org.dice.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from launching a server process to its first PONG.
+ * <p>
+ * Every run starts a fresh JVM, then connects and sends PING every millisecond until a PONG comes back, and stops
+ * the server. The time therefore covers JVM startup, class loading and linking, the configuration and the
+ * accept loop, which is what a new instance pays before it can serve. With {@code --aot-cache} every round runs
+ * the server once without and once with the cache, in alternation so that both see the same machine state. Usage:
+ * <pre>
+ * java -cp target/test-1.0-SNAPSHOT.jar org.dice.bench.StartupBenchmark [--runs 10] [--port 7399]
+ *     [--java path/to/java] [--classpath target/test-1.0-SNAPSHOT.jar] [--aot-cache target/dice.aot]
+ *     [--jvm-arg --enable-preview ...]
+ * </pre>
+ * The classpath must be the one the cache was created with, otherwise the runs with the cache fail to start.
+ */
+public final class StartupBenchmark {
+
+    private StartupBenchmark() {}
+
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Waits until a server answers PING on the port.
+     *
+     * @param timeoutNanos how long to keep trying
+     * @return true once a PONG was received, false if none came in time
+     */
+    static boolean awaitPong(final String host, final int port, final long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while (System.nanoTime() < deadline) {
+            try (final var socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 100);
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write(PING);
+                if (Arrays.equals(readN(socket.getInputStream(), PONG.length), PONG)) return true;
+            } catch (final IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(1);
+        }
+        return false;
+    }
+
+    private static byte[] readN(final InputStream in, final int n) throws IOException {
+        final var buf = new byte[n];
+        int read = 0;
+        while (read < n) {
+            final int r = in.read(buf, read, n - read);
+            if (r < 0) break;
+            read += r;
+        }
+        return buf;
+    }
+
+    /**
+     * Launches a server and times it until its first PONG.
+     *
+     * @return the elapsed nanoseconds
+     */
+    private static long run(final List<String> command, final int port) throws IOException, InterruptedException {
+        final var builder = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        final long start = System.nanoTime();
+        final var process = builder.start();
+        try {
+            if (!awaitPong("127.0.0.1", port, TIMEOUT_NANOS)) throw new IOException("the server did not answer PING");
+            return System.nanoTime() - start;
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+        }
+    }
+
+    private static String summary(final long[] nanos) {
+        final var sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return "min=%.1fms p50=%.1fms p90=%.1fms max=%.1fms".formatted(sorted[0] / 1e6,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) Math.ceil(sorted.length * 0.9) - 1] / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        int runs = 10, port = 7399;
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var classpath = System.getProperty("java.class.path");
+        String cache = null;
+        final var jvmArgs = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                System.err.println("Invalid arguments: missing value for " + args[i]);
+                System.exit(2);
+            }
+            final var value = args[++i];
+            switch (args[i - 1]) {
+                case "--runs" -> runs = Integer.parseInt(value);
+                case "--port" -> port = Integer.parseInt(value);
+                case "--java" -> java = value;
+                case "--classpath" -> classpath = value;
+                case "--aot-cache" -> cache = value;
+                case "--jvm-arg" -> jvmArgs.add(value);
+                default -> {
+                    System.err.println("Invalid arguments: unknown option " + args[i - 1]);
+                    System.exit(2);
+                }
+            }
+        }
+        if (cache != null && !Files.isRegularFile(Path.of(cache))) {
+            System.err.println("No AOT cache at " + cache);
+            System.exit(2);
+        }
+
+        final var baseline = new ArrayList<String>(List.of(java));
+        baseline.addAll(jvmArgs);
+        baseline.addAll(List.of("-cp", classpath, "org.dice.Main", "--port", String.valueOf(port)));
+        final var cached = new ArrayList<>(baseline);
+        // AOTMode=on fails the start rather than silently running without a cache that cannot be used
+        if (cache != null) cached.addAll(1, List.of("-XX:AOTCache=" + cache, "-XX:AOTMode=on"));
+
+        // one untimed run of each to warm the page cache
+        run(baseline, port);
+        if (cache != null) run(cached, port);
+        final var baselineNanos = new long[runs];
+        final var cachedNanos = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            baselineNanos[i] = run(baseline, port);
+            if (cache != null) cachedNanos[i] = run(cached, port);
+        }
+        System.out.printf("time to first PONG over %d runs%n", runs);
+        System.out.printf("  default:   %s%n", summary(baselineNanos));
+        if (cache != null) System.out.printf("  AOT cache: %s%n", summary(cachedNanos));
+    }
+}
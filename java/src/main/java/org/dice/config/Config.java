@@ -1,6 +1,406 @@
 package org.dice.config;
 
-public interface Config {
-    String HOST = "0.0.0.0";
-    int PORT = 7380;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The settings of the server.
+ * <p>
+ * Every setting has a default value and can be configured at startup from a configuration file, in the format of
+ * {@code redis.conf}, and from {@code --name value} arguments, which take precedence over the file. The mutable
+ * ones can also be changed while the server runs with CONFIG SET, and CONFIG REWRITE writes the current values
+ * back to the configuration file. Readers call {@link Setting#get()}, a volatile read, on every use so that
+ * changes apply to the next command without any coordination.
+ */
+public final class Config {
+
+    private Config() {}
+
+    private static final Map<String, Setting<?>> SETTINGS = new LinkedHashMap<>();
+
+    /**
+     * The configuration file the server was started with, rewritten by {@link #rewrite()}.
+     */
+    private static volatile Path file;
+
+    /**
+     * Output buffer limits of a client class, a value of 0 disables the limit.
+     *
+     * @param hardBytes   the client is disconnected as soon as its pending output exceeds this many bytes
+     * @param softBytes   the client is disconnected once its pending output stayed above this many bytes ...
+     * @param softSeconds ... for longer than this many seconds
+     */
+    public record OutputBufferLimit(long hardBytes, long softBytes, long softSeconds) {}
+
+    /**
+     * The output buffer limits of every client class.
+     */
+    public record OutputBufferLimits(OutputBufferLimit normal, OutputBufferLimit replica, OutputBufferLimit pubsub) {}
+
+    /**
+     * What happens to writes once {@link #MAXMEMORY} is reached.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Writes that may allocate memory are rejected.
+         */
+        NOEVICTION,
+        /**
+         * The least recently used keys are evicted, approximately.
+         */
+        ALLKEYS_LRU,
+        /**
+         * Random keys are evicted.
+         */
+        ALLKEYS_RANDOM;
+
+        /**
+         * @return the name of the policy in the configuration, such as {@code allkeys-lru}
+         */
+        public String configName() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    public static final Setting<String> HOST = string("bind", "0.0.0.0", false);
+    public static final Setting<Integer> PORT = integer("port", 7380, 1, 65535, false);
+
+    /**
+     * Size of the buffer every connection reads its commands into, applies to the connections accepted afterwards.
+     */
+    public static final Setting<Long> IO_READ_BUFFER_SIZE = bytes("io-read-buffer-size", 16 << 10, 512, 1 << 30, true);
+
+    /**
+     * Most bytes of an incomplete request kept while waiting for the rest of it, a client going above is
+     * disconnected.
+     */
+    public static final Setting<Long> CLIENT_QUERY_BUFFER_LIMIT =
+            bytes("client-query-buffer-limit", 1L << 30, 1 << 20, 1L << 30, true);
+
+    /**
+     * Longest bulk string accepted, a longer one is a protocol error rather than a value to wait for the rest of.
+     */
+    public static final Setting<Long> PROTO_MAX_BULK_LEN = bytes("proto-max-bulk-len", 512L << 20, 1 << 20, 1L << 30, true);
+
+    public static final Setting<OutputBufferLimits> CLIENT_OUTPUT_BUFFER_LIMIT = define("client-output-buffer-limit",
+            new OutputBufferLimits(new OutputBufferLimit(0, 0, 0),
+                    new OutputBufferLimit(256L << 20, 64L << 20, 60),
+                    new OutputBufferLimit(32L << 20, 8L << 20, 60)),
+            true, Config::parseOutputBufferLimits, Config::formatOutputBufferLimits);
+
+    /**
+     * A client stops having its commands read once this many reply bytes are waiting to be written to it.
+     */
+    public static final Setting<Long> CLIENT_OUTPUT_BACKPRESSURE_BYTES =
+            bytes("client-output-backpressure-bytes", 1L << 20, 1, Long.MAX_VALUE, true);
+
+    /**
+     * Size of the replication backlog, the window within which a reconnecting replica can resync partially. Applies
+     * when the backlog is created, by the first replica to connect.
+     */
+    public static final Setting<Long> REPL_BACKLOG_SIZE = bytes("repl-backlog-size", 1L << 20, 16 << 10, 1L << 30, true);
+
+    /**
+     * Use the Vector API for the loops over large byte arrays when the {@code jdk.incubator.vector} module is
+     * present, scalar code otherwise.
+     */
+    public static final Setting<Boolean> SIMD_ENABLED = bool("simd-enabled", true, false);
+
+    public static final Setting<Boolean> CLUSTER_ENABLED = bool("cluster-enabled", false, false);
+
+    /**
+     * Address other cluster nodes and redirected clients are told to reach this node at.
+     */
+    public static final Setting<String> CLUSTER_ANNOUNCE_HOST = string("cluster-announce-ip", "127.0.0.1", false);
+
+    /**
+     * Serve GET replies of the hottest keys without taking the store lock.
+     */
+    public static final Setting<Boolean> NEAR_CACHE = bool("near-cache", false, true);
+
+    /**
+     * Number of hottest keys tracked, and cached by the near cache when it is enabled.
+     */
+    public static final Setting<Integer> HOTKEYS_TOP_K = integer("hotkeys-top-k", 32, 1, 1 << 16, false);
+
+    /**
+     * Rows and counters per row of the access frequency sketch, 4 x 65536 counters take 1 MB.
+     */
+    public static final Setting<Integer> HOTKEYS_SKETCH_DEPTH = integer("hotkeys-sketch-depth", 4, 1, 6, false);
+    public static final Setting<Integer> HOTKEYS_SKETCH_WIDTH = integer("hotkeys-sketch-width", 1 << 16, 16, 1 << 24, false);
+
+    /**
+     * Access counts are halved this often so that they reflect recent traffic.
+     */
+    public static final Setting<Integer> HOTKEYS_DECAY_SECONDS = integer("hotkeys-decay-seconds", 10, 1, 86_400, true);
+
+    /**
+     * Commands executing for longer than this many microseconds are kept in the slow log, a negative value disables
+     * the log.
+     */
+    public static final Setting<Long> SLOWLOG_LOG_SLOWER_THAN =
+            number("slowlog-log-slower-than", 10_000, -1, Long.MAX_VALUE, true);
+
+    /**
+     * Number of entries kept in the slow log.
+     */
+    public static final Setting<Integer> SLOWLOG_MAX_LEN = integer("slowlog-max-len", 128, 1, 1 << 20, true);
+
+    /**
+     * Bytes of keys and values above which writes evict keys or are rejected, depending on the policy. 0 disables
+     * the limit.
+     */
+    public static final Setting<Long> MAXMEMORY = bytes("maxmemory", 0, 0, Long.MAX_VALUE, true);
+
+    public static final Setting<EvictionPolicy> MAXMEMORY_POLICY = define("maxmemory-policy",
+            EvictionPolicy.NOEVICTION, true, Config::parseEvictionPolicy, EvictionPolicy::configName);
+
+    /**
+     * Keys sampled per eviction, more samples approximate LRU better at a higher cost.
+     */
+    public static final Setting<Integer> MAXMEMORY_SAMPLES = integer("maxmemory-samples", 5, 1, 64, true);
+
+    /**
+     * The size above which a HyperLogLog in the sparse encoding is converted to the dense one. Sparse ones are
+     * smaller but slower to update, past 3000 bytes the dense 12 KB is the better trade.
+     */
+    public static final Setting<Long> HLL_SPARSE_MAX_BYTES = bytes("hll-sparse-max-bytes", 3000, 0, 16 << 10, true);
+
+    /**
+     * The size above which a stream starts a new packed node. Larger nodes cost less per entry but more to seek
+     * into and to trim.
+     */
+    public static final Setting<Long> STREAM_NODE_MAX_BYTES = bytes("stream-node-max-bytes", 4096, 64, 1 << 20, true);
+
+    /**
+     * The entries above which a stream starts a new packed node, 0 for no limit other than the size.
+     */
+    public static final Setting<Integer> STREAM_NODE_MAX_ENTRIES =
+            integer("stream-node-max-entries", 100, 0, 1 << 20, true);
+
+    private static <T> Setting<T> define(final String name, final T defaultValue, final boolean mutable,
+                                         final Function<String, T> parser, final Function<T, String> formatter) {
+        final var setting = new Setting<>(name, defaultValue, mutable, parser, formatter);
+        SETTINGS.put(name, setting);
+        return setting;
+    }
+
+    private static Setting<String> string(final String name, final String defaultValue, final boolean mutable) {
+        return define(name, defaultValue, mutable, Function.identity(), Function.identity());
+    }
+
+    private static Setting<Boolean> bool(final String name, final boolean defaultValue, final boolean mutable) {
+        return define(name, defaultValue, mutable, raw -> switch (raw.toLowerCase(Locale.ROOT)) {
+            case "yes" -> true;
+            case "no" -> false;
+            default -> throw new IllegalArgumentException("argument must be 'yes' or 'no'");
+        }, b -> b ? "yes" : "no");
+    }
+
+    private static Setting<Long> number(final String name, final long defaultValue, final long min, final long max,
+                                        final boolean mutable) {
+        return define(name, defaultValue, mutable, raw -> inRange(parseLong(raw), min, max), String::valueOf);
+    }
+
+    private static Setting<Integer> integer(final String name, final int defaultValue, final int min, final int max,
+                                            final boolean mutable) {
+        return define(name, defaultValue, mutable, raw -> (int) inRange(parseLong(raw), min, max), String::valueOf);
+    }
+
+    private static Setting<Long> bytes(final String name, final long defaultValue, final long min, final long max,
+                                       final boolean mutable) {
+        return define(name, defaultValue, mutable, raw -> inRange(parseBytes(raw), min, max), String::valueOf);
+    }
+
+    private static long parseLong(final String raw) {
+        try {return Long.parseLong(raw.trim());}
+        catch (final NumberFormatException e) {throw new IllegalArgumentException("argument couldn't be parsed into an integer");}
+    }
+
+    private static long inRange(final long value, final long min, final long max) {
+        if (value < min || value > max)
+            throw new IllegalArgumentException("argument must be between %d and %d inclusive".formatted(min, max));
+        return value;
+    }
+
+    /**
+     * Parses a byte count with an optional unit, {@code 100mb} or {@code 1gb}. Units are powers of 1024, as in the
+     * Redis configuration file.
+     *
+     * @throws IllegalArgumentException if the value is not a byte count
+     */
+    public static long parseBytes(final String value) {
+        final var s = value.trim().toLowerCase(Locale.ROOT);
+        final long unit;
+        final int digits;
+        if (s.endsWith("kb")) {unit = 1L << 10; digits = s.length() - 2;}
+        else if (s.endsWith("mb")) {unit = 1L << 20; digits = s.length() - 2;}
+        else if (s.endsWith("gb")) {unit = 1L << 30; digits = s.length() - 2;}
+        else if (s.endsWith("b")) {unit = 1; digits = s.length() - 1;}
+        else {unit = 1; digits = s.length();}
+        try {
+            final long n = Long.parseLong(s.substring(0, digits));
+            if (n < 0) throw new IllegalArgumentException("argument must be a memory value");
+            return Math.multiplyExact(n, unit);
+        } catch (final NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("argument must be a memory value");
+        }
+    }
+
+    private static EvictionPolicy parseEvictionPolicy(final String raw) {
+        for (final var policy : EvictionPolicy.values()) if (policy.configName().equalsIgnoreCase(raw)) return policy;
+        throw new IllegalArgumentException("argument(s) must be one of the following: noeviction, allkeys-lru, allkeys-random");
+    }
+
+    /**
+     * Parses {@code <class> <hard> <soft> <soft seconds>} groups, the classes that are not listed keep their
+     * current limits.
+     */
+    private static OutputBufferLimits parseOutputBufferLimits(final String raw) {
+        final var tokens = raw.trim().split("\\s+");
+        if (tokens.length % 4 != 0) throw new IllegalArgumentException("Wrong number of arguments in buffer limit configuration.");
+        var limits = CLIENT_OUTPUT_BUFFER_LIMIT.get();
+        for (int i = 0; i < tokens.length; i += 4) {
+            final var limit = new OutputBufferLimit(parseBytes(tokens[i + 1]), parseBytes(tokens[i + 2]),
+                    inRange(parseLong(tokens[i + 3]), 0, Long.MAX_VALUE));
+            limits = switch (tokens[i].toLowerCase(Locale.ROOT)) {
+                case "normal" -> new OutputBufferLimits(limit, limits.replica(), limits.pubsub());
+                case "replica", "slave" -> new OutputBufferLimits(limits.normal(), limit, limits.pubsub());
+                case "pubsub" -> new OutputBufferLimits(limits.normal(), limits.replica(), limit);
+                default -> throw new IllegalArgumentException("Invalid client class specified in buffer limit configuration.");
+            };
+        }
+        return limits;
+    }
+
+    private static String formatOutputBufferLimits(final OutputBufferLimits limits) {
+        return "normal %d %d %d replica %d %d %d pubsub %d %d %d".formatted(
+                limits.normal().hardBytes(), limits.normal().softBytes(), limits.normal().softSeconds(),
+                limits.replica().hardBytes(), limits.replica().softBytes(), limits.replica().softSeconds(),
+                limits.pubsub().hardBytes(), limits.pubsub().softBytes(), limits.pubsub().softSeconds());
+    }
+
+    /**
+     * @return every setting, in definition order
+     */
+    public static Collection<Setting<?>> all() {
+        return Collections.unmodifiableCollection(SETTINGS.values());
+    }
+
+    /**
+     * @return the setting with the given name, null if there is none
+     */
+    public static Setting<?> lookup(final String name) {
+        return SETTINGS.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Changes several settings at once: either every value is valid and all of them are applied, or none is.
+     *
+     * @param values  the new values by setting name
+     * @param startup true while the server starts, when the immutable settings can be configured too
+     * @throws IllegalArgumentException if a setting does not exist, cannot be changed or gets an invalid value, with
+     *                                  a message starting with the name of the setting in quotes
+     */
+    public static synchronized void set(final Map<String, String> values, final boolean startup) {
+        final var parsed = new LinkedHashMap<Setting<Object>, Object>();
+        for (final var entry : values.entrySet()) {
+            @SuppressWarnings("unchecked") final var setting = (Setting<Object>) lookup(entry.getKey());
+            if (setting == null) throw new IllegalArgumentException("'%s' - unknown setting".formatted(entry.getKey()));
+            if (!startup && !setting.isMutable())
+                throw new IllegalArgumentException("'%s' - can't set immutable config".formatted(setting.name()));
+            try {parsed.put(setting, setting.parse(entry.getValue()));}
+            catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException("'%s' - %s".formatted(setting.name(), e.getMessage()));
+            }
+        }
+        parsed.forEach(Setting::set);
+    }
+
+    /**
+     * Reads a configuration file of {@code name value} lines, blank lines and lines starting with # are ignored.
+     * The file is remembered for {@link #rewrite()}.
+     *
+     * @throws IllegalArgumentException if a line is invalid
+     * @throws UncheckedIOException     if the file cannot be read
+     */
+    public static void load(final Path path) {
+        final var values = new LinkedHashMap<String, String>();
+        final var lines = readLines(path);
+        for (int i = 0; i < lines.size(); i++) {
+            final var directive = directive(lines.get(i));
+            if (directive == null) continue;
+            if (directive.length != 2)
+                throw new IllegalArgumentException("line %d: wrong number of arguments".formatted(i + 1));
+            values.put(directive[0], directive[1]);
+        }
+        try {set(values, true);}
+        catch (final IllegalArgumentException e) {throw new IllegalArgumentException(path + ": " + e.getMessage());}
+        file = path;
+    }
+
+    /**
+     * Writes the current values to the configuration file the server was started with. The lines of the settings
+     * are updated in place, the settings that are not in the file yet are appended when they differ from their
+     * defaults, comments and everything else are kept. The new file replaces the old one atomically.
+     *
+     * @throws IllegalStateException if the server was started without a configuration file
+     * @throws UncheckedIOException  if the file cannot be written
+     */
+    public static synchronized void rewrite() {
+        final var path = file;
+        if (path == null) throw new IllegalStateException("The server is running without a config file");
+        final var out = new ArrayList<String>();
+        final Set<String> written = new HashSet<>();
+        for (final var line : readLines(path)) {
+            final var directive = directive(line);
+            final var setting = directive == null ? null : lookup(directive[0]);
+            if (setting == null) out.add(line);
+            else if (written.add(setting.name())) out.add(setting.name() + " " + quote(setting.format()));
+        }
+        for (final var setting : SETTINGS.values()) {
+            if (!written.contains(setting.name()) && setting.isModified())
+                out.add(setting.name() + " " + quote(setting.format()));
+        }
+        try {
+            final var tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "config-rewrite", ".tmp");
+            Files.write(tmp, out);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {throw new UncheckedIOException(e);}
+    }
+
+    private static List<String> readLines(final Path path) {
+        try {return Files.readAllLines(path);}
+        catch (final IOException e) {throw new UncheckedIOException(e);}
+    }
+
+    /**
+     * @return the name and the value of a configuration line, null for blank lines and comments
+     */
+    private static String[] directive(final String line) {
+        final var trimmed = line.strip();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) return null;
+        final var parts = trimmed.split("\\s+", 2);
+        if (parts.length == 1) return parts;
+        var value = parts[1];
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
+        return new String[]{parts[0].toLowerCase(Locale.ROOT), value};
+    }
+
+    private static String quote(final String value) {
+        return value.isEmpty() ? "\"\"" : value;
+    }
 }
@@ -0,0 +1,97 @@
+package org.dice.config;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A typed configuration parameter, see {@link Config}.
+ * <p>
+ * The current value is immutable and published through a volatile field, so {@link #get()} is a plain volatile
+ * read: readers on the command path never take a lock and always see a complete value, a compound one such as
+ * {@link Config.OutputBufferLimits} included.
+ *
+ * @param <T> the type of the value
+ */
+public final class Setting<T> {
+
+    private final String name;
+    private final T defaultValue;
+    private final boolean mutable;
+    private final Function<String, T> parser;
+    private final Function<T, String> formatter;
+    private final List<Consumer<T>> listeners = new CopyOnWriteArrayList<>();
+    private volatile T value;
+
+    /**
+     * @param name         the name used in the configuration file, on the command line and by CONFIG
+     * @param defaultValue the value until the setting is configured
+     * @param mutable      false for the settings that can only be configured at startup
+     * @param parser       parses a configured value, throws {@link IllegalArgumentException} for invalid ones
+     * @param formatter    formats the value the way the parser accepts it
+     */
+    Setting(final String name, final T defaultValue, final boolean mutable,
+            final Function<String, T> parser, final Function<T, String> formatter) {
+        this.name = name;
+        this.defaultValue = defaultValue;
+        this.mutable = mutable;
+        this.parser = parser;
+        this.formatter = formatter;
+        this.value = defaultValue;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return false if the setting can only be configured at startup
+     */
+    public boolean isMutable() {
+        return mutable;
+    }
+
+    public T get() {
+        return value;
+    }
+
+    /**
+     * @return the current value the way it is written in the configuration file
+     */
+    public String format() {
+        return formatter.apply(value);
+    }
+
+    /**
+     * @return true if the current value differs from the default one
+     */
+    boolean isModified() {
+        return !formatter.apply(value).equals(formatter.apply(defaultValue));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    T parse(final String raw) {
+        return parser.apply(raw);
+    }
+
+    void set(final T newValue) {
+        value = newValue;
+        for (final var listener : listeners) listener.accept(newValue);
+    }
+
+    /**
+     * Registers a listener called with the new value after every change, on the thread that made the change.
+     * Settings that are read on every use need no listener, it is for the ones that resize or rebuild something.
+     */
+    public void onChange(final Consumer<T> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + format();
+    }
+}
@@ -0,0 +1,50 @@
+package org.dice.core;
+
+/**
+ * The loops over whole bitmaps behind BITCOUNT, BITPOS and BITOP, see {@link Bitmaps}, and over the registers of
+ * HyperLogLogs behind PFCOUNT and PFMERGE, see {@link HyperLogLog}.
+ * <p>
+ * {@link ScalarBitOps} works on 64-bit words, {@link VectorBitOps} on the widest vectors the CPU supports, and
+ * {@link #get()} picks one once for the whole server, see {@link Simd}. Ranges are half-open, the arrays are not
+ * modified unless they are a destination.
+ */
+public interface BitOps {
+
+    /**
+     * The binary operations of BITOP.
+     */
+    enum Op {AND, OR, XOR}
+
+    /**
+     * @return the implementation used by the server
+     */
+    static BitOps get() {
+        return Bitmaps.OPS;
+    }
+
+    /**
+     * @return the number of bits set in {@code a[from, to)}
+     */
+    long bitCount(byte[] a, int from, int to);
+
+    /**
+     * @return the index of the first byte of {@code a[from, to)} that differs from {@code b}, -1 if there is none
+     */
+    int indexOfNot(byte[] a, int from, int to, byte b);
+
+    /**
+     * Combines {@code dest[0, len)} with {@code src[0, len)} in place.
+     */
+    void apply(Op op, byte[] dest, byte[] src, int len);
+
+    /**
+     * Writes the complement of {@code src[0, len)} into {@code dest[0, len)}.
+     */
+    void not(byte[] dest, byte[] src, int len);
+
+    /**
+     * Replaces every byte of {@code dest[0, len)} with the greater of it and the byte of {@code src[0, len)} at the
+     * same index, comparing signed bytes.
+     */
+    void max(byte[] dest, byte[] src, int len);
+}
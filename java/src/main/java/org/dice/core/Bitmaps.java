@@ -0,0 +1,323 @@
+package org.dice.core;
+
+import java.util.Arrays;
+
+import static org.dice.core.RESPEncoder.encodeError;
+import static org.dice.core.RESPEncoder.encodeLong;
+
+/**
+ * Bit operations on string values, in the manner of the Redis bitmap commands.
+ * <p>
+ * Bit 0 of a string is the most significant bit of its first byte. Setting a bit past the end of the string grows
+ * it with zero bytes, reading past the end reads zeros. A string is mutated in place as long as it does not need
+ * to grow. Growing it makes it a {@link Bitmap}, which reserves room the way {@code sdsMakeRoomFor} does in Redis,
+ * so that setting increasing offsets one after the other copies the string a logarithmic number of times. The
+ * loops over whole strings are in {@link BitOps}.
+ * <p>
+ * All commands run under the {@link Store} lock.
+ */
+final class Bitmaps {
+
+    private Bitmaps() {}
+
+    static final BitOps OPS = Simd.isEnabled() ? new VectorBitOps() : new ScalarBitOps();
+
+    /**
+     * Bit offsets are limited to 2^32 - 1, strings to 512 MB, as in Redis.
+     */
+    private static final long MAX_BIT_OFFSET = (1L << 32) - 1;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Room reserved when a string grows: as much again up to this length, this much beyond it.
+     */
+    private static final int MAX_PREALLOC = 1 << 20;
+
+    /**
+     * The bytes of a string grown by SETBIT, followed by the zeros of the room reserved to grow further. The room
+     * counts in the memory used by the value.
+     */
+    static final class Bitmap implements Memory.Sized {
+
+        private static final long SHALLOW = Memory.align(Memory.OBJECT_HEADER + Memory.REFERENCE + 4);
+
+        private byte[] bytes;
+        private int length;
+
+        private Bitmap(final byte[] bytes, final int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        /**
+         * @return a copy of the bytes of the string
+         */
+        byte[] toBytes() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        @Override
+        public long memoryUsage() {
+            return SHALLOW + Memory.array(bytes.length, 1);
+        }
+    }
+
+    /**
+     * @return a copy of the bytes with room for {@code length} bytes and more
+     */
+    private static byte[] makeRoomFor(final byte[] bytes, final int length) {
+        final long capacity = length < MAX_PREALLOC ? 2L * length : (long) length + MAX_PREALLOC;
+        return Arrays.copyOf(bytes, (int) Math.min(capacity, (MAX_BIT_OFFSET >>> 3) + 1));
+    }
+
+    private static final byte[] WRONGTYPE = encodeError(Eval.WRONGTYPE);
+    private static final byte[] NOT_AN_INTEGER = encodeError("ERR value is not an integer or out of range");
+    private static final byte[] SYNTAX_ERROR = encodeError("ERR syntax error");
+
+    /**
+     * @return the offset, or -1 if it is not a valid bit offset
+     */
+    private static long bitOffset(final String arg) {
+        try {
+            final long offset = Long.parseLong(arg);
+            return offset < 0 || offset > MAX_BIT_OFFSET ? -1 : offset;
+        } catch (final NumberFormatException e) {return -1;}
+    }
+
+    /**
+     * @return the bytes of a string key, empty if the key is absent, null if it holds another type
+     */
+    private static byte[] bytesOf(final Obj obj) {
+        if (obj == null) return EMPTY;
+        return obj.type == Obj.TYPE_STRING ? obj.stringBytes() : null;
+    }
+
+    /**
+     * @return the bytes of a string key possibly followed by zeros, without copying a {@link Bitmap}, empty if the
+     * key is absent, null if it holds another type
+     */
+    private static byte[] bitsOf(final Obj obj) {
+        return obj != null && obj.value instanceof Bitmap bitmap ? bitmap.bytes : bytesOf(obj);
+    }
+
+    private static Obj newRaw(final byte[] bytes) {
+        return new Obj(Obj.TYPE_STRING, bytes.length <= 44 ? Obj.ENCODING_EMBSTR : Obj.ENCODING_RAW, bytes);
+    }
+
+    /**
+     * SETBIT key offset value
+     */
+    static byte[] setbit(final String[] args) {
+        if (args.length != 3) return Eval.wrongArgs("setbit");
+        final long offset = bitOffset(args[1]);
+        if (offset < 0) return encodeError("ERR bit offset is not an integer or out of range");
+        if (!args[2].equals("0") && !args[2].equals("1")) return encodeError("ERR bit is not an integer or out of range");
+        var obj = Store.get(args[0]);
+        final var bits = bitsOf(obj);
+        if (bits == null) return WRONGTYPE;
+        final int index = (int) (offset >>> 3);
+        final byte[] bytes;
+        if (obj != null && obj.value instanceof Bitmap bitmap) {
+            if (index >= bitmap.bytes.length) {
+                final long before = Memory.value(bitmap);
+                bitmap.bytes = makeRoomFor(bitmap.bytes, index + 1);
+                Memory.resized(Memory.value(bitmap) - before);
+            }
+            bitmap.length = Math.max(bitmap.length, index + 1);
+            bytes = bitmap.bytes;
+        } else if (index >= bits.length) {
+            bytes = makeRoomFor(bits, index + 1);
+            obj = new Obj(Obj.TYPE_STRING, Obj.ENCODING_BITMAP, new Bitmap(bytes, index + 1));
+        } else {
+            bytes = bits;
+            // the bytes of an integer are a copy, they become a raw string
+            if (obj.encoding == Obj.ENCODING_INT) obj = newRaw(bytes);
+        }
+        final int mask = 0x80 >>> (offset & 7);
+        final int old = (bytes[index] & mask) == 0 ? 0 : 1;
+        if (args[2].equals("1")) bytes[index] |= (byte) mask;
+        else bytes[index] &= (byte) ~mask;
+        // put even when mutated in place, for the invalidations
+        Store.put(args[0], obj);
+        return encodeLong(old);
+    }
+
+    /**
+     * GETBIT key offset
+     */
+    static byte[] getbit(final String[] args) {
+        if (args.length != 2) return Eval.wrongArgs("getbit");
+        final long offset = bitOffset(args[1]);
+        if (offset < 0) return encodeError("ERR bit offset is not an integer or out of range");
+        final var bytes = bitsOf(Store.get(args[0]));
+        if (bytes == null) return WRONGTYPE;
+        final int index = (int) (offset >>> 3);
+        if (index >= bytes.length) return encodeLong(0);
+        return encodeLong((bytes[index] & (0x80 >>> (offset & 7))) == 0 ? 0 : 1);
+    }
+
+    /**
+     * A range of a string in bytes or in bits, normalised: negative indexes count from the end and are clamped to
+     * the string. Empty when {@code start > end}.
+     */
+    private record Range(long start, long end, boolean bits) {
+
+        /**
+         * @return the range, or null if the unit is neither BYTE nor BIT
+         */
+        private static Range parse(final long start, final long end, final String unit, final int length) {
+            final boolean bits;
+            if (unit == null || unit.equalsIgnoreCase("BYTE")) bits = false;
+            else if (unit.equalsIgnoreCase("BIT")) bits = true;
+            else return null;
+            final long total = bits ? length * 8L : length;
+            long s = start < 0 ? total + start : start;
+            long e = end < 0 ? total + end : end;
+            if (s < 0) s = 0;
+            if (e < 0) e = 0;
+            if (e >= total) e = total - 1;
+            return new Range(s, e, bits);
+        }
+
+        private boolean isEmpty() {
+            return start > end;
+        }
+
+        private int firstByte() {
+            return (int) (bits ? start >>> 3 : start);
+        }
+
+        private int lastByte() {
+            return (int) (bits ? end >>> 3 : end);
+        }
+
+        /**
+         * @return the bits of the first byte that are in the range
+         */
+        private int firstMask() {
+            return bits ? 0xFF >>> (start & 7) : 0xFF;
+        }
+
+        /**
+         * @return the bits of the last byte that are in the range
+         */
+        private int lastMask() {
+            return bits ? (0xFF << (7 - (end & 7))) & 0xFF : 0xFF;
+        }
+    }
+
+    /**
+     * BITCOUNT key [start end [BYTE | BIT]]
+     */
+    static byte[] bitcount(final String[] args) {
+        if (args.length == 0) return Eval.wrongArgs("bitcount");
+        if (args.length == 2 || args.length > 4) return SYNTAX_ERROR;
+        final var bytes = bytesOf(Store.get(args[0]));
+        if (bytes == null) return WRONGTYPE;
+        if (args.length == 1) return encodeLong(OPS.bitCount(bytes, 0, bytes.length));
+        final long start, end;
+        try {
+            start = Long.parseLong(args[1]);
+            end = Long.parseLong(args[2]);
+        } catch (final NumberFormatException e) {return NOT_AN_INTEGER;}
+        final var range = Range.parse(start, end, args.length == 4 ? args[3] : null, bytes.length);
+        if (range == null) return SYNTAX_ERROR;
+        if (range.isEmpty()) return encodeLong(0);
+        final int first = range.firstByte(), last = range.lastByte();
+        if (first == last) return encodeLong(Integer.bitCount(bytes[first] & range.firstMask() & range.lastMask()));
+        return encodeLong(Integer.bitCount(bytes[first] & range.firstMask()) + OPS.bitCount(bytes, first + 1, last) +
+                Integer.bitCount(bytes[last] & range.lastMask()));
+    }
+
+    /**
+     * BITPOS key bit [start [end [BYTE | BIT]]]
+     * <p>
+     * Looking for a clear bit without an explicit end finds the first bit past the end of the string if all the
+     * bits of the range are set, as if the string was padded with zeros, like Redis does.
+     */
+    static byte[] bitpos(final String[] args) {
+        if (args.length < 2) return Eval.wrongArgs("bitpos");
+        if (args.length > 5) return SYNTAX_ERROR;
+        final int bit;
+        if (args[1].equals("0") || args[1].equals("1")) bit = args[1].charAt(0) - '0';
+        else return encodeError("ERR The bit argument must be 1 or 0.");
+        long start = 0, end = -1;
+        try {
+            if (args.length > 2) start = Long.parseLong(args[2]);
+            if (args.length > 3) end = Long.parseLong(args[3]);
+        } catch (final NumberFormatException e) {return NOT_AN_INTEGER;}
+        final var obj = Store.get(args[0]);
+        if (obj == null) return encodeLong(bit == 1 ? -1 : 0);
+        final var bytes = bytesOf(obj);
+        if (bytes == null) return WRONGTYPE;
+        final var range = Range.parse(start, end, args.length == 5 ? args[4] : null, bytes.length);
+        if (range == null) return SYNTAX_ERROR;
+        if (range.isEmpty()) return encodeLong(-1);
+        final int first = range.firstByte(), last = range.lastByte();
+        final byte skip = (byte) (bit == 1 ? 0 : 0xFF);
+        // bytes in which the bit cannot be, once the bits out of the range are forced to the other value
+        final int outOfRange = ~(first == last ? range.firstMask() & range.lastMask() : range.firstMask()) & 0xFF;
+        long pos = find(bytes[first], outOfRange, bit, first);
+        if (pos < 0 && last > first) {
+            final int i = OPS.indexOfNot(bytes, first + 1, last, skip);
+            if (i >= 0) pos = find(bytes[i], 0, bit, i);
+            else pos = find(bytes[last], ~range.lastMask() & 0xFF, bit, last);
+        }
+        if (pos >= 0) return encodeLong(pos);
+        // not found: a clear bit is assumed right after the string unless the end was given
+        return encodeLong(bit == 1 || args.length > 3 ? -1 : (last + 1L) * 8);
+    }
+
+    /**
+     * @param outOfRange the bits of the byte to ignore
+     * @return the position of the first bit of the byte with the value, -1 if there is none
+     */
+    private static long find(final byte b, final int outOfRange, final int bit, final int index) {
+        final int v = bit == 1 ? b & 0xFF & ~outOfRange : ~(b | outOfRange) & 0xFF;
+        return v == 0 ? -1 : index * 8L + Integer.numberOfLeadingZeros(v) - 24;
+    }
+
+    /**
+     * BITOP AND | OR | XOR | NOT destkey key [key ...]
+     * <p>
+     * Shorter strings are treated as padded with zero bytes up to the longest one. The destination is deleted
+     * when every source is missing or empty.
+     */
+    static byte[] bitop(final String[] args) {
+        if (args.length < 3) return Eval.wrongArgs("bitop");
+        final var op = args[0].toUpperCase();
+        switch (op) {
+            case "AND", "OR", "XOR" -> {}
+            case "NOT" -> {
+                if (args.length != 3) return encodeError("ERR BITOP NOT must be called with a single source key.");
+            }
+            default -> {return SYNTAX_ERROR;}
+        }
+        final var sources = new byte[args.length - 2][];
+        int length = 0;
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = bytesOf(Store.get(args[i + 2]));
+            if (sources[i] == null) return WRONGTYPE;
+            length = Math.max(length, sources[i].length);
+        }
+        if (length == 0) {
+            Store.del(args[1]);
+            return encodeLong(0);
+        }
+        final byte[] result;
+        if (op.equals("NOT")) {
+            result = new byte[length];
+            OPS.not(result, sources[0], length);
+        } else {
+            final var binary = BitOps.Op.valueOf(op);
+            result = Arrays.copyOf(sources[0], length);
+            for (int i = 1; i < sources.length; i++) {
+                OPS.apply(binary, result, sources[i], sources[i].length);
+                if (binary == BitOps.Op.AND) Arrays.fill(result, sources[i].length, length, (byte) 0);
+            }
+        }
+        Store.put(args[1], newRaw(result));
+        return encodeLong(length);
+    }
+}
@@ -0,0 +1,275 @@
+package org.dice.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.dice.core.RESPEncoder.RESP_NIL_ARRAY;
+import static org.dice.core.RESPEncoder.encodeError;
+
+/**
+ * Clients blocked by BLPOP, BRPOP and BLMOVE until one of their lists receives an element, or by XREAD and
+ * XREADGROUP with BLOCK until one of their streams receives an entry, or until their timeout expires.
+ * <p>
+ * A blocked client costs a {@link Waiter} in the queue of each of its keys and nothing else: no lock is held and
+ * nobody polls. A push marks its key as ready, and at the end of the command that pushed, still under the
+ * {@link Store} lock, the elements are handed to the oldest waiters of the key one at a time: the pop is done on
+ * the waiter's behalf, its reply is queued on its connection, which wakes up the connection's writer thread and no
+ * other, and the pop is propagated to the replicas as LPOP, RPOP or LMOVE after the push. A stream reader instead
+ * runs its command again, rewritten by {@link Streams#retry(RedisCmd)}, and stays blocked if it still reads
+ * nothing, so every reader of a stream is served by an entry. The timeouts are tasks of a single shared timer,
+ * cancelled when the waiter is served, an expired waiter gets a null array.
+ * <p>
+ * The reader thread of a blocked client goes on reading its connection, so a disconnection is noticed right away
+ * and its waiter dropped. It only parks in {@link #await(Client)} when a command was pipelined after the blocking
+ * one, since replies have to be in order.
+ * <p>
+ * All the state is guarded by the {@link Store} lock.
+ */
+public final class Blocking {
+
+    private Blocking() {}
+
+    /**
+     * Returned by {@link Eval#execute} for a command that blocked, its reply is written once it is served.
+     */
+    static final byte[] BLOCKED = new byte[0];
+
+    private static final byte[] TIMEOUT_NOT_A_FLOAT = encodeError("ERR timeout is not a float or out of range");
+    private static final byte[] TIMEOUT_NEGATIVE = encodeError("ERR timeout is negative");
+
+    /**
+     * A blocked client and what it waits for.
+     */
+    static final class Waiter {
+
+        private final Client client;
+        private final String[] keys;
+        private final boolean left;
+        /**
+         * The list BLMOVE pushes to, null for BLPOP and BRPOP.
+         */
+        private final String destination;
+        private final boolean toLeft;
+        /**
+         * The command a stream reader runs again, null for the list commands.
+         */
+        private final RedisCmd retry;
+        private ScheduledFuture<?> timeout;
+        private volatile Thread parked;
+
+        private Waiter(final Client client, final String[] keys, final boolean left, final String destination,
+                       final boolean toLeft) {
+            this.client = client;
+            this.keys = keys;
+            this.left = left;
+            this.destination = destination;
+            this.toLeft = toLeft;
+            this.retry = null;
+        }
+
+        private Waiter(final Client client, final String[] keys, final RedisCmd retry) {
+            this.client = client;
+            this.keys = keys;
+            this.left = false;
+            this.destination = null;
+            this.toLeft = false;
+            this.retry = retry;
+        }
+    }
+
+    private static final Map<String, ArrayDeque<Waiter>> waiters = new HashMap<>();
+    private static final Set<String> ready = new LinkedHashSet<>();
+    private static int blocked;
+
+    private static final ScheduledThreadPoolExecutor timer =
+            new ScheduledThreadPoolExecutor(1, Thread.ofVirtual().name("blocking-timer").factory());
+
+    static {
+        // served waiters cancel their timeout, keep the queue to the pending ones
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return true for the commands that may block the client
+     */
+    public static boolean isBlocking(final RedisCmd cmd) {
+        return switch (cmd.cmd()) {
+            case "BLPOP", "BRPOP", "BLMOVE" -> true;
+            case "XREAD", "XREADGROUP" -> Streams.isBlocking(cmd);
+            default -> false;
+        };
+    }
+
+    /**
+     * @return null if the timeout argument is valid, the error reply otherwise
+     */
+    static byte[] checkTimeout(final String arg) {
+        final double seconds;
+        try {seconds = Double.parseDouble(arg);}
+        catch (final NumberFormatException e) {return TIMEOUT_NOT_A_FLOAT;}
+        if (!Double.isFinite(seconds)) return TIMEOUT_NOT_A_FLOAT;
+        return seconds < 0 ? TIMEOUT_NEGATIVE : null;
+    }
+
+    /**
+     * Blocks a client whose blocking command found nothing to pop. The arguments were validated by the command.
+     *
+     * @return {@link #BLOCKED}
+     */
+    static byte[] block(final RedisCmd cmd, final Client client) {
+        final var args = cmd.args();
+        final Waiter waiter;
+        final long nanos;
+        if (cmd.cmd().equals("BLMOVE")) {
+            waiter = new Waiter(client, new String[]{args[0]}, Lists.side(args[2]), args[1], Lists.side(args[3]));
+            nanos = (long) Math.min(Double.parseDouble(args[4]) * 1e9, Long.MAX_VALUE);
+        } else if (cmd.cmd().startsWith("X")) {
+            final var keys = new LinkedHashSet<>(Streams.readKeys(cmd));
+            waiter = new Waiter(client, keys.toArray(String[]::new), Streams.retry(cmd));
+            nanos = TimeUnit.MILLISECONDS.toNanos(Streams.blockMillis(cmd));
+        } else {
+            final var keys = new LinkedHashSet<String>();
+            for (int i = 0; i < args.length - 1; i++) keys.add(args[i]);
+            waiter = new Waiter(client, keys.toArray(String[]::new), cmd.cmd().equals("BLPOP"), null, false);
+            nanos = (long) Math.min(Double.parseDouble(args[args.length - 1]) * 1e9, Long.MAX_VALUE);
+        }
+        for (final var key : waiter.keys) waiters.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(waiter);
+        blocked++;
+        client.blockedOn = waiter;
+        if (nanos > 0) waiter.timeout = timer.schedule(() -> timedOut(waiter), nanos, TimeUnit.NANOSECONDS);
+        return BLOCKED;
+    }
+
+    /**
+     * Notes that a list or a stream received elements, the clients blocked on it are served by
+     * {@link #serveReady()}.
+     */
+    static void keyReady(final String key) {
+        if (waiters.containsKey(key)) ready.add(key);
+    }
+
+    /**
+     * Serves the waiters of the keys that received elements, oldest first, called after every command. Serving a
+     * BLMOVE may make its destination ready in turn.
+     */
+    static void serveReady() {
+        while (!ready.isEmpty()) {
+            final var it = ready.iterator();
+            final var key = it.next();
+            it.remove();
+            final var queue = waiters.get(key);
+            if (queue == null) continue;
+            final var waiting = queue.iterator();
+            while (waiting.hasNext()) {
+                final var waiter = waiting.next();
+                // a closed client would never get its reply, it is only dropped
+                byte[] reply = null;
+                if (!waiter.client.isClosed()) {
+                    reply = serve(key, waiter);
+                    if (reply == null && waiter.retry == null) break;
+                    if (reply == null) continue;
+                }
+                waiting.remove();
+                remove(waiter, key);
+                if (reply == null) continue;
+                waiter.client.write(reply);
+                LockSupport.unpark(waiter.parked);
+            }
+            if (queue.isEmpty()) waiters.remove(key);
+        }
+    }
+
+    /**
+     * @return the reply of the waiter, null if the key has nothing for it
+     */
+    private static byte[] serve(final String key, final Waiter waiter) {
+        if (waiter.retry != null) {
+            final var reply = Eval.dispatch(waiter.retry, Eval.lookup(waiter.retry.cmd()), waiter.client);
+            return reply == RESP_NIL_ARRAY ? null : reply;
+        }
+        final var obj = Store.peek(key);
+        if (obj == null || obj.type != Obj.TYPE_LIST) return null;
+        Replication.beforeWrite(waiter.destination == null ? List.of(key) : List.of(key, waiter.destination));
+        if (waiter.destination == null) {
+            final var reply = Lists.popReply(key, Lists.pop(key, obj, waiter.left));
+            Replication.propagate(new RedisCmd(waiter.left ? "LPOP" : "RPOP", new String[]{key}));
+            return reply;
+        }
+        final var reply = Lists.move(key, waiter.destination, waiter.left, waiter.toLeft);
+        if (reply[0] != '-') {
+            Replication.propagate(new RedisCmd("LMOVE", new String[]{key, waiter.destination,
+                    waiter.left ? "LEFT" : "RIGHT", waiter.toLeft ? "LEFT" : "RIGHT"}));
+        }
+        return reply;
+    }
+
+    private static void timedOut(final Waiter waiter) {
+        Store.lock.lock();
+        try {
+            if (waiter.client.blockedOn != waiter) return;
+            remove(waiter);
+            waiter.client.write(RESP_NIL_ARRAY);
+            LockSupport.unpark(waiter.parked);
+        } finally {Store.lock.unlock();}
+    }
+
+    private static void remove(final Waiter waiter) {
+        remove(waiter, null);
+    }
+
+    /**
+     * @param except the key whose queue the caller removes the waiter from
+     */
+    private static void remove(final Waiter waiter, final String except) {
+        for (final var key : waiter.keys) {
+            if (key.equals(except)) continue;
+            final var queue = waiters.get(key);
+            queue.remove(waiter);
+            if (queue.isEmpty()) waiters.remove(key);
+        }
+        if (waiter.timeout != null) waiter.timeout.cancel(false);
+        blocked--;
+        waiter.client.blockedOn = null;
+    }
+
+    /**
+     * Waits until the blocking command of the client, if any, was served or timed out. Its reply is written by
+     * then.
+     */
+    public static void await(final Client client) throws InterruptedException {
+        final var waiter = client.blockedOn;
+        if (waiter == null) return;
+        waiter.parked = Thread.currentThread();
+        while (client.blockedOn == waiter) {
+            LockSupport.park(waiter);
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Drops the waiter of a client that disconnected.
+     */
+    public static void unblock(final Client client) {
+        if (client.blockedOn == null) return;
+        Store.lock.lock();
+        try {
+            final var waiter = client.blockedOn;
+            if (waiter != null) remove(waiter);
+        } finally {Store.lock.unlock();}
+    }
+
+    /**
+     * @return the number of blocked clients
+     */
+    static int blockedClients() {
+        return blocked;
+    }
+}
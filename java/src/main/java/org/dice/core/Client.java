@@ -0,0 +1,422 @@
+package org.dice.core;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dice.config.Config;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connected client and its output buffer.
+ * <p>
+ * Replies are never written by the thread that produces them. They are appended to a per client queue which a
+ * dedicated writer thread drains to the socket, so a slow reader can only ever slow down itself. How much output
+ * may pile up is bounded by the limits of the client's {@link Kind}: a client whose pending output goes above the
+ * hard limit, or stays above the soft limit for too long, is disconnected. Normal clients have no limits by
+ * default, they are throttled instead: their commands are not read while too much of their output is pending.
+ */
+public final class Client {
+
+    private static final Logger logger = LogManager.getLogger(Client.class);
+
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Client classes for the purpose of output buffer limits.
+     */
+    public enum Kind {
+        NORMAL, PUBSUB, REPLICA;
+
+        public Config.OutputBufferLimit limit() {
+            final var limits = Config.CLIENT_OUTPUT_BUFFER_LIMIT.get();
+            return switch (this) {
+                case NORMAL -> limits.normal();
+                case PUBSUB -> limits.pubsub();
+                case REPLICA -> limits.replica();
+            };
+        }
+    }
+
+    private static final AtomicLong nextId = new AtomicLong();
+    private static final AtomicLong totalPendingBytes = new AtomicLong();
+    private static final AtomicLong limitDisconnections = new AtomicLong();
+    private static final Map<Long, Client> clients = new ConcurrentHashMap<>();
+
+    public final long id = nextId.incrementAndGet();
+    public final String addr;
+    private final Socket socket;
+    private volatile Kind kind = Kind.NORMAL;
+    private volatile int protocol = 2;
+    private volatile String name = "";
+    private volatile boolean traced;
+    private boolean asking;
+
+    /**
+     * Subscriptions of the client, guarded by the {@link PubSub} lock.
+     */
+    final Set<String> channels = new LinkedHashSet<>();
+    final Set<String> patterns = new LinkedHashSet<>();
+
+    /**
+     * Client side caching state, guarded by the {@link Store} lock, see {@link Tracking}.
+     */
+    boolean tracking;
+    boolean trackingBcast;
+    boolean trackingNoloop;
+    long trackingRedirect;
+    final Set<String> trackingPrefixes = new LinkedHashSet<>();
+
+    /**
+     * The transaction the client is queuing commands for, null outside of MULTI, and the keys it watches, null if
+     * none, see {@link Transactions}. Only used by the thread of the client.
+     */
+    Transactions.Multi multi;
+    List<Transactions.Watched> watched;
+
+    /**
+     * The blocking command the client waits on, null if it is not blocked, see {@link Blocking}.
+     */
+    volatile Blocking.Waiter blockedOn;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    /**
+     * Ring of pending replies, each either a {@code byte[]} owned by this client, a {@link SharedReply} or an
+     * {@link Unlimited}.
+     */
+    private Object[] queue = new Object[16];
+    private int head;
+    private int size;
+    private long pendingBytes;
+    /**
+     * The part of {@link #pendingBytes} queued with {@link #writeUnlimited}.
+     */
+    private long unlimitedBytes;
+    private long softLimitSince = -1;
+    private boolean closing;
+    private volatile boolean closed;
+
+    public Client(final Socket socket) {
+        this.socket = socket;
+        this.addr = socket.getRemoteSocketAddress().toString();
+        clients.put(id, this);
+    }
+
+    public InputStream input() throws IOException {
+        return socket.getInputStream();
+    }
+
+    /**
+     * @return the RESP version negotiated with HELLO, 2 until then
+     */
+    public int protocol() {
+        return protocol;
+    }
+
+    public void protocol(final int protocol) {
+        this.protocol = protocol;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void name(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return true if every request of the client is traced, see {@link Tracing}
+     */
+    public boolean isTraced() {
+        return traced;
+    }
+
+    public void traced(final boolean traced) {
+        this.traced = traced;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public void kind(final Kind kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * @return true if the client sent ASKING and has not issued a keyed command since
+     */
+    public boolean asking() {
+        return asking;
+    }
+
+    public void asking(final boolean asking) {
+        this.asking = asking;
+    }
+
+    /**
+     * @return true if the client is subscribed to at least one channel or pattern
+     */
+    public boolean isSubscribed() {
+        return kind == Kind.PUBSUB;
+    }
+
+    /**
+     * @return true if the client has client side caching enabled
+     */
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * @param patterns true for the pattern subscriptions, false for the channel subscriptions
+     * @return a copy of the subscriptions
+     */
+    public List<String> subscriptions(final boolean patterns) {
+        return PubSub.subscriptions(this, patterns);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of reply bytes waiting to be written to this client
+     */
+    public long pendingBytes() {
+        lock.lock();
+        try {return pendingBytes;}
+        finally {lock.unlock();}
+    }
+
+    /**
+     * @return the number of connected clients
+     */
+    public static int connected() {
+        return clients.size();
+    }
+
+    /**
+     * @return the connected client with the given id, or null
+     */
+    public static Client byId(final long id) {
+        return clients.get(id);
+    }
+
+    /**
+     * @return the number of reply bytes waiting to be written across all clients
+     */
+    public static long totalPendingBytes() {
+        return totalPendingBytes.get();
+    }
+
+    /**
+     * @return the number of clients disconnected for exceeding their output buffer limits
+     */
+    public static long limitDisconnections() {
+        return limitDisconnections.get();
+    }
+
+    /**
+     * Queues a reply for the writer thread. May be called from any thread.
+     *
+     * @param reply the RESP encoded reply, must not be modified afterwards
+     * @return false if the client is closed or was closed because of this reply
+     */
+    public boolean write(final byte[] reply) {
+        if (reply.length == 0) return !closed;
+        return enqueue(reply, reply.length);
+    }
+
+    /**
+     * Output that does not count towards the output buffer limits.
+     */
+    private record Unlimited(byte[] bytes) {}
+
+    /**
+     * Queues output that does not count towards the output buffer limits, like Redis does not count the RDB file
+     * of a full resync: the snapshot sent to a replica is as large as the dataset, the limits are meant for the
+     * stream that piles up while it is transferred.
+     *
+     * @param bytes the output, must not be modified afterwards
+     * @return false if the client is closed
+     */
+    public boolean writeUnlimited(final byte[] bytes) {
+        return enqueue(new Unlimited(bytes), bytes.length);
+    }
+
+    /**
+     * Queues a reply shared with other clients, taking a reference to it that is released once it is written.
+     * Queueing does not copy the reply and does not allocate unless the queue has to grow.
+     *
+     * @param reply the shared reply
+     * @return false if the client is closed or was closed because of this reply
+     */
+    public boolean write(final SharedReply reply) {
+        return enqueue(reply, reply.length);
+    }
+
+    private boolean enqueue(final Object reply, final int length) {
+        lock.lock();
+        try {
+            if (closed || closing) return false;
+            if (size == queue.length) grow();
+            if (reply instanceof SharedReply shared) shared.retain();
+            queue[(head + size++) & (queue.length - 1)] = reply;
+            pendingBytes += length;
+            if (reply instanceof Unlimited) unlimitedBytes += length;
+            totalPendingBytes.addAndGet(length);
+            if (overLimit()) {
+                limitDisconnections.incrementAndGet();
+                logger.warn("Client id={} addr={} closed for overcoming of output buffer limits, {} bytes pending",
+                        id, addr, pendingBytes);
+                closeLocked();
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {lock.unlock();}
+    }
+
+    private void grow() {
+        final var bigger = new Object[queue.length << 1];
+        for (int i = 0; i < size; i++) bigger[i] = queue[(head + i) & (queue.length - 1)];
+        queue = bigger;
+        head = 0;
+    }
+
+    private boolean overLimit() {
+        final var limit = kind.limit();
+        final long limited = pendingBytes - unlimitedBytes;
+        if (limit.hardBytes() > 0 && limited >= limit.hardBytes()) return true;
+        if (limit.softBytes() <= 0 || limited < limit.softBytes()) {
+            softLimitSince = -1;
+            return false;
+        }
+        final long now = System.nanoTime();
+        if (softLimitSince == -1) softLimitSince = now;
+        return now - softLimitSince > TimeUnit.SECONDS.toNanos(limit.softSeconds());
+    }
+
+    /**
+     * Blocks the calling thread, which is expected to be the one reading this client's commands, while more than
+     * {@code bytes} of output are pending.
+     *
+     * @param bytes the pending output at which the reader resumes
+     */
+    public void awaitPendingBelow(final long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && pendingBytes > bytes) drained.await();
+        } finally {lock.unlock();}
+    }
+
+    /**
+     * Writes queued replies to the socket until the client is closed. Runs on the client's writer thread.
+     */
+    public void writeLoop() {
+        var batch = new Object[16];
+        try (final var out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE)) {
+            while (true) {
+                int n;
+                lock.lock();
+                try {
+                    while (size == 0 && !closed && !closing) notEmpty.await();
+                    if (closed || size == 0) return;
+                    if (batch.length < size) batch = new Object[queue.length];
+                    for (n = 0; n < size; n++) {
+                        final int idx = (head + n) & (queue.length - 1);
+                        batch[n] = queue[idx];
+                        queue[idx] = null;
+                    }
+                    head = size = 0;
+                } finally {lock.unlock();}
+
+                long written = 0, unlimited = 0;
+                for (int i = 0; i < n; i++) {
+                    if (batch[i] instanceof SharedReply shared) {
+                        out.write(shared.bytes, 0, shared.length);
+                        written += shared.length;
+                        shared.release();
+                    } else if (batch[i] instanceof Unlimited u) {
+                        out.write(u.bytes());
+                        written += u.bytes().length;
+                        unlimited += u.bytes().length;
+                    } else {
+                        final var bytes = (byte[]) batch[i];
+                        out.write(bytes);
+                        written += bytes.length;
+                    }
+                    batch[i] = null;
+                }
+                out.flush();
+
+                lock.lock();
+                try {
+                    if (closed) return;
+                    pendingBytes -= written;
+                    unlimitedBytes -= unlimited;
+                    totalPendingBytes.addAndGet(-written);
+                    drained.signalAll();
+                } finally {lock.unlock();}
+            }
+        } catch (final IOException e) {
+            if (!closed) logger.debug("Write to client id={} addr={} failed: {}", id, addr, e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {close();}
+    }
+
+    /**
+     * Stops accepting replies and lets the writer close the connection once the queued ones are written.
+     */
+    public void closeAfterReply() {
+        lock.lock();
+        try {
+            closing = true;
+            notEmpty.signal();
+        } finally {lock.unlock();}
+    }
+
+    /**
+     * Closes the connection right away, dropping any pending output.
+     */
+    public void close() {
+        lock.lock();
+        try {closeLocked();}
+        finally {lock.unlock();}
+    }
+
+    private void closeLocked() {
+        if (closed) return;
+        closed = true;
+        clients.remove(id);
+        for (int i = 0; i < size; i++) {
+            final int idx = (head + i) & (queue.length - 1);
+            if (queue[idx] instanceof SharedReply shared) shared.release();
+            queue[idx] = null;
+        }
+        totalPendingBytes.addAndGet(-pendingBytes);
+        pendingBytes = 0;
+        unlimitedBytes = 0;
+        head = size = 0;
+        notEmpty.signalAll();
+        drained.signalAll();
+        try {socket.close();}
+        catch (final IOException e) {logger.error("Failed to close client socket: ", e);}
+    }
+}
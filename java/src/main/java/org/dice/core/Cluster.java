@@ -0,0 +1,621 @@
+package org.dice.core;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dice.config.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster mode: the keyspace is split into {@value #SLOTS} hash slots and every node serves the slots it owns.
+ * <p>
+ * A command whose keys hash to a slot owned by another node is answered with {@code -MOVED slot host:port}. While
+ * a slot is being migrated the source node keeps serving the keys it still has and answers {@code -ASK} for the
+ * ones already moved, the target serves those only to clients that sent ASKING first. Keys are moved one MIGRATE
+ * call at a time, so the rest of the slot stays available during the migration.
+ * <p>
+ * There is no cluster bus. Each node is authoritative for the slots it owns itself and learns the slots of the
+ * others by periodically asking every known node for its CLUSTER NODES. All state is guarded by the
+ * {@link Store} lock.
+ */
+public final class Cluster {
+
+    private Cluster() {}
+
+    private static final Logger logger = LogManager.getLogger(Cluster.class);
+
+    public static final int SLOTS = 16384;
+
+    private static final long GOSSIP_FREQUENCY_MS = 1000;
+    private static final int IO_TIMEOUT_MS = 2000;
+
+    private static final class Node {
+        private final String id;
+        private final String host;
+        private final int port;
+        private Socket link;
+        private InputStream in;
+
+        private Node(final String id, final String host, final int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        private String addr() {
+            return host + ":" + port;
+        }
+
+        private void closeLink() {
+            if (link == null) return;
+            try {link.close();}
+            catch (final IOException ignored) {}
+            link = null;
+            in = null;
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static Node myself;
+    private static final Map<String, Node> nodes = new LinkedHashMap<>();
+    private static final Node[] owners = new Node[SLOTS];
+    private static final Node[] migratingTo = new Node[SLOTS];
+    private static final Node[] importingFrom = new Node[SLOTS];
+
+    /**
+     * Keys of every slot, only maintained in cluster mode, for COUNTKEYSINSLOT and GETKEYSINSLOT.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final HashSet<String>[] slotKeys = new HashSet[SLOTS];
+
+    /**
+     * Turns cluster mode on, must be called before the server starts accepting clients.
+     *
+     * @param port the port clients reach this node on
+     */
+    public static void enable(final int port) {
+        final var bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        myself = new Node(HexFormat.of().formatHex(bytes), Config.CLUSTER_ANNOUNCE_HOST.get(), port);
+        nodes.put(myself.id, myself);
+        enabled = true;
+        Thread.ofVirtual().name("cluster-gossip").start(Cluster::gossipLoop);
+        logger.info("Cluster mode enabled, node id {}", myself.id);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the hash slot of the key, CRC16 of the key or of its {@code {hash tag}} modulo {@value #SLOTS}
+     */
+    public static int keySlot(final String key) {
+        int start = key.indexOf('{');
+        int end = key.length();
+        if (start >= 0) {
+            final int close = key.indexOf('}', start + 1);
+            // an empty tag "{}" does not count, the whole key is hashed
+            if (close > start + 1) end = close;
+            else start = -1;
+        }
+        return crc16(key, start + 1, end) & (SLOTS - 1);
+    }
+
+    /**
+     * CRC16-CCITT (XModem) over the UTF-8 encoding of {@code s[from, to)}.
+     */
+    static int crc16(final String s, final int from, final int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                // the rest is encoded at once, a character outside the BMP is a pair of chars
+                for (final byte b : s.substring(i, to).getBytes(StandardCharsets.UTF_8)) crc = crc16Update(crc, b & 0xff);
+                return crc;
+            }
+            crc = crc16Update(crc, c);
+        }
+        return crc;
+    }
+
+    private static int crc16Update(int crc, final int b) {
+        crc ^= b << 8;
+        for (int i = 0; i < 8; i++) crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x1021) & 0xffff : (crc << 1) & 0xffff;
+        return crc;
+    }
+
+    static void keyAdded(final String key) {
+        final int slot = keySlot(key);
+        if (slotKeys[slot] == null) slotKeys[slot] = new HashSet<>();
+        slotKeys[slot].add(key);
+    }
+
+    static void keyRemoved(final String key) {
+        final var keys = slotKeys[keySlot(key)];
+        if (keys != null) keys.remove(key);
+    }
+
+    static void clearIndex() {
+        for (int i = 0; i < SLOTS; i++) slotKeys[i] = null;
+    }
+
+    /**
+     * Decides whether this node serves the keys of a command.
+     *
+     * @param keys   the keys of the command
+     * @param asking whether the client sent ASKING right before the command
+     * @return null if the command can be served here, the redirection or error reply otherwise
+     */
+    static byte[] route(final List<String> keys, final boolean asking) {
+        if (keys.isEmpty()) return null;
+        final int slot = keySlot(keys.getFirst());
+        for (int i = 1; i < keys.size(); i++) {
+            if (keySlot(keys.get(i)) != slot)
+                return RESPEncoder.encodeError("CROSSSLOT Keys in request don't hash to the same slot");
+        }
+        final var owner = owners[slot];
+        if (owner == myself) {
+            final var target = migratingTo[slot];
+            if (target == null) return null;
+            // keys already moved are only found on the target
+            for (final var key : keys) {
+                if (Store.peek(key) == null) return RESPEncoder.encodeError("ASK %d %s".formatted(slot, target.addr()));
+            }
+            return null;
+        }
+        if (asking && importingFrom[slot] != null) return null;
+        if (owner == null) return RESPEncoder.encodeError("CLUSTERDOWN Hash slot not served");
+        return RESPEncoder.encodeError("MOVED %d %s".formatted(slot, owner.addr()));
+    }
+
+    /**
+     * CLUSTER subcommand [args...]
+     */
+    static byte[] command(final String[] args) {
+        if (!enabled) return RESPEncoder.encodeError("ERR This instance has cluster support disabled");
+        if (args.length == 0) return RESPEncoder.encodeError("ERR wrong number of arguments for 'cluster' command");
+        try {
+            return switch (args[0].toUpperCase()) {
+                case "MYID" -> RESPEncoder.encodeBulkString(myself.id);
+                case "KEYSLOT" -> RESPEncoder.encodeLong(keySlot(arg(args, 1)));
+                case "COUNTKEYSINSLOT" -> {
+                    final var keys = slotKeys[slot(arg(args, 1))];
+                    yield RESPEncoder.encodeLong(keys == null ? 0 : keys.size());
+                }
+                case "GETKEYSINSLOT" -> {
+                    final var keys = slotKeys[slot(arg(args, 1))];
+                    final long count = Long.parseLong(arg(args, 2));
+                    final var out = new ArrayList<String>();
+                    if (keys != null) for (final var key : keys) {
+                        if (out.size() >= count) break;
+                        out.add(key);
+                    }
+                    yield RESPEncoder.encodeStrings(out);
+                }
+                case "ADDSLOTS", "DELSLOTS" -> {
+                    final boolean add = args[0].equalsIgnoreCase("ADDSLOTS");
+                    for (int i = 1; i < args.length; i++) assign(slot(args[i]), add);
+                    yield RESPEncoder.RESP_OK;
+                }
+                case "ADDSLOTSRANGE", "DELSLOTSRANGE" -> {
+                    final boolean add = args[0].equalsIgnoreCase("ADDSLOTSRANGE");
+                    if (args.length < 3 || args.length % 2 == 0) yield RESPEncoder.encodeError("ERR syntax error");
+                    for (int i = 1; i < args.length; i += 2) {
+                        final int from = slot(args[i]), to = slot(args[i + 1]);
+                        for (int s = from; s <= to; s++) assign(s, add);
+                    }
+                    yield RESPEncoder.RESP_OK;
+                }
+                case "SETSLOT" -> setSlot(args);
+                case "MEET" -> {
+                    final var host = arg(args, 1);
+                    final int port = Integer.parseInt(arg(args, 2));
+                    Thread.ofVirtual().name("cluster-meet").start(() -> meet(host, port));
+                    yield RESPEncoder.RESP_OK;
+                }
+                case "FORGET" -> {
+                    final var node = nodes.get(arg(args, 1));
+                    if (node == null) yield RESPEncoder.encodeError("ERR Unknown node " + args[1]);
+                    if (node == myself) yield RESPEncoder.encodeError("ERR I tried hard but I can't forget myself...");
+                    forget(node);
+                    yield RESPEncoder.RESP_OK;
+                }
+                case "SLOTS" -> slots();
+                case "NODES" -> RESPEncoder.encodeBulkString(nodesDescription());
+                case "INFO" -> RESPEncoder.encodeBulkString(info());
+                default -> RESPEncoder.encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+            };
+        } catch (final NumberFormatException e) {
+            return RESPEncoder.encodeError("ERR Invalid or out of range slot");
+        } catch (final IllegalArgumentException e) {
+            return RESPEncoder.encodeError("ERR " + e.getMessage());
+        }
+    }
+
+    private static String arg(final String[] args, final int i) {
+        if (i >= args.length) throw new IllegalArgumentException("wrong number of arguments for 'cluster|%s' command".formatted(args[0].toLowerCase()));
+        return args[i];
+    }
+
+    private static int slot(final String arg) {
+        final int slot = Integer.parseInt(arg);
+        if (slot < 0 || slot >= SLOTS) throw new NumberFormatException();
+        return slot;
+    }
+
+    private static void assign(final int slot, final boolean add) {
+        if (add) {
+            if (owners[slot] != null && owners[slot] != myself)
+                throw new IllegalArgumentException("Slot %d is already busy".formatted(slot));
+            owners[slot] = myself;
+        } else if (owners[slot] == myself) {
+            owners[slot] = null;
+        }
+    }
+
+    private static Node node(final String id) {
+        final var node = nodes.get(id);
+        if (node == null) throw new IllegalArgumentException("I don't know about node " + id);
+        return node;
+    }
+
+    /**
+     * CLUSTER SETSLOT slot IMPORTING node-id | MIGRATING node-id | NODE node-id | STABLE
+     */
+    private static byte[] setSlot(final String[] args) {
+        final int slot = slot(arg(args, 1));
+        switch (arg(args, 2).toUpperCase()) {
+            case "MIGRATING" -> {
+                if (owners[slot] != myself) throw new IllegalArgumentException("I'm not the owner of hash slot " + slot);
+                migratingTo[slot] = node(arg(args, 3));
+            }
+            case "IMPORTING" -> {
+                if (owners[slot] == myself) throw new IllegalArgumentException("I'm already the owner of hash slot " + slot);
+                importingFrom[slot] = node(arg(args, 3));
+            }
+            case "STABLE" -> {
+                migratingTo[slot] = null;
+                importingFrom[slot] = null;
+            }
+            case "NODE" -> {
+                final var node = node(arg(args, 3));
+                if (node != myself && owners[slot] == myself && slotKeys[slot] != null && !slotKeys[slot].isEmpty())
+                    throw new IllegalArgumentException("I still hold keys, can't assign the hashslot to a different node");
+                owners[slot] = node;
+                migratingTo[slot] = null;
+                importingFrom[slot] = null;
+            }
+            default -> throw new IllegalArgumentException("Invalid CLUSTER SETSLOT action or number of arguments");
+        }
+        return RESPEncoder.RESP_OK;
+    }
+
+    private static byte[] slots() {
+        final var ranges = new ArrayList<byte[]>();
+        for (int start = 0; start < SLOTS; ) {
+            final var owner = owners[start];
+            int end = start;
+            while (end + 1 < SLOTS && owners[end + 1] == owner) end++;
+            if (owner != null) {
+                ranges.add(RESPEncoder.encodeArray(List.of(
+                        RESPEncoder.encodeLong(start),
+                        RESPEncoder.encodeLong(end),
+                        RESPEncoder.encodeArray(List.of(
+                                RESPEncoder.encodeBulkString(owner.host),
+                                RESPEncoder.encodeLong(owner.port),
+                                RESPEncoder.encodeBulkString(owner.id))))));
+            }
+            start = end + 1;
+        }
+        return RESPEncoder.encodeArray(ranges);
+    }
+
+    private static String nodesDescription() {
+        final var out = new StringBuilder();
+        for (final var node : nodes.values()) {
+            out.append(node.id).append(' ').append(node.addr()).append('@').append(node.port + 10000).append(' ')
+                    .append(node == myself ? "myself,master" : "master").append(" - 0 0 0 connected");
+            for (int start = 0; start < SLOTS; start++) {
+                if (owners[start] != node) continue;
+                int end = start;
+                while (end + 1 < SLOTS && owners[end + 1] == node) end++;
+                out.append(' ').append(start);
+                if (end > start) out.append('-').append(end);
+                start = end;
+            }
+            if (node == myself) {
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    if (migratingTo[slot] != null) out.append(" [").append(slot).append("->-").append(migratingTo[slot].id).append(']');
+                    if (importingFrom[slot] != null) out.append(" [").append(slot).append("-<-").append(importingFrom[slot].id).append(']');
+                }
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String info() {
+        int assigned = 0;
+        final var owning = new HashSet<Node>();
+        for (final var owner : owners) {
+            if (owner == null) continue;
+            assigned++;
+            owning.add(owner);
+        }
+        return "cluster_enabled:1\r\n" +
+                "cluster_state:" + (assigned == SLOTS ? "ok" : "fail") + "\r\n" +
+                "cluster_slots_assigned:" + assigned + "\r\n" +
+                "cluster_known_nodes:" + nodes.size() + "\r\n" +
+                "cluster_size:" + owning.size() + "\r\n";
+    }
+
+    private static void forget(final Node node) {
+        nodes.remove(node.id);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (owners[slot] == node) owners[slot] = null;
+            if (migratingTo[slot] == node) migratingTo[slot] = null;
+            if (importingFrom[slot] == node) importingFrom[slot] = null;
+        }
+        node.closeLink();
+    }
+
+    /**
+     * MIGRATE host port key|"" destination-db timeout [COPY] [REPLACE] [KEYS key [key ...]]
+     * <p>
+     * Moves the keys to the target node, prefixing every command with ASKING so that the target accepts them for
+     * a slot it is still importing. The keys are encoded under the store lock, which is released for the exchange
+     * with the target so that other clients, the target itself included when it is this node, are served meanwhile.
+     * Only the keys that were not written since they were encoded are then deleted, the others are kept and the
+     * call fails with TRYAGAIN. A timeout of 0 stands for the default of Redis, 1 second.
+     */
+    static byte[] migrate(final String[] args) {
+        if (args.length < 5) return RESPEncoder.encodeError("ERR wrong number of arguments for 'migrate' command");
+        final var host = args[0];
+        final int port, timeoutArg;
+        try {
+            port = Integer.parseInt(args[1]);
+            timeoutArg = Integer.parseInt(args[4]);
+        } catch (final NumberFormatException e) {return RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+        // a socket timeout of 0 would wait forever
+        final int timeout = timeoutArg <= 0 ? 1000 : timeoutArg;
+        boolean copy = false, replace = false;
+        final var keys = new ArrayList<String>();
+        if (!args[2].isEmpty()) keys.add(args[2]);
+        for (int i = 5; i < args.length; i++) {
+            switch (args[i].toUpperCase()) {
+                case "COPY" -> copy = true;
+                case "REPLACE" -> replace = true;
+                case "KEYS" -> {
+                    if (!args[2].isEmpty()) return RESPEncoder.encodeError("ERR When using MIGRATE KEYS option, the key argument must be set to the empty string");
+                    for (i++; i < args.length; i++) keys.add(args[i]);
+                }
+                default -> {return RESPEncoder.encodeError("ERR syntax error");}
+            }
+        }
+
+        final var present = new ArrayList<String>();
+        // the write version of each present key when it was encoded
+        final var versions = new ArrayList<Long>();
+        final var payload = new ByteArrayOutputStream();
+        final var asking = new RedisCmd("ASKING", new String[0]).encode();
+        int commands = 0;
+        Store.lock.lock();
+        try {
+            if (!copy && Replication.isReplica()) return RESPEncoder.encodeError("READONLY You can't write against a read only replica.");
+            for (final var key : keys) {
+                final var obj = Store.peek(key);
+                if (obj == null) continue;
+                present.add(key);
+                versions.add(Transactions.version(key));
+                if (replace) {
+                    payload.writeBytes(asking);
+                    payload.writeBytes(new RedisCmd("DEL", new String[]{key}).encode());
+                    commands += 2;
+                }
+                final var restore = new ByteArrayOutputStream();
+                Snapshot.writeKey(restore, key, obj);
+                commands += prefixEach(restore.toByteArray(), asking, payload);
+            }
+        } finally {Store.lock.unlock();}
+        if (present.isEmpty()) return RESPEncoder.encodeSimpleString("NOKEY");
+
+        try (final var socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            final var out = socket.getOutputStream();
+            final var in = new BufferedInputStream(socket.getInputStream());
+            if (!replace) {
+                final var exists = new ByteArrayOutputStream();
+                for (final var key : present) {
+                    exists.writeBytes(asking);
+                    exists.writeBytes(new RedisCmd("EXISTS", new String[]{key}).encode());
+                }
+                out.write(exists.toByteArray());
+                boolean busy = false;
+                for (int i = 0; i < present.size(); i++) {
+                    readReply(in);
+                    if (readReply(in).equals(":1")) busy = true;
+                }
+                if (busy) return RESPEncoder.encodeError("BUSYKEY Target key name already exists.");
+            }
+            out.write(payload.toByteArray());
+            String error = null;
+            for (int i = 0; i < commands; i++) {
+                final var reply = readReply(in);
+                if (reply.startsWith("-") && error == null) error = "ERR Target instance replied with error: " + reply.substring(1);
+            }
+            if (error != null) return RESPEncoder.encodeError(error);
+        } catch (final IOException e) {
+            return RESPEncoder.encodeError("IOERR error or timeout writing to target instance: " + e.getMessage());
+        }
+        if (copy) return RESPEncoder.RESP_OK;
+        final var deleted = new ArrayList<String>();
+        Store.lock.lock();
+        try {
+            for (int i = 0; i < present.size(); i++) {
+                final var key = present.get(i);
+                if (Transactions.version(key) != versions.get(i)) continue;
+                Store.del(key);
+                deleted.add(key);
+            }
+            // replicas see the keys leave, not the MIGRATE itself
+            if (!deleted.isEmpty()) Replication.propagate(new RedisCmd("DEL", deleted.toArray(new String[0])));
+        } finally {Store.lock.unlock();}
+        if (deleted.size() < present.size())
+            return RESPEncoder.encodeError("TRYAGAIN Keys were written during the migration and kept, migrate them again with REPLACE");
+        return RESPEncoder.RESP_OK;
+    }
+
+    /**
+     * Reads a whole reply, bulk strings and nested aggregates included, so that the replies of pipelined
+     * commands stay aligned whatever their type.
+     *
+     * @return the first line of the reply, which tells its type and whether it is an error
+     */
+    private static String readReply(final InputStream in) throws IOException {
+        final var line = Replication.readLine(in);
+        if (line.isEmpty()) throw new IOException("malformed reply");
+        final char type = line.charAt(0);
+        // the other types fit on their line
+        if ("$*%~>".indexOf(type) < 0) return line;
+        final int n;
+        try {n = Integer.parseInt(line, 1, line.length(), 10);}
+        catch (final NumberFormatException e) {throw new IOException("malformed reply: " + line);}
+        if (type == '$') {
+            if (n >= 0) in.skipNBytes(n + 2L);
+        } else {
+            for (int i = 0; i < (type == '%' ? 2 * n : n); i++) readReply(in);
+        }
+        return line;
+    }
+
+    /**
+     * Copies the encoded commands to {@code out}, each one preceded by {@code prefix}.
+     *
+     * @return the number of commands written, prefixes included
+     */
+    private static int prefixEach(final byte[] commands, final byte[] prefix, final ByteArrayOutputStream out) {
+        int n = 0;
+        for (int pos = 0; pos < commands.length; ) {
+            final int end = RESPDecoder.decode(commands, pos).pos;
+            out.writeBytes(prefix);
+            out.write(commands, pos, end - pos);
+            n += 2;
+            pos = end;
+        }
+        return n;
+    }
+
+    private static void meet(final String host, final int port) {
+        try (final var socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), IO_TIMEOUT_MS);
+            socket.setSoTimeout(IO_TIMEOUT_MS);
+            final var in = new BufferedInputStream(socket.getInputStream());
+            socket.getOutputStream().write(new RedisCmd("CLUSTER", new String[]{"MYID"}).encode());
+            final var id = readBulk(in);
+            Store.lock.lock();
+            try {
+                if (nodes.containsKey(id)) return;
+                nodes.put(id, new Node(id, host, port));
+            } finally {Store.lock.unlock();}
+            logger.info("Met node {} at {}:{}", id, host, port);
+            // make the other side learn about us as well, it ignores the request if it already knows us
+            socket.getOutputStream().write(new RedisCmd("CLUSTER", new String[]{"MEET", myself.host, Integer.toString(myself.port)}).encode());
+            Replication.readLine(in);
+        } catch (final IOException e) {
+            logger.warn("CLUSTER MEET {}:{} failed: {}", host, port, e.getMessage());
+        }
+    }
+
+    private static String readBulk(final InputStream in) throws IOException {
+        final var header = Replication.readLine(in);
+        if (!header.startsWith("$")) throw new IOException("unexpected reply " + header);
+        final var body = in.readNBytes(Integer.parseInt(header.substring(1)) + 2);
+        return new String(body, 0, body.length - 2, StandardCharsets.UTF_8);
+    }
+
+    private static void gossipLoop() {
+        while (true) {
+            try {TimeUnit.MILLISECONDS.sleep(GOSSIP_FREQUENCY_MS);}
+            catch (final InterruptedException e) {return;}
+            final List<Node> peers;
+            Store.lock.lock();
+            try {peers = new ArrayList<>(nodes.values());}
+            finally {Store.lock.unlock();}
+            for (final var node : peers) {
+                if (node == myself) continue;
+                try {
+                    merge(node, pullNodes(node));
+                } catch (final IOException e) {
+                    logger.debug("Gossip with node {} failed: {}", node.id, e.getMessage());
+                    node.closeLink();
+                }
+            }
+        }
+    }
+
+    private static String pullNodes(final Node node) throws IOException {
+        if (node.link == null) {
+            final var socket = new Socket();
+            socket.connect(new InetSocketAddress(node.host, node.port), IO_TIMEOUT_MS);
+            socket.setSoTimeout(IO_TIMEOUT_MS);
+            node.link = socket;
+            node.in = new BufferedInputStream(socket.getInputStream());
+        }
+        node.link.getOutputStream().write(new RedisCmd("CLUSTER", new String[]{"NODES"}).encode());
+        return readBulk(node.in);
+    }
+
+    /**
+     * Takes the peer's word for the slots it owns itself and learns about the nodes it knows.
+     */
+    private static void merge(final Node peer, final String description) {
+        Store.lock.lock();
+        try {
+            if (nodes.get(peer.id) != peer) return;
+            for (final var line : description.split("\n")) {
+                final var fields = line.trim().split(" ");
+                if (fields.length < 8) continue;
+                final var id = fields[0];
+                if (!fields[2].contains("myself")) {
+                    if (!nodes.containsKey(id)) {
+                        final var addr = fields[1].substring(0, fields[1].indexOf('@'));
+                        final int colon = addr.lastIndexOf(':');
+                        nodes.put(id, new Node(id, addr.substring(0, colon), Integer.parseInt(addr.substring(colon + 1))));
+                        logger.info("Learned about node {} at {} from {}", id, addr, peer.id);
+                    }
+                    continue;
+                }
+                if (!id.equals(peer.id)) continue;
+                final var claimed = new boolean[SLOTS];
+                for (int i = 8; i < fields.length; i++) {
+                    if (fields[i].startsWith("[")) continue;
+                    final int dash = fields[i].indexOf('-');
+                    final int from = Integer.parseInt(dash < 0 ? fields[i] : fields[i].substring(0, dash));
+                    final int to = dash < 0 ? from : Integer.parseInt(fields[i].substring(dash + 1));
+                    for (int s = from; s <= to; s++) claimed[s] = true;
+                }
+                for (int s = 0; s < SLOTS; s++) {
+                    if (owners[s] == myself) continue;
+                    if (claimed[s]) owners[s] = peer;
+                    else if (owners[s] == peer) owners[s] = null;
+                }
+            }
+        } finally {Store.lock.unlock();}
+    }
+}
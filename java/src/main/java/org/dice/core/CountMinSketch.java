@@ -0,0 +1,94 @@
+package org.dice.core;
+
+/**
+ * A count-min sketch of key access frequencies with exponential decay.
+ * <p>
+ * Every key is counted in one counter of each row and its frequency is estimated as the smallest of those
+ * counters. The counter of row {@code i} is picked by {@code h1 + i * h2}, the two halves of a 64-bit hash of the
+ * key (Kirsch and Mitzenmacher), so two keys only share a counter in every row if their whole 64-bit hashes
+ * collide, not merely their {@link String#hashCode()}. Collisions can only make the estimate too high, never too
+ * low, and the memory used is fixed whatever the number of distinct keys. {@link #decay()} halves every counter
+ * so that the estimates follow recent traffic rather than the whole history.
+ * <p>
+ * Increments are plain non-atomic writes. Concurrent increments of the same counter may lose updates, which only
+ * makes an estimate slightly low and is cheaper than making every read pay for an atomic operation.
+ */
+public final class CountMinSketch {
+
+    /**
+     * The maximal number of rows.
+     */
+    public static final int MAX_DEPTH = 6;
+
+    private final int[] counters;
+    private final int depth;
+    private final int mask;
+
+    /**
+     * @param depth the number of rows, at most {@value #MAX_DEPTH}
+     * @param width the number of counters per row, rounded up to a power of two
+     */
+    public CountMinSketch(final int depth, final int width) {
+        if (depth < 1 || depth > MAX_DEPTH) throw new IllegalArgumentException("depth must be in [1, %d]".formatted(MAX_DEPTH));
+        final int w = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.depth = depth;
+        this.mask = w - 1;
+        this.counters = new int[depth * w];
+    }
+
+    /**
+     * FNV-1a over the chars of the key, so that hashing allocates nothing, with the finalizer of MurmurHash3 to
+     * spread it over all 64 bits.
+     */
+    private static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int index(final int row, final long hash) {
+        // odd so that it is never a multiple of the width, which would give a key the same column in every row
+        final int step = (int) (hash >>> 32) | 1;
+        return row * (mask + 1) + (((int) hash + row * step) & mask);
+    }
+
+    /**
+     * Counts one access of the key.
+     *
+     * @return the estimated frequency of the key, including this access
+     */
+    public int increment(final String key) {
+        final long hash = hash(key);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            final int i = index(row, hash);
+            final int c = counters[i];
+            // saturate instead of wrapping around to a negative count
+            if (c != Integer.MAX_VALUE) counters[i] = c + 1;
+            min = Math.min(min, c == Integer.MAX_VALUE ? c : c + 1);
+        }
+        return min;
+    }
+
+    /**
+     * @return the estimated frequency of the key
+     */
+    public int estimate(final String key) {
+        final long hash = hash(key);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) min = Math.min(min, counters[index(row, hash)]);
+        return min;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    public void decay() {
+        for (int i = 0; i < counters.length; i++) counters[i] >>>= 1;
+    }
+}
@@ -0,0 +1,15 @@
+package org.dice.core;
+
+/**
+ * The search for the CR that ends a line of RESP, behind the simple strings and errors of {@link RESPDecoder}.
+ * <p>
+ * {@link ScalarCrlfScanner} works on 64-bit words, {@link VectorCrlfScanner} on the widest vectors the CPU supports,
+ * and the decoder picks one once for the whole server, see {@link Simd}. Ranges are half-open.
+ */
+public interface CrlfScanner {
+
+    /**
+     * @return the index of the first {@code '\r'} of {@code a[from, to)}, -1 if there is none
+     */
+    int indexOfCr(byte[] a, int from, int to);
+}
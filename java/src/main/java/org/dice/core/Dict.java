@@ -0,0 +1,350 @@
+package org.dice.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * A chained hash table for the keyspace that resizes by incremental rehashing.
+ * <p>
+ * While a resize is in progress two tables are live: lookups consult both, inserts go to the new one and every
+ * read or write migrates a single bucket from the old table to the new one. The remaining buckets are moved by
+ * {@link #rehashFor(long)} from the server cron, so no single operation ever pays for copying the whole table.
+ * <p>
+ * The class is not thread safe, callers must hold the {@link Store} lock.
+ *
+ * @param <V> the type of the values held in the table
+ */
+public final class Dict<V> {
+
+    /**
+     * The size of a freshly created or fully shrunk table, always a power of two.
+     */
+    public static final int INITIAL_SIZE = 4;
+
+    /**
+     * The number of buckets migrated per step by {@link #rehashFor(long)}.
+     */
+    private static final int REHASH_BATCH = 100;
+
+    /**
+     * Empty buckets a single rehash step may skip before giving up, per bucket asked for.
+     */
+    private static final int EMPTY_VISITS_PER_STEP = 10;
+
+    /**
+     * A node in a bucket chain.
+     *
+     * @param <V> the type of the value
+     */
+    private static final class Entry<V> {
+        private final String key;
+        private final int hash;
+        private V val;
+        private Entry<V> next;
+
+        private Entry(final String key, final int hash, final V val, final Entry<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.val = val;
+            this.next = next;
+        }
+    }
+
+    private Entry<V>[] t0;
+    private Entry<V>[] t1;
+    private int used0;
+    private int used1;
+
+    /**
+     * The next bucket of {@code t0} to migrate, -1 when no rehash is in progress.
+     */
+    private int rehashIdx = -1;
+
+    public Dict() {
+        t0 = newTable(INITIAL_SIZE);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Entry<V>[] newTable(final int size) {
+        return (Entry<V>[]) new Entry[size];
+    }
+
+    private static int hash(final String key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of keys in the table
+     */
+    public int size() {
+        return used0 + used1;
+    }
+
+    /**
+     * @return the number of buckets across both tables
+     */
+    public long buckets() {
+        return (long) t0.length + (t1 == null ? 0 : t1.length);
+    }
+
+    /**
+     * @return true while the table is moving buckets from the old table to the new one
+     */
+    public boolean isRehashing() {
+        return rehashIdx != -1;
+    }
+
+    /**
+     * Looks up the value mapped to the key.
+     *
+     * @param key the key to look up
+     * @return the value, or null if the key is absent
+     */
+    public V get(final String key) {
+        if (isRehashing()) rehash(1);
+        final var e = find(key, hash(key));
+        return e == null ? null : e.val;
+    }
+
+    /**
+     * Maps the key to the value, replacing any previous mapping.
+     *
+     * @param key the key
+     * @param val the value
+     * @return the previous value, or null if the key was absent
+     */
+    public V put(final String key, final V val) {
+        if (isRehashing()) rehash(1);
+        final int h = hash(key);
+        final var e = find(key, h);
+        if (e != null) {
+            final var old = e.val;
+            e.val = val;
+            return old;
+        }
+        expandIfNeeded();
+        if (isRehashing()) {
+            final int idx = h & (t1.length - 1);
+            t1[idx] = new Entry<>(key, h, val, t1[idx]);
+            used1++;
+        } else {
+            final int idx = h & (t0.length - 1);
+            t0[idx] = new Entry<>(key, h, val, t0[idx]);
+            used0++;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping for the key.
+     *
+     * @param key the key
+     * @return the removed value, or null if the key was absent
+     */
+    public V remove(final String key) {
+        if (isRehashing()) rehash(1);
+        final int h = hash(key);
+        var removed = unlink(t0, key, h);
+        if (removed != null) {
+            used0--;
+            return removed.val;
+        }
+        if (isRehashing() && (removed = unlink(t1, key, h)) != null) {
+            used1--;
+            return removed.val;
+        }
+        return null;
+    }
+
+    /**
+     * Drops every key and goes back to a table of {@link #INITIAL_SIZE} buckets.
+     */
+    public void clear() {
+        t0 = newTable(INITIAL_SIZE);
+        t1 = null;
+        used0 = used1 = 0;
+        rehashIdx = -1;
+    }
+
+    private Entry<V> find(final String key, final int h) {
+        for (var e = t0[h & (t0.length - 1)]; e != null; e = e.next)
+            if (e.hash == h && e.key.equals(key)) return e;
+        if (!isRehashing()) return null;
+        for (var e = t1[h & (t1.length - 1)]; e != null; e = e.next)
+            if (e.hash == h && e.key.equals(key)) return e;
+        return null;
+    }
+
+    private static <V> Entry<V> unlink(final Entry<V>[] table, final String key, final int h) {
+        final int idx = h & (table.length - 1);
+        Entry<V> prev = null;
+        for (var e = table[idx]; e != null; prev = e, e = e.next) {
+            if (e.hash != h || !e.key.equals(key)) continue;
+            if (prev == null) table[idx] = e.next;
+            else prev.next = e.next;
+            return e;
+        }
+        return null;
+    }
+
+    private void expandIfNeeded() {
+        if (isRehashing() || used0 < t0.length) return;
+        startRehash(t0.length << 1);
+    }
+
+    /**
+     * Starts shrinking the table when it is less than one eighth full. Called from the cron rather than from
+     * {@link #remove(String)} so that a burst of deletes does not flip-flop the table size.
+     *
+     * @return true if a shrink was started
+     */
+    public boolean shrinkIfNeeded() {
+        if (isRehashing() || t0.length <= INITIAL_SIZE || (long) used0 * 8 >= t0.length) return false;
+        startRehash(Math.max(INITIAL_SIZE, Integer.highestOneBit(Math.max(1, used0)) << 1));
+        return true;
+    }
+
+    private void startRehash(final int size) {
+        t1 = newTable(size);
+        used1 = 0;
+        rehashIdx = 0;
+    }
+
+    /**
+     * Migrates up to {@code n} non-empty buckets from the old table to the new one. At most {@code n * 10} empty
+     * buckets are skipped so that a sparse table cannot turn a step into a long scan.
+     *
+     * @param n the number of buckets to migrate
+     * @return true if there are still buckets left to migrate
+     */
+    public boolean rehash(int n) {
+        if (!isRehashing()) return false;
+        int emptyVisits = n * EMPTY_VISITS_PER_STEP;
+        final int mask1 = t1.length - 1;
+        while (n-- > 0 && used0 != 0) {
+            while (t0[rehashIdx] == null) {
+                rehashIdx++;
+                if (--emptyVisits == 0) return true;
+            }
+            var e = t0[rehashIdx];
+            while (e != null) {
+                final var next = e.next;
+                final int idx = e.hash & mask1;
+                e.next = t1[idx];
+                t1[idx] = e;
+                used0--;
+                used1++;
+                e = next;
+            }
+            t0[rehashIdx++] = null;
+        }
+        if (used0 != 0) return true;
+        t0 = t1;
+        used0 = used1;
+        t1 = null;
+        used1 = 0;
+        rehashIdx = -1;
+        return false;
+    }
+
+    /**
+     * Migrates buckets in batches of {@value #REHASH_BATCH} until the rehash completes or the time budget is spent.
+     *
+     * @param nanos the time budget in nanoseconds
+     * @return the number of batches executed
+     */
+    public int rehashFor(final long nanos) {
+        // elapsed time rather than a deadline, which would overflow for large budgets
+        final long start = System.nanoTime();
+        int batches = 0;
+        while (rehash(REHASH_BATCH)) {
+            batches++;
+            if (System.nanoTime() - start >= nanos) break;
+        }
+        return batches;
+    }
+
+    /**
+     * Visits up to {@code count} entries found in consecutive buckets from a random starting bucket, like
+     * {@code dictGetSomeKeys} in Redis. The entries are not uniformly distributed, keys in long chains are more likely
+     * to be returned, which is good enough to pick eviction candidates at the cost of a few bucket visits. Once
+     * {@code count * 10} buckets were visited the walk stops at the first entry found, so a sparse table may return
+     * fewer entries but a table that is not empty always returns at least one.
+     *
+     * @param count the number of entries wanted
+     * @param fn    receives the keys and values of the sampled entries
+     * @return the number of entries visited
+     */
+    public int sample(final int count, final BiConsumer<String, V> fn) {
+        if (size() == 0 || count <= 0) return 0;
+        final int length = isRehashing() ? Math.max(t0.length, t1.length) : t0.length;
+        int idx = ThreadLocalRandom.current().nextInt(length);
+        int visits = count * EMPTY_VISITS_PER_STEP;
+        int found = 0;
+        while (visits-- > 0 || found == 0) {
+            // the buckets of the old table below rehashIdx were already moved and are empty
+            if (idx < t0.length && (!isRehashing() || idx >= rehashIdx)) {
+                for (var e = t0[idx]; e != null; e = e.next) {
+                    fn.accept(e.key, e.val);
+                    if (++found == count) return found;
+                }
+            }
+            if (isRehashing() && idx < t1.length) {
+                for (var e = t1[idx]; e != null; e = e.next) {
+                    fn.accept(e.key, e.val);
+                    if (++found == count) return found;
+                }
+            }
+            idx = (idx + 1) % length;
+        }
+        return found;
+    }
+
+    /**
+     * Visits the buckets addressed by the cursor and returns the next cursor, 0 once the whole table was covered.
+     * <p>
+     * The cursor is incremented on its reversed bits, so a bucket index visited in a small table maps to the same
+     * high-order prefix in a table twice as large. Every key present for the whole duration of a scan is therefore
+     * returned at least once even if the table grows, shrinks or is midway through a rehash between calls; keys
+     * may occasionally be returned more than once.
+     *
+     * @param cursor the cursor returned by the previous call, 0 to start a new scan
+     * @param fn     receives every key and value of the visited buckets
+     * @return the cursor to pass to the next call
+     */
+    public long scan(long cursor, final BiConsumer<String, V> fn) {
+        if (size() == 0) return 0;
+        if (!isRehashing()) {
+            final long m0 = t0.length - 1;
+            emit(t0[(int) (cursor & m0)], fn);
+            return nextCursor(cursor, m0);
+        }
+        var small = t0;
+        var large = t1;
+        if (small.length > large.length) {
+            small = t1;
+            large = t0;
+        }
+        final long m0 = small.length - 1;
+        final long m1 = large.length - 1;
+        emit(small[(int) (cursor & m0)], fn);
+        // visit every bucket of the larger table that expands the bucket of the smaller one
+        do {
+            emit(large[(int) (cursor & m1)], fn);
+            cursor = nextCursor(cursor, m1);
+        } while ((cursor & (m0 ^ m1)) != 0);
+        return cursor;
+    }
+
+    private static long nextCursor(long cursor, final long mask) {
+        cursor |= ~mask;
+        cursor = Long.reverse(cursor);
+        cursor++;
+        return Long.reverse(cursor);
+    }
+
+    private static <V> void emit(Entry<V> e, final BiConsumer<String, V> fn) {
+        for (; e != null; e = e.next) fn.accept(e.key, e.val);
+    }
+}
@@ -0,0 +1,812 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.dice.core.RESPEncoder.RESP_NIL;
+import static org.dice.core.RESPEncoder.RESP_OK;
+import static org.dice.core.RESPEncoder.encodeBulkString;
+import static org.dice.core.RESPEncoder.encodeError;
+import static org.dice.core.RESPEncoder.encodeLong;
+import static org.dice.core.RESPEncoder.encodeSimpleString;
+
+/**
+ * Command evaluation against the {@link Store}.
+ */
+public final class Eval {
+
+    private Eval() {}
+
+    /**
+     * The default number of buckets SCAN visits when no COUNT is given.
+     */
+    private static final int SCAN_DEFAULT_COUNT = 10;
+
+    /**
+     * The number of buckets KEYS visits while holding the store lock before it lets other clients run.
+     */
+    private static final int KEYS_CHUNK_BUCKETS = 256;
+
+    /**
+     * The reply of a command whose reply was already queued.
+     */
+    private static final byte[] WRITTEN = new byte[0];
+
+    /**
+     * Commands that modify the keyspace, rejected on replicas and propagated to them on primaries.
+     */
+    private static final Set<String> WRITE_COMMANDS = Set.of("SET", "DEL", "UNLINK", "FLUSHALL",
+            "SETBIT", "BITOP", "PFADD", "PFMERGE",
+            "LPUSH", "RPUSH", "LPOP", "RPOP", "LMOVE", "BLPOP", "BRPOP", "BLMOVE",
+            "XADD", "XTRIM", "XDEL", "XSETID", "XGROUP", "XREADGROUP", "XACK", "XCLAIM");
+
+    /**
+     * Write commands that may allocate memory, rejected when the memory limit is reached and nothing can be evicted.
+     */
+    private static final Set<String> DENY_OOM_COMMANDS = Set.of("SET", "SETBIT", "BITOP", "PFADD", "PFMERGE",
+            "LPUSH", "RPUSH", "LMOVE", "BLMOVE", "XADD", "XGROUP", "XREADGROUP", "XCLAIM");
+
+    /**
+     * Positions of the keys in the arguments of a command, used to route it in cluster mode.
+     *
+     * @param first the index of the first key
+     * @param last  the index of the last key, negative to count from the end: -1 for the last argument
+     * @param step  the distance between two keys
+     */
+    private record KeySpec(int first, int last, int step) {
+        private List<String> keys(final String[] args) {
+            final var keys = new ArrayList<String>();
+            final int end = last < 0 ? args.length + last : Math.min(last, args.length - 1);
+            for (int i = first; i <= end; i += step) keys.add(args[i]);
+            return keys;
+        }
+    }
+
+    private static final Map<String, KeySpec> KEY_SPECS = Map.ofEntries(
+            Map.entry("GET", new KeySpec(0, 0, 1)),
+            Map.entry("SET", new KeySpec(0, 0, 1)),
+            Map.entry("DEL", new KeySpec(0, -1, 1)),
+            Map.entry("UNLINK", new KeySpec(0, -1, 1)),
+            Map.entry("EXISTS", new KeySpec(0, -1, 1)),
+            Map.entry("TYPE", new KeySpec(0, 0, 1)),
+            Map.entry("SETBIT", new KeySpec(0, 0, 1)),
+            Map.entry("GETBIT", new KeySpec(0, 0, 1)),
+            Map.entry("BITCOUNT", new KeySpec(0, 0, 1)),
+            Map.entry("BITPOS", new KeySpec(0, 0, 1)),
+            Map.entry("BITOP", new KeySpec(1, -1, 1)),
+            Map.entry("PFADD", new KeySpec(0, 0, 1)),
+            Map.entry("PFCOUNT", new KeySpec(0, -1, 1)),
+            Map.entry("PFMERGE", new KeySpec(0, -1, 1)),
+            Map.entry("LPUSH", new KeySpec(0, 0, 1)),
+            Map.entry("RPUSH", new KeySpec(0, 0, 1)),
+            Map.entry("LPOP", new KeySpec(0, 0, 1)),
+            Map.entry("RPOP", new KeySpec(0, 0, 1)),
+            Map.entry("LLEN", new KeySpec(0, 0, 1)),
+            Map.entry("LRANGE", new KeySpec(0, 0, 1)),
+            Map.entry("LMOVE", new KeySpec(0, 1, 1)),
+            Map.entry("BLPOP", new KeySpec(0, -2, 1)),
+            Map.entry("BRPOP", new KeySpec(0, -2, 1)),
+            Map.entry("BLMOVE", new KeySpec(0, 1, 1)),
+            Map.entry("XADD", new KeySpec(0, 0, 1)),
+            Map.entry("XTRIM", new KeySpec(0, 0, 1)),
+            Map.entry("XDEL", new KeySpec(0, 0, 1)),
+            Map.entry("XLEN", new KeySpec(0, 0, 1)),
+            Map.entry("XRANGE", new KeySpec(0, 0, 1)),
+            Map.entry("XREVRANGE", new KeySpec(0, 0, 1)),
+            Map.entry("XSETID", new KeySpec(0, 0, 1)),
+            Map.entry("XGROUP", new KeySpec(1, 1, 1)),
+            Map.entry("XACK", new KeySpec(0, 0, 1)),
+            Map.entry("XPENDING", new KeySpec(0, 0, 1)),
+            Map.entry("XCLAIM", new KeySpec(0, 0, 1)));
+
+    static final String WRONGTYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+
+    static byte[] wrongArgs(final String cmd) {
+        return encodeError("ERR wrong number of arguments for '%s' command".formatted(cmd.toLowerCase()));
+    }
+
+    private static byte[] evalPING(final String[] args) {
+        if (args.length >= 2) return wrongArgs("ping");
+        return args.length == 0 ? encodeSimpleString("PONG") : encodeBulkString(args[0]);
+    }
+
+    /**
+     * SET key value
+     * <p>
+     * Binary safe: the value is stored as the bytes it was received as, which is how snapshots carry bitmaps and
+     * HyperLogLogs.
+     */
+    private static byte[] evalSET(final RedisCmd cmd) {
+        final var args = cmd.args();
+        if (args.length != 2) return args.length < 2 ? wrongArgs("set") : encodeError("ERR syntax error");
+        Store.put(args[0], Obj.newString(cmd.argBytes(1)));
+        return RESP_OK;
+    }
+
+    private static byte[] evalGET(final String[] args) {
+        if (args.length != 1) return wrongArgs("get");
+        final var obj = Store.get(args[0]);
+        if (obj == null) return RESP_NIL;
+        if (obj.type != Obj.TYPE_STRING) return encodeError(WRONGTYPE);
+        final var reply = encodeBulkString(obj.stringBytes());
+        if (NearCache.isEnabled()) NearCache.fill(args[0], reply);
+        return reply;
+    }
+
+    private static byte[] evalDEL(final String[] args) {
+        if (args.length == 0) return wrongArgs("del");
+        long deleted = 0;
+        for (final var key : args) if (Store.del(key)) deleted++;
+        return encodeLong(deleted);
+    }
+
+    /**
+     * UNLINK key [key ...]
+     * <p>
+     * An alias of DEL. The values live on the heap, so there is nothing to release in the background: the
+     * collector reclaims a deleted value once it is unreachable, whatever its size.
+     */
+    private static byte[] evalUNLINK(final String[] args) {
+        if (args.length == 0) return wrongArgs("unlink");
+        long deleted = 0;
+        for (final var key : args) if (Store.del(key)) deleted++;
+        return encodeLong(deleted);
+    }
+
+    /**
+     * FLUSHALL [ASYNC | SYNC]
+     * <p>
+     * ASYNC and SYNC are accepted and do the same: the old keyspace is dropped whole and reclaimed by the
+     * collector, see UNLINK.
+     */
+    private static byte[] evalFLUSHALL(final String[] args) {
+        if (args.length > 1) return encodeError("ERR syntax error");
+        if (args.length == 1 && !args[0].equalsIgnoreCase("ASYNC") && !args[0].equalsIgnoreCase("SYNC"))
+            return encodeError("ERR syntax error");
+        Store.flushAll();
+        return RESP_OK;
+    }
+
+    private static byte[] evalEXISTS(final String[] args) {
+        if (args.length == 0) return wrongArgs("exists");
+        long found = 0;
+        for (final var key : args) if (Store.get(key) != null) found++;
+        return encodeLong(found);
+    }
+
+    private static byte[] evalTYPE(final String[] args) {
+        if (args.length != 1) return wrongArgs("type");
+        final var obj = Store.get(args[0]);
+        return encodeSimpleString(obj == null ? "none" : obj.typeName());
+    }
+
+    private static byte[] evalDBSIZE(final String[] args) {
+        if (args.length != 0) return wrongArgs("dbsize");
+        return encodeLong(Store.size());
+    }
+
+    private static byte[] evalINFO(final String[] args) {
+        if (args.length > 1) return wrongArgs("info");
+        final var section = args.length == 0 ? "all" : args[0].toLowerCase();
+        final var info = new StringBuilder();
+        if (section.equals("all") || section.equals("clients")) {
+            info.append("# Clients\r\n")
+                    .append("connected_clients:").append(Client.connected()).append("\r\n")
+                    .append("blocked_clients:").append(Blocking.blockedClients()).append("\r\n")
+                    .append("output_buffer_pending_bytes:").append(Client.totalPendingBytes()).append("\r\n")
+                    .append("output_buffer_limit_disconnections:").append(Client.limitDisconnections()).append("\r\n");
+        }
+        if (section.equals("all") || section.equals("memory")) info.append(Memory.info());
+        if (section.equals("all") || section.equals("stats")) info.append("# Stats\r\n").append(NearCache.info());
+        if (section.equals("all") || section.equals("replication")) info.append(Replication.info());
+        if (section.equals("all") || section.equals("keyspace")) {
+            info.append("# Keyspace\r\n")
+                    .append("db0:keys=").append(Store.size()).append(",expires=0,avg_ttl=0\r\n");
+        }
+        return encodeBulkString(info.toString());
+    }
+
+    /**
+     * SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]
+     * <p>
+     * Visits roughly COUNT buckets per call, so the cost of a call is bounded by COUNT and not by the size of the
+     * keyspace. MATCH and TYPE are applied after the keys are collected, as in Redis, so a call may return fewer
+     * keys than COUNT or none at all while the cursor is still non-zero.
+     */
+    private static byte[] evalSCAN(final String[] args) {
+        if (args.length == 0 || args.length % 2 == 0) return args.length == 0 ? wrongArgs("scan") : encodeError("ERR syntax error");
+        final long cursor;
+        try {cursor = Long.parseUnsignedLong(args[0]);}
+        catch (final NumberFormatException e) {return encodeError("ERR invalid cursor");}
+
+        String pattern = null;
+        String type = null;
+        long count = SCAN_DEFAULT_COUNT;
+        for (int i = 1; i < args.length; i += 2) {
+            switch (args[i].toUpperCase()) {
+                case "MATCH" -> pattern = Glob.matchesAll(args[i + 1]) ? null : args[i + 1];
+                case "TYPE" -> type = args[i + 1].toLowerCase();
+                case "COUNT" -> {
+                    try {count = Long.parseLong(args[i + 1]);}
+                    catch (final NumberFormatException e) {return encodeError("ERR value is not an integer or out of range");}
+                    if (count < 1) return encodeError("ERR syntax error");
+                }
+                default -> {return encodeError("ERR syntax error");}
+            }
+        }
+
+        final var keys = new ArrayList<String>();
+        // the types as the keys are visited, looking the keys up again would count as accesses
+        final var types = type == null ? null : new ArrayList<String>();
+        long next = cursor;
+        // like Redis, give up after 10 * COUNT empty buckets so a sparse table cannot make one call expensive
+        long iterations = count * 10;
+        do {
+            next = Store.scan(next, (k, v) -> {
+                keys.add(k);
+                if (types != null) types.add(v.typeName());
+            });
+        } while (next != 0 && --iterations > 0 && keys.size() < count);
+
+        final var out = new ArrayList<String>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final var key = keys.get(i);
+            if (pattern != null && !Glob.match(pattern, key)) continue;
+            if (types != null && !types.get(i).equals(type)) continue;
+            out.add(key);
+        }
+        return RESPEncoder.encodeArray(List.of(
+                encodeBulkString(Long.toUnsignedString(next)),
+                RESPEncoder.encodeStrings(out)));
+    }
+
+    /**
+     * KEYS pattern
+     * <p>
+     * Implemented as a full SCAN that drops the store lock and yields every {@value #KEYS_CHUNK_BUCKETS} buckets,
+     * so other clients keep being served while a large keyspace is walked. As with SCAN the result is not a
+     * point-in-time snapshot, keys written concurrently may or may not be returned.
+     */
+    private static byte[] evalKEYS(final String[] args) {
+        if (args.length != 1) return wrongArgs("keys");
+        final var pattern = args[0];
+        final boolean all = Glob.matchesAll(pattern);
+        if (Glob.isLiteral(pattern)) {
+            return Store.peek(pattern) == null ? RESPEncoder.RESP_EMPTY_ARRAY : RESPEncoder.encodeStrings(List.of(pattern));
+        }
+        // a key can be visited twice if the table is resized between chunks
+        final var keys = new LinkedHashSet<String>();
+        long cursor = 0;
+        do {
+            Store.lock.lock();
+            try {
+                for (int i = 0; i < KEYS_CHUNK_BUCKETS && (i == 0 || cursor != 0); i++)
+                    cursor = Store.scan(cursor, (k, v) -> {if (all || Glob.match(pattern, k)) keys.add(k);});
+            } finally {Store.lock.unlock();}
+            Thread.yield();
+        } while (cursor != 0);
+        return RESPEncoder.encodeStrings(keys);
+    }
+
+    /**
+     * HOTKEYS [COUNT count]
+     * <p>
+     * Replies with the hottest keys and their estimated recent access counts, hottest first.
+     */
+    private static byte[] evalHOTKEYS(final String[] args) {
+        int count = Config.HOTKEYS_TOP_K.get();
+        if (args.length == 2 && args[0].equalsIgnoreCase("COUNT")) {
+            try {count = Integer.parseInt(args[1]);}
+            catch (final NumberFormatException e) {return encodeError("ERR value is not an integer or out of range");}
+            if (count < 1) return encodeError("ERR value is out of range, must be positive");
+        } else if (args.length != 0) return encodeError("ERR syntax error");
+        final var out = new ArrayList<byte[]>();
+        for (final var e : HotKeys.top(count)) {
+            out.add(encodeBulkString(e.getKey()));
+            out.add(encodeLong(e.getValue()));
+        }
+        return RESPEncoder.encodeArray(out);
+    }
+
+    private static byte[] subscriptionReply(final Client client, final String kind, final String channel, final long count) {
+        final var reply = List.of(
+                encodeBulkString(kind),
+                channel == null ? RESP_NIL : encodeBulkString(channel),
+                encodeLong(count));
+        return client.protocol() == 3 ? RESPEncoder.encodePush(reply) : RESPEncoder.encodeArray(reply);
+    }
+
+    private static byte[] evalSUBSCRIBE(final String[] args, final Client client, final boolean pattern) {
+        if (args.length == 0) return wrongArgs(pattern ? "psubscribe" : "subscribe");
+        final var out = new ByteArrayOutputStream();
+        for (final var name : args) {
+            final int count = pattern ? PubSub.psubscribe(client, name) : PubSub.subscribe(client, name);
+            out.writeBytes(subscriptionReply(client, pattern ? "psubscribe" : "subscribe", name, count));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] evalUNSUBSCRIBE(final String[] args, final Client client, final boolean pattern) {
+        final var kind = pattern ? "punsubscribe" : "unsubscribe";
+        final var names = args.length > 0 ? List.of(args) : client.subscriptions(pattern);
+        if (names.isEmpty()) return subscriptionReply(client, kind, null, client.subscriptions(true).size() + client.subscriptions(false).size());
+        final var out = new ByteArrayOutputStream();
+        for (final var name : names) {
+            final int count = pattern ? PubSub.punsubscribe(client, name) : PubSub.unsubscribe(client, name);
+            out.writeBytes(subscriptionReply(client, kind, name, count));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * PUBLISH channel message
+     * <p>
+     * The message is delivered without the store lock, which is only taken to append the command to the
+     * replication stream, so that the subscribers of the replicas receive it as well. A replica delivers the
+     * messages of its own clients locally, its stream is the one of its primary.
+     */
+    private static byte[] evalPUBLISH(final RedisCmd cmd, final Client client) {
+        final var args = cmd.args();
+        if (args.length != 2) return wrongArgs("publish");
+        final long receivers = PubSub.publish(args[0], args[1]);
+        if (client != null) {
+            Store.lock.lock();
+            try {if (!Replication.isReplica()) Replication.propagate(cmd);}
+            finally {Store.lock.unlock();}
+        }
+        return encodeLong(receivers);
+    }
+
+    private static byte[] evalPUBSUB(final String[] args) {
+        if (args.length == 0) return wrongArgs("pubsub");
+        return switch (args[0].toUpperCase()) {
+            case "CHANNELS" -> args.length > 2 ? wrongArgs("pubsub|channels") :
+                    RESPEncoder.encodeStrings(PubSub.activeChannels(args.length == 2 ? args[1] : null));
+            case "NUMSUB" -> {
+                final var out = new ArrayList<byte[]>();
+                for (int i = 1; i < args.length; i++) {
+                    out.add(encodeBulkString(args[i]));
+                    out.add(encodeLong(PubSub.numSub(args[i])));
+                }
+                yield RESPEncoder.encodeArray(out);
+            }
+            case "NUMPAT" -> args.length != 1 ? wrongArgs("pubsub|numpat") : encodeLong(PubSub.numPat());
+            default -> encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+    }
+
+    private static byte[] evalREPLICAOF(final String[] args) {
+        if (args.length != 2) return wrongArgs("replicaof");
+        return Replication.replicaOf(args[0], args[1]);
+    }
+
+    private static byte[] evalPSYNC(final String[] args, final Client client) {
+        if (args.length != 2) return wrongArgs("psync");
+        if (client == null) return encodeError("ERR PSYNC is not allowed from the replication stream");
+        return Replication.psync(client, args[0], args[1]);
+    }
+
+    /**
+     * CONFIG GET pattern [pattern ...] | SET name value [name value ...] | REWRITE
+     * <p>
+     * SET applies all the values or none of them, see {@link Config#set(Map, boolean)}.
+     */
+    private static byte[] evalCONFIG(final String[] args, final Client client) {
+        if (args.length == 0) return wrongArgs("config");
+        return switch (args[0].toUpperCase()) {
+            case "GET" -> {
+                if (args.length < 2) yield wrongArgs("config|get");
+                final var out = new ArrayList<byte[]>();
+                for (final var setting : Config.all()) {
+                    for (int i = 1; i < args.length; i++) {
+                        if (!Glob.match(args[i].toLowerCase(), setting.name())) continue;
+                        out.add(encodeBulkString(setting.name()));
+                        out.add(encodeBulkString(setting.format()));
+                        break;
+                    }
+                }
+                yield RESPEncoder.encodeMap(out, client != null && client.protocol() == 3);
+            }
+            case "SET" -> {
+                if (args.length < 3 || args.length % 2 == 0) yield wrongArgs("config|set");
+                final var values = new LinkedHashMap<String, String>();
+                for (int i = 1; i < args.length; i += 2) {
+                    if (values.put(args[i].toLowerCase(), args[i + 1]) != null)
+                        yield encodeError("ERR CONFIG SET failed - duplicate parameter '%s'".formatted(args[i]));
+                }
+                try {Config.set(values, false);}
+                catch (final IllegalArgumentException e) {
+                    // the message is "'name' - reason"
+                    final var message = e.getMessage();
+                    final int sep = message.indexOf(" - ");
+                    yield encodeError("ERR CONFIG SET failed (possibly related to argument %s)%s"
+                            .formatted(message.substring(0, sep), message.substring(sep)));
+                }
+                yield RESP_OK;
+            }
+            case "REWRITE" -> {
+                if (args.length != 1) yield wrongArgs("config|rewrite");
+                try {Config.rewrite();}
+                catch (final IllegalStateException | UncheckedIOException e) {
+                    yield encodeError("ERR Rewriting config file: " + e.getMessage());
+                }
+                yield RESP_OK;
+            }
+            default -> encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+    }
+
+    /**
+     * HELLO [protover [AUTH username password] [SETNAME clientname]]
+     */
+    private static byte[] evalHELLO(final String[] args, final Client client) {
+        if (client == null) return encodeError("ERR HELLO is not allowed from the replication stream");
+        int protocol = client.protocol();
+        if (args.length > 0) {
+            try {protocol = Integer.parseInt(args[0]);}
+            catch (final NumberFormatException e) {return encodeError("ERR Protocol version is not an integer or out of range");}
+            if (protocol != 2 && protocol != 3) return encodeError("NOPROTO unsupported protocol version");
+        }
+        String name = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i].toUpperCase()) {
+                case "AUTH" -> {return encodeError("ERR AUTH <password> called without any password configured for the default user. Are you sure your configuration is correct?");}
+                case "SETNAME" -> {
+                    if (++i == args.length) return encodeError("ERR syntax error");
+                    name = args[i];
+                }
+                default -> {return encodeError("ERR syntax error");}
+            }
+        }
+        if (name != null) client.name(name);
+        client.protocol(protocol);
+        return RESPEncoder.encodeMap(List.of(
+                encodeBulkString("server"), encodeBulkString("dicedb"),
+                encodeBulkString("version"), encodeBulkString("1.0.0"),
+                encodeBulkString("proto"), encodeLong(protocol),
+                encodeBulkString("id"), encodeLong(client.id),
+                encodeBulkString("mode"), encodeBulkString(Cluster.isEnabled() ? "cluster" : "standalone"),
+                encodeBulkString("role"), encodeBulkString(Replication.isReplica() ? "replica" : "master"),
+                encodeBulkString("modules"), RESPEncoder.RESP_EMPTY_ARRAY), protocol == 3);
+    }
+
+    /**
+     * CLIENT ID | SETNAME name | GETNAME | TRACKING ... | GETREDIR
+     */
+    private static byte[] evalCLIENT(final String[] args, final Client client) {
+        if (args.length == 0) return wrongArgs("client");
+        if (client == null) return encodeError("ERR CLIENT is not allowed from the replication stream");
+        final var rest = Arrays.copyOfRange(args, 1, args.length);
+        return switch (args[0].toUpperCase()) {
+            case "ID" -> rest.length != 0 ? wrongArgs("client|id") : encodeLong(client.id);
+            case "SETNAME" -> {
+                if (rest.length != 1) yield wrongArgs("client|setname");
+                if (rest[0].chars().anyMatch(c -> c <= ' ' || c > '~'))
+                    yield encodeError("ERR Client names cannot contain spaces, newlines or special characters.");
+                client.name(rest[0]);
+                yield RESP_OK;
+            }
+            case "GETNAME" -> rest.length != 0 ? wrongArgs("client|getname") :
+                    client.name().isEmpty() ? RESP_NIL : encodeBulkString(client.name());
+            case "TRACKING" -> Tracking.command(client, rest);
+            case "GETREDIR" -> rest.length != 0 ? wrongArgs("client|getredir") : encodeLong(Tracking.redirect(client));
+            default -> encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+    }
+
+    private static byte[] evalCLUSTER(final String[] args) {
+        return Cluster.command(args);
+    }
+
+    private static byte[] evalASKING(final String[] args, final Client client) {
+        if (args.length != 0) return wrongArgs("asking");
+        if (!Cluster.isEnabled()) return encodeError("ERR This instance has cluster support disabled");
+        if (client != null) client.asking(true);
+        return RESP_OK;
+    }
+
+    private static byte[] evalMIGRATE(final String[] args) {
+        return Cluster.migrate(args);
+    }
+
+    /**
+     * Sends the client elsewhere if the keys of the command are not served by this node.
+     *
+     * @return the redirection, or null if the command is to be executed here
+     */
+    private static byte[] route(final RedisCmd cmd, final Client client) {
+        final boolean asking = client.asking();
+        // ASKING only applies to the command right after it
+        client.asking(false);
+        return Cluster.route(keys(cmd), asking);
+    }
+
+    /**
+     * @return the keys of a command, empty if it has none or is not known
+     */
+    static List<String> keys(final RedisCmd cmd) {
+        if (cmd.cmd().equals("FCALL")) return Functions.keys(cmd.args());
+        if (cmd.cmd().equals("XREAD") || cmd.cmd().equals("XREADGROUP")) return Streams.readKeys(cmd);
+        final var spec = KEY_SPECS.get(cmd.cmd());
+        return spec == null ? List.of() : spec.keys(cmd.args());
+    }
+
+    /**
+     * The implementation of a command that runs under the store lock.
+     */
+    @FunctionalInterface
+    interface Command {
+        byte[] eval(String[] args, Client client);
+
+        /**
+         * Runs the command. The commands that store an argument as it is override it to read its bytes, which
+         * the decoded strings do not hold when they are not valid UTF-8.
+         */
+        default byte[] eval(final RedisCmd cmd, final Client client) {
+            return eval(cmd.args(), client);
+        }
+    }
+
+    /**
+     * @return a command that reads the bytes of its arguments, see {@link Command#eval(RedisCmd, Client)}
+     */
+    private static Command binarySafe(final String name, final Function<RedisCmd, byte[]> eval) {
+        return new Command() {
+            @Override
+            public byte[] eval(final String[] args, final Client client) {
+                return eval.apply(new RedisCmd(name, args));
+            }
+
+            @Override
+            public byte[] eval(final RedisCmd cmd, final Client client) {
+                return eval.apply(cmd);
+            }
+        };
+    }
+
+    private static final Map<String, Command> COMMANDS = Map.ofEntries(
+            Map.entry("PING", (args, client) -> evalPING(args)),
+            Map.entry("SET", binarySafe("SET", Eval::evalSET)),
+            Map.entry("GET", (args, client) -> evalGET(args)),
+            Map.entry("DEL", (args, client) -> evalDEL(args)),
+            Map.entry("UNLINK", (args, client) -> evalUNLINK(args)),
+            Map.entry("FLUSHALL", (args, client) -> evalFLUSHALL(args)),
+            Map.entry("EXISTS", (args, client) -> evalEXISTS(args)),
+            Map.entry("TYPE", (args, client) -> evalTYPE(args)),
+            Map.entry("SETBIT", (args, client) -> Bitmaps.setbit(args)),
+            Map.entry("GETBIT", (args, client) -> Bitmaps.getbit(args)),
+            Map.entry("BITCOUNT", (args, client) -> Bitmaps.bitcount(args)),
+            Map.entry("BITPOS", (args, client) -> Bitmaps.bitpos(args)),
+            Map.entry("BITOP", (args, client) -> Bitmaps.bitop(args)),
+            Map.entry("PFADD", binarySafe("PFADD", HyperLogLog::pfadd)),
+            Map.entry("PFCOUNT", (args, client) -> HyperLogLog.pfcount(args)),
+            Map.entry("PFMERGE", (args, client) -> HyperLogLog.pfmerge(args)),
+            Map.entry("LPUSH", binarySafe("LPUSH", cmd -> Lists.push(cmd, true))),
+            Map.entry("RPUSH", binarySafe("RPUSH", cmd -> Lists.push(cmd, false))),
+            Map.entry("LPOP", (args, client) -> Lists.pop(args, true)),
+            Map.entry("RPOP", (args, client) -> Lists.pop(args, false)),
+            Map.entry("LLEN", (args, client) -> Lists.llen(args)),
+            Map.entry("LRANGE", (args, client) -> Lists.lrange(args)),
+            Map.entry("LMOVE", (args, client) -> Lists.lmove(args)),
+            Map.entry("BLPOP", (args, client) -> Lists.bpop(args, true)),
+            Map.entry("BRPOP", (args, client) -> Lists.bpop(args, false)),
+            Map.entry("BLMOVE", (args, client) -> Lists.blmove(args)),
+            Map.entry("XADD", binarySafe("XADD", Streams::xadd)),
+            Map.entry("XTRIM", (args, client) -> Streams.xtrim(args)),
+            Map.entry("XDEL", (args, client) -> Streams.xdel(args)),
+            Map.entry("XLEN", (args, client) -> Streams.xlen(args)),
+            Map.entry("XRANGE", (args, client) -> Streams.xrange(args, false)),
+            Map.entry("XREVRANGE", (args, client) -> Streams.xrange(args, true)),
+            Map.entry("XSETID", (args, client) -> Streams.xsetid(args)),
+            Map.entry("XREAD", (args, client) -> Streams.xread(args)),
+            Map.entry("XREADGROUP", (args, client) -> Streams.xreadgroup(args)),
+            Map.entry("XGROUP", (args, client) -> Streams.xgroup(args)),
+            Map.entry("XACK", (args, client) -> Streams.xack(args)),
+            Map.entry("XPENDING", (args, client) -> Streams.xpending(args)),
+            Map.entry("XCLAIM", (args, client) -> Streams.xclaim(args)),
+            Map.entry("DBSIZE", (args, client) -> evalDBSIZE(args)),
+            Map.entry("SCAN", (args, client) -> evalSCAN(args)),
+            Map.entry("INFO", (args, client) -> evalINFO(args)),
+            Map.entry("CONFIG", Eval::evalCONFIG),
+            Map.entry("MEMORY", Memory::command),
+            Map.entry("HOTKEYS", (args, client) -> evalHOTKEYS(args)),
+            Map.entry("REPLICAOF", (args, client) -> evalREPLICAOF(args)),
+            Map.entry("SLAVEOF", (args, client) -> evalREPLICAOF(args)),
+            Map.entry("PSYNC", Eval::evalPSYNC),
+            Map.entry("REPLCONF", (args, client) -> RESP_OK),
+            Map.entry("HELLO", Eval::evalHELLO),
+            Map.entry("CLIENT", Eval::evalCLIENT),
+            Map.entry("CLUSTER", (args, client) -> evalCLUSTER(args)),
+            Map.entry("ASKING", Eval::evalASKING),
+            Map.entry("FUNCTION", Functions::command),
+            Map.entry("FCALL", Functions::fcall),
+            Map.entry("MULTI", Transactions::multi),
+            Map.entry("EXEC", Transactions::exec),
+            Map.entry("DISCARD", Transactions::discard),
+            Map.entry("WATCH", Transactions::watch),
+            Map.entry("UNWATCH", Transactions::unwatch));
+
+    /**
+     * The commands that {@link #execute} runs without taking the store lock.
+     */
+    private static final Set<String> UNLOCKED_COMMANDS = Set.of("KEYS", "SUBSCRIBE", "PSUBSCRIBE", "UNSUBSCRIBE",
+            "PUNSUBSCRIBE", "PUBLISH", "PUBSUB", "SLOWLOG", "TRACE", "MIGRATE");
+
+    /**
+     * @return the implementation of the command, null if there is no such command or if it does not run under the
+     * store lock
+     */
+    static Command lookup(final String name) {
+        return COMMANDS.get(name);
+    }
+
+    /**
+     * The commands propagated in place of the write command being dispatched, null to propagate it as is. Guarded
+     * by the store lock.
+     */
+    private static List<RedisCmd> propagateAs;
+
+    /**
+     * Propagates the given commands instead of the write command being dispatched, none if the list is empty. For
+     * the commands whose effect depends on more than their arguments, such as the time, which replicas would apply
+     * differently.
+     */
+    static void propagateAs(final List<RedisCmd> cmds) {
+        propagateAs = cmds;
+    }
+
+    /**
+     * Runs a command under the store lock, which the caller must hold: rejects writes on replicas, evicts keys or
+     * rejects writes above the memory limit, propagates the successful writes to the replicas and records the reads
+     * of tracking clients.
+     *
+     * @param cmd     the command
+     * @param command the implementation of the command
+     * @param client  the client that issued the command, null for commands applied from the replication stream
+     * @return the RESP encoded reply
+     */
+    static byte[] dispatch(final RedisCmd cmd, final Command command, final Client client) {
+        final boolean write = WRITE_COMMANDS.contains(cmd.cmd());
+        if (write && client != null && Replication.isReplica())
+            return encodeError("READONLY You can't write against a read only replica.");
+        if (write && client != null && !Memory.evict() && DENY_OOM_COMMANDS.contains(cmd.cmd()))
+            return encodeError("OOM command not allowed when used memory > 'maxmemory'.");
+        if (write) Replication.beforeWrite(keys(cmd));
+        final var outer = propagateAs;
+        propagateAs = null;
+        final var reply = command.eval(cmd, client);
+        final var propagated = propagateAs;
+        propagateAs = outer;
+        if (write && client != null && reply[0] != '-') {
+            if (propagated == null) Replication.propagate(cmd);
+            else propagated.forEach(Replication::propagate);
+        }
+        if (!write && client != null && client.isTracking() && reply[0] != '-') {
+            final var spec = KEY_SPECS.get(cmd.cmd());
+            if (spec != null) Tracking.keysRead(client, spec.keys(cmd.args()));
+        }
+        return reply;
+    }
+
+    /**
+     * Queues a command of a client in MULTI, or fails the transaction if the command does not exist or if its keys
+     * are served by another node.
+     */
+    private static byte[] queue(final RedisCmd cmd, final Client client) {
+        if (!COMMANDS.containsKey(cmd.cmd()) && !UNLOCKED_COMMANDS.contains(cmd.cmd()))
+            return Transactions.abort(client, encodeError("ERR unknown command '%s'".formatted(cmd.cmd().toLowerCase())));
+        if (Cluster.isEnabled() && !cmd.cmd().equals("ASKING")) {
+            Store.lock.lock();
+            try {
+                final var redirect = route(cmd, client);
+                if (redirect != null) return Transactions.abort(client, redirect);
+            } finally {
+                Store.lock.unlock();
+            }
+        }
+        return Transactions.queue(cmd, client);
+    }
+
+    /**
+     * Executes a single command. Commands run while holding the store lock and are therefore atomic, except for
+     * the ones that walk the keyspace in chunks and the ones that do not touch the keyspace at all. A blocking command
+     * that finds nothing blocks the client and returns an empty reply, its reply is written later, see
+     * {@link Blocking}. The commands of tracking clients that run under the lock queue their reply themselves and
+     * return an empty one as well, the caller must have queued the replies before it, see {@link Tracking}.
+     *
+     * @param cmd    the command to execute
+     * @param client the client that issued the command, null for commands applied from the replication stream
+     * @return the RESP encoded reply
+     */
+    public static byte[] execute(final RedisCmd cmd, final Client client) {
+        // RESP3 connections can carry pushes next to replies, only RESP2 ones are restricted while subscribed
+        if (client != null && client.isSubscribed() && client.protocol() == 2) {
+            switch (cmd.cmd()) {
+                case "SUBSCRIBE", "PSUBSCRIBE", "UNSUBSCRIBE", "PUNSUBSCRIBE", "PING", "QUIT" -> {}
+                default -> {
+                    return encodeError(("ERR Can't execute '%s': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT " +
+                            "are allowed in this context").formatted(cmd.cmd().toLowerCase()));
+                }
+            }
+        }
+        if (client != null && client.multi != null) {
+            switch (cmd.cmd()) {
+                case "MULTI", "EXEC", "DISCARD", "WATCH" -> {}
+                default -> {return queue(cmd, client);}
+            }
+        }
+        // nested calls, from EXEC, are part of the time of their caller
+        final boolean outermost = client != null && !Store.lock.isHeldByCurrentThread();
+        final long unlockedStart = System.nanoTime();
+        final var unlocked = executeUnlocked(cmd, client);
+        if (unlocked != null) {
+            if (outermost) SlowLog.record(cmd, client, System.nanoTime() - unlockedStart);
+            return unlocked;
+        }
+        final boolean tracking = outermost && client.isTracking();
+        Store.lock.lock();
+        // waiting for the lock is not part of the execution time
+        final long start = System.nanoTime();
+        final var caller = Tracking.caller;
+        Tracking.caller = client;
+        try {
+            final var reply = executeLocked(cmd, client);
+            if (!tracking) return reply;
+            // queued before the lock is released, so that the invalidation of a key it read cannot overtake it
+            client.write(reply);
+            return WRITTEN;
+        } finally {
+            if (outermost) SlowLog.record(cmd, client, System.nanoTime() - start);
+            Tracking.caller = caller;
+            Store.lock.unlock();
+        }
+    }
+
+    private static byte[] executeLocked(final RedisCmd cmd, final Client client) {
+        if (client != null && Cluster.isEnabled() && !cmd.cmd().equals("ASKING")) {
+            final var redirect = route(cmd, client);
+            if (redirect != null) return redirect;
+        }
+        final var command = COMMANDS.get(cmd.cmd());
+        if (command == null) return encodeError("ERR unknown command '%s'".formatted(cmd.cmd().toLowerCase()));
+        var reply = dispatch(cmd, command, client);
+        if (client != null && reply == RESPEncoder.RESP_NIL_ARRAY && Blocking.isBlocking(cmd))
+            reply = Blocking.block(cmd, client);
+        Blocking.serveReady();
+        return reply;
+    }
+
+    /**
+     * Executes the commands that do not take the store lock, or take it in chunks.
+     *
+     * @return the reply, null if the command runs under the store lock
+     */
+    private static byte[] executeUnlocked(final RedisCmd cmd, final Client client) {
+        return switch (cmd.cmd()) {
+            case "KEYS" -> evalKEYS(cmd.args());
+            case "SUBSCRIBE" -> evalSUBSCRIBE(cmd.args(), client, false);
+            case "PSUBSCRIBE" -> evalSUBSCRIBE(cmd.args(), client, true);
+            case "UNSUBSCRIBE" -> evalUNSUBSCRIBE(cmd.args(), client, false);
+            case "PUNSUBSCRIBE" -> evalUNSUBSCRIBE(cmd.args(), client, true);
+            case "PUBLISH" -> evalPUBLISH(cmd, client);
+            case "PUBSUB" -> evalPUBSUB(cmd.args());
+            case "SLOWLOG" -> SlowLog.command(cmd.args());
+            case "TRACE" -> Tracing.command(cmd.args());
+            case "MIGRATE" -> evalMIGRATE(cmd.args());
+            // hot keys are served without waiting for the store lock
+            case "GET" -> NearCache.isEnabled() && cmd.args().length == 1 && (client == null || !client.isTracking()) ?
+                    NearCache.get(cmd.args()[0]) : null;
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,548 @@
+package org.dice.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named command pipelines that run atomically on the server, loaded with FUNCTION LOAD and called with FCALL.
+ * <p>
+ * A function is a short program of commands, variables and conditionals, so that a read, a computation and a
+ * dependent write take a single round trip and cannot interleave with other clients, without MULTI/WATCH retries.
+ * It is compiled once when loaded: commands are resolved against the command table, variables to slots and
+ * operands to their final form, so a call only walks the plan. There are no loops, a function always terminates.
+ * <pre>
+ * function transfer
+ * let $from = call GET KEYS[1]
+ * if $from == nil
+ *     error 'ERR no such account'
+ * end
+ * if $from &lt; ARGV[1]
+ *     return 0
+ * end
+ * let $to = call GET KEYS[2]
+ * let $left = $from - ARGV[1]
+ * let $total = $to + ARGV[1]
+ * call SET KEYS[1] $left
+ * call SET KEYS[2] $total
+ * return 1
+ * </pre>
+ * Statements, one per line: {@code let $var = <expr>}, {@code call <command> <operand>...},
+ * {@code if <operand> <op> <operand>} ... [{@code else} ...] {@code end}, {@code return [<expr>]} and
+ * {@code error <operand>}. An expression is a command call, an operand, or two operands joined by one of
+ * {@code + - * / %} on integers or {@code ..} to concatenate. Operands are {@code KEYS[n]}, {@code ARGV[n]}
+ * (1-based), variables, integers, quoted strings, {@code nil} and bare words. Comparisons are
+ * {@code == != < <= > >=}, numeric when both sides are integers. A command replying with an error aborts the
+ * function with that error, the writes done before it stay applied, as in Redis. In a cluster the FCALL is routed by
+ * the keys it declares, so a command of the function may only access keys of the same slot, whether they come from
+ * {@code KEYS}, {@code ARGV} or literals.
+ * <p>
+ * Writes are propagated to replicas as the commands the function ran, not as the FCALL. All methods must be
+ * called with the {@link Store} lock held.
+ */
+public final class Functions {
+
+    private Functions() {}
+
+    /**
+     * Commands a function may not run: the ones acting on the connection, the replication or the cluster, and
+     * functions themselves.
+     */
+    private static final Set<String> DENIED = Set.of("FCALL", "FUNCTION", "PSYNC", "REPLCONF", "REPLICAOF",
+            "SLAVEOF", "MIGRATE", "CLUSTER", "ASKING", "HELLO", "CLIENT", "MULTI", "EXEC", "DISCARD", "WATCH", "UNWATCH");
+
+    private static final Map<String, Function> library = new LinkedHashMap<>();
+
+    private record Function(String name, String code, Stmt[] body, int slots) {}
+
+    private sealed interface Operand {}
+
+    private record Key(int index) implements Operand {}
+
+    private record Arg(int index) implements Operand {}
+
+    private record Var(int slot) implements Operand {}
+
+    private record Literal(Object value) implements Operand {}
+
+    private sealed interface Expr {}
+
+    private record Value(Operand operand) implements Expr {}
+
+    private record Arith(Operand left, String op, Operand right) implements Expr {}
+
+    private record Call(String name, Eval.Command command, Operand[] args) implements Expr {}
+
+    private sealed interface Stmt {}
+
+    private record Let(int slot, Expr expr) implements Stmt {}
+
+    private record Exec(Call call) implements Stmt {}
+
+    private record If(Operand left, String op, Operand right, Stmt[] then, Stmt[] otherwise) implements Stmt {}
+
+    private record Return(Expr expr) implements Stmt {}
+
+    private record Fail(Operand message) implements Stmt {}
+
+    /**
+     * A reply that is neither null, an integer nor a string, kept encoded to be returned as is.
+     */
+    private record Raw(byte[] reply) {}
+
+    /**
+     * Thrown to abort a function, carrying the error reply.
+     */
+    private static final class Abort extends RuntimeException {
+        private final byte[] reply;
+
+        private Abort(final byte[] reply) {
+            super(null, null, false, false);
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * Thrown when the code of a function cannot be compiled.
+     */
+    private static final class CompileException extends Exception {
+        private CompileException(final int line, final String message) {
+            super("line %d: %s".formatted(line, message), null, false, false);
+        }
+    }
+
+    /**
+     * FUNCTION LOAD [REPLACE] code | DELETE name | FLUSH | LIST [WITHCODE]
+     */
+    static byte[] command(final String[] args, final Client client) {
+        if (args.length == 0) return RESPEncoder.encodeError("ERR wrong number of arguments for 'function' command");
+        final var sub = args[0].toUpperCase();
+        if (!sub.equals("LIST") && client != null && Replication.isReplica())
+            return RESPEncoder.encodeError("READONLY You can't write against a read only replica.");
+        final byte[] reply = switch (sub) {
+            case "LOAD" -> {
+                final boolean replace = args.length == 3 && args[1].equalsIgnoreCase("REPLACE");
+                if (args.length != (replace ? 3 : 2)) yield RESPEncoder.encodeError("ERR syntax error");
+                yield load(args[args.length - 1], replace);
+            }
+            case "DELETE" -> {
+                if (args.length != 2) yield RESPEncoder.encodeError("ERR wrong number of arguments for 'function|delete' command");
+                yield library.remove(args[1]) == null ? RESPEncoder.encodeError("ERR Library not found") : RESPEncoder.RESP_OK;
+            }
+            case "FLUSH" -> {
+                library.clear();
+                yield RESPEncoder.RESP_OK;
+            }
+            case "LIST" -> {
+                final boolean withCode = args.length == 2 && args[1].equalsIgnoreCase("WITHCODE");
+                final var out = new ArrayList<byte[]>();
+                for (final var fn : library.values()) {
+                    final var fields = new ArrayList<byte[]>(List.of(
+                            RESPEncoder.encodeBulkString("name"), RESPEncoder.encodeBulkString(fn.name())));
+                    if (withCode) {
+                        fields.add(RESPEncoder.encodeBulkString("code"));
+                        fields.add(RESPEncoder.encodeBulkString(fn.code()));
+                    }
+                    out.add(RESPEncoder.encodeMap(fields, client != null && client.protocol() == 3));
+                }
+                yield RESPEncoder.encodeArray(out);
+            }
+            default -> RESPEncoder.encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+        if (!sub.equals("LIST") && client != null && reply[0] != '-')
+            Replication.propagate(new RedisCmd("FUNCTION", args));
+        return reply;
+    }
+
+    private static byte[] load(final String code, final boolean replace) {
+        final Function fn;
+        try {fn = compile(code);}
+        catch (final CompileException e) {return RESPEncoder.encodeError("ERR Error compiling function: " + e.getMessage());}
+        if (!replace && library.containsKey(fn.name()))
+            return RESPEncoder.encodeError("ERR Library '%s' already exists".formatted(fn.name()));
+        library.put(fn.name(), fn);
+        return RESPEncoder.encodeBulkString(fn.name());
+    }
+
+    /**
+     * Appends the commands that recreate the loaded functions, for a full resync.
+     */
+    static void writeSnapshot(final ByteArrayOutputStream out) {
+        Snapshot.writeCommand(out, "FUNCTION", "FLUSH".getBytes(StandardCharsets.US_ASCII));
+        for (final var fn : library.values()) {
+            Snapshot.writeCommand(out, "FUNCTION", "LOAD".getBytes(StandardCharsets.US_ASCII),
+                    fn.code().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @param args the arguments of an FCALL
+     * @return the keys the call declares, for cluster routing
+     */
+    static List<String> keys(final String[] args) {
+        if (args.length < 2) return List.of();
+        final int numKeys;
+        try {numKeys = Integer.parseInt(args[1]);}
+        catch (final NumberFormatException e) {return List.of();}
+        if (numKeys < 0 || numKeys > args.length - 2) return List.of();
+        return List.of(args).subList(2, 2 + numKeys);
+    }
+
+    /**
+     * FCALL name numkeys [key ...] [arg ...]
+     */
+    static byte[] fcall(final String[] args, final Client client) {
+        if (args.length < 2) return RESPEncoder.encodeError("ERR wrong number of arguments for 'fcall' command");
+        final var fn = library.get(args[0]);
+        if (fn == null) return RESPEncoder.encodeError("ERR Function not found");
+        final int numKeys;
+        try {numKeys = Integer.parseInt(args[1]);}
+        catch (final NumberFormatException e) {return RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+        if (numKeys < 0) return RESPEncoder.encodeError("ERR Number of keys can't be negative");
+        if (numKeys > args.length - 2) return RESPEncoder.encodeError("ERR Number of keys can't be greater than number of args");
+        final var frame = new Frame(
+                Arrays.copyOfRange(args, 2, 2 + numKeys),
+                Arrays.copyOfRange(args, 2 + numKeys, args.length),
+                new Object[fn.slots()], client);
+        try {
+            final var result = frame.run(fn.body());
+            return result == NO_RETURN ? RESPEncoder.RESP_NIL : encode(result);
+        } catch (final Abort e) {
+            return e.reply;
+        }
+    }
+
+    private static final Object NO_RETURN = new Object();
+
+    /**
+     * The state of a running call.
+     */
+    private record Frame(String[] keys, String[] argv, Object[] vars, Client client) {
+
+        /**
+         * @return the returned value, {@link #NO_RETURN} if the statements ran to the end
+         */
+        private Object run(final Stmt[] body) {
+            for (final var stmt : body) {
+                switch (stmt) {
+                    case Let let -> vars[let.slot()] = eval(let.expr());
+                    case Exec exec -> call(exec.call());
+                    case If cond -> {
+                        final var result = run(test(cond) ? cond.then() : cond.otherwise());
+                        if (result != NO_RETURN) return result;
+                    }
+                    case Return ret -> {return ret.expr() == null ? null : eval(ret.expr());}
+                    case Fail fail -> {
+                        final var message = text(value(fail.message()));
+                        // keep an error code given by the function, like "BUSY ...", default to ERR otherwise
+                        final var code = message.split(" ", 2)[0];
+                        final boolean hasCode = message.contains(" ") && code.equals(code.toUpperCase());
+                        throw new Abort(RESPEncoder.encodeError(hasCode ? message : "ERR " + message));
+                    }
+                }
+            }
+            return NO_RETURN;
+        }
+
+        private Object value(final Operand operand) {
+            return switch (operand) {
+                case Key key -> {
+                    if (key.index() >= keys.length) throw new Abort(RESPEncoder.encodeError("ERR KEYS[%d] is out of range".formatted(key.index() + 1)));
+                    yield keys[key.index()];
+                }
+                case Arg arg -> {
+                    if (arg.index() >= argv.length) throw new Abort(RESPEncoder.encodeError("ERR ARGV[%d] is out of range".formatted(arg.index() + 1)));
+                    yield argv[arg.index()];
+                }
+                case Var var -> vars[var.slot()];
+                case Literal literal -> literal.value();
+            };
+        }
+
+        private Object eval(final Expr expr) {
+            return switch (expr) {
+                case Value v -> value(v.operand());
+                case Call call -> call(call);
+                case Arith arith -> {
+                    final var left = value(arith.left());
+                    final var right = value(arith.right());
+                    if (arith.op().equals("..")) yield text(left) + text(right);
+                    final long a = integer(left), b = integer(right);
+                    try {
+                        yield switch (arith.op()) {
+                            case "+" -> Math.addExact(a, b);
+                            case "-" -> Math.subtractExact(a, b);
+                            case "*" -> Math.multiplyExact(a, b);
+                            case "/" -> Math.divideExact(a, b);
+                            default -> a % b;
+                        };
+                    } catch (final ArithmeticException e) {
+                        throw new Abort(RESPEncoder.encodeError(b == 0 ? "ERR division by zero" : "ERR integer overflow"));
+                    }
+                }
+            };
+        }
+
+        private Object call(final Call call) {
+            final var args = new String[call.args().length];
+            for (int i = 0; i < args.length; i++) {
+                final var v = value(call.args()[i]);
+                if (v == null || v instanceof Raw) throw new Abort(RESPEncoder.encodeError("ERR Command arguments must be strings or integers"));
+                args[i] = text(v);
+            }
+            final var cmd = new RedisCmd(call.name(), args);
+            if (Cluster.isEnabled()) {
+                for (final var key : Eval.keys(cmd)) {
+                    if (keys.length == 0 || Cluster.keySlot(key) != Cluster.keySlot(keys[0]))
+                        throw new Abort(RESPEncoder.encodeError("ERR Function attempted to access key '%s' outside the slot of its declared keys".formatted(key)));
+                }
+            }
+            final var reply = Eval.dispatch(cmd, call.command(), client);
+            return decode(reply);
+        }
+
+        private boolean test(final If cond) {
+            final var left = value(cond.left());
+            final var right = value(cond.right());
+            final int cmp;
+            if (left == null || right == null) {
+                if (!cond.op().equals("==") && !cond.op().equals("!=")) return false;
+                cmp = left == right ? 0 : 1;
+            } else {
+                final var a = asLong(left);
+                final var b = asLong(right);
+                cmp = a != null && b != null ? Long.compare(a, b) : text(left).compareTo(text(right));
+            }
+            return switch (cond.op()) {
+                case "==" -> cmp == 0;
+                case "!=" -> cmp != 0;
+                case "<" -> cmp < 0;
+                case "<=" -> cmp <= 0;
+                case ">" -> cmp > 0;
+                default -> cmp >= 0;
+            };
+        }
+    }
+
+    private static String text(final Object v) {
+        if (v instanceof Raw) throw new Abort(RESPEncoder.encodeError("ERR Cannot use a multi bulk reply as a string"));
+        return v == null ? "" : v.toString();
+    }
+
+    private static Long asLong(final Object v) {
+        if (v instanceof Long l) return l;
+        if (!(v instanceof String s) || s.isEmpty() || s.length() > 20) return null;
+        try {return Long.parseLong(s);}
+        catch (final NumberFormatException e) {return null;}
+    }
+
+    private static long integer(final Object v) {
+        final var l = asLong(v);
+        if (l == null) throw new Abort(RESPEncoder.encodeError("ERR value is not an integer or out of range"));
+        return l;
+    }
+
+    private static Object decode(final byte[] reply) {
+        final int crlf = indexOfCrlf(reply);
+        final var line = new String(reply, 1, crlf - 1, StandardCharsets.UTF_8);
+        return switch (reply[0]) {
+            case '-' -> throw new Abort(reply);
+            case '+' -> line;
+            case ':' -> Long.parseLong(line);
+            case '_' -> null;
+            case '$' -> {
+                final int len = Integer.parseInt(line);
+                yield len < 0 ? null : new String(reply, crlf + 2, len, StandardCharsets.UTF_8);
+            }
+            default -> new Raw(reply);
+        };
+    }
+
+    private static int indexOfCrlf(final byte[] reply) {
+        for (int i = 1; i < reply.length; i++) if (reply[i] == '\r') return i;
+        return reply.length;
+    }
+
+    private static byte[] encode(final Object v) {
+        return switch (v) {
+            case null -> RESPEncoder.RESP_NIL;
+            case Long l -> RESPEncoder.encodeLong(l);
+            case Raw raw -> raw.reply();
+            default -> RESPEncoder.encodeBulkString(v.toString());
+        };
+    }
+
+    private static final class Compiler {
+        private final List<List<String>> lines = new ArrayList<>();
+        private final List<Integer> lineNumbers = new ArrayList<>();
+        private final Map<String, Integer> slots = new HashMap<>();
+        private int next;
+
+        private Compiler(final String code) throws CompileException {
+            final var source = code.split("\n", -1);
+            for (int i = 0; i < source.length; i++) {
+                final var tokens = tokenize(source[i], i + 1);
+                if (tokens.isEmpty()) continue;
+                lines.add(tokens);
+                lineNumbers.add(i + 1);
+            }
+        }
+
+        private Function compile(final String code) throws CompileException {
+            if (lines.isEmpty()) throw new CompileException(1, "empty function");
+            final var header = lines.getFirst();
+            if (header.size() != 2 || !header.getFirst().equalsIgnoreCase("function") || !header.get(1).matches("[A-Za-z0-9_]+"))
+                throw new CompileException(lineNumbers.getFirst(), "expected 'function <name>'");
+            next = 1;
+            final var body = block(false);
+            if (next < lines.size())
+                throw new CompileException(lineNumbers.get(next), "unexpected '%s'".formatted(lines.get(next).getFirst()));
+            return new Function(header.get(1), code, body, slots.size());
+        }
+
+        /**
+         * Compiles statements up to the end of the code, or up to the {@code else} or {@code end} closing the
+         * block, which is left for the caller.
+         */
+        private Stmt[] block(final boolean nested) throws CompileException {
+            final var out = new ArrayList<Stmt>();
+            while (next < lines.size()) {
+                final var tokens = lines.get(next);
+                final int line = lineNumbers.get(next);
+                final var keyword = tokens.getFirst().toLowerCase();
+                if (keyword.equals("else") || keyword.equals("end")) {
+                    if (!nested) throw new CompileException(line, "'%s' without 'if'".formatted(keyword));
+                    break;
+                }
+                next++;
+                out.add(switch (keyword) {
+                    case "let" -> {
+                        if (tokens.size() < 4 || !tokens.get(1).startsWith("$") || !tokens.get(2).equals("="))
+                            throw new CompileException(line, "expected 'let $var = <expr>'");
+                        final var expr = expr(tokens.subList(3, tokens.size()), line);
+                        yield new Let(slots.computeIfAbsent(tokens.get(1), v -> slots.size()), expr);
+                    }
+                    case "call" -> new Exec(call(tokens.subList(1, tokens.size()), line));
+                    case "return" -> new Return(tokens.size() == 1 ? null : expr(tokens.subList(1, tokens.size()), line));
+                    case "error" -> {
+                        if (tokens.size() != 2) throw new CompileException(line, "expected 'error <operand>'");
+                        yield new Fail(operand(tokens.get(1), line));
+                    }
+                    case "if" -> conditional(tokens, line);
+                    default -> throw new CompileException(line, "unknown statement '%s'".formatted(tokens.getFirst()));
+                });
+            }
+            return out.toArray(new Stmt[0]);
+        }
+
+        private If conditional(final List<String> tokens, final int line) throws CompileException {
+            final int size = tokens.getLast().equalsIgnoreCase("then") ? tokens.size() - 1 : tokens.size();
+            if (size != 4) throw new CompileException(line, "expected 'if <operand> <op> <operand>'");
+            final var op = tokens.get(2);
+            switch (op) {
+                case "==", "!=", "<", "<=", ">", ">=" -> {}
+                default -> throw new CompileException(line, "unknown comparison '%s'".formatted(op));
+            }
+            final var left = operand(tokens.get(1), line);
+            final var right = operand(tokens.get(3), line);
+            final var then = block(true);
+            var otherwise = new Stmt[0];
+            if (next < lines.size() && lines.get(next).getFirst().equalsIgnoreCase("else")) {
+                next++;
+                otherwise = block(true);
+            }
+            if (next >= lines.size() || !lines.get(next).getFirst().equalsIgnoreCase("end"))
+                throw new CompileException(line, "'if' without 'end'");
+            next++;
+            return new If(left, op, right, then, otherwise);
+        }
+
+        private Expr expr(final List<String> tokens, final int line) throws CompileException {
+            if (tokens.getFirst().equalsIgnoreCase("call")) return call(tokens.subList(1, tokens.size()), line);
+            if (tokens.size() == 1) return new Value(operand(tokens.getFirst(), line));
+            if (tokens.size() == 3) {
+                final var op = tokens.get(1);
+                switch (op) {
+                    case "+", "-", "*", "/", "%", ".." -> {}
+                    default -> throw new CompileException(line, "unknown operator '%s'".formatted(op));
+                }
+                return new Arith(operand(tokens.getFirst(), line), op, operand(tokens.get(2), line));
+            }
+            throw new CompileException(line, "expected 'call <command> ...', an operand or '<operand> <op> <operand>'");
+        }
+
+        private Call call(final List<String> tokens, final int line) throws CompileException {
+            if (tokens.isEmpty()) throw new CompileException(line, "missing command");
+            final var name = tokens.getFirst().toUpperCase();
+            final var command = Eval.lookup(name);
+            if (command == null || DENIED.contains(name))
+                throw new CompileException(line, "command '%s' is not allowed in functions".formatted(name.toLowerCase()));
+            final var args = new Operand[tokens.size() - 1];
+            for (int i = 0; i < args.length; i++) args[i] = operand(tokens.get(i + 1), line);
+            return new Call(name, command, args);
+        }
+
+        private Operand operand(final String token, final int line) throws CompileException {
+            if (token.startsWith("\u0000")) return new Literal(token.substring(1));
+            if (token.startsWith("$")) {
+                final var slot = slots.get(token);
+                if (slot == null) throw new CompileException(line, "variable %s used before being assigned".formatted(token));
+                return new Var(slot);
+            }
+            final var upper = token.toUpperCase();
+            if ((upper.startsWith("KEYS[") || upper.startsWith("ARGV[")) && token.endsWith("]")) {
+                final int index;
+                try {index = Integer.parseInt(token.substring(5, token.length() - 1)) - 1;}
+                catch (final NumberFormatException e) {throw new CompileException(line, "invalid index in " + token);}
+                if (index < 0) throw new CompileException(line, "indexes start at 1 in " + token);
+                return upper.startsWith("KEYS") ? new Key(index) : new Arg(index);
+            }
+            if (token.equalsIgnoreCase("nil")) return new Literal(null);
+            final var number = asLong(token);
+            return new Literal(number != null ? number : token);
+        }
+
+        /**
+         * Splits a line into tokens. Quoted strings become a single token marked with a leading NUL so that they
+         * are never taken for a keyword, a variable or a number.
+         */
+        private static List<String> tokenize(final String line, final int number) throws CompileException {
+            final var tokens = new ArrayList<String>();
+            int i = 0;
+            while (i < line.length()) {
+                final char c = line.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '#' || line.startsWith("--", i)) {
+                    break;
+                } else if (c == '\'' || c == '"') {
+                    final var token = new StringBuilder("\u0000");
+                    int j = i + 1;
+                    while (j < line.length() && line.charAt(j) != c) {
+                        if (line.charAt(j) == '\\' && j + 1 < line.length()) j++;
+                        token.append(line.charAt(j++));
+                    }
+                    if (j == line.length()) throw new CompileException(number, "unterminated string");
+                    tokens.add(token.toString());
+                    i = j + 1;
+                } else {
+                    int j = i;
+                    while (j < line.length() && !Character.isWhitespace(line.charAt(j))) j++;
+                    tokens.add(line.substring(i, j));
+                    i = j;
+                }
+            }
+            return tokens;
+        }
+    }
+
+    private static Function compile(final String code) throws CompileException {
+        return new Compiler(code).compile(code);
+    }
+}
@@ -0,0 +1,105 @@
+package org.dice.core;
+
+/**
+ * Glob-style pattern matching as used by KEYS, SCAN MATCH and PSUBSCRIBE.
+ * <p>
+ * Supports {@code *}, {@code ?}, {@code [abc]}, {@code [^abc]}, {@code [a-z]} and {@code \} escapes. Matching is
+ * done in place over the characters of the key with a single backtracking point for the last {@code *}, so it
+ * neither allocates nor recurses regardless of the pattern.
+ */
+public final class Glob {
+
+    private Glob() {}
+
+    /**
+     * @param pattern the glob pattern
+     * @return true if the pattern matches every string, allowing callers to skip matching altogether
+     */
+    public static boolean matchesAll(final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) if (pattern.charAt(i) != '*') return false;
+        return true;
+    }
+
+    /**
+     * @param pattern the glob pattern
+     * @return true if the pattern has no special characters and only ever matches itself
+     */
+    public static boolean isLiteral(final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            switch (pattern.charAt(i)) {
+                case '*', '?', '[', '\\' -> {return false;}
+                default -> {}
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches the whole string against the pattern.
+     *
+     * @param pattern the glob pattern
+     * @param str     the string to match
+     * @return true if the pattern matches the string
+     */
+    public static boolean match(final String pattern, final String str) {
+        int p = 0, s = 0, starP = -1, starS = 0;
+        final int plen = pattern.length(), slen = str.length();
+        while (s < slen) {
+            if (p < plen) {
+                if (pattern.charAt(p) == '*') {
+                    starP = p++;
+                    starS = s;
+                    continue;
+                }
+                final int next = matchOne(pattern, p, str.charAt(s));
+                if (next >= 0) {
+                    p = next;
+                    s++;
+                    continue;
+                }
+            }
+            if (starP < 0) return false;
+            // let the last star swallow one more character and retry
+            p = starP + 1;
+            s = ++starS;
+        }
+        while (p < plen && pattern.charAt(p) == '*') p++;
+        return p == plen;
+    }
+
+    /**
+     * Matches a single character against the pattern token starting at {@code p}.
+     *
+     * @return the index after the token if it matches, -1 otherwise
+     */
+    private static int matchOne(final String pattern, int p, final char c) {
+        final int plen = pattern.length();
+        return switch (pattern.charAt(p)) {
+            case '?' -> p + 1;
+            case '\\' -> p + 1 < plen ? (pattern.charAt(p + 1) == c ? p + 2 : -1) : (c == '\\' ? p + 1 : -1);
+            case '[' -> {
+                p++;
+                final boolean not = p < plen && pattern.charAt(p) == '^';
+                if (not) p++;
+                boolean matched = false;
+                while (p < plen && pattern.charAt(p) != ']') {
+                    if (pattern.charAt(p) == '\\' && p + 1 < plen) {
+                        if (pattern.charAt(p + 1) == c) matched = true;
+                        p += 2;
+                    } else if (p + 2 < plen && pattern.charAt(p + 1) == '-' && pattern.charAt(p + 2) != ']') {
+                        final char lo = (char) Math.min(pattern.charAt(p), pattern.charAt(p + 2));
+                        final char hi = (char) Math.max(pattern.charAt(p), pattern.charAt(p + 2));
+                        if (c >= lo && c <= hi) matched = true;
+                        p += 3;
+                    } else {
+                        if (pattern.charAt(p) == c) matched = true;
+                        p++;
+                    }
+                }
+                // an unterminated class runs to the end of the pattern
+                yield matched != not ? Math.min(p + 1, plen) : -1;
+            }
+            default -> pattern.charAt(p) == c ? p + 1 : -1;
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detection of the most frequently accessed keys.
+ * <p>
+ * Access frequencies are estimated by a {@link CountMinSketch} of fixed size, so tracking costs no memory per key.
+ * Next to it the {@link Config#HOTKEYS_TOP_K} keys with the highest estimates are kept: a key enters that set
+ * when its estimate goes above the lowest one in it, which then leaves. The counters are halved every
+ * {@link Config#HOTKEYS_DECAY_SECONDS} seconds so that keys which cooled down are eventually overtaken.
+ * <p>
+ * Apart from {@link #recordUnlocked(String)} every method must be called with the {@link Store} lock held.
+ */
+public final class HotKeys {
+
+    private HotKeys() {}
+
+    private static final CountMinSketch sketch = new CountMinSketch(Config.HOTKEYS_SKETCH_DEPTH.get(), Config.HOTKEYS_SKETCH_WIDTH.get());
+
+    private static final String[] topKeys = new String[Config.HOTKEYS_TOP_K.get()];
+    private static final int[] topCounts = new int[Config.HOTKEYS_TOP_K.get()];
+    private static final HashMap<String, Integer> positions = new HashMap<>();
+    private static int topSize;
+    private static long lastDecay = System.nanoTime();
+
+    /**
+     * Counts an access of the key and lets it into the top keys if it became one of the hottest.
+     */
+    static void record(final String key) {
+        final int count = sketch.increment(key);
+        final var pos = positions.get(key);
+        if (pos != null) {
+            topCounts[pos] = count;
+            return;
+        }
+        if (topSize < topKeys.length) {
+            insert(topSize++, key, count);
+            return;
+        }
+        int min = 0;
+        for (int i = 1; i < topSize; i++) if (topCounts[i] < topCounts[min]) min = i;
+        if (count <= topCounts[min]) return;
+        positions.remove(topKeys[min]);
+        NearCache.invalidate(topKeys[min]);
+        insert(min, key, count);
+    }
+
+    private static void insert(final int pos, final String key, final int count) {
+        topKeys[pos] = key;
+        topCounts[pos] = count;
+        positions.put(key, pos);
+    }
+
+    /**
+     * Counts an access of the key without updating the top keys, for readers that do not hold the store lock. The
+     * key is expected to be among the top keys already, its count there is refreshed on the next decay or
+     * listing.
+     */
+    static void recordUnlocked(final String key) {
+        sketch.increment(key);
+    }
+
+    /**
+     * @return true if the key is currently among the top keys
+     */
+    static boolean isHot(final String key) {
+        return positions.containsKey(key);
+    }
+
+    /**
+     * @param count the maximal number of keys to return
+     * @return the hottest keys and their estimated access counts, hottest first
+     */
+    static List<Map.Entry<String, Integer>> top(final int count) {
+        final var out = new ArrayList<Map.Entry<String, Integer>>(topSize);
+        for (int i = 0; i < topSize; i++) {
+            topCounts[i] = sketch.estimate(topKeys[i]);
+            out.add(Map.entry(topKeys[i], topCounts[i]));
+        }
+        out.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        return out.size() > count ? out.subList(0, count) : out;
+    }
+
+    /**
+     * Decays the counters once per period, called from the server cron.
+     */
+    static void cron() {
+        final long now = System.nanoTime();
+        if (now - lastDecay < TimeUnit.SECONDS.toNanos(Config.HOTKEYS_DECAY_SECONDS.get())) return;
+        lastDecay = now;
+        sketch.decay();
+        // also picks up the accesses counted without the lock
+        for (int i = 0; i < topSize; i++) topCounts[i] = sketch.estimate(topKeys[i]);
+    }
+
+    /**
+     * Forgets the top keys, after the keyspace was flushed.
+     */
+    static void clear() {
+        for (int i = 0; i < topSize; i++) topKeys[i] = null;
+        positions.clear();
+        topSize = 0;
+    }
+}
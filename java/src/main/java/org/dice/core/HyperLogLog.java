@@ -0,0 +1,533 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.dice.core.RESPEncoder.RESP_OK;
+import static org.dice.core.RESPEncoder.encodeError;
+import static org.dice.core.RESPEncoder.encodeLong;
+
+/**
+ * HyperLogLog cardinality estimation, in the manner of the Redis PF commands and with their representation, so
+ * that the values can be read with GET, restored with SET and exchanged with Redis.
+ * <p>
+ * A HyperLogLog is a string value: a 16 byte header followed by 16384 registers, each holding the longest run of
+ * trailing zeros plus one seen among the 64-bit hashes of the elements that map to it. The header holds the magic
+ * {@code HYLL}, the encoding and the last estimate in little endian, whose most significant bit is set once the
+ * registers changed, so that PFCOUNT only recomputes the estimate after updates.
+ * <ul>
+ * <li>The dense encoding packs the registers in 6 bits each, 12 KB in total.</li>
+ * <li>The sparse encoding run-length encodes them with three opcodes: {@code 00xxxxxx} for 1 to 64 zero registers,
+ * {@code 01xxxxxx yyyyyyyy} for 1 to 16384 zero registers and {@code 1vvvvvxx} for 1 to 4 registers of value 1 to
+ * 32. A new HyperLogLog takes 18 bytes, and it is converted to the dense encoding once it would exceed
+ * {@link Config#HLL_SPARSE_MAX_BYTES} or needs a value above 32.</li>
+ * </ul>
+ * Counting or merging several HyperLogLogs unpacks each one into a register per byte and keeps the maxima with
+ * {@link BitOps#max}. All commands run under the {@link Store} lock.
+ */
+final class HyperLogLog {
+
+    private HyperLogLog() {}
+
+    private static final int P = 14;
+    private static final int REGISTERS = 1 << P;
+    /**
+     * The bits of the hash left for the runs of zeros once the register index is taken.
+     */
+    private static final int Q = 64 - P;
+    private static final int HEADER = 16;
+    private static final int DENSE_SIZE = HEADER + REGISTERS * 6 / 8;
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+    private static final byte[] MAGIC = "HYLL".getBytes(StandardCharsets.US_ASCII);
+    private static final int CARDINALITY = 8;
+
+    private static final int ZERO_MAX_LEN = 64;
+    private static final int VAL_MAX_VALUE = 32;
+    private static final int VAL_MAX_LEN = 4;
+
+    private static final double ALPHA_INF = 0.721347520444481703680;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Returned instead of a HyperLogLog whose sparse representation does not add up to 16384 registers.
+     */
+    private static final byte[] CORRUPTED = new byte[0];
+
+    private static final byte[] WRONGTYPE = encodeError("WRONGTYPE Key is not a valid HyperLogLog string value.");
+    private static final byte[] INVALIDOBJ = encodeError("INVALIDOBJ Corrupted HLL object detected");
+
+    /**
+     * MurmurHash64A with the seed of Redis, so that the same elements land in the same registers.
+     */
+    static long hash(final byte[] key) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = 0xadc83b19L ^ (key.length * m);
+        final int end = key.length & ~7;
+        for (int i = 0; i < end; i += Long.BYTES) {
+            long k = (long) LONGS.get(key, i);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        if (end < key.length) {
+            for (int i = key.length - 1; i >= end; i--) h ^= (key[i] & 0xFFL) << (8 * (i - end));
+            h *= m;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    /**
+     * @return the bytes of the value if it is a HyperLogLog, null otherwise
+     */
+    private static byte[] bytesOf(final Obj obj) {
+        if (obj.type != Obj.TYPE_STRING || !(obj.value instanceof byte[])) return null;
+        final var h = (byte[]) obj.value;
+        if (h.length < HEADER || !Arrays.equals(h, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) return null;
+        if (h[4] == DENSE) return h.length == DENSE_SIZE ? h : null;
+        return h[4] == SPARSE ? h : null;
+    }
+
+    private static boolean isDense(final byte[] h) {
+        return h[4] == DENSE;
+    }
+
+    private static byte[] newSparse() {
+        final var h = new byte[HEADER + 2];
+        System.arraycopy(MAGIC, 0, h, 0, MAGIC.length);
+        h[4] = SPARSE;
+        // a single XZERO for all the registers, the estimate 0 is valid
+        h[HEADER] = (byte) (0x40 | (REGISTERS - 1) >>> 8);
+        h[HEADER + 1] = (byte) (REGISTERS - 1);
+        return h;
+    }
+
+    private static void invalidate(final byte[] h) {
+        h[CARDINALITY + 7] |= (byte) 0x80;
+    }
+
+    // dense registers, 6 bits each from the least significant bits of each byte on
+
+    private static int denseGet(final byte[] h, final int register) {
+        final int bit = register * 6, i = HEADER + (bit >>> 3), shift = bit & 7;
+        int v = (h[i] & 0xFF) >>> shift;
+        if (shift > 2) v |= (h[i + 1] & 0xFF) << (8 - shift);
+        return v & 63;
+    }
+
+    private static void denseSet(final byte[] h, final int register, final int value) {
+        final int bit = register * 6, i = HEADER + (bit >>> 3), shift = bit & 7;
+        h[i] = (byte) (h[i] & ~(63 << shift) | value << shift);
+        if (shift > 2) h[i + 1] = (byte) (h[i + 1] & ~(63 >>> (8 - shift)) | value >>> (8 - shift));
+    }
+
+    /**
+     * Unpacks the dense registers into {@code registers}, 3 bytes hold 4 registers.
+     */
+    private static void unpack(final byte[] h, final byte[] registers) {
+        for (int r = 0, i = HEADER; r < REGISTERS; r += 4, i += 3) {
+            final int b0 = h[i] & 0xFF, b1 = h[i + 1] & 0xFF, b2 = h[i + 2] & 0xFF;
+            registers[r] = (byte) (b0 & 63);
+            registers[r + 1] = (byte) ((b0 >>> 6 | b1 << 2) & 63);
+            registers[r + 2] = (byte) ((b1 >>> 4 | b2 << 4) & 63);
+            registers[r + 3] = (byte) (b2 >>> 2);
+        }
+    }
+
+    private static byte[] pack(final byte[] registers) {
+        final var h = new byte[DENSE_SIZE];
+        System.arraycopy(MAGIC, 0, h, 0, MAGIC.length);
+        h[4] = DENSE;
+        for (int r = 0, i = HEADER; r < REGISTERS; r += 4, i += 3) {
+            h[i] = (byte) (registers[r] | registers[r + 1] << 6);
+            h[i + 1] = (byte) (registers[r + 1] >>> 2 | registers[r + 2] << 4);
+            h[i + 2] = (byte) (registers[r + 2] >>> 4 | registers[r + 3] << 2);
+        }
+        invalidate(h);
+        return h;
+    }
+
+    // sparse opcodes
+
+    private static boolean isZero(final int op) {
+        return (op & 0xC0) == 0;
+    }
+
+    private static boolean isXZero(final int op) {
+        return (op & 0xC0) == 0x40;
+    }
+
+    private static int valValue(final int op) {
+        return (op >>> 2 & 31) + 1;
+    }
+
+    private static int valLength(final int op) {
+        return (op & 3) + 1;
+    }
+
+    /**
+     * Appends the opcode for a run of zero registers.
+     *
+     * @return the position after the opcode
+     */
+    private static int zeros(final byte[] out, int p, final int length) {
+        if (length == 0) return p;
+        if (length <= ZERO_MAX_LEN) {
+            out[p++] = (byte) (length - 1);
+        } else {
+            out[p++] = (byte) (0x40 | (length - 1) >>> 8);
+            out[p++] = (byte) (length - 1);
+        }
+        return p;
+    }
+
+    /**
+     * Appends the opcodes for a run of registers with the same non-zero value.
+     *
+     * @return the position after the opcodes
+     */
+    private static int vals(final byte[] out, int p, final int value, int length) {
+        for (; length > 0; length -= VAL_MAX_LEN) {
+            out[p++] = (byte) (0x80 | (value - 1) << 2 | Math.min(length, VAL_MAX_LEN) - 1);
+        }
+        return p;
+    }
+
+    /**
+     * Keeps the maximum of each sparse register and the one in {@code registers}.
+     *
+     * @return false if the opcodes do not cover exactly the 16384 registers
+     */
+    private static boolean sparseMax(final byte[] h, final byte[] registers) {
+        int r = 0;
+        for (int p = HEADER; p < h.length; ) {
+            final int op = h[p] & 0xFF;
+            if (isZero(op)) {
+                r += (op & 63) + 1;
+                p++;
+            } else if (isXZero(op)) {
+                if (p + 1 == h.length) return false;
+                r += ((op & 63) << 8 | h[p + 1] & 0xFF) + 1;
+                p += 2;
+            } else {
+                final int value = valValue(op), end = r + valLength(op);
+                if (end > REGISTERS) return false;
+                for (; r < end; r++) if (registers[r] < value) registers[r] = (byte) value;
+                p++;
+            }
+            if (r > REGISTERS) return false;
+        }
+        return r == REGISTERS;
+    }
+
+    /**
+     * Converts a sparse HyperLogLog to the dense encoding.
+     *
+     * @return the dense HyperLogLog, {@link #CORRUPTED} if the sparse one is
+     */
+    private static byte[] toDense(final byte[] h) {
+        final var registers = new byte[REGISTERS];
+        return sparseMax(h, registers) ? pack(registers) : CORRUPTED;
+    }
+
+    /**
+     * Encodes registers in the sparse encoding.
+     *
+     * @return the sparse HyperLogLog, null if it would exceed {@link Config#HLL_SPARSE_MAX_BYTES} or a register
+     * cannot be encoded
+     */
+    private static byte[] toSparse(final byte[] registers) {
+        final long max = Config.HLL_SPARSE_MAX_BYTES.get();
+        // at worst a VAL per register
+        final var h = new byte[HEADER + REGISTERS];
+        System.arraycopy(MAGIC, 0, h, 0, MAGIC.length);
+        h[4] = SPARSE;
+        int p = HEADER;
+        for (int r = 0; r < REGISTERS; ) {
+            final int value = registers[r];
+            if (value > VAL_MAX_VALUE) return null;
+            int end = r + 1;
+            while (end < REGISTERS && registers[end] == value) end++;
+            p = value == 0 ? zeros(h, p, end - r) : vals(h, p, value, end - r);
+            if (p > max) return null;
+            r = end;
+        }
+        invalidate(h);
+        return Arrays.copyOf(h, p);
+    }
+
+    /**
+     * Raises a register of a sparse HyperLogLog, converting it to the dense encoding when needed.
+     *
+     * @return the updated HyperLogLog, null if the register was already at least the value, {@link #CORRUPTED} if
+     * the opcodes do not cover the register
+     */
+    private static byte[] sparseSet(final byte[] h, final int register, final int value) {
+        // find the opcode covering the register
+        int p = HEADER, first = 0, length = 0, size = 0, op = 0;
+        while (p < h.length) {
+            op = h[p] & 0xFF;
+            if (isZero(op)) {
+                length = (op & 63) + 1;
+                size = 1;
+            } else if (isXZero(op)) {
+                if (p + 1 == h.length) return CORRUPTED;
+                length = ((op & 63) << 8 | h[p + 1] & 0xFF) + 1;
+                size = 2;
+            } else {
+                length = valLength(op);
+                size = 1;
+            }
+            if (register < first + length) break;
+            first += length;
+            p += size;
+        }
+        if (p >= h.length) return CORRUPTED;
+        final boolean zero = isZero(op) || isXZero(op);
+        if (!zero && valValue(op) >= value) return null;
+        if (value > VAL_MAX_VALUE) return denseSetAll(h, register, value);
+
+        // replace the opcode with up to 3 runs: before the register, the register, after it
+        final var runs = new byte[5];
+        final int before = register - first, after = first + length - register - 1;
+        int n = zero ? zeros(runs, 0, before) : vals(runs, 0, valValue(op), before);
+        n = vals(runs, n, value, 1);
+        n = zero ? zeros(runs, n, after) : vals(runs, n, valValue(op), after);
+        var updated = new byte[h.length - size + n];
+        System.arraycopy(h, 0, updated, 0, p);
+        System.arraycopy(runs, 0, updated, p, n);
+        System.arraycopy(h, p + size, updated, p + n, h.length - p - size);
+        updated = mergeVals(updated);
+        if (updated.length > Config.HLL_SPARSE_MAX_BYTES.get()) return denseSetAll(updated, register, value);
+        return updated;
+    }
+
+    private static byte[] denseSetAll(final byte[] sparse, final int register, final int value) {
+        final var dense = toDense(sparse);
+        if (dense != CORRUPTED) denseSet(dense, register, value);
+        return dense;
+    }
+
+    /**
+     * Merges the adjacent VAL opcodes with the same value that splitting a run may have left.
+     */
+    private static byte[] mergeVals(final byte[] h) {
+        int w = HEADER, val = -1;
+        for (int p = HEADER; p < h.length; ) {
+            final int op = h[p] & 0xFF;
+            if (isZero(op) || isXZero(op)) {
+                val = -1;
+                h[w++] = h[p++];
+                if (isXZero(op)) h[w++] = h[p++];
+            } else if (val >= 0 && valValue(h[val] & 0xFF) == valValue(op)
+                    && valLength(h[val] & 0xFF) + valLength(op) <= VAL_MAX_LEN) {
+                h[val] += (byte) valLength(op);
+                p++;
+            } else {
+                val = w;
+                h[w++] = h[p++];
+            }
+        }
+        return w == h.length ? h : Arrays.copyOf(h, w);
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @return the HyperLogLog, updated in place for the dense encoding, null if it did not change
+     */
+    private static byte[] add(final byte[] h, final byte[] element) {
+        final long hash = hash(element);
+        final int register = (int) (hash & (REGISTERS - 1));
+        final int count = Long.numberOfTrailingZeros(hash >>> P | 1L << Q) + 1;
+        if (!isDense(h)) return sparseSet(h, register, count);
+        if (denseGet(h, register) >= count) return null;
+        denseSet(h, register, count);
+        return h;
+    }
+
+    /**
+     * Counts the registers of each value.
+     *
+     * @return false if the HyperLogLog is corrupted
+     */
+    private static boolean histogram(final byte[] h, final int[] histogram) {
+        if (isDense(h)) {
+            for (int i = HEADER; i < DENSE_SIZE; i += 3) {
+                final int b0 = h[i] & 0xFF, b1 = h[i + 1] & 0xFF, b2 = h[i + 2] & 0xFF;
+                histogram[b0 & 63]++;
+                histogram[(b0 >>> 6 | b1 << 2) & 63]++;
+                histogram[(b1 >>> 4 | b2 << 4) & 63]++;
+                histogram[b2 >>> 2]++;
+            }
+            return true;
+        }
+        int r = 0;
+        for (int p = HEADER; p < h.length; ) {
+            final int op = h[p] & 0xFF;
+            if (isZero(op)) {
+                histogram[0] += (op & 63) + 1;
+                r += (op & 63) + 1;
+                p++;
+            } else if (isXZero(op)) {
+                if (p + 1 == h.length) return false;
+                final int length = ((op & 63) << 8 | h[p + 1] & 0xFF) + 1;
+                histogram[0] += length;
+                r += length;
+                p += 2;
+            } else {
+                histogram[valValue(op)] += valLength(op);
+                r += valLength(op);
+                p++;
+            }
+        }
+        return r == REGISTERS;
+    }
+
+    /**
+     * The estimator of Otmar Ertl, "New cardinality estimation algorithms for HyperLogLog sketches", as in Redis.
+     */
+    private static long estimate(final int[] histogram) {
+        final double m = REGISTERS;
+        double z = m * tau((m - histogram[Q + 1]) / m);
+        for (int j = Q; j >= 1; j--) {
+            z += histogram[j];
+            z *= 0.5;
+        }
+        z += m * sigma(histogram[0] / m);
+        return Math.round(ALPHA_INF * m * m / z);
+    }
+
+    private static double sigma(double x) {
+        if (x == 1) return Double.POSITIVE_INFINITY;
+        double y = 1, z = x, previous;
+        do {
+            x *= x;
+            previous = z;
+            z += x * y;
+            y += y;
+        } while (previous != z);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0 || x == 1) return 0;
+        double y = 1, z = 1 - x, previous;
+        do {
+            x = Math.sqrt(x);
+            previous = z;
+            y *= 0.5;
+            z -= Math.pow(1 - x, 2) * y;
+        } while (previous != z);
+        return z / 3;
+    }
+
+    /**
+     * Keeps the maximum of each register of the HyperLogLog and the one in {@code registers}.
+     *
+     * @param scratch a buffer of 16384 bytes for the dense registers
+     * @return false if the HyperLogLog is corrupted
+     */
+    private static boolean max(final byte[] h, final byte[] registers, final byte[] scratch) {
+        if (!isDense(h)) return sparseMax(h, registers);
+        unpack(h, scratch);
+        Bitmaps.OPS.max(registers, scratch, REGISTERS);
+        return true;
+    }
+
+    /**
+     * PFADD key [element ...]
+     * <p>
+     * The elements are hashed as the bytes they were received as, like Redis does.
+     */
+    static byte[] pfadd(final RedisCmd cmd) {
+        final var args = cmd.args();
+        if (args.length == 0) return Eval.wrongArgs("pfadd");
+        final var obj = Store.get(args[0]);
+        final byte[] original = obj == null ? newSparse() : bytesOf(obj);
+        if (original == null) return WRONGTYPE;
+        var h = original;
+        boolean updated = false;
+        for (final var element : cmd.argBytesFrom(1)) {
+            final var next = add(h, element);
+            if (next == CORRUPTED) return INVALIDOBJ;
+            if (next == null) continue;
+            h = next;
+            updated = true;
+        }
+        if (updated) invalidate(h);
+        // the dense registers are updated in place, a new array is a new value for the memory accounting
+        if (obj == null || h != original) Store.put(args[0], new Obj(Obj.TYPE_STRING, Obj.ENCODING_RAW, h));
+        else if (updated) Store.put(args[0], obj);
+        return encodeLong(obj == null || updated ? 1 : 0);
+    }
+
+    /**
+     * PFCOUNT key [key ...]
+     * <p>
+     * The estimate of a single key is cached in its header, the union of several keys is estimated every time.
+     */
+    static byte[] pfcount(final String[] args) {
+        if (args.length == 0) return Eval.wrongArgs("pfcount");
+        final var histogram = new int[64];
+        if (args.length == 1) {
+            final var obj = Store.get(args[0]);
+            if (obj == null) return encodeLong(0);
+            final var h = bytesOf(obj);
+            if (h == null) return WRONGTYPE;
+            if ((h[CARDINALITY + 7] & 0x80) == 0) return encodeLong((long) LONGS.get(h, CARDINALITY));
+            if (!histogram(h, histogram)) return INVALIDOBJ;
+            final long estimate = estimate(histogram);
+            LONGS.set(h, CARDINALITY, estimate);
+            return encodeLong(estimate);
+        }
+        final var registers = new byte[REGISTERS];
+        final var scratch = new byte[REGISTERS];
+        for (final var key : args) {
+            final var obj = Store.get(key);
+            if (obj == null) continue;
+            final var h = bytesOf(obj);
+            if (h == null) return WRONGTYPE;
+            if (!max(h, registers, scratch)) return INVALIDOBJ;
+        }
+        for (final byte register : registers) histogram[register]++;
+        return encodeLong(estimate(histogram));
+    }
+
+    /**
+     * PFMERGE destkey [sourcekey ...]
+     * <p>
+     * The union stays sparse if the destination and every source are, and it fits.
+     */
+    static byte[] pfmerge(final String[] args) {
+        if (args.length == 0) return Eval.wrongArgs("pfmerge");
+        final var registers = new byte[REGISTERS];
+        final var scratch = new byte[REGISTERS];
+        boolean dense = false;
+        // the destination first, it is part of the union
+        for (final var key : args) {
+            final var obj = Store.get(key);
+            if (obj == null) continue;
+            final var h = bytesOf(obj);
+            if (h == null) return WRONGTYPE;
+            if (!max(h, registers, scratch)) return INVALIDOBJ;
+            dense |= isDense(h);
+        }
+        byte[] merged = dense ? null : toSparse(registers);
+        if (merged == null) merged = pack(registers);
+        Store.put(args[0], new Obj(Obj.TYPE_STRING, Obj.ENCODING_RAW, merged));
+        return RESP_OK;
+    }
+}
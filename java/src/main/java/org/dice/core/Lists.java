@@ -0,0 +1,305 @@
+package org.dice.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.dice.core.RESPEncoder.RESP_NIL;
+import static org.dice.core.RESPEncoder.RESP_NIL_ARRAY;
+import static org.dice.core.RESPEncoder.encodeArray;
+import static org.dice.core.RESPEncoder.encodeBulkString;
+import static org.dice.core.RESPEncoder.encodeError;
+import static org.dice.core.RESPEncoder.encodeLong;
+
+/**
+ * List values and the list commands, in the manner of Redis.
+ * <p>
+ * A list is a ring buffer of byte strings, so pushes and pops at both ends and indexed reads take constant time.
+ * Lists are never empty: the key is deleted with the last element. Elements are mutated in place, the memory
+ * accounting is adjusted with {@link Memory#resized(long)} and the key is rewritten to notify the caches.
+ * <p>
+ * The blocking pops first try to pop like their non-blocking counterparts and reply with a null array when every
+ * list is empty, which is what they do inside functions and when applied from the replication stream. For client
+ * commands {@link Eval} then hands the command to {@link Blocking}, which the pushes notify through
+ * {@link Blocking#keyReady(String)}.
+ * <p>
+ * All commands run under the {@link Store} lock.
+ */
+final class Lists {
+
+    private Lists() {}
+
+    private static final byte[] WRONGTYPE = encodeError(Eval.WRONGTYPE);
+    private static final byte[] NOT_AN_INTEGER = encodeError("ERR value is not an integer or out of range");
+    private static final byte[] SYNTAX_ERROR = encodeError("ERR syntax error");
+
+    /**
+     * The elements of a list value.
+     */
+    static final class ListValue implements Memory.Sized {
+
+        /**
+         * Header, elements, head, size and elementBytes.
+         */
+        private static final long SHALLOW = Memory.align(Memory.OBJECT_HEADER + Memory.REFERENCE + 4 + 4 + 8);
+
+        private byte[][] elements = new byte[4][];
+        private int head;
+        private int size;
+        private long elementBytes;
+
+        int size() {
+            return size;
+        }
+
+        byte[] get(final int index) {
+            return elements[(head + index) & (elements.length - 1)];
+        }
+
+        void push(final boolean left, final byte[] element) {
+            if (size == elements.length) grow();
+            if (left) {
+                head = (head - 1) & (elements.length - 1);
+                elements[head] = element;
+            } else {
+                elements[(head + size) & (elements.length - 1)] = element;
+            }
+            size++;
+            elementBytes += Memory.array(element.length, 1);
+        }
+
+        /**
+         * @return the element, null if the list is empty
+         */
+        byte[] pop(final boolean left) {
+            if (size == 0) return null;
+            final int index = left ? head : (head + size - 1) & (elements.length - 1);
+            final var element = elements[index];
+            elements[index] = null;
+            if (left) head = (head + 1) & (elements.length - 1);
+            size--;
+            elementBytes -= Memory.array(element.length, 1);
+            return element;
+        }
+
+        private void grow() {
+            final var grown = new byte[elements.length * 2][];
+            for (int i = 0; i < size; i++) grown[i] = get(i);
+            elements = grown;
+            head = 0;
+        }
+
+        @Override
+        public long memoryUsage() {
+            return SHALLOW + Memory.array(elements.length, Memory.REFERENCE) + elementBytes;
+        }
+    }
+
+    /**
+     * @return the list of a key, null if the key is absent or holds another type
+     */
+    static ListValue listOf(final Obj obj) {
+        return obj != null && obj.type == Obj.TYPE_LIST ? (ListValue) obj.value : null;
+    }
+
+    /**
+     * Rewrites a list mutated in place, or deletes it if it became empty.
+     *
+     * @param before the {@link Memory#value(Object)} of the list before the mutation
+     */
+    static void written(final String key, final Obj obj, final long before) {
+        final var list = (ListValue) obj.value;
+        Memory.resized(Memory.value(list) - before);
+        if (list.size() == 0) Store.del(key);
+        else Store.put(key, obj);
+    }
+
+    /**
+     * Pushes an element, creating the list if needed, and wakes up the clients blocked on the key.
+     */
+    static void push(final String key, final Obj obj, final boolean left, final byte[] element) {
+        if (obj == null) {
+            final var list = new ListValue();
+            list.push(left, element);
+            Store.put(key, new Obj(Obj.TYPE_LIST, Obj.ENCODING_QUICKLIST, list));
+        } else {
+            final var list = (ListValue) obj.value;
+            final long before = Memory.value(list);
+            list.push(left, element);
+            written(key, obj, before);
+        }
+        Blocking.keyReady(key);
+    }
+
+    /**
+     * Pops an element from a list that is known to exist, deleting it once empty.
+     */
+    static byte[] pop(final String key, final Obj obj, final boolean left) {
+        final var list = (ListValue) obj.value;
+        final long before = Memory.value(list);
+        final var element = list.pop(left);
+        written(key, obj, before);
+        return element;
+    }
+
+    /**
+     * @return true for LEFT, false for RIGHT, null for anything else
+     */
+    static Boolean side(final String arg) {
+        if (arg.equalsIgnoreCase("LEFT")) return true;
+        if (arg.equalsIgnoreCase("RIGHT")) return false;
+        return null;
+    }
+
+    /**
+     * LPUSH key element [element ...], RPUSH key element [element ...]
+     * <p>
+     * Binary safe: the elements are stored as the bytes they were received as.
+     */
+    static byte[] push(final RedisCmd cmd, final boolean left) {
+        final var args = cmd.args();
+        if (args.length < 2) return Eval.wrongArgs(left ? "lpush" : "rpush");
+        final var key = args[0];
+        final var obj = Store.get(key);
+        if (obj != null && obj.type != Obj.TYPE_LIST) return WRONGTYPE;
+        final var list = obj == null ? new ListValue() : (ListValue) obj.value;
+        final long before = Memory.value(list);
+        for (final var element : cmd.argBytesFrom(1)) list.push(left, element);
+        if (obj == null) Store.put(key, new Obj(Obj.TYPE_LIST, Obj.ENCODING_QUICKLIST, list));
+        else written(key, obj, before);
+        Blocking.keyReady(key);
+        return encodeLong(list.size());
+    }
+
+    /**
+     * LPOP key [count], RPOP key [count]
+     */
+    static byte[] pop(final String[] args, final boolean left) {
+        if (args.length != 1 && args.length != 2) return Eval.wrongArgs(left ? "lpop" : "rpop");
+        long count = -1;
+        if (args.length == 2) {
+            try {count = Long.parseLong(args[1]);}
+            catch (final NumberFormatException e) {count = -1;}
+            if (count < 0) return encodeError("ERR value is out of range, must be positive");
+        }
+        final var obj = Store.get(args[0]);
+        if (obj == null) return count < 0 ? RESP_NIL : RESP_NIL_ARRAY;
+        if (obj.type != Obj.TYPE_LIST) return WRONGTYPE;
+        if (count < 0) return encodeBulkString(pop(args[0], obj, left));
+        final var list = (ListValue) obj.value;
+        final long before = Memory.value(list);
+        final var popped = new ArrayList<byte[]>();
+        while (popped.size() < count && list.size() > 0) popped.add(encodeBulkString(list.pop(left)));
+        written(args[0], obj, before);
+        return encodeArray(popped);
+    }
+
+    /**
+     * LLEN key
+     */
+    static byte[] llen(final String[] args) {
+        if (args.length != 1) return Eval.wrongArgs("llen");
+        final var obj = Store.get(args[0]);
+        if (obj == null) return encodeLong(0);
+        if (obj.type != Obj.TYPE_LIST) return WRONGTYPE;
+        return encodeLong(((ListValue) obj.value).size());
+    }
+
+    /**
+     * LRANGE key start stop
+     */
+    static byte[] lrange(final String[] args) {
+        if (args.length != 3) return Eval.wrongArgs("lrange");
+        long start, stop;
+        try {
+            start = Long.parseLong(args[1]);
+            stop = Long.parseLong(args[2]);
+        } catch (final NumberFormatException e) {return NOT_AN_INTEGER;}
+        final var obj = Store.get(args[0]);
+        if (obj == null) return RESPEncoder.RESP_EMPTY_ARRAY;
+        if (obj.type != Obj.TYPE_LIST) return WRONGTYPE;
+        final var list = (ListValue) obj.value;
+        if (start < 0) start = Math.max(0, list.size() + start);
+        if (stop < 0) stop = list.size() + stop;
+        stop = Math.min(stop, list.size() - 1);
+        final var elements = new ArrayList<byte[]>();
+        for (long i = start; i <= stop; i++) elements.add(encodeBulkString(list.get((int) i)));
+        return encodeArray(elements);
+    }
+
+    /**
+     * Moves the element at one end of a list to one end of another, or of the same one.
+     *
+     * @return the reply, the element or null if the source is absent
+     */
+    static byte[] move(final String source, final String destination, final boolean fromLeft, final boolean toLeft) {
+        final var from = Store.get(source);
+        if (from == null) return RESP_NIL;
+        final var to = Store.get(destination);
+        if (from.type != Obj.TYPE_LIST || to != null && to.type != Obj.TYPE_LIST) return WRONGTYPE;
+        final var element = pop(source, from, fromLeft);
+        // the source is gone if that was its last element, even when it is also the destination
+        push(destination, Store.peek(destination), toLeft, element);
+        return encodeBulkString(element);
+    }
+
+    /**
+     * LMOVE source destination LEFT | RIGHT LEFT | RIGHT
+     */
+    static byte[] lmove(final String[] args) {
+        if (args.length != 4) return Eval.wrongArgs("lmove");
+        final var fromLeft = side(args[2]);
+        final var toLeft = side(args[3]);
+        if (fromLeft == null || toLeft == null) return SYNTAX_ERROR;
+        return move(args[0], args[1], fromLeft, toLeft);
+    }
+
+    /**
+     * BLPOP key [key ...] timeout, BRPOP key [key ...] timeout
+     * <p>
+     * Pops from the first non-empty list, replies with a null array if they are all empty. Propagated as the LPOP
+     * or RPOP it performed, as nothing when the client blocks.
+     */
+    static byte[] bpop(final String[] args, final boolean left) {
+        if (args.length < 2) return Eval.wrongArgs(left ? "blpop" : "brpop");
+        final var error = Blocking.checkTimeout(args[args.length - 1]);
+        if (error != null) return error;
+        for (int i = 0; i < args.length - 1; i++) {
+            final var obj = Store.get(args[i]);
+            if (obj == null) continue;
+            if (obj.type != Obj.TYPE_LIST) return WRONGTYPE;
+            Eval.propagateAs(List.of(new RedisCmd(left ? "LPOP" : "RPOP", new String[]{args[i]})));
+            return popReply(args[i], pop(args[i], obj, left));
+        }
+        Eval.propagateAs(List.of());
+        return RESP_NIL_ARRAY;
+    }
+
+    /**
+     * @return the reply of BLPOP and BRPOP, the key and the element
+     */
+    static byte[] popReply(final String key, final byte[] element) {
+        final var reply = new ArrayList<byte[]>(2);
+        reply.add(encodeBulkString(key));
+        reply.add(encodeBulkString(element));
+        return encodeArray(reply);
+    }
+
+    /**
+     * BLMOVE source destination LEFT | RIGHT LEFT | RIGHT timeout
+     * <p>
+     * Moves like LMOVE, replies with a null array if the source is empty. Propagated as the LMOVE it performed, as
+     * nothing when the client blocks.
+     */
+    static byte[] blmove(final String[] args) {
+        if (args.length != 5) return Eval.wrongArgs("blmove");
+        final var fromLeft = side(args[2]);
+        final var toLeft = side(args[3]);
+        if (fromLeft == null || toLeft == null) return SYNTAX_ERROR;
+        final var error = Blocking.checkTimeout(args[4]);
+        if (error != null) return error;
+        final var reply = move(args[0], args[1], fromLeft, toLeft);
+        Eval.propagateAs(reply == RESP_NIL ? List.of() : List.of(new RedisCmd("LMOVE", Arrays.copyOf(args, 4))));
+        return reply == RESP_NIL ? RESP_NIL_ARRAY : reply;
+    }
+}
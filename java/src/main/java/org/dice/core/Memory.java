@@ -0,0 +1,298 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accounting of the memory used by the keyspace and eviction of keys above {@code maxmemory}.
+ * <p>
+ * The size of every key and value is estimated from its layout on a 64-bit JVM with compressed class pointers and
+ * references: 12 byte object headers, 16 byte array headers, 4 byte references and 8 byte alignment. The estimate
+ * follows the encoding, an integer string costs a boxed {@code Long}, or nothing when it is one of the cached
+ * small values, and a byte string costs its array. The total is adjusted on every write and delete instead of
+ * being sampled, so {@link #used()} is exact with respect to the estimates and costs nothing to read.
+ * <p>
+ * The eviction policies follow Redis: {@code allkeys-lru} samples a few keys per eviction into a pool of the best
+ * candidates seen so far and evicts the one idle for the longest time, {@code allkeys-random} evicts sampled keys
+ * blindly. Evictions are propagated to the replicas as deletes, replicas never evict on their own.
+ * <p>
+ * All methods must be called with the {@link Store} lock held.
+ */
+public final class Memory {
+
+    private Memory() {}
+
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    /**
+     * {@code Dict.Entry}: header, key, hash, value and next.
+     */
+    private static final long DICT_ENTRY = align(OBJECT_HEADER + 4 * REFERENCE);
+
+    /**
+     * {@link Obj}: header, type, encoding, value and lastAccessedAt.
+     */
+    private static final long OBJ = align(OBJECT_HEADER + 2 + REFERENCE + 4);
+
+    /**
+     * {@code String}: header, value, hash, coder and hashIsZero.
+     */
+    private static final long STRING = align(OBJECT_HEADER + REFERENCE + 4 + 2);
+
+    private static final long BOXED_LONG = align(OBJECT_HEADER + 8);
+
+    /**
+     * Number of eviction candidates remembered between evictions.
+     */
+    private static final int POOL_SIZE = 16;
+
+    /**
+     * A value that knows its own size, for types whose size cannot be derived from the class of the value.
+     */
+    public interface Sized {
+
+        /**
+         * @return the estimated bytes used by the value and everything it references
+         */
+        long memoryUsage();
+    }
+
+    private static long used;
+    private static long peak;
+    private static long evictedKeys;
+
+    /**
+     * Eviction candidates ordered by ascending idle time, the best candidate is the last one.
+     */
+    private static final String[] poolKeys = new String[POOL_SIZE];
+    private static final int[] poolIdle = new int[POOL_SIZE];
+    private static int poolSize;
+
+    static long align(final long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @return the size of an array of {@code length} elements of {@code elementBytes} bytes each
+     */
+    static long array(final long length, final int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    /**
+     * @return the size of a string and of its backing array, which holds one byte per character unless a
+     * character does not fit in Latin-1
+     */
+    static long string(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) return STRING + array(s.length(), 2);
+        }
+        return STRING + array(s.length(), 1);
+    }
+
+    /**
+     * @return the size of the value of an object, without the object itself
+     */
+    static long value(final Object value) {
+        return switch (value) {
+            case byte[] b -> array(b.length, 1);
+            // Long.valueOf hands out cached instances for these
+            case Long l -> l >= -128 && l <= 127 ? 0 : BOXED_LONG;
+            case Sized s -> s.memoryUsage();
+            case null, default -> 0;
+        };
+    }
+
+    /**
+     * @return the bytes used by a key, its value and its entry in the keyspace
+     */
+    public static long usage(final String key, final Obj obj) {
+        return DICT_ENTRY + string(key) + OBJ + value(obj.value);
+    }
+
+    /**
+     * Accounts for a key being added, replaced or removed.
+     *
+     * @param key    the key
+     * @param before the previous value, null if the key was absent
+     * @param after  the new value, null if the key was removed
+     */
+    static void changed(final String key, final Obj before, final Obj after) {
+        if (before != null) used -= usage(key, before);
+        if (after != null) used += usage(key, after);
+        peak = Math.max(peak, used());
+    }
+
+    /**
+     * Accounts for a value mutated in place.
+     *
+     * @param delta the bytes the value grew by, negative if it shrank
+     */
+    static void resized(final long delta) {
+        used += delta;
+        peak = Math.max(peak, used());
+    }
+
+    /**
+     * Accounts for the whole keyspace being dropped.
+     */
+    static void cleared() {
+        used = 0;
+        Arrays.fill(poolKeys, null);
+        poolSize = 0;
+    }
+
+    /**
+     * @return the bytes used by the keys and values, including their entries in the keyspace
+     */
+    public static long dataset() {
+        return used;
+    }
+
+    /**
+     * @return the bytes used by the bucket arrays of the keyspace
+     */
+    static long overhead() {
+        return array(Store.buckets(), REFERENCE);
+    }
+
+    /**
+     * @return the bytes counted against {@code maxmemory}
+     */
+    public static long used() {
+        return used + overhead();
+    }
+
+    /**
+     * Evicts keys until the memory used is back under the limit, called before every write.
+     *
+     * @return false if the memory used is still above the limit, because the policy does not evict or because
+     * there is nothing left to evict
+     */
+    static boolean evict() {
+        final long limit = Config.MAXMEMORY.get();
+        if (limit == 0) return true;
+        while (used() > limit) {
+            final var policy = Config.MAXMEMORY_POLICY.get();
+            if (policy == Config.EvictionPolicy.NOEVICTION) return false;
+            final var key = policy == Config.EvictionPolicy.ALLKEYS_LRU ? lruCandidate() : randomCandidate();
+            if (key == null) return false;
+            Store.del(key);
+            Replication.propagate(new RedisCmd("DEL", new String[]{key}));
+            evictedKeys++;
+        }
+        return true;
+    }
+
+    private static String randomCandidate() {
+        final var picked = new String[1];
+        Store.sample(1, (key, obj) -> picked[0] = key);
+        return picked[0];
+    }
+
+    private static String lruCandidate() {
+        final int now = Store.clock();
+        final int samples = Config.MAXMEMORY_SAMPLES.get();
+        Store.sample(samples, (key, obj) -> offer(key, (now - obj.lastAccessedAt) & 0x00FFFFFF));
+        while (poolSize > 0) {
+            final var key = poolKeys[--poolSize];
+            poolKeys[poolSize] = null;
+            // the pool may hold keys deleted since they were sampled
+            if (Store.peek(key) != null) return key;
+        }
+        return null;
+    }
+
+    private static void offer(final String key, final int idle) {
+        for (int i = 0; i < poolSize; i++) {
+            if (!poolKeys[i].equals(key)) continue;
+            // refresh the idle time of a key sampled again
+            System.arraycopy(poolKeys, i + 1, poolKeys, i, poolSize - i - 1);
+            System.arraycopy(poolIdle, i + 1, poolIdle, i, poolSize - i - 1);
+            poolKeys[--poolSize] = null;
+            break;
+        }
+        int pos = 0;
+        while (pos < poolSize && poolIdle[pos] < idle) pos++;
+        if (poolSize == POOL_SIZE) {
+            // full, drop the worst candidate to make room unless this one is even worse
+            if (pos == 0) return;
+            pos--;
+            System.arraycopy(poolKeys, 1, poolKeys, 0, pos);
+            System.arraycopy(poolIdle, 1, poolIdle, 0, pos);
+        } else {
+            System.arraycopy(poolKeys, pos, poolKeys, pos + 1, poolSize - pos);
+            System.arraycopy(poolIdle, pos, poolIdle, pos + 1, poolSize - pos);
+            poolSize++;
+        }
+        poolKeys[pos] = key;
+        poolIdle[pos] = idle;
+    }
+
+    /**
+     * MEMORY USAGE key [SAMPLES count] | STATS
+     * <p>
+     * SAMPLES is accepted for compatibility and ignored, sizes are accounted exactly rather than extrapolated from
+     * a few elements.
+     */
+    static byte[] command(final String[] args, final Client client) {
+        if (args.length == 0) return RESPEncoder.encodeError("ERR wrong number of arguments for 'memory' command");
+        return switch (args[0].toUpperCase()) {
+            case "USAGE" -> {
+                if (args.length != 2 && args.length != 4) yield RESPEncoder.encodeError("ERR syntax error");
+                if (args.length == 4) {
+                    if (!args[2].equalsIgnoreCase("SAMPLES")) yield RESPEncoder.encodeError("ERR syntax error");
+                    try {Long.parseLong(args[3]);}
+                    catch (final NumberFormatException e) {yield RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+                }
+                final var obj = Store.peek(args[1]);
+                yield obj == null ? RESPEncoder.RESP_NIL : RESPEncoder.encodeLong(usage(args[1], obj));
+            }
+            case "STATS" -> {
+                if (args.length != 1) yield RESPEncoder.encodeError("ERR wrong number of arguments for 'memory|stats' command");
+                final long keys = Store.size();
+                final var out = new ArrayList<byte[]>();
+                stat(out, "peak.allocated", Math.max(peak, used()));
+                stat(out, "total.allocated", used());
+                stat(out, "replication.backlog", Replication.backlogBytes());
+                stat(out, "clients.normal", Client.totalPendingBytes());
+                stat(out, "overhead.hashtable.main", overhead());
+                stat(out, "keys.count", keys);
+                stat(out, "keys.bytes-per-key", keys == 0 ? 0 : used / keys);
+                stat(out, "dataset.bytes", used);
+                stat(out, "maxmemory", Config.MAXMEMORY.get());
+                out.add(RESPEncoder.encodeBulkString("maxmemory-policy"));
+                out.add(RESPEncoder.encodeBulkString(Config.MAXMEMORY_POLICY.get().configName()));
+                stat(out, "evicted.keys", evictedKeys);
+                final var runtime = Runtime.getRuntime();
+                stat(out, "jvm.heap.used", runtime.totalMemory() - runtime.freeMemory());
+                stat(out, "jvm.heap.max", runtime.maxMemory());
+                yield RESPEncoder.encodeMap(out, client != null && client.protocol() == 3);
+            }
+            default -> RESPEncoder.encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+    }
+
+    private static void stat(final List<byte[]> out, final String name, final long value) {
+        out.add(RESPEncoder.encodeBulkString(name));
+        out.add(RESPEncoder.encodeLong(value));
+    }
+
+    /**
+     * @return the memory section of INFO
+     */
+    static String info() {
+        return "# Memory\r\n" +
+                "used_memory:" + used() + "\r\n" +
+                "used_memory_peak:" + Math.max(peak, used()) + "\r\n" +
+                "used_memory_dataset:" + used + "\r\n" +
+                "maxmemory:" + Config.MAXMEMORY.get() + "\r\n" +
+                "maxmemory_policy:" + Config.MAXMEMORY_POLICY.get().configName() + "\r\n" +
+                "evicted_keys:" + evictedKeys + "\r\n";
+    }
+}
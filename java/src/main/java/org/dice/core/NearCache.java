@@ -0,0 +1,83 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded GET replies of the hottest keys, served without taking the {@link Store} lock.
+ * <p>
+ * However hot a key gets, every GET of it would otherwise queue on the single store lock. Once a key is among the
+ * {@link HotKeys}, the reply of its next GET is kept here and later GETs return it directly from the client's
+ * thread, so reads of hot keys no longer serialise with each other nor with the rest of the traffic. The reply is
+ * dropped on every write or delete of the key, and when the key stops being hot, so the cache never holds more
+ * than the top keys. Entries are filled and invalidated under the store lock, which orders them with the writes.
+ * <p>
+ * Disabled by default, enabled with the {@code near-cache} setting. It is not used in cluster mode, where every
+ * command must be routed first.
+ */
+public final class NearCache {
+
+    private NearCache() {}
+
+    private static final ConcurrentHashMap<String, byte[]> replies = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    static {
+        // entries are not invalidated while the cache is disabled, so they must not survive until it is re-enabled
+        Config.NEAR_CACHE.onChange(enabled -> {
+            Store.lock.lock();
+            try {replies.clear();}
+            finally {Store.lock.unlock();}
+        });
+    }
+
+    public static boolean isEnabled() {
+        return Config.NEAR_CACHE.get() && !Cluster.isEnabled();
+    }
+
+    /**
+     * Looks up the GET reply of the key, may be called without the store lock.
+     *
+     * @return the encoded reply, or null if the key is not cached
+     */
+    static byte[] get(final String key) {
+        final var reply = replies.get(key);
+        if (reply == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        HotKeys.recordUnlocked(key);
+        return reply;
+    }
+
+    /**
+     * Caches the GET reply of the key if the key is hot. Must be called with the store lock held.
+     *
+     * @param reply the encoded reply, must not be modified afterwards
+     */
+    static void fill(final String key, final byte[] reply) {
+        if (HotKeys.isHot(key)) replies.put(key, reply);
+    }
+
+    /**
+     * Drops the reply of the key. Must be called with the store lock held.
+     */
+    static void invalidate(final String key) {
+        if (isEnabled()) replies.remove(key);
+    }
+
+    static void clear() {
+        replies.clear();
+    }
+
+    static String info() {
+        return "nearcache_enabled:" + (isEnabled() ? 1 : 0) + "\r\n" +
+                "nearcache_keys:" + replies.size() + "\r\n" +
+                "nearcache_hits:" + hits.sum() + "\r\n" +
+                "nearcache_misses:" + misses.sum() + "\r\n";
+    }
+}
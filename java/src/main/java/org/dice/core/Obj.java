@@ -0,0 +1,145 @@
+package org.dice.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A value stored in the keyspace together with its type, encoding and access metadata.
+ */
+public final class Obj {
+
+    /**
+     * Type of string values, including integers and raw bytes.
+     */
+    public static final byte TYPE_STRING = 0;
+
+    /**
+     * Type of list values.
+     */
+    public static final byte TYPE_LIST = 1;
+
+    /**
+     * Type of stream values.
+     */
+    public static final byte TYPE_STREAM = 2;
+
+    /**
+     * The value is a {@code byte[]} of arbitrary length.
+     */
+    public static final byte ENCODING_RAW = 0;
+
+    /**
+     * The value is a {@code Long}.
+     */
+    public static final byte ENCODING_INT = 1;
+
+    /**
+     * The value is a {@code byte[]} short enough to be allocated together with the object.
+     */
+    public static final byte ENCODING_EMBSTR = 8;
+
+    /**
+     * The value is a {@link Lists.ListValue}.
+     */
+    public static final byte ENCODING_QUICKLIST = 9;
+
+    /**
+     * The value is a {@link StreamValue}.
+     */
+    public static final byte ENCODING_STREAM = 10;
+
+    /**
+     * The value is a {@link Bitmaps.Bitmap}, the bytes of a string grown by SETBIT with room to grow further.
+     */
+    public static final byte ENCODING_BITMAP = 11;
+
+    /**
+     * The type of the value.
+     */
+    public final byte type;
+
+    /**
+     * The encoding of the value, may change as the value is mutated.
+     */
+    public byte encoding;
+
+    /**
+     * The value itself, its class depends on {@link #type} and {@link #encoding}.
+     */
+    public Object value;
+
+    /**
+     * The {@link Store#clock()} at the time of the last access, used for approximated LRU.
+     */
+    public int lastAccessedAt;
+
+    /**
+     * Constructor for keyspace objects.
+     *
+     * @param type     the type of the value
+     * @param encoding the encoding of the value
+     * @param value    the value
+     */
+    public Obj(final byte type, final byte encoding, final Object value) {
+        this.type = type;
+        this.encoding = encoding;
+        this.value = value;
+        this.lastAccessedAt = Store.clock();
+    }
+
+    /**
+     * Creates a string object with the most compact encoding for the value, similar to {@code tryObjectEncoding}
+     * in Redis.
+     *
+     * @param value the value as received from the client
+     * @return the new object
+     */
+    public static Obj newString(final String value) {
+        return newString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a string object from raw bytes, see {@link #newString(String)}.
+     *
+     * @param bytes the value, kept as is unless it is an integer
+     * @return the new object
+     */
+    public static Obj newString(final byte[] bytes) {
+        if (bytes.length <= 20) {
+            final var value = new String(bytes, StandardCharsets.ISO_8859_1);
+            try {
+                final long l = Long.parseLong(value);
+                // only values that print back identically, "007" or "+7" stay strings
+                if (Long.toString(l).equals(value)) return new Obj(TYPE_STRING, ENCODING_INT, l);
+            } catch (final NumberFormatException ignored) {}
+        }
+        return new Obj(TYPE_STRING, bytes.length <= 44 ? ENCODING_EMBSTR : ENCODING_RAW, bytes);
+    }
+
+    /**
+     * @return the bytes of a string object whatever its encoding
+     */
+    public byte[] stringBytes() {
+        return switch (encoding) {
+            case ENCODING_INT -> Long.toString((Long) value).getBytes(StandardCharsets.US_ASCII);
+            case ENCODING_BITMAP -> ((Bitmaps.Bitmap) value).toBytes();
+            default -> (byte[]) value;
+        };
+    }
+
+    /**
+     * @return the type name as reported by TYPE and matched by SCAN TYPE
+     */
+    public String typeName() {
+        return switch (type) {
+            case TYPE_STRING -> "string";
+            case TYPE_LIST -> "list";
+            case TYPE_STREAM -> "stream";
+            default -> "unknown";
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "Obj{type=%d, encoding=%d}".formatted(type, encoding);
+    }
+}
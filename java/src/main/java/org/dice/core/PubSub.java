@@ -0,0 +1,349 @@
+package org.dice.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Channel and pattern subscriptions and the fan-out of published messages.
+ * <p>
+ * A published message is encoded once per protocol version in use by its subscribers into a {@link SharedReply}
+ * which is queued by reference on every subscriber, so fan-out costs one queue insert per subscriber and no
+ * allocation. Subscribers are kept in arrays that are copied on subscribe and unsubscribe, which are rare compared
+ * to publishing.
+ * <p>
+ * Patterns are indexed in a trie by their literal prefix, the characters before the first wildcard. PUBLISH walks
+ * the trie along the channel name and only matches the patterns found on that path, so a pattern like
+ * {@code news.*} is never tried against a channel named {@code cache.invalidate}.
+ */
+public final class PubSub {
+
+    private PubSub() {}
+
+    private static final Client[] NO_CLIENTS = new Client[0];
+    private static final byte[] MESSAGE = "message".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PMESSAGE = "pmessage".getBytes(StandardCharsets.US_ASCII);
+
+    private static final class Pattern {
+        private final String pattern;
+        private final byte[] bytes;
+        private Client[] subscribers = NO_CLIENTS;
+
+        private Pattern(final String pattern) {
+            this.pattern = pattern;
+            this.bytes = pattern.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Pattern[] patterns = new Pattern[0];
+
+        private Node child(final char c) {
+            for (int i = 0; i < keys.length; i++) if (keys[i] == c) return children[i];
+            return null;
+        }
+
+        private Node addChild(final char c) {
+            final var node = new Node();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            children[children.length - 1] = node;
+            return node;
+        }
+
+        private void removeChild(final char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != c) continue;
+                keys[i] = keys[keys.length - 1];
+                children[i] = children[children.length - 1];
+                keys = Arrays.copyOf(keys, keys.length - 1);
+                children = Arrays.copyOf(children, children.length - 1);
+                return;
+            }
+        }
+
+        private boolean isEmpty() {
+            return keys.length == 0 && patterns.length == 0;
+        }
+    }
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final HashMap<String, Client[]> channels = new HashMap<>();
+    private static final HashMap<String, Pattern> patterns = new HashMap<>();
+    private static final Node root = new Node();
+
+    private static Client[] with(final Client[] arr, final Client c) {
+        for (final var x : arr) if (x == c) return arr;
+        final var out = Arrays.copyOf(arr, arr.length + 1);
+        out[arr.length] = c;
+        return out;
+    }
+
+    private static Client[] without(final Client[] arr, final Client c) {
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] != c) continue;
+            final var out = new Client[arr.length - 1];
+            System.arraycopy(arr, 0, out, 0, i);
+            System.arraycopy(arr, i + 1, out, i, arr.length - i - 1);
+            return out;
+        }
+        return arr;
+    }
+
+    private static int literalPrefixLength(final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            switch (pattern.charAt(i)) {
+                case '*', '?', '[', '\\' -> {return i;}
+                default -> {}
+            }
+        }
+        return pattern.length();
+    }
+
+    /**
+     * Subscribes the client to the channel.
+     *
+     * @return the number of channels and patterns the client is subscribed to afterwards
+     */
+    public static int subscribe(final Client client, final String channel) {
+        lock.writeLock().lock();
+        try {
+            if (client.channels.add(channel)) channels.put(channel, with(channels.getOrDefault(channel, NO_CLIENTS), client));
+            return subscriptionsChanged(client);
+        } finally {lock.writeLock().unlock();}
+    }
+
+    /**
+     * Unsubscribes the client from the channel.
+     *
+     * @return the number of channels and patterns the client is subscribed to afterwards
+     */
+    public static int unsubscribe(final Client client, final String channel) {
+        lock.writeLock().lock();
+        try {
+            if (client.channels.remove(channel)) {
+                final var rest = without(channels.getOrDefault(channel, NO_CLIENTS), client);
+                if (rest.length == 0) channels.remove(channel);
+                else channels.put(channel, rest);
+            }
+            return subscriptionsChanged(client);
+        } finally {lock.writeLock().unlock();}
+    }
+
+    /**
+     * Subscribes the client to the pattern.
+     *
+     * @return the number of channels and patterns the client is subscribed to afterwards
+     */
+    public static int psubscribe(final Client client, final String pattern) {
+        lock.writeLock().lock();
+        try {
+            if (client.patterns.add(pattern)) {
+                var p = patterns.get(pattern);
+                if (p == null) {
+                    p = new Pattern(pattern);
+                    patterns.put(pattern, p);
+                    var node = root;
+                    final int len = literalPrefixLength(pattern);
+                    for (int i = 0; i < len; i++) {
+                        final var next = node.child(pattern.charAt(i));
+                        node = next == null ? node.addChild(pattern.charAt(i)) : next;
+                    }
+                    node.patterns = Arrays.copyOf(node.patterns, node.patterns.length + 1);
+                    node.patterns[node.patterns.length - 1] = p;
+                }
+                p.subscribers = with(p.subscribers, client);
+            }
+            return subscriptionsChanged(client);
+        } finally {lock.writeLock().unlock();}
+    }
+
+    /**
+     * Unsubscribes the client from the pattern.
+     *
+     * @return the number of channels and patterns the client is subscribed to afterwards
+     */
+    public static int punsubscribe(final Client client, final String pattern) {
+        lock.writeLock().lock();
+        try {
+            if (client.patterns.remove(pattern)) {
+                final var p = patterns.get(pattern);
+                p.subscribers = without(p.subscribers, client);
+                if (p.subscribers.length == 0) {
+                    patterns.remove(pattern);
+                    removeFromTrie(p);
+                }
+            }
+            return subscriptionsChanged(client);
+        } finally {lock.writeLock().unlock();}
+    }
+
+    private static void removeFromTrie(final Pattern p) {
+        final int len = literalPrefixLength(p.pattern);
+        final var path = new Node[len + 1];
+        path[0] = root;
+        for (int i = 0; i < len; i++) path[i + 1] = path[i].child(p.pattern.charAt(i));
+        final var node = path[len];
+        for (int i = 0; i < node.patterns.length; i++) {
+            if (node.patterns[i] != p) continue;
+            node.patterns[i] = node.patterns[node.patterns.length - 1];
+            node.patterns = Arrays.copyOf(node.patterns, node.patterns.length - 1);
+            break;
+        }
+        // prune the branch that no longer leads to any pattern
+        for (int i = len; i > 0 && path[i].isEmpty(); i--) path[i - 1].removeChild(p.pattern.charAt(i - 1));
+    }
+
+    private static int subscriptionsChanged(final Client client) {
+        final int count = client.channels.size() + client.patterns.size();
+        if (client.kind() != Client.Kind.REPLICA) client.kind(count > 0 ? Client.Kind.PUBSUB : Client.Kind.NORMAL);
+        return count;
+    }
+
+    static List<String> subscriptions(final Client client, final boolean pattern) {
+        lock.readLock().lock();
+        try {return List.copyOf(pattern ? client.patterns : client.channels);}
+        finally {lock.readLock().unlock();}
+    }
+
+    /**
+     * Drops every subscription of a disconnected client.
+     */
+    public static void unsubscribeAll(final Client client) {
+        lock.writeLock().lock();
+        try {
+            for (final var channel : List.copyOf(client.channels)) unsubscribe(client, channel);
+            for (final var pattern : List.copyOf(client.patterns)) punsubscribe(client, pattern);
+        } finally {lock.writeLock().unlock();}
+    }
+
+    /**
+     * Delivers the message to the subscribers of the channel and of every pattern matching it.
+     *
+     * @return the number of deliveries
+     */
+    public static long publish(final String channel, final String message) {
+        final var ch = channel.getBytes(StandardCharsets.UTF_8);
+        final var msg = message.getBytes(StandardCharsets.UTF_8);
+        long receivers = 0;
+        lock.readLock().lock();
+        try {
+            final var subscribers = channels.get(channel);
+            if (subscribers != null) receivers += fanOut(subscribers, MESSAGE, null, ch, msg);
+            var node = root;
+            for (int i = 0; node != null; node = i < channel.length() ? node.child(channel.charAt(i++)) : null) {
+                for (final var p : node.patterns) {
+                    if (Glob.match(p.pattern, channel)) receivers += fanOut(p.subscribers, PMESSAGE, p.bytes, ch, msg);
+                }
+            }
+        } finally {lock.readLock().unlock();}
+        return receivers;
+    }
+
+    /**
+     * Delivers the message to the subscribers, encoded as an array for RESP2 subscribers and as a push for RESP3
+     * ones. Each encoding is only built if a subscriber needs it.
+     */
+    private static long fanOut(final Client[] subscribers, final byte[] kind, final byte[] pattern, final byte[] channel,
+                               final byte[] msg) {
+        SharedReply array = null, push = null;
+        long n = 0;
+        for (final var c : subscribers) {
+            final SharedReply reply;
+            if (c.protocol() == 3) reply = push == null ? push = encode('>', kind, pattern, channel, msg) : push;
+            else reply = array == null ? array = encode('*', kind, pattern, channel, msg) : array;
+            if (c.write(reply)) n++;
+        }
+        if (array != null) array.release();
+        if (push != null) push.release();
+        return n;
+    }
+
+    /**
+     * Encodes a (p)message into a pooled buffer in a single pass.
+     *
+     * @param type {@code '*'} for an array, {@code '>'} for a push
+     */
+    private static SharedReply encode(final char type, final byte[] kind, final byte[] pattern, final byte[] channel,
+                                      final byte[] msg) {
+        final int n = pattern == null ? 3 : 4;
+        int len = 4 + bulkLength(kind) + bulkLength(channel) + bulkLength(msg);
+        if (pattern != null) len += bulkLength(pattern);
+        final var reply = SharedReply.allocate(len);
+        final var buf = reply.bytes;
+        int pos = 0;
+        buf[pos++] = (byte) type;
+        buf[pos++] = (byte) ('0' + n);
+        buf[pos++] = '\r';
+        buf[pos++] = '\n';
+        pos = writeBulk(buf, pos, kind);
+        if (pattern != null) pos = writeBulk(buf, pos, pattern);
+        pos = writeBulk(buf, pos, channel);
+        writeBulk(buf, pos, msg);
+        return reply;
+    }
+
+    private static int bulkLength(final byte[] b) {
+        return 1 + digits(b.length) + 2 + b.length + 2;
+    }
+
+    private static int digits(int n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    private static int writeBulk(final byte[] buf, int pos, final byte[] b) {
+        buf[pos++] = '$';
+        final int d = digits(b.length);
+        for (int i = d - 1, n = b.length; i >= 0; i--, n /= 10) buf[pos + i] = (byte) ('0' + n % 10);
+        pos += d;
+        buf[pos++] = '\r';
+        buf[pos++] = '\n';
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+        buf[pos++] = '\r';
+        buf[pos++] = '\n';
+        return pos;
+    }
+
+    /**
+     * @param pattern an optional pattern to filter the channels, null for all
+     * @return the channels with at least one subscriber
+     */
+    public static List<String> activeChannels(final String pattern) {
+        lock.readLock().lock();
+        try {
+            final var out = new ArrayList<String>();
+            for (final var channel : channels.keySet()) if (pattern == null || Glob.match(pattern, channel)) out.add(channel);
+            return out;
+        } finally {lock.readLock().unlock();}
+    }
+
+    /**
+     * @return the number of subscribers of the channel, not counting pattern subscribers
+     */
+    public static int numSub(final String channel) {
+        lock.readLock().lock();
+        try {return channels.getOrDefault(channel, NO_CLIENTS).length;}
+        finally {lock.readLock().unlock();}
+    }
+
+    /**
+     * @return the number of distinct patterns subscribed to
+     */
+    public static int numPat() {
+        lock.readLock().lock();
+        try {return patterns.size();}
+        finally {lock.readLock().unlock();}
+    }
+}
@@ -2,7 +2,9 @@ package org.dice.core;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dice.config.Config;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Optional;
@@ -16,12 +18,59 @@ public final class RESPDecoder {
 
     private static final Logger logger = LogManager.getLogger(RESPDecoder.class);
 
+    static final CrlfScanner SCANNER = Simd.isEnabled() ? new VectorCrlfScanner() : new ScalarCrlfScanner();
+
+    /**
+     * @return the position after the CRLF whose CR is at {@code pos}
+     */
+    private static int crlf(final byte[] data, final int pos) {
+        if (data[pos + 1] != '\n') throw new IllegalStateException("expected CRLF");
+        return pos + 2;
+    }
+
+    /**
+     * Most elements accepted in an array, map or set, as Redis accepts from clients that did not authenticate.
+     */
+    private static final int MAX_MULTIBULK_LEN = 1 << 20;
+
+    /**
+     * Reads a length and the CRLF after it. -1, the length of null bulk strings and arrays, is the only negative
+     * one.
+     *
+     * @throws IllegalStateException if the length is not a number that fits an int
+     */
     private static Ct.Tuple<Integer, Integer> readLen(final byte[] data, int pos) {
+        if (data[pos] == '-' && data[pos + 1] == '1' && data[pos + 2] == '\r') return new Ct.Tuple<>(-1, crlf(data, pos + 2));
+        final int start = pos;
         int val = 0;
-        for(;pos < data.length; pos++){
-            if (data[pos] < '0' || data[pos] > '9') break;
-            val = (val * 10) + (data[pos] - '0');
-        }return new Ct.Tuple<>(val, pos + 2);
+        for (; data[pos] != '\r'; pos++) {
+            final int digit = data[pos] - '0';
+            if (digit < 0 || digit > 9 || val > (Integer.MAX_VALUE - digit) / 10)
+                throw new IllegalStateException("invalid length");
+            val = val * 10 + digit;
+        }
+        if (pos == start) throw new IllegalStateException("invalid length");
+        return new Ct.Tuple<>(val, crlf(data, pos));
+    }
+
+    /**
+     * Fails before allocating room for {@code count} elements that the rest of the buffer cannot hold, at least
+     * {@code minBytes} each.
+     */
+    private static void checkRemaining(final byte[] data, final int pos, final int count, final int minBytes) {
+        if ((long) count * minBytes > data.length - pos) throw new IndexOutOfBoundsException("incomplete aggregate");
+    }
+
+    /**
+     * Reads the number of elements of an aggregate, at least {@code minBytes} each.
+     *
+     * @throws IllegalStateException if there are more than {@link #MAX_MULTIBULK_LEN}
+     */
+    private static Ct.Tuple<Integer, Integer> readCount(final byte[] data, final int pos, final int minBytes) {
+        final var out = readLen(data, pos);
+        if (out.t1() > MAX_MULTIBULK_LEN) throw new IllegalStateException("invalid multibulk length");
+        checkRemaining(data, out.t2(), out.t1(), minBytes);
+        return out;
     }
 
     private static Ct.RESPLong readLong(final byte[] data, int pos) {
@@ -36,12 +85,17 @@ public final class RESPDecoder {
             }
             default -> 1;
         };
+        final int start = pos;
+        // accumulated as a negative number, the only way to reach Long.MIN_VALUE
         long value = 0;
-        while (data[pos] != '\r') {
-            value = value * 10 + (data[pos] - '0');
-            pos += 1;
+        for (; data[pos] != '\r'; pos++) {
+            final int digit = data[pos] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+                throw new IllegalStateException("invalid integer");
+            value = value * 10 - digit;
         }
-        return value == 0? new Ct.RESPLong(value, pos + 2): new Ct.RESPLong(value * sign, pos + 2);
+        if (pos == start || (sign > 0 && value == Long.MIN_VALUE)) throw new IllegalStateException("invalid integer");
+        return new Ct.RESPLong(sign > 0 ? -value : value, crlf(data, pos));
     }
 
     private static Ct.RESPBoolean readBoolean(final byte[] data, final int pos) {
@@ -52,50 +106,120 @@ public final class RESPDecoder {
         return new Ct.RESPNull(pos + 2);
     }
 
-    private static Ct.RESPSimpleString readSimpleString(final byte[] data, int pos) {
-        final var start = pos;
-        while (data[pos] != '\r') pos += 1;
-        return new Ct.RESPSimpleString(new String(data, start, pos - start),pos + 2);
+    private static Ct.RESPSimpleString readSimpleString(final byte[] data, final int pos, final CrlfScanner scanner) {
+        final int end = scanner.indexOfCr(data, pos, data.length);
+        if (end < 0) throw new IndexOutOfBoundsException("incomplete line");
+        return new Ct.RESPSimpleString(new String(data, pos, end - pos), crlf(data, end));
     }
 
-    private static Ct.RESPError  readError(byte[] data, final int pos) {
-        final Ct.RESPSimpleString parseError = readSimpleString(data, pos);
+    private static Ct.RESPError  readError(byte[] data, final int pos, final CrlfScanner scanner) {
+        final Ct.RESPSimpleString parseError = readSimpleString(data, pos, scanner);
         return new Ct.RESPError(parseError.val, parseError.pos);
     }
 
-    private static Ct.RESPBulkString readBulkString(final byte[] data, final int pos) {
+    /**
+     * @throws IllegalStateException if the string is longer than {@link Config#PROTO_MAX_BULK_LEN}
+     */
+    private static Ct.RESPTypes readBulkString(final byte[] data, final int pos) {
         final var out = readLen(data, pos);
+        if (out.t1() < 0) return new Ct.RESPNull(out.t2());
+        if (out.t1() > Config.PROTO_MAX_BULK_LEN.get()) throw new IllegalStateException("invalid bulk length");
         return new Ct.RESPBulkString(new String(data, out.t2(), out.t1()), out.t2() + out.t1() + 2);
     }
 
-    private static Ct.RESPArray readArray(final byte[] data, final int pos) throws IllegalStateException {
-        final var out = readLen(data, pos);
+    /**
+     * Returns an element of an array of bulk strings as the bytes it was received as, which its decoded
+     * {@code String} only holds when they are valid UTF-8.
+     *
+     * @param pos   the position of the array in the buffer
+     * @param index the index of the element
+     */
+    public static byte[] bulkBytes(final byte[] data, final int pos, final int index) {
+        int p = readLen(data, pos + 1).t2();
+        for (int i = 0; ; i++) {
+            final var out = readLen(data, p + 1);
+            if (i == index) return Arrays.copyOfRange(data, out.t2(), out.t2() + out.t1());
+            p = out.t2() + out.t1() + 2;
+        }
+    }
+
+    /**
+     * Returns the elements of an array of bulk strings from {@code from} on, in one pass, see
+     * {@link #bulkBytes(byte[], int, int)}.
+     */
+    public static byte[][] bulkBytesFrom(final byte[] data, final int pos, final int from) {
+        final var count = readLen(data, pos + 1);
+        final var elements = new byte[count.t1() - from][];
+        int p = count.t2();
+        for (int i = 0; i < count.t1(); i++) {
+            final var out = readLen(data, p + 1);
+            if (i >= from) elements[i - from] = Arrays.copyOfRange(data, out.t2(), out.t2() + out.t1());
+            p = out.t2() + out.t1() + 2;
+        }
+        return elements;
+    }
+
+    /**
+     * Tells how long an incomplete request, or bulk string, is at least, from the lengths of the bulk strings
+     * received so far, so that decoding it is only tried again once that many bytes arrived.
+     *
+     * @param pos the position of the request
+     * @return the length of the request from {@code pos}, more than the buffer holds
+     */
+    public static long requiredLength(final byte[] data, final int pos) {
+        final long more = data.length - pos + 1L;
+        try {
+            if (data[pos] == '$') {
+                final var len = readLen(data, pos + 1);
+                return Math.max((long) len.t2() + len.t1() + 2 - pos, more);
+            }
+            if (data[pos] != '*') return more;
+            final var count = readLen(data, pos + 1);
+            int p = count.t2();
+            for (int i = 0; i < count.t1(); i++) {
+                if (data[p] != '$') return more;
+                final var len = readLen(data, p + 1);
+                final long end = len.t1() < 0 ? len.t2() : (long) len.t2() + len.t1() + 2;
+                if (end > data.length) return end - pos;
+                p = (int) end;
+            }
+        } catch (final IndexOutOfBoundsException | IllegalStateException e) {
+            return more;
+        }
+        return more;
+    }
+
+    private static Ct.RESPTypes readArray(final byte[] data, final int pos, final CrlfScanner scanner) throws IllegalStateException {
+        final var out = readCount(data, pos, 3);
+        if (out.t1() < 0) return new Ct.RESPNull(out.t2());
         final var arr = new Ct.RESPTypes[out.t1()];
         int r = out.t2();
         for(int i = 0; i< out.t1(); i++){
-            arr[i] = decodeOne(data, r);
+            arr[i] = decodeOne(data, r, scanner);
             r = arr[i].pos;
         }return new Ct.RESPArray(arr, r);
     }
 
-    private static Ct.RESPMap readMap(final byte[] data, final int pos) {
-        final var out = readLen(data, pos);
+    private static Ct.RESPMap readMap(final byte[] data, final int pos, final CrlfScanner scanner) {
+        final var out = readCount(data, pos, 6);
+        if (out.t1() < 0) throw new IllegalStateException("invalid length");
         final var map = new HashMap<Ct.RESPTypes, Ct.RESPTypes>(out.t1());
         int r = out.t2();
         for(int i = 0; i< out.t1(); i++){
-            final var key = decodeOne(data, r);
-            final var value = decodeOne(data, key.pos);
+            final var key = decodeOne(data, r, scanner);
+            final var value = decodeOne(data, key.pos, scanner);
             map.put(key, value);
             r = value.pos;
         }return new Ct.RESPMap(map, r);
     }
 
-    private static Ct.RESPSet readSet(final byte[] data, final int pos) {
-        final var out = readLen(data, pos);
+    private static Ct.RESPSet readSet(final byte[] data, final int pos, final CrlfScanner scanner) {
+        final var out = readCount(data, pos, 3);
+        if (out.t1() < 0) throw new IllegalStateException("invalid length");
         final var set = new HashSet<Ct.RESPTypes>(out.t1());
         int r = out.t2();
         for(int i = 0; i < out.t1(); i++){
-            final var value = decodeOne(data, r);
+            final var value = decodeOne(data, r, scanner);
             set.add(value);
             r = value.pos;
         }return new Ct.RESPSet(set, r);
@@ -145,17 +269,17 @@ public final class RESPDecoder {
                 new Ct.RESPDouble(Double.parseDouble(format("%c%s.%s", sign, n1.val, n2.val)), n2.pos);
     }
 
-    private static Ct.RESPTypes decodeOne(final byte[] data, final int pos) throws IllegalStateException {
+    private static Ct.RESPTypes decodeOne(final byte[] data, final int pos, final CrlfScanner scanner) throws IllegalStateException {
         return switch (data[pos]) {
-            case '+' -> readSimpleString(data, pos + 1);
-            case '-' -> readError(data, pos + 1);
+            case '+' -> readSimpleString(data, pos + 1, scanner);
+            case '-' -> readError(data, pos + 1, scanner);
             case ':' -> readLong(data, pos + 1);
             case '$' -> readBulkString(data, pos + 1);
-            case '*' -> readArray(data, pos + 1);
+            case '*' -> readArray(data, pos + 1, scanner);
             case '_' -> readNull(pos + 1);
             case '#' -> readBoolean(data, pos + 1);
-            case '%' -> readMap(data, pos + 1);
-            case '~' -> readSet(data, pos + 1);
+            case '%' -> readMap(data, pos + 1, scanner);
+            case '~' -> readSet(data, pos + 1, scanner);
             case ',' -> readDouble(data, pos + 1);
             default ->  throw new IllegalStateException(format("Invalid RESP data type char -> %c", data[pos]));
         };
@@ -163,7 +287,27 @@ public final class RESPDecoder {
 
     public static Ct.RESPTypes decode(final byte[] data) throws IllegalStateException {
         if (data.length == 0) throw new IllegalStateException("no data");
-        return decodeOne(data, 0);
+        return decodeOne(data, 0, SCANNER);
+    }
+
+    /**
+     * Decodes the value starting at {@code pos}, used to walk several pipelined values in one buffer. The position
+     * of the next value is available as {@link Ct.RESPTypes#pos} of the result.
+     *
+     * @throws IndexOutOfBoundsException if the buffer ends before the value does
+     */
+    public static Ct.RESPTypes decode(final byte[] data, final int pos) throws IllegalStateException {
+        return decode(data, pos, SCANNER);
+    }
+
+    /**
+     * Decodes the value starting at {@code pos} with the given scanner rather than the one of the server, to compare
+     * them.
+     */
+    public static Ct.RESPTypes decode(final byte[] data, final int pos, final CrlfScanner scanner)
+            throws IllegalStateException {
+        if (pos >= data.length) throw new IllegalStateException("no data");
+        return decodeOne(data, pos, scanner);
     }
 
 }
@@ -0,0 +1,114 @@
+package org.dice.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+public final class RESPEncoder {
+
+    private RESPEncoder() {}
+
+    public static final byte[] RESP_NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_QUEUED = "+QUEUED\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_ZERO = ":0\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_ONE = ":1\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_MINUS_1 = ":-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_MINUS_2 = ":-2\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_NIL_ARRAY = "*-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP_EMPTY_ARRAY = "*0\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] RESP3_NULL = "_\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    public static byte[] encodeSimpleString(final String val) {
+        return ("+" + val + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeError(final String val) {
+        return ("-" + val + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeLong(final long val) {
+        return (":" + val + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static byte[] encodeBulkString(final String val) {
+        return encodeBulkString(val.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static byte[] encodeBulkString(final byte[] val) {
+        final var out = new ByteArrayOutputStream(val.length + 16);
+        writeBulkString(out, val);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the strings as an array of bulk strings.
+     *
+     * @param vals the strings to encode
+     * @return the RESP encoded array
+     */
+    public static byte[] encodeStrings(final Collection<String> vals) {
+        final var out = new ByteArrayOutputStream();
+        writeArrayHeader(out, vals.size());
+        for (final var val : vals) writeBulkString(out, val.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps already encoded values into an array.
+     *
+     * @param vals the RESP encoded elements
+     * @return the RESP encoded array
+     */
+    public static byte[] encodeArray(final Collection<byte[]> vals) {
+        final var out = new ByteArrayOutputStream();
+        writeArrayHeader(out, vals.size());
+        for (final var val : vals) out.writeBytes(val);
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps already encoded values into a RESP3 push, an out of band message that is not the reply to a command.
+     *
+     * @param vals the RESP encoded elements
+     * @return the RESP encoded push
+     */
+    public static byte[] encodePush(final Collection<byte[]> vals) {
+        final var out = encodeArray(vals);
+        out[0] = '>';
+        return out;
+    }
+
+    /**
+     * Wraps already encoded keys and values into a RESP3 map, or into a flat array for RESP2 clients.
+     *
+     * @param keysAndValues the RESP encoded keys, each followed by its value
+     * @param resp3         true to encode a map, false to encode an array
+     * @return the RESP encoded map
+     */
+    public static byte[] encodeMap(final Collection<byte[]> keysAndValues, final boolean resp3) {
+        if (!resp3) return encodeArray(keysAndValues);
+        final var out = new ByteArrayOutputStream();
+        out.write('%');
+        out.writeBytes(Long.toString(keysAndValues.size() / 2).getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(CRLF);
+        for (final var val : keysAndValues) out.writeBytes(val);
+        return out.toByteArray();
+    }
+
+    public static void writeArrayHeader(final ByteArrayOutputStream out, final int len) {
+        out.write('*');
+        out.writeBytes(Long.toString(len).getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(CRLF);
+    }
+
+    public static void writeBulkString(final ByteArrayOutputStream out, final byte[] val) {
+        out.write('$');
+        out.writeBytes(Long.toString(val.length).getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(CRLF);
+        out.writeBytes(val);
+        out.writeBytes(CRLF);
+    }
+}
@@ -0,0 +1,308 @@
+package org.dice.core;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A radix tree over keys of a fixed length, ordered by their unsigned bytes, like the rax of Redis.
+ * <p>
+ * Every node holds the bytes shared by all the keys below it, so a chain of nodes with a single child is
+ * compressed into one node, and the sorted first bytes of its children. A lookup or a seek therefore visits at
+ * most one node per byte of the key whatever the number of keys, and keys that share long prefixes, such as the
+ * big endian timestamps of stream IDs, share the nodes of their prefix. Values are held by the nodes at the full
+ * key length.
+ * <p>
+ * Besides exact lookups the tree seeks the first key at or after, after, at or before, or before a given one,
+ * which is what range scans start from and how they go from one key to the next. Not thread safe.
+ *
+ * @param <V> the type of the values
+ */
+public final class Rax<V> {
+
+    /**
+     * Estimated bytes per node: the node, its prefix, labels and children arrays, for the few children and short
+     * prefixes nodes have on average.
+     */
+    private static final long NODE = Memory.align(Memory.OBJECT_HEADER + 4 * Memory.REFERENCE)
+            + Memory.array(4, 1) + Memory.array(4, 1) + Memory.array(4, Memory.REFERENCE);
+
+    private static final byte[] NONE = new byte[0];
+
+    private static final class Node {
+
+        private byte[] prefix;
+        private byte[] labels = NONE;
+        private Object[] children = new Object[0];
+        private Object value;
+
+        private Node(final byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        private Node child(final int i) {
+            return (Node) children[i];
+        }
+
+        /**
+         * @return the index of the child for the byte, or {@code -(insertion point) - 1}
+         */
+        private int find(final byte b) {
+            int lo = 0, hi = labels.length - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int c = Integer.compare(labels[mid] & 0xFF, b & 0xFF);
+                if (c == 0) return mid;
+                if (c < 0) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            return -lo - 1;
+        }
+    }
+
+    private final int keyLength;
+    private final Node root = new Node(NONE);
+    private int size;
+    private int nodes = 1;
+
+    /**
+     * @param keyLength the length of every key
+     */
+    public Rax(final int keyLength) {
+        this.keyLength = keyLength;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the estimated bytes used by the nodes, not by the values
+     */
+    public long memoryUsage() {
+        return nodes * NODE;
+    }
+
+    /**
+     * @return the value of the key, null if it is absent
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final byte[] key) {
+        var n = root;
+        int depth = 0;
+        while (true) {
+            final int plen = n.prefix.length;
+            if (!Arrays.equals(n.prefix, 0, plen, key, depth, depth + plen)) return null;
+            depth += plen;
+            if (depth == keyLength) return (V) n.value;
+            final int i = n.find(key[depth]);
+            if (i < 0) return null;
+            n = n.child(i);
+            depth++;
+        }
+    }
+
+    /**
+     * @return the previous value of the key, null if it was absent
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final byte[] key, final V value) {
+        var n = root;
+        int depth = 0;
+        while (true) {
+            final int plen = n.prefix.length;
+            final int common = Arrays.mismatch(n.prefix, 0, plen, key, depth, depth + plen);
+            if (common >= 0) split(n, common);
+            depth += n.prefix.length;
+            if (depth == keyLength) {
+                final var previous = (V) n.value;
+                n.value = value;
+                return previous;
+            }
+            final int i = n.find(key[depth]);
+            if (i >= 0) {
+                n = n.child(i);
+                depth++;
+                continue;
+            }
+            final var leaf = new Node(Arrays.copyOfRange(key, depth + 1, keyLength));
+            leaf.value = value;
+            insertChild(n, -i - 1, key[depth], leaf);
+            size++;
+            return null;
+        }
+    }
+
+    /**
+     * Cuts the prefix of a node at {@code at}, the rest of it moves to a new single child.
+     */
+    private void split(final Node n, final int at) {
+        final var child = new Node(Arrays.copyOfRange(n.prefix, at + 1, n.prefix.length));
+        child.labels = n.labels;
+        child.children = n.children;
+        child.value = n.value;
+        n.labels = new byte[]{n.prefix[at]};
+        n.children = new Object[]{child};
+        n.value = null;
+        n.prefix = Arrays.copyOf(n.prefix, at);
+        nodes++;
+    }
+
+    private void insertChild(final Node n, final int at, final byte label, final Node child) {
+        final int count = n.labels.length;
+        final var labels = new byte[count + 1];
+        final var children = new Object[count + 1];
+        System.arraycopy(n.labels, 0, labels, 0, at);
+        System.arraycopy(n.children, 0, children, 0, at);
+        labels[at] = label;
+        children[at] = child;
+        System.arraycopy(n.labels, at, labels, at + 1, count - at);
+        System.arraycopy(n.children, at, children, at + 1, count - at);
+        n.labels = labels;
+        n.children = children;
+        nodes++;
+    }
+
+    /**
+     * @return the value of the removed key, null if it was absent
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(final byte[] key) {
+        final var removed = (V) remove(root, key, 0);
+        if (removed != null) size--;
+        return removed;
+    }
+
+    private Object remove(final Node n, final byte[] key, int depth) {
+        final int plen = n.prefix.length;
+        if (!Arrays.equals(n.prefix, 0, plen, key, depth, depth + plen)) return null;
+        depth += plen;
+        if (depth == keyLength) {
+            final var removed = n.value;
+            n.value = null;
+            return removed;
+        }
+        final int i = n.find(key[depth]);
+        if (i < 0) return null;
+        final var child = n.child(i);
+        final var removed = remove(child, key, depth + 1);
+        if (removed == null) return null;
+        if (child.labels.length == 0) {
+            removeChild(n, i);
+        } else if (child.labels.length == 1 && child.value == null) {
+            // a node left with a single child is merged with it
+            final var only = child.child(0);
+            final var prefix = new byte[child.prefix.length + 1 + only.prefix.length];
+            System.arraycopy(child.prefix, 0, prefix, 0, child.prefix.length);
+            prefix[child.prefix.length] = child.labels[0];
+            System.arraycopy(only.prefix, 0, prefix, child.prefix.length + 1, only.prefix.length);
+            only.prefix = prefix;
+            n.children[i] = only;
+            nodes--;
+        }
+        return removed;
+    }
+
+    private void removeChild(final Node n, final int at) {
+        final int count = n.labels.length;
+        final var labels = new byte[count - 1];
+        final var children = new Object[count - 1];
+        System.arraycopy(n.labels, 0, labels, 0, at);
+        System.arraycopy(n.children, 0, children, 0, at);
+        System.arraycopy(n.labels, at + 1, labels, at, count - at - 1);
+        System.arraycopy(n.children, at + 1, children, at, count - at - 1);
+        n.labels = labels;
+        n.children = children;
+        nodes--;
+    }
+
+    /**
+     * @return the smallest entry, null if the tree is empty
+     */
+    public Map.Entry<byte[], V> first() {
+        return size == 0 ? null : edge(root, new byte[keyLength], 0, true);
+    }
+
+    /**
+     * @return the greatest entry, null if the tree is empty
+     */
+    public Map.Entry<byte[], V> last() {
+        return size == 0 ? null : edge(root, new byte[keyLength], 0, false);
+    }
+
+    /**
+     * @return the entry with the smallest key at or after {@code key}, null if there is none
+     */
+    public Map.Entry<byte[], V> ceiling(final byte[] key) {
+        return seek(root, key, new byte[keyLength], 0, true, true);
+    }
+
+    /**
+     * @return the entry with the smallest key after {@code key}, null if there is none
+     */
+    public Map.Entry<byte[], V> higher(final byte[] key) {
+        return seek(root, key, new byte[keyLength], 0, false, true);
+    }
+
+    /**
+     * @return the entry with the greatest key at or before {@code key}, null if there is none
+     */
+    public Map.Entry<byte[], V> floor(final byte[] key) {
+        return seek(root, key, new byte[keyLength], 0, true, false);
+    }
+
+    /**
+     * @return the entry with the greatest key before {@code key}, null if there is none
+     */
+    public Map.Entry<byte[], V> lower(final byte[] key) {
+        return seek(root, key, new byte[keyLength], 0, false, false);
+    }
+
+    /**
+     * Seeks from a node whose path so far is in {@code path[0, depth)}.
+     *
+     * @param inclusive true if the key itself may be returned
+     * @param forward   true for the keys after the key, false for the ones before it
+     */
+    private Map.Entry<byte[], V> seek(final Node n, final byte[] key, final byte[] path, int depth,
+                                      final boolean inclusive, final boolean forward) {
+        final int plen = n.prefix.length;
+        System.arraycopy(n.prefix, 0, path, depth, plen);
+        final int c = Arrays.compareUnsigned(n.prefix, 0, plen, key, depth, depth + plen);
+        // the whole subtree is on one side of the key
+        if (c != 0) return c > 0 == forward ? edge(n, path, depth, forward) : null;
+        depth += plen;
+        if (depth == keyLength) return inclusive && n.value != null ? entry(path, n.value) : null;
+        int i = n.find(key[depth]);
+        if (i >= 0) {
+            path[depth] = n.labels[i];
+            final var found = seek(n.child(i), key, path, depth + 1, inclusive, forward);
+            if (found != null) return found;
+            i = forward ? i + 1 : i - 1;
+        } else {
+            i = forward ? -i - 1 : -i - 2;
+        }
+        if (i < 0 || i >= n.labels.length) return null;
+        path[depth] = n.labels[i];
+        return edge(n.child(i), path, depth + 1, forward);
+    }
+
+    /**
+     * @param smallest true for the smallest entry below the node, false for the greatest
+     */
+    private Map.Entry<byte[], V> edge(Node n, final byte[] path, int depth, final boolean smallest) {
+        while (true) {
+            System.arraycopy(n.prefix, 0, path, depth, n.prefix.length);
+            depth += n.prefix.length;
+            if (depth == keyLength) return entry(path, n.value);
+            final int i = smallest ? 0 : n.labels.length - 1;
+            path[depth++] = n.labels[i];
+            n = n.child(i);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map.Entry<byte[], V> entry(final byte[] path, final Object value) {
+        return new AbstractMap.SimpleImmutableEntry<>(path.clone(), (V) value);
+    }
+}
@@ -0,0 +1,96 @@
+package org.dice.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A command decoded from a client request.
+ *
+ * @param cmd   the upper-cased command name
+ * @param args  the arguments following the command name
+ * @param buf   the buffer the command was decoded from, null for commands created by the server itself
+ * @param start the offset of the encoded command in {@code buf}
+ * @param end   the offset just past the encoded command in {@code buf}
+ */
+public record RedisCmd(String cmd, String[] args, byte[] buf, int start, int end) {
+
+    /**
+     * Constructor for commands created by the server itself, which have no encoded form yet.
+     *
+     * @param cmd  the upper-cased command name
+     * @param args the arguments following the command name
+     */
+    public RedisCmd(final String cmd, final String[] args) {
+        this(cmd, args, null, 0, 0);
+    }
+
+    /**
+     * Builds a command created by the server itself from arguments that may not be valid UTF-8, encoded right away
+     * so that it is propagated with the arguments as they are.
+     *
+     * @param cmd  the upper-cased command name
+     * @param args the bytes of the arguments following the command name
+     */
+    public static RedisCmd of(final String cmd, final byte[][] args) {
+        final var out = new ByteArrayOutputStream();
+        RESPEncoder.writeArrayHeader(out, args.length + 1);
+        RESPEncoder.writeBulkString(out, cmd.getBytes(StandardCharsets.UTF_8));
+        final var strings = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            RESPEncoder.writeBulkString(out, args[i]);
+            strings[i] = new String(args[i], StandardCharsets.UTF_8);
+        }
+        final var buf = out.toByteArray();
+        return new RedisCmd(cmd, strings, buf, 0, buf.length);
+    }
+
+    /**
+     * Builds a command from a decoded request, keeping a reference to the bytes it was decoded from.
+     *
+     * @param value the decoded value, expected to be an array of bulk strings
+     * @param buf   the buffer the value was decoded from
+     * @param start the offset at which the value starts in {@code buf}
+     * @return the command, or null if the value is not a valid command
+     */
+    public static RedisCmd from(final Ct.RESPTypes value, final byte[] buf, final int start) {
+        if (!(value instanceof Ct.RESPArray arr) || arr.val.length == 0) return null;
+        final var tokens = new String[arr.val.length];
+        for (int i = 0; i < tokens.length; i++) {
+            if (!(arr.val[i] instanceof Ct.RESPBulkString str)) return null;
+            tokens[i] = str.val;
+        }
+        return new RedisCmd(tokens[0].toUpperCase(), Arrays.copyOfRange(tokens, 1, tokens.length), buf, start, value.pos);
+    }
+
+    /**
+     * @param i the index of the argument
+     * @return the bytes of the argument as received, which its string only holds when they are valid UTF-8
+     */
+    public byte[] argBytes(final int i) {
+        return buf != null ? RESPDecoder.bulkBytes(buf, start, i + 1) : args[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param from the index of the first argument
+     * @return the bytes of the arguments from {@code from} on, see {@link #argBytes(int)}
+     */
+    public byte[][] argBytesFrom(final int from) {
+        if (buf != null) return RESPDecoder.bulkBytesFrom(buf, start, from + 1);
+        final var bytes = new byte[args.length - from][];
+        for (int i = from; i < args.length; i++) bytes[i - from] = args[i].getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    /**
+     * @return the command as an array of bulk strings, the bytes it was received as when available
+     */
+    public byte[] encode() {
+        if (buf != null) return Arrays.copyOfRange(buf, start, end);
+        final var out = new ByteArrayOutputStream();
+        RESPEncoder.writeArrayHeader(out, args.length + 1);
+        RESPEncoder.writeBulkString(out, cmd.getBytes(StandardCharsets.UTF_8));
+        for (final var arg : args) RESPEncoder.writeBulkString(out, arg.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+}
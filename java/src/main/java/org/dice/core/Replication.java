@@ -0,0 +1,570 @@
+package org.dice.core;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dice.config.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Primary-replica replication.
+ * <p>
+ * On a primary every write command is appended, exactly as the client sent it, to a ring buffer called the
+ * backlog and queued by reference to every connected replica. The replication offset counts the bytes of that
+ * stream, so a replica that reconnects with the replication id and the offset it got up to can be served from the
+ * backlog ({@code +CONTINUE}) instead of receiving the whole dataset again ({@code +FULLRESYNC}).
+ * <p>
+ * A full resync does not stop the primary for the time it takes to encode the dataset. The replica receives the
+ * live stream from the offset of its {@code +FULLRESYNC} on, and the keys, encoded as the commands that rebuild
+ * them, in bulk string frames sent in between: a scan of the keyspace sends a frame of about 64 KB each time it
+ * takes the store lock, and a write to a key not sent yet first sends the key as it is before the write. Each key
+ * thus reaches the replica as it was at some offset, followed by the writes made to it after that offset. An empty
+ * frame ends the transfer.
+ * <p>
+ * A replica applies the stream and feeds it into its own backlog, so it can serve replicas of its own and can be
+ * promoted without forcing them into a full resync. All state is guarded by the {@link Store} lock, which also
+ * keeps the stream in the order the commands were executed in.
+ */
+public final class Replication {
+
+    private Replication() {}
+
+    private static final Logger logger = LogManager.getLogger(Replication.class);
+
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int LINK_READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Output pending for a replica above which the transfer of the keyspace waits for it to catch up.
+     */
+    private static final long TRANSFER_PENDING_BYTES = 1 << 20;
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static String replId = newReplId();
+    private static String replId2 = "0".repeat(40);
+    private static long secondReplOffset = -1;
+    private static long masterReplOffset;
+
+    private static byte[] backlog;
+    private static int backlogIdx;
+    private static long backlogHistlen;
+
+    private static final List<Client> replicas = new ArrayList<>();
+
+    /**
+     * The writes held back until the end of the transaction being executed, null outside transactions.
+     */
+    private static List<RedisCmd> transaction;
+
+    /**
+     * The transfer of the keyspace to a replica in full resync.
+     */
+    private static final class Transfer {
+        private final Client replica;
+        /**
+         * The keys sent so far, by the scan or before a write, that the scan must not send again.
+         */
+        private final Set<String> sent = new HashSet<>();
+        private long cursor;
+        private boolean started;
+
+        private Transfer(final Client replica) {
+            this.replica = replica;
+        }
+
+        /**
+         * Sends a frame of encoded keys, none if it is empty.
+         */
+        private void send(final ByteArrayOutputStream keys) {
+            if (keys.size() == 0) return;
+            replica.writeUnlimited(("$" + keys.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            replica.writeUnlimited(keys.toByteArray());
+            replica.writeUnlimited(CRLF);
+        }
+    }
+
+    private static final List<Transfer> transfers = new ArrayList<>();
+
+    private static String masterHost;
+    private static int masterPort;
+    private static Link link;
+
+    /**
+     * The connection of a replica to its primary, running on its own virtual thread.
+     */
+    private static final class Link {
+        private final String host;
+        private final int port;
+        private volatile Socket socket;
+        private volatile boolean up;
+        private volatile boolean stopped;
+
+        private Link(final String host, final int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private void stop() {
+            stopped = true;
+            final var s = socket;
+            if (s != null) {
+                try {s.close();}
+                catch (final IOException ignored) {}
+            }
+        }
+    }
+
+    private static String newReplId() {
+        final var bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    /**
+     * @return true if this server replicates from a primary and therefore rejects writes from clients
+     */
+    public static boolean isReplica() {
+        Store.lock.lock();
+        try {return masterHost != null;}
+        finally {Store.lock.unlock();}
+    }
+
+    private static void createBacklogIfNeeded() {
+        if (backlog != null) return;
+        backlog = new byte[Config.REPL_BACKLOG_SIZE.get().intValue()];
+        backlogIdx = 0;
+        backlogHistlen = 0;
+    }
+
+    /**
+     * @return the size of the backlog, 0 until a replica asked for the stream
+     */
+    static long backlogBytes() {
+        return backlog == null ? 0 : backlog.length;
+    }
+
+    private static long backlogOffset() {
+        return masterReplOffset - backlogHistlen;
+    }
+
+    /**
+     * Appends a write command executed on this server to the replication stream. Does nothing until a replica
+     * asked for the stream for the first time, the backlog is only allocated then.
+     */
+    static void propagate(final RedisCmd cmd) {
+        if (backlog == null) return;
+        if (transaction != null) {
+            transaction.add(cmd);
+            return;
+        }
+        if (cmd.buf() != null) feed(cmd.buf(), cmd.start(), cmd.end() - cmd.start());
+        else {
+            final var encoded = cmd.encode();
+            feed(encoded, 0, encoded.length);
+        }
+    }
+
+    /**
+     * Sends the keys a write is about to modify to the replicas in full resync that did not receive them yet, so
+     * that the write they receive next applies to the value it was applied to here. Called before every write.
+     */
+    static void beforeWrite(final List<String> keys) {
+        if (transfers.isEmpty()) return;
+        for (final var t : transfers) {
+            final var out = new ByteArrayOutputStream();
+            for (final var key : keys) {
+                if (!t.sent.add(key)) continue;
+                final var obj = Store.peek(key);
+                if (obj != null) Snapshot.writeKey(out, key, obj);
+            }
+            t.send(out);
+        }
+    }
+
+    /**
+     * Sends the keyspace to a replica in full resync, one frame each time it takes the store lock, at the pace
+     * the replica reads it. Yields between frames so the clients waiting for the lock get it first.
+     */
+    private static void transfer(final Transfer t) {
+        try {
+            while (true) {
+                t.replica.awaitPendingBelow(TRANSFER_PENDING_BYTES);
+                Store.lock.lock();
+                try {
+                    if (t.replica.isClosed()) {
+                        transfers.remove(t);
+                        return;
+                    }
+                    final var out = new ByteArrayOutputStream();
+                    if (!t.started) Functions.writeSnapshot(out);
+                    t.started = true;
+                    t.cursor = Snapshot.keys(t.cursor, t.sent::add, out);
+                    t.send(out);
+                    if (t.cursor == 0) {
+                        t.replica.writeUnlimited("$0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                        transfers.remove(t);
+                        logger.info("Keyspace sent to replica {}, {} keys", t.replica.addr, t.sent.size());
+                        return;
+                    }
+                } finally {Store.lock.unlock();}
+                Thread.yield();
+            }
+        } catch (final InterruptedException e) {
+            Store.lock.lock();
+            try {transfers.remove(t);}
+            finally {Store.lock.unlock();}
+        }
+    }
+
+    /**
+     * Holds back the writes propagated from now on until {@link #endTransaction()}.
+     */
+    static void beginTransaction() {
+        transaction = new ArrayList<>();
+    }
+
+    /**
+     * Propagates the writes held back since {@link #beginTransaction()}, wrapped in MULTI and EXEC if there are
+     * several, so that replicas apply them atomically as well.
+     */
+    static void endTransaction() {
+        final var cmds = transaction;
+        transaction = null;
+        if (cmds.size() > 1) propagate(new RedisCmd("MULTI", new String[0]));
+        cmds.forEach(Replication::propagate);
+        if (cmds.size() > 1) propagate(new RedisCmd("EXEC", new String[0]));
+    }
+
+    private static void feed(final byte[] buf, final int off, final int len) {
+        masterReplOffset += len;
+        if (backlog != null) {
+            int copied = 0;
+            while (copied < len) {
+                final int n = Math.min(len - copied, backlog.length - backlogIdx);
+                System.arraycopy(buf, off + copied, backlog, backlogIdx, n);
+                backlogIdx = (backlogIdx + n) % backlog.length;
+                copied += n;
+            }
+            backlogHistlen = Math.min(backlogHistlen + len, backlog.length);
+        }
+        if (replicas.isEmpty()) return;
+        final var shared = SharedReply.allocate(len);
+        System.arraycopy(buf, off, shared.bytes, 0, len);
+        replicas.removeIf(replica -> !replica.write(shared));
+        shared.release();
+    }
+
+    private static byte[] backlogFrom(final long offset) {
+        final int len = (int) (masterReplOffset - offset);
+        final var out = new byte[len];
+        int idx = Math.floorMod(backlogIdx - len, backlog.length);
+        for (int copied = 0; copied < len; ) {
+            final int n = Math.min(len - copied, backlog.length - idx);
+            System.arraycopy(backlog, idx, out, copied, n);
+            idx = (idx + n) % backlog.length;
+            copied += n;
+        }
+        return out;
+    }
+
+    private static boolean canContinue(final String id, final long offset) {
+        if (backlog == null || offset < backlogOffset() || offset > masterReplOffset) return false;
+        return id.equals(replId) || (id.equals(replId2) && offset <= secondReplOffset);
+    }
+
+    /**
+     * PSYNC replicationid offset
+     * <p>
+     * Serves the client from the backlog when possible and with a full resync otherwise. Either way the client
+     * then receives the replication stream for as long as it stays connected. The keys of a full resync are sent
+     * in the background, interleaved with the stream, in frames that do not count towards the output buffer
+     * limits of the replica, see {@link Client#writeUnlimited}.
+     */
+    static byte[] psync(final Client client, final String id, final String offsetArg) {
+        final long offset;
+        try {offset = Long.parseLong(offsetArg);}
+        catch (final NumberFormatException e) {return RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+        if (masterHost != null && (link == null || !link.up))
+            return RESPEncoder.encodeError("NOMASTERLINK Can't SYNC while not connected with my master");
+
+        createBacklogIfNeeded();
+        client.kind(Client.Kind.REPLICA);
+        if (canContinue(id, offset)) {
+            logger.info("Partial resync of replica {} from offset {}", client.addr, offset);
+            client.write(RESPEncoder.encodeSimpleString("CONTINUE " + replId));
+            client.write(backlogFrom(offset));
+        } else {
+            logger.info("Full resync of replica {} at offset {}", client.addr, masterReplOffset);
+            client.write(RESPEncoder.encodeSimpleString("FULLRESYNC " + replId + " " + masterReplOffset));
+            final var transfer = new Transfer(client);
+            transfers.add(transfer);
+            Thread.ofVirtual().name("transfer-" + client.addr).start(() -> transfer(transfer));
+        }
+        replicas.add(client);
+        return new byte[0];
+    }
+
+    /**
+     * REPLICAOF host port | REPLICAOF NO ONE
+     */
+    static byte[] replicaOf(final String host, final String portArg) {
+        if (host.equalsIgnoreCase("NO") && portArg.equalsIgnoreCase("ONE")) {
+            if (masterHost == null) return RESPEncoder.RESP_OK;
+            link.stop();
+            link = null;
+            masterHost = null;
+            // keep the old history reachable for replicas that followed the same primary
+            replId2 = replId;
+            secondReplOffset = masterReplOffset;
+            replId = newReplId();
+            logger.info("Promoted to primary, new replication id {}", replId);
+            return RESPEncoder.RESP_OK;
+        }
+        final int port;
+        try {port = Integer.parseInt(portArg);}
+        catch (final NumberFormatException e) {return RESPEncoder.encodeError("ERR Invalid master port");}
+        if (host.equals(masterHost) && port == masterPort) return RESPEncoder.encodeSimpleString("OK Already connected to specified master");
+        if (link != null) link.stop();
+        // replicas of ours have to follow whatever history the new primary has
+        for (final var replica : replicas) replica.close();
+        replicas.clear();
+        masterHost = host;
+        masterPort = port;
+        link = new Link(host, port);
+        final var l = link;
+        Thread.ofVirtual().name("replication-link").start(() -> runLink(l));
+        logger.info("Replicating from {}:{}", host, port);
+        return RESPEncoder.RESP_OK;
+    }
+
+    private static void runLink(final Link l) {
+        while (!l.stopped) {
+            try (final var socket = new Socket()) {
+                l.socket = socket;
+                if (l.stopped) return;
+                socket.connect(new InetSocketAddress(l.host, l.port));
+                sync(l, socket);
+            } catch (final IOException e) {
+                if (!l.stopped) logger.warn("Replication link to {}:{} lost: {}", l.host, l.port, e.getMessage());
+            } finally {
+                l.up = false;
+            }
+            try {TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MS);}
+            catch (final InterruptedException e) {return;}
+        }
+    }
+
+    private static void sync(final Link l, final Socket socket) throws IOException {
+        final String id;
+        final long offset;
+        Store.lock.lock();
+        try {
+            id = replId;
+            offset = masterReplOffset;
+        } finally {Store.lock.unlock();}
+        socket.getOutputStream().write(new RedisCmd("PSYNC", new String[]{id, Long.toString(offset)}).encode());
+        socket.getOutputStream().flush();
+
+        final var in = new BufferedInputStream(socket.getInputStream(), LINK_READ_BUFFER_SIZE);
+        final var reply = readLine(in);
+        if (reply.startsWith("+FULLRESYNC ")) {
+            final var parts = reply.split(" ");
+            Store.lock.lock();
+            try {
+                if (l.stopped) return;
+                // the keys follow in the stream, the link is up once they all arrived
+                Store.flushAll();
+                replId = parts[1];
+                masterReplOffset = Long.parseLong(parts[2]);
+                // our own backlog holds a history the new primary does not share
+                backlog = null;
+                createBacklogIfNeeded();
+                for (final var replica : replicas) replica.close();
+                replicas.clear();
+            } finally {Store.lock.unlock();}
+            logger.info("Full resync from {}:{} at offset {}", l.host, l.port, parts[2]);
+        } else if (reply.startsWith("+CONTINUE")) {
+            Store.lock.lock();
+            try {
+                final var newId = reply.length() > "+CONTINUE ".length() ? reply.substring("+CONTINUE ".length()) : replId;
+                if (!newId.equals(replId)) {
+                    replId2 = replId;
+                    secondReplOffset = masterReplOffset;
+                    replId = newId;
+                }
+                createBacklogIfNeeded();
+                l.up = true;
+            } finally {Store.lock.unlock();}
+            logger.info("Partial resync from {}:{} at offset {}", l.host, l.port, offset);
+        } else {
+            throw new IOException("PSYNC refused: " + reply);
+        }
+        stream(l, in);
+    }
+
+    /**
+     * Applies the stream of the primary. An incomplete command or frame at the end of a read is kept in a buffer
+     * that grows in place, and decoded again once it holds the length announced so far, as in the query buffer of
+     * a client.
+     */
+    private static void stream(final Link l, final InputStream in) throws IOException {
+        final var buffer = new byte[LINK_READ_BUFFER_SIZE];
+        var pending = new byte[0];
+        int pendingLength = 0;
+        long needed = 0;
+        // from MULTI to EXEC, applied and fed on at once so that neither readers nor offsets see part of it
+        List<RedisCmd> transaction = null;
+        int n;
+        while (!l.stopped && (n = in.read(buffer)) != -1) {
+            final byte[] data;
+            if (pendingLength == 0) data = Arrays.copyOf(buffer, n);
+            else {
+                if (pendingLength + n > pending.length)
+                    pending = Arrays.copyOf(pending, Math.max(pendingLength + n, pending.length * 2));
+                System.arraycopy(buffer, 0, pending, pendingLength, n);
+                pendingLength += n;
+                if (pendingLength < needed) continue;
+                // commands keep referring to the buffer they were decoded from, it must not change afterwards
+                data = Arrays.copyOf(pending, pendingLength);
+            }
+            int pos = 0;
+            while (pos < data.length) {
+                if (data[pos] == '$') {
+                    final int end = frameEnd(data, pos);
+                    if (end < 0) break;
+                    load(l, data, pos, end);
+                    pos = end;
+                    continue;
+                }
+                final Ct.RESPTypes value;
+                try {value = RESPDecoder.decode(data, pos);}
+                catch (final IndexOutOfBoundsException e) {break;}
+                if (value.pos > data.length) break;
+                final var cmd = RedisCmd.from(value, data, pos);
+                if (cmd == null) throw new IOException("malformed replication stream");
+                pos = value.pos;
+                if (cmd.cmd().equals("MULTI")) transaction = new ArrayList<>();
+                if (transaction != null) {
+                    transaction.add(cmd);
+                    if (!cmd.cmd().equals("EXEC")) continue;
+                }
+                Store.lock.lock();
+                try {
+                    if (l.stopped) return;
+                    if (transaction == null) {
+                        Eval.execute(cmd, null);
+                        feed(cmd.buf(), cmd.start(), cmd.end() - cmd.start());
+                    } else {
+                        for (final var queued : transaction.subList(1, transaction.size() - 1)) Eval.execute(queued, null);
+                        for (final var fed : transaction) feed(fed.buf(), fed.start(), fed.end() - fed.start());
+                    }
+                } finally {Store.lock.unlock();}
+                transaction = null;
+            }
+            pendingLength = data.length - pos;
+            if (pendingLength == 0) {
+                needed = 0;
+                // let go of the room a frame of keys needed
+                if (pending.length > buffer.length) pending = new byte[0];
+                continue;
+            }
+            needed = RESPDecoder.requiredLength(data, pos);
+            if (pending.length < pendingLength || pending.length > Math.max(2L * needed, buffer.length))
+                pending = new byte[(int) Math.min(Math.max(needed, buffer.length), Integer.MAX_VALUE - 8)];
+            System.arraycopy(data, pos, pending, 0, pendingLength);
+        }
+    }
+
+    /**
+     * @return the position after the frame of keys at {@code pos}, -1 if it did not fully arrive yet
+     */
+    private static int frameEnd(final byte[] data, final int pos) throws IOException {
+        int cr = pos + 1;
+        while (cr < data.length && data[cr] != '\r') cr++;
+        if (cr + 1 >= data.length) return -1;
+        final int len;
+        try {len = Integer.parseInt(new String(data, pos + 1, cr - pos - 1, StandardCharsets.US_ASCII));}
+        catch (final NumberFormatException e) {throw new IOException("malformed replication stream");}
+        final long end = (long) cr + 2 + len + 2;
+        return end > data.length ? -1 : (int) end;
+    }
+
+    /**
+     * Applies a frame of keys of a full resync, which is not part of the stream and not fed on. The empty frame
+     * ending the transfer brings the link up.
+     */
+    private static void load(final Link l, final byte[] data, final int pos, final int end) {
+        int p = pos;
+        while (data[p] != '\n') p++;
+        p++;
+        Store.lock.lock();
+        try {
+            if (l.stopped) return;
+            if (p == end - 2) {
+                l.up = true;
+                logger.info("Full resync from {}:{} done, {} keys", l.host, l.port, Store.size());
+                return;
+            }
+            while (p < end - 2) {
+                final var value = RESPDecoder.decode(data, p);
+                Eval.execute(RedisCmd.from(value, data, p), null);
+                p = value.pos;
+            }
+        } finally {Store.lock.unlock();}
+    }
+
+    static String readLine(final InputStream in) throws IOException {
+        final var line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                if (in.read() != '\n') throw new IOException("malformed line");
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        throw new IOException("connection closed");
+    }
+
+    /**
+     * @return the replication section of INFO
+     */
+    static String info() {
+        final var info = new StringBuilder("# Replication\r\n");
+        if (masterHost == null) info.append("role:master\r\n");
+        else {
+            info.append("role:slave\r\n")
+                    .append("master_host:").append(masterHost).append("\r\n")
+                    .append("master_port:").append(masterPort).append("\r\n")
+                    .append("master_link_status:").append(link != null && link.up ? "up" : "down").append("\r\n");
+        }
+        replicas.removeIf(Client::isClosed);
+        info.append("connected_slaves:").append(replicas.size()).append("\r\n");
+        for (int i = 0; i < replicas.size(); i++)
+            info.append("slave").append(i).append(":addr=").append(replicas.get(i).addr).append("\r\n");
+        info.append("master_replid:").append(replId).append("\r\n")
+                .append("master_replid2:").append(replId2).append("\r\n")
+                .append("master_repl_offset:").append(masterReplOffset).append("\r\n")
+                .append("second_repl_offset:").append(secondReplOffset).append("\r\n")
+                .append("repl_backlog_active:").append(backlog == null ? 0 : 1).append("\r\n")
+                .append("repl_backlog_size:").append(backlog == null ? Config.REPL_BACKLOG_SIZE.get() : backlog.length).append("\r\n")
+                .append("repl_backlog_first_byte_offset:").append(backlogOffset()).append("\r\n")
+                .append("repl_backlog_histlen:").append(backlogHistlen).append("\r\n");
+        return info.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.dice.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * {@link BitOps} on 64-bit words, a byte at a time only for the unaligned tails. Also completes the tails of
+ * {@link VectorBitOps}.
+ */
+public final class ScalarBitOps implements BitOps {
+
+    /**
+     * Big endian so that the first byte of a word is its most significant one, as bit 0 of a bitmap is the most
+     * significant bit of its first byte.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    @Override
+    public long bitCount(final byte[] a, final int from, final int to) {
+        long count = 0;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) count += Long.bitCount((long) LONGS.get(a, i));
+        for (; i < to; i++) count += Integer.bitCount(a[i] & 0xFF);
+        return count;
+    }
+
+    @Override
+    public int indexOfNot(final byte[] a, final int from, final int to, final byte b) {
+        final long pattern = (b & 0xFFL) * 0x0101010101010101L;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            final long diff = (long) LONGS.get(a, i) ^ pattern;
+            if (diff != 0) return i + Long.numberOfLeadingZeros(diff) / Byte.SIZE;
+        }
+        for (; i < to; i++) if (a[i] != b) return i;
+        return -1;
+    }
+
+    @Override
+    public void apply(final Op op, final byte[] dest, final byte[] src, final int len) {
+        apply(op, dest, src, 0, len);
+    }
+
+    /**
+     * Combines {@code dest[from, len)} with {@code src[from, len)} in place.
+     */
+    void apply(final Op op, final byte[] dest, final byte[] src, final int from, final int len) {
+        int i = from;
+        switch (op) {
+            case AND -> {
+                for (; i + Long.BYTES <= len; i += Long.BYTES) LONGS.set(dest, i, (long) LONGS.get(dest, i) & (long) LONGS.get(src, i));
+                for (; i < len; i++) dest[i] &= src[i];
+            }
+            case OR -> {
+                for (; i + Long.BYTES <= len; i += Long.BYTES) LONGS.set(dest, i, (long) LONGS.get(dest, i) | (long) LONGS.get(src, i));
+                for (; i < len; i++) dest[i] |= src[i];
+            }
+            case XOR -> {
+                for (; i + Long.BYTES <= len; i += Long.BYTES) LONGS.set(dest, i, (long) LONGS.get(dest, i) ^ (long) LONGS.get(src, i));
+                for (; i < len; i++) dest[i] ^= src[i];
+            }
+        }
+    }
+
+    @Override
+    public void not(final byte[] dest, final byte[] src, final int len) {
+        not(dest, src, 0, len);
+    }
+
+    /**
+     * Writes the complement of {@code src[from, len)} into {@code dest[from, len)}.
+     */
+    void not(final byte[] dest, final byte[] src, final int from, final int len) {
+        int i = from;
+        for (; i + Long.BYTES <= len; i += Long.BYTES) LONGS.set(dest, i, ~(long) LONGS.get(src, i));
+        for (; i < len; i++) dest[i] = (byte) ~src[i];
+    }
+
+    @Override
+    public void max(final byte[] dest, final byte[] src, final int len) {
+        max(dest, src, 0, len);
+    }
+
+    /**
+     * Keeps the maximum of {@code dest[from, len)} and {@code src[from, len)} in {@code dest}.
+     */
+    void max(final byte[] dest, final byte[] src, final int from, final int len) {
+        for (int i = from; i < len; i++) if (src[i] > dest[i]) dest[i] = src[i];
+    }
+}
@@ -0,0 +1,34 @@
+package org.dice.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * {@link CrlfScanner} on 64-bit words, a byte at a time only for the tails. Also completes the tails of
+ * {@link VectorCrlfScanner}.
+ */
+public final class ScalarCrlfScanner implements CrlfScanner {
+
+    /**
+     * Little endian so that the first byte of a word is its least significant one: the zero byte test below may
+     * flag the bytes above a zero byte, never the ones below, so the lowest flag is the first CR.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long CRS = 0x0D0D0D0D0D0D0D0DL;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    @Override
+    public int indexOfCr(final byte[] a, final int from, final int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            final long x = (long) LONGS.get(a, i) ^ CRS;
+            final long zeros = (x - ONES) & ~x & HIGHS;
+            if (zeros != 0) return i + Long.numberOfTrailingZeros(zeros) / Byte.SIZE;
+        }
+        for (; i < to; i++) if (a[i] == '\r') return i;
+        return -1;
+    }
+}
@@ -0,0 +1,79 @@
+package org.dice.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded reply queued to many clients at once without being copied per client.
+ * <p>
+ * Every client queue holding the reply owns a reference to it and releases it once the bytes are written to the
+ * socket. The last release hands the backing array back to a pool of power-of-two sized buffers, so publishing a
+ * steady stream of messages does not allocate a new buffer per message either.
+ */
+public final class SharedReply {
+
+    private static final int MIN_POOLED_SHIFT = 6;
+    private static final int MAX_POOLED_SHIFT = 16;
+    private static final int POOL_CAPACITY = 64;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayBlockingQueue<byte[]>[] pools = new ArrayBlockingQueue[MAX_POOLED_SHIFT + 1];
+
+    static {
+        for (int shift = MIN_POOLED_SHIFT; shift <= MAX_POOLED_SHIFT; shift++)
+            pools[shift] = new ArrayBlockingQueue<>(POOL_CAPACITY);
+    }
+
+    /**
+     * The backing array, only the first {@link #length} bytes are part of the reply. It is written once by the
+     * producer and must not be touched after the reply is queued.
+     */
+    public final byte[] bytes;
+
+    /**
+     * The length of the reply.
+     */
+    public final int length;
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private SharedReply(final byte[] bytes, final int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * Takes a buffer of at least {@code length} bytes from the pool for the caller to encode the reply into. The
+     * caller owns the single initial reference.
+     *
+     * @param length the exact length of the reply
+     * @return the shared reply
+     */
+    public static SharedReply allocate(final int length) {
+        final int shift = Math.max(MIN_POOLED_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length - 1)));
+        byte[] buf = null;
+        if (shift <= MAX_POOLED_SHIFT) buf = pools[shift].poll();
+        if (buf == null) buf = new byte[shift <= MAX_POOLED_SHIFT ? 1 << shift : length];
+        return new SharedReply(buf, length);
+    }
+
+    /**
+     * Takes an additional reference.
+     *
+     * @return this reply
+     */
+    public SharedReply retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops a reference, the last one returns the buffer to the pool.
+     */
+    public void release() {
+        if (refs.decrementAndGet() != 0) return;
+        final int shift = 31 - Integer.numberOfLeadingZeros(bytes.length);
+        if (shift >= MIN_POOLED_SHIFT && shift <= MAX_POOLED_SHIFT && bytes.length == 1 << shift)
+            pools[shift].offer(bytes);
+    }
+}
@@ -0,0 +1,25 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+/**
+ * Decides whether the loops over large byte arrays use the Vector API.
+ * <p>
+ * The {@code jdk.incubator.vector} module is only resolved when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}, or when the server runs from the module path. Without it the classes
+ * using the API cannot even be loaded, so they are only referenced once this class said they may be, and the
+ * scalar implementations are used otherwise. The {@code simd-enabled} setting forces the scalar ones.
+ */
+public final class Simd {
+
+    private Simd() {}
+
+    private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /**
+     * @return true if the Vector API implementations are to be used
+     */
+    public static boolean isEnabled() {
+        return AVAILABLE && Config.SIMD_ENABLED.get();
+    }
+}
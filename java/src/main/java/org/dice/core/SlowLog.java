@@ -0,0 +1,129 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The commands that took longer than a threshold to execute, kept in a fixed size ring.
+ * <p>
+ * Recording a command that is not slow costs a comparison, the arguments are only copied, and truncated, for the
+ * commands that make it into the log. The execution time does not include reading the command, waiting for
+ * the store lock or writing the reply, so neither a slow client nor contention make commands look slow.
+ */
+public final class SlowLog {
+
+    private SlowLog() {}
+
+    /**
+     * Longer commands only keep their first arguments, and the count of the others.
+     */
+    private static final int MAX_ARGS = 32;
+
+    /**
+     * Longer arguments are truncated.
+     */
+    private static final int MAX_ARG_LENGTH = 128;
+
+    private record Entry(long id, long timestamp, long micros, String[] args, String addr, String name) {}
+
+    private static Entry[] ring = new Entry[Config.SLOWLOG_MAX_LEN.get()];
+    private static int head;
+    private static int size;
+    private static long nextId;
+
+    static {
+        Config.SLOWLOG_MAX_LEN.onChange(SlowLog::maxLen);
+    }
+
+    /**
+     * Resizes the log, keeping the newest entries that fit.
+     */
+    private static synchronized void maxLen(final int maxLen) {
+        final var entries = entries(size);
+        ring = new Entry[Math.max(1, maxLen)];
+        head = size = 0;
+        for (int i = Math.min(entries.size(), ring.length) - 1; i >= 0; i--) add(entries.get(i));
+    }
+
+    /**
+     * Logs the command if it ran for too long.
+     *
+     * @param cmd    the command
+     * @param client the client that sent it
+     * @param nanos  how long the command took to execute
+     */
+    public static void record(final RedisCmd cmd, final Client client, final long nanos) {
+        final long threshold = Config.SLOWLOG_LOG_SLOWER_THAN.get();
+        if (threshold < 0 || nanos / 1000 < threshold) return;
+        final int n = Math.min(cmd.args().length + 1, MAX_ARGS);
+        final var args = new String[n];
+        args[0] = cmd.cmd();
+        for (int i = 1; i < n; i++) {
+            if (i == MAX_ARGS - 1 && cmd.args().length + 1 > MAX_ARGS) {
+                args[i] = "... (%d more arguments)".formatted(cmd.args().length + 1 - i);
+                break;
+            }
+            final var arg = cmd.args()[i - 1];
+            args[i] = arg.length() <= MAX_ARG_LENGTH ? arg :
+                    arg.substring(0, MAX_ARG_LENGTH) + "... (%d more bytes)".formatted(arg.length() - MAX_ARG_LENGTH);
+        }
+        final long timestamp = System.currentTimeMillis() / 1000;
+        synchronized (SlowLog.class) {
+            add(new Entry(nextId++, timestamp, nanos / 1000, args, client.addr, client.name()));
+        }
+    }
+
+    private static void add(final Entry entry) {
+        ring[(head + size) % ring.length] = entry;
+        if (size < ring.length) size++;
+        else head = (head + 1) % ring.length;
+    }
+
+    /**
+     * @return the newest entries, newest first
+     */
+    private static List<Entry> entries(final int count) {
+        final var out = new ArrayList<Entry>();
+        for (int i = size - 1; i >= 0 && out.size() < count; i--) out.add(ring[(head + i) % ring.length]);
+        return out;
+    }
+
+    /**
+     * SLOWLOG GET [count] | LEN | RESET
+     */
+    static synchronized byte[] command(final String[] args) {
+        if (args.length == 0) return RESPEncoder.encodeError("ERR wrong number of arguments for 'slowlog' command");
+        return switch (args[0].toUpperCase()) {
+            case "GET" -> {
+                int count = 10;
+                if (args.length > 2) yield RESPEncoder.encodeError("ERR wrong number of arguments for 'slowlog|get' command");
+                if (args.length == 2) {
+                    try {count = Integer.parseInt(args[1]);}
+                    catch (final NumberFormatException e) {yield RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+                    if (count < -1) yield RESPEncoder.encodeError("ERR count should be greater than or equal to -1");
+                    if (count == -1) count = Integer.MAX_VALUE;
+                }
+                final var out = new ArrayList<byte[]>();
+                for (final var e : entries(count)) {
+                    out.add(RESPEncoder.encodeArray(List.of(
+                            RESPEncoder.encodeLong(e.id()),
+                            RESPEncoder.encodeLong(e.timestamp()),
+                            RESPEncoder.encodeLong(e.micros()),
+                            RESPEncoder.encodeStrings(List.of(e.args())),
+                            RESPEncoder.encodeBulkString(e.addr()),
+                            RESPEncoder.encodeBulkString(e.name()))));
+                }
+                yield RESPEncoder.encodeArray(out);
+            }
+            case "LEN" -> RESPEncoder.encodeLong(size);
+            case "RESET" -> {
+                for (int i = 0; i < ring.length; i++) ring[i] = null;
+                head = size = 0;
+                yield RESPEncoder.RESP_OK;
+            }
+            default -> RESPEncoder.encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+    }
+}
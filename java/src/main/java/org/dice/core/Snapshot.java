@@ -0,0 +1,189 @@
+package org.dice.core;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Serialisation of keys, and of the loaded functions, as the commands that rebuild them, used for full resyncs
+ * and key migration.
+ */
+public final class Snapshot {
+
+    private Snapshot() {}
+
+    private static final Logger logger = LogManager.getLogger(Snapshot.class);
+
+    /**
+     * Elements per RPUSH when rebuilding a list.
+     */
+    private static final int LIST_CHUNK = 1024;
+
+    /**
+     * Bytes per chunk of a snapshot.
+     */
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * A buffer handing over its content every {@link #CHUNK} bytes, commands may span two chunks.
+     */
+    private static final class Chunks extends ByteArrayOutputStream {
+
+        private final Consumer<byte[]> sink;
+        private long total;
+
+        private Chunks(final Consumer<byte[]> sink) {
+            super(CHUNK + 1024);
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(final int b) {
+            super.write(b);
+            if (count >= CHUNK) flush();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            super.write(b, off, len);
+            if (count >= CHUNK) flush();
+        }
+
+        @Override
+        public void flush() {
+            if (count == 0) return;
+            total += count;
+            sink.accept(toByteArray());
+            reset();
+        }
+    }
+
+    /**
+     * Encodes the whole keyspace in chunks of about 64 KB, so that no array ever holds all of it. The caller must
+     * hold the store lock for the snapshot to be consistent.
+     *
+     * @param sink receives the chunks of the commands that rebuild the keyspace, in order
+     * @return the total size of the chunks
+     */
+    public static long keyspace(final Consumer<byte[]> sink) {
+        final var out = new Chunks(sink);
+        Functions.writeSnapshot(out);
+        long cursor = 0;
+        do {
+            cursor = Store.scan(cursor, (key, obj) -> writeKey(out, key, obj));
+        } while (cursor != 0);
+        out.flush();
+        return out.total;
+    }
+
+    /**
+     * Encodes the keys visited by a keyspace scan from {@code cursor}, step after step until about
+     * {@value #CHUNK} bytes were written or the scan is complete, so that the caller can release the store lock
+     * in between. The caller must hold the store lock.
+     *
+     * @param include tells whether a visited key is to be encoded, a scan can visit a key twice across a resize
+     * @return the cursor to continue from, 0 once the scan is complete
+     */
+    static long keys(long cursor, final Predicate<String> include, final ByteArrayOutputStream out) {
+        do {
+            cursor = Store.scan(cursor, (key, obj) -> {if (include.test(key)) writeKey(out, key, obj);});
+        } while (cursor != 0 && out.size() < CHUNK);
+        return cursor;
+    }
+
+    /**
+     * Appends the commands that recreate the key, assuming it does not exist yet.
+     *
+     * @param out the buffer to append to
+     * @param key the key
+     * @param obj the value of the key
+     */
+    static void writeKey(final ByteArrayOutputStream out, final String key, final Obj obj) {
+        final var k = key.getBytes(StandardCharsets.UTF_8);
+        switch (obj.type) {
+            case Obj.TYPE_STRING -> writeCommand(out, "SET", k, obj.stringBytes());
+            case Obj.TYPE_LIST -> {
+                final var list = (Lists.ListValue) obj.value;
+                for (int i = 0; i < list.size(); i += LIST_CHUNK) {
+                    final var args = new byte[Math.min(LIST_CHUNK, list.size() - i) + 1][];
+                    args[0] = k;
+                    for (int j = 1; j < args.length; j++) args[j] = list.get(i + j - 1);
+                    writeCommand(out, "RPUSH", args);
+                }
+            }
+            case Obj.TYPE_STREAM -> writeStream(out, k, (StreamValue) obj.value);
+            default -> logger.warn("Key {} of type {} left out of the snapshot", key, obj.typeName());
+        }
+    }
+
+    /**
+     * A stream is rebuilt with its entries, its last ID, its groups and their pending entries, one XCLAIM each
+     * to keep its delivery time and count.
+     */
+    private static void writeStream(final ByteArrayOutputStream out, final byte[] k, final StreamValue stream) {
+        stream.range(StreamId.MIN, StreamId.MAX, false, entry -> {
+            final var args = new byte[entry.fields().length + 2][];
+            args[0] = k;
+            args[1] = ascii(entry.id().toString());
+            System.arraycopy(entry.fields(), 0, args, 2, entry.fields().length);
+            writeCommand(out, "XADD", args);
+            return true;
+        });
+        if (stream.length() == 0 && stream.groups().isEmpty()) {
+            // an empty stream exists all the same
+            writeCommand(out, "XGROUP", ascii("CREATE"), k, ascii("snapshot"), ascii("0"), ascii("MKSTREAM"));
+            writeCommand(out, "XGROUP", ascii("DESTROY"), k, ascii("snapshot"));
+        }
+        for (final var e : stream.groups().entrySet()) {
+            final var group = e.getValue();
+            final var name = e.getKey().getBytes(StandardCharsets.UTF_8);
+            writeCommand(out, "XGROUP", ascii("CREATE"), k, name, ascii(group.lastDelivered.toString()),
+                    ascii("MKSTREAM"));
+            for (final var consumer : group.consumers.values()) {
+                final var consumerName = consumer.name.getBytes(StandardCharsets.UTF_8);
+                writeCommand(out, "XGROUP", ascii("CREATECONSUMER"), k, name, consumerName);
+                final var pending = consumer.pending;
+                for (var node = pending.first(); node != null; node = pending.higher(node.getKey())) {
+                    writeCommand(out, "XCLAIM", k, name, consumerName, ascii("0"),
+                            ascii(StreamId.fromKey(node.getKey()).toString()),
+                            ascii("TIME"), ascii(Long.toString(node.getValue().deliveryTime)),
+                            ascii("RETRYCOUNT"), ascii(Long.toString(node.getValue().deliveryCount)),
+                            ascii("FORCE"), ascii("JUSTID"));
+                }
+            }
+        }
+        writeCommand(out, "XSETID", k, ascii(stream.lastId().toString()));
+    }
+
+    private static byte[] ascii(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static void writeCommand(final ByteArrayOutputStream out, final String cmd, final byte[]... args) {
+        RESPEncoder.writeArrayHeader(out, args.length + 1);
+        RESPEncoder.writeBulkString(out, cmd.getBytes(StandardCharsets.US_ASCII));
+        for (final var arg : args) RESPEncoder.writeBulkString(out, arg);
+    }
+
+    /**
+     * Replaces the keyspace with the content of a snapshot.
+     *
+     * @param snapshot the commands produced by {@link #keyspace}
+     */
+    public static void load(final byte[] snapshot) {
+        Store.lock.lock();
+        try {
+            Store.flushAll();
+            int pos = 0;
+            while (pos < snapshot.length) {
+                final var value = RESPDecoder.decode(snapshot, pos);
+                Eval.execute(RedisCmd.from(value, snapshot, pos), null);
+                pos = value.pos;
+            }
+        } finally {Store.lock.unlock();}
+    }
+}
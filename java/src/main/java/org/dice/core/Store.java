@@ -0,0 +1,147 @@
+package org.dice.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * The keyspace of the server.
+ * <p>
+ * Every client runs on its own virtual thread, so access is serialised through a single lock which plays the role
+ * of the event loop thread in the reference implementation. The lock is reentrant, a command that needs several
+ * store operations to be atomic takes it once around all of them.
+ */
+public final class Store {
+
+    private Store() {}
+
+    /**
+     * Time budget of a single cron run spent on migrating buckets of a resizing keyspace.
+     */
+    private static final long CRON_REHASH_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static final ReentrantLock lock = new ReentrantLock();
+
+    private static Dict<Obj> keyspace = new Dict<>();
+
+    /**
+     * @return the current LRU clock, seconds truncated to 24 bits
+     */
+    public static int clock() {
+        return (int) (System.currentTimeMillis() / 1000) & 0x00FFFFFF;
+    }
+
+    public static Obj get(final String key) {
+        lock.lock();
+        try {
+            final var obj = keyspace.get(key);
+            if (obj == null) return null;
+            obj.lastAccessedAt = clock();
+            HotKeys.record(key);
+            return obj;
+        } finally {lock.unlock();}
+    }
+
+    public static void put(final String key, final Obj obj) {
+        lock.lock();
+        try {
+            obj.lastAccessedAt = clock();
+            HotKeys.record(key);
+            NearCache.invalidate(key);
+            Tracking.keyWritten(key);
+            Transactions.keyWritten(key);
+            final var previous = keyspace.put(key, obj);
+            Memory.changed(key, previous, obj);
+            if (previous == null && Cluster.isEnabled()) Cluster.keyAdded(key);
+        } finally {lock.unlock();}
+    }
+
+    public static boolean del(final String key) {
+        lock.lock();
+        try {
+            final var removed = keyspace.remove(key);
+            if (removed == null) return false;
+            Memory.changed(key, removed, null);
+            NearCache.invalidate(key);
+            Tracking.keyWritten(key);
+            Transactions.keyWritten(key);
+            if (Cluster.isEnabled()) Cluster.keyRemoved(key);
+            return true;
+        } finally {lock.unlock();}
+    }
+
+    /**
+     * Empties the keyspace. The old one is dropped whole, the collector reclaims it once it is unreachable.
+     */
+    public static void flushAll() {
+        lock.lock();
+        try {
+            keyspace = new Dict<>();
+            Memory.cleared();
+            NearCache.clear();
+            HotKeys.clear();
+            Tracking.flushed();
+            Transactions.flushed();
+            if (Cluster.isEnabled()) Cluster.clearIndex();
+        } finally {lock.unlock();}
+    }
+
+    /**
+     * Looks up a key without counting it as an access, for introspection, cluster routing and eviction.
+     */
+    static Obj peek(final String key) {
+        lock.lock();
+        try {return keyspace.get(key);}
+        finally {lock.unlock();}
+    }
+
+    public static int size() {
+        lock.lock();
+        try {return keyspace.size();}
+        finally {lock.unlock();}
+    }
+
+    /**
+     * Visits one step of a keyspace scan, see {@link Dict#scan(long, BiConsumer)}.
+     *
+     * @param cursor the cursor returned by the previous call, 0 to start
+     * @param fn     receives the keys and values of the visited buckets, must not modify the store
+     * @return the next cursor, 0 when the scan is complete
+     */
+    public static long scan(final long cursor, final BiConsumer<String, Obj> fn) {
+        lock.lock();
+        try {return keyspace.scan(cursor, fn);}
+        finally {lock.unlock();}
+    }
+
+    /**
+     * Visits a few keys from a random position, see {@link Dict#sample(int, BiConsumer)}.
+     */
+    static int sample(final int count, final BiConsumer<String, Obj> fn) {
+        lock.lock();
+        try {return keyspace.sample(count, fn);}
+        finally {lock.unlock();}
+    }
+
+    /**
+     * @return the number of buckets of the keyspace tables
+     */
+    static long buckets() {
+        lock.lock();
+        try {return keyspace.buckets();}
+        finally {lock.unlock();}
+    }
+
+    /**
+     * Background housekeeping, called periodically by the server. Skips the run when the store is busy so that
+     * clients never wait behind it.
+     */
+    public static void cron() {
+        if (!lock.tryLock()) return;
+        try {
+            keyspace.shrinkIfNeeded();
+            keyspace.rehashFor(CRON_REHASH_NANOS);
+            HotKeys.cron();
+        } finally {lock.unlock();}
+    }
+}
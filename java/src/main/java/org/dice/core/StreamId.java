@@ -0,0 +1,87 @@
+package org.dice.core;
+
+/**
+ * The ID of a stream entry: a millisecond time and a sequence number within it, both unsigned 64 bit integers,
+ * written {@code <ms>-<seq>}. IDs are ordered by time then sequence.
+ *
+ * @param ms  the milliseconds part
+ * @param seq the sequence part
+ */
+record StreamId(long ms, long seq) implements Comparable<StreamId> {
+
+    static final StreamId MIN = new StreamId(0, 0);
+    static final StreamId MAX = new StreamId(-1, -1);
+
+    /**
+     * The length of {@link #key()}.
+     */
+    static final int KEY_LENGTH = 16;
+
+    /**
+     * Parses {@code <ms>-<seq>} or {@code <ms>}.
+     *
+     * @param missingSeq the sequence of an ID given as {@code <ms>}
+     * @return the ID, or null if it is not one
+     */
+    static StreamId parse(final String s, final long missingSeq) {
+        final int dash = s.indexOf('-');
+        try {
+            if (dash < 0) return new StreamId(parseUnsigned(s), missingSeq);
+            return new StreamId(parseUnsigned(s.substring(0, dash)), parseUnsigned(s.substring(dash + 1)));
+        } catch (final NumberFormatException e) {return null;}
+    }
+
+    private static long parseUnsigned(final String s) {
+        if (s.isEmpty() || s.charAt(0) == '+') throw new NumberFormatException(s);
+        return Long.parseUnsignedLong(s);
+    }
+
+    /**
+     * @return the ID from its {@link #key()}
+     */
+    static StreamId fromKey(final byte[] key) {
+        long ms = 0, seq = 0;
+        for (int i = 0; i < 8; i++) ms = ms << 8 | key[i] & 0xFF;
+        for (int i = 8; i < 16; i++) seq = seq << 8 | key[i] & 0xFF;
+        return new StreamId(ms, seq);
+    }
+
+    /**
+     * @return the ID in big endian, which orders as the IDs do
+     */
+    byte[] key() {
+        final var key = new byte[KEY_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            key[i] = (byte) (ms >>> 56 - 8 * i);
+            key[8 + i] = (byte) (seq >>> 56 - 8 * i);
+        }
+        return key;
+    }
+
+    /**
+     * @return the smallest ID greater than this one, null if this is the greatest
+     */
+    StreamId next() {
+        if (seq != -1) return new StreamId(ms, seq + 1);
+        return ms == -1 ? null : new StreamId(ms + 1, 0);
+    }
+
+    /**
+     * @return the greatest ID smaller than this one, null if this is the smallest
+     */
+    StreamId previous() {
+        if (seq != 0) return new StreamId(ms, seq - 1);
+        return ms == 0 ? null : new StreamId(ms - 1, -1);
+    }
+
+    @Override
+    public int compareTo(final StreamId o) {
+        final int c = Long.compareUnsigned(ms, o.ms);
+        return c != 0 ? c : Long.compareUnsigned(seq, o.seq);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(ms) + "-" + Long.toUnsignedString(seq);
+    }
+}
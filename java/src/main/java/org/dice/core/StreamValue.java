@@ -0,0 +1,500 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * The entries and consumer groups of a stream value, laid out like the streams of Redis.
+ * <p>
+ * Entries are appended to packed blocks of up to {@link Config#STREAM_NODE_MAX_ENTRIES} entries or
+ * {@link Config#STREAM_NODE_MAX_BYTES} bytes, which are indexed by a {@link Rax} on the ID of their first entry.
+ * The first entry of a block is its master: the other entries store their ID as varint deltas from the master ID,
+ * and their field names not at all when they are the master's, which is the common case of a stream of events of
+ * the same shape. An entry then costs a few bytes of header and its values, the index and block headers a couple
+ * of bytes more.
+ * <p>
+ * A range is read by seeking the block that holds its start in the index and decoding the blocks in order from
+ * there. Deleted entries are only flagged, a block is dropped from the index once all its entries are deleted,
+ * and trimming drops whole blocks from the start of the stream.
+ * <p>
+ * Consumer groups keep their pending entries, delivered to a consumer and not yet acknowledged, in a {@link Rax}
+ * on the entry ID, and every consumer its own.
+ */
+final class StreamValue implements Memory.Sized {
+
+    /**
+     * Header, index, tail, lastId, maxDeletedId, groups, length and blockBytes.
+     */
+    private static final long SHALLOW = Memory.align(Memory.OBJECT_HEADER + 5 * Memory.REFERENCE + 2 * 8);
+
+    /**
+     * An entry with its fields and values in turn.
+     */
+    record Entry(StreamId id, byte[][] fields) {}
+
+    private static final int DELETED = 1;
+    private static final int SAME_FIELDS = 2;
+
+    /**
+     * A packed block of entries. Each entry is a flags byte, the varint deltas of its time and zigzag-encoded
+     * sequence from the master ID, then either the lengths and bytes of its values when its fields are the
+     * master's or the number of its fields followed by the lengths and bytes of the fields and values.
+     */
+    static final class Block {
+
+        /**
+         * Header, first, last, masterFields, data, used, count and deleted.
+         */
+        private static final long SHALLOW = Memory.align(Memory.OBJECT_HEADER + 4 * Memory.REFERENCE + 3 * 4);
+
+        private final StreamId first;
+        private final byte[][] masterFields;
+        private byte[] data = new byte[64];
+        private int used;
+        private int count;
+        private int deleted;
+        private StreamId last;
+
+        private Block(final StreamId first, final byte[][] fields) {
+            this.first = first;
+            this.masterFields = new byte[fields.length / 2][];
+            for (int i = 0; i < masterFields.length; i++) masterFields[i] = fields[2 * i];
+        }
+
+        private boolean sameFields(final byte[][] fields) {
+            if (fields.length != 2 * masterFields.length) return false;
+            for (int i = 0; i < masterFields.length; i++) {
+                if (!Arrays.equals(fields[2 * i], masterFields[i])) return false;
+            }
+            return true;
+        }
+
+        private void append(final StreamId id, final byte[][] fields) {
+            final boolean same = sameFields(fields);
+            int size = 1 + 3 * 10;
+            for (int i = same ? 1 : 0; i < fields.length; i += same ? 2 : 1) size += 5 + fields[i].length;
+            if (used + size > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, used + size));
+            data[used++] = (byte) (same ? SAME_FIELDS : 0);
+            writeVarint(id.ms() - first.ms());
+            final long seqDelta = id.seq() - first.seq();
+            writeVarint(seqDelta << 1 ^ seqDelta >> 63);
+            if (!same) writeVarint(fields.length / 2);
+            for (int i = same ? 1 : 0; i < fields.length; i += same ? 2 : 1) {
+                writeVarint(fields[i].length);
+                System.arraycopy(fields[i], 0, data, used, fields[i].length);
+                used += fields[i].length;
+            }
+            count++;
+            last = id;
+        }
+
+        private void writeVarint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                data[used++] = (byte) (v & 0x7F | 0x80);
+                v >>>= 7;
+            }
+            data[used++] = (byte) v;
+        }
+
+        private int live() {
+            return count - deleted;
+        }
+
+        private long memoryUsage() {
+            long bytes = SHALLOW + Memory.array(data.length, 1) + Memory.array(masterFields.length, Memory.REFERENCE);
+            for (final var field : masterFields) bytes += Memory.array(field.length, 1);
+            return bytes;
+        }
+    }
+
+    /**
+     * Decodes the entries of a block in order.
+     */
+    private static final class Reader {
+
+        private final Block block;
+        private int pos;
+        private int start;
+        private int flags;
+        private int payload;
+        private StreamId id;
+
+        private Reader(final Block block) {
+            this.block = block;
+        }
+
+        /**
+         * @return false past the last entry
+         */
+        private boolean next() {
+            if (pos >= block.used) return false;
+            start = pos;
+            flags = block.data[pos++];
+            final long ms = block.first.ms() + readVarint();
+            final long zigzag = readVarint();
+            id = new StreamId(ms, block.first.seq() + (zigzag >>> 1 ^ -(zigzag & 1)));
+            payload = pos;
+            final long values = (flags & SAME_FIELDS) != 0 ? block.masterFields.length : 2 * readVarint();
+            for (long i = 0; i < values; i++) {
+                final int length = (int) readVarint();
+                pos += length;
+            }
+            return true;
+        }
+
+        private boolean isDeleted() {
+            return (flags & DELETED) != 0;
+        }
+
+        private void delete() {
+            block.data[start] |= DELETED;
+            flags |= DELETED;
+            block.deleted++;
+        }
+
+        private Entry entry() {
+            final int end = pos;
+            pos = payload;
+            final boolean same = (flags & SAME_FIELDS) != 0;
+            final int pairs = same ? block.masterFields.length : (int) readVarint();
+            final var fields = new byte[2 * pairs][];
+            for (int i = 0; i < fields.length; i++) {
+                if (same && i % 2 == 0) {
+                    fields[i] = block.masterFields[i / 2];
+                    continue;
+                }
+                final int length = (int) readVarint();
+                fields[i] = Arrays.copyOfRange(block.data, pos, pos + length);
+                pos += length;
+            }
+            pos = end;
+            return new Entry(id, fields);
+        }
+
+        private long readVarint() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = block.data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+        }
+    }
+
+    /**
+     * An entry delivered to a consumer of a group and not acknowledged yet.
+     */
+    static final class Pending {
+
+        private static final long SIZE = Memory.align(Memory.OBJECT_HEADER + Memory.REFERENCE + 2 * 8);
+
+        Consumer consumer;
+        long deliveryTime;
+        long deliveryCount;
+
+        Pending(final Consumer consumer, final long deliveryTime, final long deliveryCount) {
+            this.consumer = consumer;
+            this.deliveryTime = deliveryTime;
+            this.deliveryCount = deliveryCount;
+        }
+    }
+
+    static final class Consumer {
+
+        private static final long SHALLOW = Memory.align(Memory.OBJECT_HEADER + 2 * Memory.REFERENCE + 2 * 8);
+
+        final String name;
+        /**
+         * The last time the consumer read or claimed, successfully or not.
+         */
+        long seenTime;
+        /**
+         * The last time the consumer was delivered or claimed entries, -1 if it never was.
+         */
+        long activeTime = -1;
+        /**
+         * The pending entries of the consumer, shared with the group.
+         */
+        final Rax<Pending> pending = new Rax<>(StreamId.KEY_LENGTH);
+
+        Consumer(final String name, final long seenTime) {
+            this.name = name;
+            this.seenTime = seenTime;
+        }
+    }
+
+    static final class Group {
+
+        private static final long SHALLOW = Memory.align(Memory.OBJECT_HEADER + 3 * Memory.REFERENCE);
+
+        /**
+         * The ID of the last entry delivered to the group, reads of new entries continue after it.
+         */
+        StreamId lastDelivered;
+        final Rax<Pending> pending = new Rax<>(StreamId.KEY_LENGTH);
+        final Map<String, Consumer> consumers = new TreeMap<>();
+
+        Group(final StreamId lastDelivered) {
+            this.lastDelivered = lastDelivered;
+        }
+
+        /**
+         * @return the consumer, created if it does not exist
+         */
+        Consumer consumer(final String name, final long now) {
+            return consumers.computeIfAbsent(name, n -> new Consumer(n, now));
+        }
+
+        /**
+         * Records the delivery of an entry to a consumer, taking it from the consumer it was pending for if any.
+         */
+        void deliver(final StreamId id, final Consumer consumer, final long now, final long deliveryCount) {
+            final var key = id.key();
+            var pending = this.pending.get(key);
+            if (pending == null) {
+                pending = new Pending(consumer, now, deliveryCount);
+                this.pending.put(key, pending);
+            } else {
+                if (pending.consumer != consumer) pending.consumer.pending.remove(key);
+                pending.consumer = consumer;
+                pending.deliveryTime = now;
+                pending.deliveryCount = deliveryCount;
+            }
+            consumer.pending.put(key, pending);
+        }
+
+        /**
+         * @return true if the entry was pending
+         */
+        boolean acknowledge(final byte[] key) {
+            final var pending = this.pending.remove(key);
+            if (pending == null) return false;
+            pending.consumer.pending.remove(key);
+            return true;
+        }
+
+        /**
+         * Deletes a consumer and its pending entries.
+         *
+         * @return the number of entries that were pending for it, -1 if there is no such consumer
+         */
+        long deleteConsumer(final String name) {
+            final var consumer = consumers.remove(name);
+            if (consumer == null) return -1;
+            final long count = consumer.pending.size();
+            for (var e = consumer.pending.first(); e != null; e = consumer.pending.higher(e.getKey())) {
+                pending.remove(e.getKey());
+            }
+            return count;
+        }
+
+        private long memoryUsage() {
+            long bytes = SHALLOW + pending.memoryUsage() + pending.size() * Pending.SIZE;
+            for (final var consumer : consumers.values()) {
+                bytes += Consumer.SHALLOW + Memory.string(consumer.name) + consumer.pending.memoryUsage();
+            }
+            return bytes;
+        }
+    }
+
+    private final Rax<Block> index = new Rax<>(StreamId.KEY_LENGTH);
+    /**
+     * The block appends go to, null when the last one was dropped.
+     */
+    private Block tail;
+    private long blockBytes;
+    private long length;
+    private StreamId lastId = StreamId.MIN;
+    private StreamId maxDeletedId = StreamId.MIN;
+    private final Map<String, Group> groups = new TreeMap<>();
+
+    /**
+     * @return the number of entries
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return the ID of the last entry ever added, even if it was deleted since
+     */
+    StreamId lastId() {
+        return lastId;
+    }
+
+    /**
+     * @return the greatest ID deleted by XDEL, entries after the last one may still be flagged in its block
+     */
+    StreamId maxDeletedId() {
+        return maxDeletedId;
+    }
+
+    /**
+     * Sets the last ID, which must not be smaller than {@link #lastEntryId()} nor than {@link #maxDeletedId()}
+     * for the blocks to stay ordered.
+     */
+    void setLastId(final StreamId lastId) {
+        this.lastId = lastId;
+    }
+
+    /**
+     * @return the ID of the last entry still in the stream, null if it is empty
+     */
+    StreamId lastEntryId() {
+        final StreamId[] last = {null};
+        range(StreamId.MIN, StreamId.MAX, true, e -> {
+            last[0] = e.id();
+            return false;
+        });
+        return last[0];
+    }
+
+    Map<String, Group> groups() {
+        return groups;
+    }
+
+    /**
+     * Appends an entry whose ID is greater than {@link #lastId()}.
+     *
+     * @param fields the fields and values in turn
+     */
+    void append(final StreamId id, final byte[][] fields) {
+        final int maxEntries = Config.STREAM_NODE_MAX_ENTRIES.get();
+        if (tail == null || maxEntries > 0 && tail.count >= maxEntries ||
+                tail.used >= Config.STREAM_NODE_MAX_BYTES.get()) {
+            tail = new Block(id, fields);
+            index.put(id.key(), tail);
+            blockBytes += tail.memoryUsage();
+        }
+        blockBytes -= tail.memoryUsage();
+        tail.append(id, fields);
+        blockBytes += tail.memoryUsage();
+        lastId = id;
+        length++;
+    }
+
+    private void drop(final Block block) {
+        index.remove(block.first.key());
+        if (block == tail) tail = null;
+        blockBytes -= block.memoryUsage();
+        length -= block.live();
+    }
+
+    /**
+     * Calls {@code visitor} for the entries between two IDs included, in order or in reverse order, until it
+     * returns false.
+     */
+    void range(final StreamId from, final StreamId to, final boolean reverse, final Predicate<Entry> visitor) {
+        if (from.compareTo(to) > 0) return;
+        if (!reverse) {
+            // the block holding the start, if there is one, begins at or before it
+            var node = index.floor(from.key());
+            if (node == null) node = index.ceiling(from.key());
+            for (; node != null; node = index.higher(node.getKey())) {
+                final var block = node.getValue();
+                if (block.first.compareTo(to) > 0) return;
+                final var reader = new Reader(block);
+                while (reader.next()) {
+                    if (reader.id.compareTo(from) < 0 || reader.isDeleted()) continue;
+                    if (reader.id.compareTo(to) > 0 || !visitor.test(reader.entry())) return;
+                }
+            }
+        } else {
+            for (var node = index.floor(to.key()); node != null; node = index.lower(node.getKey())) {
+                final var block = node.getValue();
+                if (block.last.compareTo(from) < 0) return;
+                // entries only decode forward, the block is decoded whole and visited backward
+                final var entries = new ArrayList<Entry>(block.live());
+                final var reader = new Reader(block);
+                while (reader.next()) {
+                    if (reader.isDeleted() || reader.id.compareTo(from) < 0) continue;
+                    if (reader.id.compareTo(to) > 0) break;
+                    entries.add(reader.entry());
+                }
+                for (int i = entries.size() - 1; i >= 0; i--) {
+                    if (!visitor.test(entries.get(i))) return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the entry, null if it is not in the stream
+     */
+    Entry get(final StreamId id) {
+        final Entry[] found = {null};
+        range(id, id, false, e -> {
+            found[0] = e;
+            return false;
+        });
+        return found[0];
+    }
+
+    /**
+     * @return true if the entry was in the stream
+     */
+    boolean delete(final StreamId id) {
+        final var node = index.floor(id.key());
+        if (node == null) return false;
+        final var block = node.getValue();
+        final var reader = new Reader(block);
+        while (reader.next()) {
+            final int c = reader.id.compareTo(id);
+            if (c > 0) return false;
+            if (c < 0) continue;
+            if (reader.isDeleted()) return false;
+            reader.delete();
+            length--;
+            if (block.live() == 0) drop(block);
+            if (id.compareTo(maxDeletedId) > 0) maxDeletedId = id;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes entries from the start of the stream, down to {@code maxLength} entries or up to {@code minId}
+     * excluded. An approximate trim only drops whole blocks and may leave more entries than asked.
+     *
+     * @param minId null to trim by length
+     * @param limit the maximum number of entries an approximate trim removes, 0 for no limit
+     * @return the number of entries removed
+     */
+    long trim(final long maxLength, final StreamId minId, final boolean approximate, final long limit) {
+        long removed = 0;
+        while (length > 0) {
+            final var block = index.first().getValue();
+            final int live = block.live();
+            final boolean whole = minId == null ? length - live >= maxLength : block.last.compareTo(minId) < 0;
+            if (whole) {
+                if (approximate && limit > 0 && removed + live > limit) break;
+                drop(block);
+                removed += live;
+                continue;
+            }
+            if (approximate) break;
+            final var reader = new Reader(block);
+            while (reader.next() && (minId == null ? length > maxLength : reader.id.compareTo(minId) < 0)) {
+                if (reader.isDeleted()) continue;
+                reader.delete();
+                length--;
+                removed++;
+            }
+            if (block.live() == 0) drop(block);
+            break;
+        }
+        return removed;
+    }
+
+    @Override
+    public long memoryUsage() {
+        long bytes = SHALLOW + index.memoryUsage() + blockBytes;
+        for (final var e : groups.entrySet()) bytes += Memory.string(e.getKey()) + e.getValue().memoryUsage();
+        return bytes;
+    }
+}
@@ -0,0 +1,788 @@
+package org.dice.core;
+
+import org.dice.config.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.dice.core.RESPEncoder.RESP_EMPTY_ARRAY;
+import static org.dice.core.RESPEncoder.RESP_NIL;
+import static org.dice.core.RESPEncoder.RESP_NIL_ARRAY;
+import static org.dice.core.RESPEncoder.RESP_OK;
+import static org.dice.core.RESPEncoder.encodeArray;
+import static org.dice.core.RESPEncoder.encodeBulkString;
+import static org.dice.core.RESPEncoder.encodeError;
+import static org.dice.core.RESPEncoder.encodeLong;
+
+/**
+ * The stream commands, in the manner of Redis: appends, range reads, trimming and consumer groups. The values
+ * are {@link StreamValue}s.
+ * <p>
+ * Unlike lists, streams are not deleted when they become empty, they keep their last ID and their groups. XADD
+ * with a generated ID is propagated to the replicas with the ID it generated, and XCLAIM as the claims it made, so
+ * that replicas end up with the same entries.
+ * <p>
+ * XREAD and XREADGROUP with the BLOCK option reply with a null array when there is nothing to read, which is what
+ * they do inside functions and when applied from the replication stream. For client commands {@link Eval} then
+ * hands the command to {@link Blocking}, which runs it again, see {@link #retry(RedisCmd)}, when XADD notifies
+ * one of its keys.
+ * <p>
+ * All commands run under the {@link Store} lock.
+ */
+final class Streams {
+
+    private Streams() {}
+
+    private static final byte[] WRONGTYPE = encodeError(Eval.WRONGTYPE);
+    private static final byte[] NOT_AN_INTEGER = encodeError("ERR value is not an integer or out of range");
+    private static final byte[] SYNTAX_ERROR = encodeError("ERR syntax error");
+    private static final byte[] INVALID_ID = encodeError("ERR Invalid stream ID specified as stream command argument");
+    private static final byte[] ID_TOO_SMALL =
+            encodeError("ERR The ID specified in XADD is equal or smaller than the target stream top item");
+    private static final byte[] REQUIRES_KEY = encodeError("ERR The XGROUP subcommand requires the key to exist. " +
+            "Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.");
+
+    /**
+     * An error reply thrown while parsing the arguments.
+     */
+    private static final class Invalid extends RuntimeException {
+        private final byte[] reply;
+
+        private Invalid(final byte[] reply) {
+            super(null, null, false, false);
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * The arguments of a command with options, read in order.
+     */
+    private static final class Args {
+        private final String[] args;
+        private int i;
+
+        private Args(final String[] args, final int from) {
+            this.args = args;
+            this.i = from;
+        }
+
+        private boolean has() {
+            return i < args.length;
+        }
+
+        private boolean nextIs(final String option) {
+            return has() && args[i].equalsIgnoreCase(option);
+        }
+
+        private String next() {
+            if (!has()) throw new Invalid(SYNTAX_ERROR);
+            return args[i++];
+        }
+    }
+
+    private static long integer(final String arg) {
+        try {return Long.parseLong(arg);}
+        catch (final NumberFormatException e) {throw new Invalid(NOT_AN_INTEGER);}
+    }
+
+    private static StreamId id(final String arg, final long missingSeq) {
+        final var id = StreamId.parse(arg, missingSeq);
+        if (id == null) throw new Invalid(INVALID_ID);
+        return id;
+    }
+
+    /**
+     * Parses a bound of a range: an ID, {@code -}, {@code +}, or an ID prefixed with {@code (} to exclude it. A
+     * start given as {@code <ms>} starts at {@code <ms>-0}, an end ends at the last sequence of the millisecond.
+     */
+    private static StreamId bound(final String arg, final boolean start) {
+        if (arg.equals("-")) return StreamId.MIN;
+        if (arg.equals("+")) return StreamId.MAX;
+        if (!arg.startsWith("(")) return id(arg, start ? 0 : -1);
+        final var id = id(arg.substring(1), start ? 0 : -1);
+        final var bound = start ? id.next() : id.previous();
+        if (bound == null) throw new Invalid(encodeError("ERR invalid %s ID for the interval".formatted(start ? "start" : "end")));
+        return bound;
+    }
+
+    private static StreamValue streamOf(final Obj obj) {
+        if (obj == null) return null;
+        if (obj.type != Obj.TYPE_STREAM) throw new Invalid(WRONGTYPE);
+        return (StreamValue) obj.value;
+    }
+
+    private static StreamValue.Group groupOf(final StreamValue stream, final String key, final String group) {
+        final var g = stream == null ? null : stream.groups().get(group);
+        if (g == null) throw new Invalid(encodeError("NOGROUP No such key '%s' or consumer group '%s'".formatted(key, group)));
+        return g;
+    }
+
+    /**
+     * Rewrites a stream mutated in place.
+     *
+     * @param before the {@link Memory#value(Object)} of the stream before the mutation
+     */
+    private static void written(final String key, final Obj obj, final long before) {
+        Memory.resized(Memory.value(obj.value) - before);
+        Store.put(key, obj);
+    }
+
+    private static byte[] entryReply(final StreamValue.Entry entry) {
+        final var fields = new ArrayList<byte[]>(entry.fields().length);
+        for (final var field : entry.fields()) fields.add(encodeBulkString(field));
+        return encodeArray(List.of(encodeBulkString(entry.id().toString()), encodeArray(fields)));
+    }
+
+    /**
+     * @return the entries read from a stream, keyed by the stream, as XREAD and XREADGROUP reply
+     */
+    private static byte[] streamReply(final String key, final List<byte[]> entries) {
+        return encodeArray(List.of(encodeBulkString(key), encodeArray(entries)));
+    }
+
+    /**
+     * The trimming options of XADD and XTRIM: MAXLEN | MINID [= | ~] threshold [LIMIT count].
+     *
+     * @param minId null to trim by length
+     */
+    private record Trim(long maxLength, StreamId minId, boolean approximate, long limit) {
+
+        private static Trim parse(final Args args) {
+            final boolean byLength = args.next().equalsIgnoreCase("MAXLEN");
+            boolean approximate = false;
+            if (args.nextIs("~") || args.nextIs("=")) approximate = args.next().equals("~");
+            final var threshold = args.next();
+            long maxLength = 0;
+            StreamId minId = null;
+            if (byLength) {
+                maxLength = integer(threshold);
+                if (maxLength < 0) throw new Invalid(encodeError("ERR The MAXLEN argument must be >= 0."));
+            } else {
+                minId = id(threshold, 0);
+            }
+            // as in Redis an approximate trim removes at most 100 nodes worth of entries by default
+            final int nodeEntries = Config.STREAM_NODE_MAX_ENTRIES.get();
+            long limit = approximate ? 100L * (nodeEntries == 0 ? 100 : nodeEntries) : 0;
+            if (args.nextIs("LIMIT")) {
+                args.next();
+                limit = integer(args.next());
+                if (limit < 0) throw new Invalid(encodeError("ERR The LIMIT argument must be >= 0."));
+                if (!approximate) throw new Invalid(encodeError("ERR syntax error, LIMIT cannot be used without the special ~ option"));
+            }
+            return new Trim(maxLength, minId, approximate, limit);
+        }
+
+        private long apply(final StreamValue stream) {
+            return stream.trim(maxLength, minId, approximate, limit);
+        }
+    }
+
+    /**
+     * @return the ID of a new entry given as {@code *}, {@code <ms>-*} or in full
+     */
+    private static StreamId newId(final String arg, final StreamId last) {
+        final StreamId id;
+        if (arg.equals("*")) {
+            final long now = System.currentTimeMillis();
+            id = Long.compareUnsigned(now, last.ms()) > 0 ? new StreamId(now, 0) : last.next();
+            if (id == null) throw new Invalid(encodeError("ERR The stream has exhausted the last possible ID, unable to add more items"));
+        } else if (arg.endsWith("-*") && arg.indexOf('-') == arg.length() - 2) {
+            final long ms = id(arg.substring(0, arg.length() - 2), 0).ms();
+            final int c = Long.compareUnsigned(ms, last.ms());
+            if (c < 0 || c == 0 && last.seq() == -1) throw new Invalid(ID_TOO_SMALL);
+            id = new StreamId(ms, c == 0 ? last.seq() + 1 : 0);
+        } else {
+            id = id(arg, 0);
+        }
+        if (id.equals(StreamId.MIN)) throw new Invalid(encodeError("ERR The ID specified in XADD must be greater than 0-0"));
+        if (id.compareTo(last) <= 0) throw new Invalid(ID_TOO_SMALL);
+        return id;
+    }
+
+    /**
+     * XADD key [NOMKSTREAM] [MAXLEN | MINID [= | ~] threshold [LIMIT count]] * | id field value [field value ...]
+     * <p>
+     * Binary safe: the fields and values are stored as the bytes they were received as.
+     */
+    static byte[] xadd(final RedisCmd cmd) {
+        final var args = cmd.args();
+        if (args.length < 4) return Eval.wrongArgs("xadd");
+        try {
+            final var key = args[0];
+            final var options = new Args(args, 1);
+            boolean noMkStream = false;
+            Trim trim = null;
+            while (true) {
+                if (options.nextIs("NOMKSTREAM")) {
+                    options.next();
+                    noMkStream = true;
+                } else if (options.nextIs("MAXLEN") || options.nextIs("MINID")) {
+                    trim = Trim.parse(options);
+                } else {
+                    break;
+                }
+            }
+            final int idIndex = options.i;
+            final int values = args.length - idIndex - 1;
+            if (values <= 0 || values % 2 != 0) return Eval.wrongArgs("xadd");
+            final var obj = Store.get(key);
+            var stream = streamOf(obj);
+            if (stream == null && noMkStream) return RESP_NIL;
+            if (stream == null) stream = new StreamValue();
+            final var id = newId(args[idIndex], stream.lastId());
+            final var fields = cmd.argBytesFrom(idIndex + 1);
+            final long before = obj == null ? 0 : Memory.value(stream);
+            stream.append(id, fields);
+            if (trim != null) trim.apply(stream);
+            if (obj == null) Store.put(key, new Obj(Obj.TYPE_STREAM, Obj.ENCODING_STREAM, stream));
+            else written(key, obj, before);
+            Blocking.keyReady(key);
+            if (!args[idIndex].equals(id.toString())) {
+                // replicas must add the same ID, not generate their own
+                final var exact = cmd.argBytesFrom(0);
+                exact[idIndex] = id.toString().getBytes(StandardCharsets.US_ASCII);
+                Eval.propagateAs(List.of(RedisCmd.of("XADD", exact)));
+            }
+            return encodeBulkString(id.toString());
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XTRIM key MAXLEN | MINID [= | ~] threshold [LIMIT count]
+     */
+    static byte[] xtrim(final String[] args) {
+        if (args.length < 3) return Eval.wrongArgs("xtrim");
+        try {
+            final var options = new Args(args, 1);
+            if (!options.nextIs("MAXLEN") && !options.nextIs("MINID")) return SYNTAX_ERROR;
+            final var trim = Trim.parse(options);
+            if (options.has()) return SYNTAX_ERROR;
+            final var obj = Store.get(args[0]);
+            final var stream = streamOf(obj);
+            if (stream == null) return encodeLong(0);
+            final long before = Memory.value(stream);
+            final long removed = trim.apply(stream);
+            if (removed > 0) written(args[0], obj, before);
+            return encodeLong(removed);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XDEL key id [id ...]
+     */
+    static byte[] xdel(final String[] args) {
+        if (args.length < 2) return Eval.wrongArgs("xdel");
+        try {
+            final var ids = new StreamId[args.length - 1];
+            for (int i = 0; i < ids.length; i++) ids[i] = id(args[i + 1], 0);
+            final var obj = Store.get(args[0]);
+            final var stream = streamOf(obj);
+            if (stream == null) return encodeLong(0);
+            final long before = Memory.value(stream);
+            long deleted = 0;
+            for (final var id : ids) {
+                if (stream.delete(id)) deleted++;
+            }
+            if (deleted > 0) written(args[0], obj, before);
+            return encodeLong(deleted);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XLEN key
+     */
+    static byte[] xlen(final String[] args) {
+        if (args.length != 1) return Eval.wrongArgs("xlen");
+        try {
+            final var stream = streamOf(Store.get(args[0]));
+            return encodeLong(stream == null ? 0 : stream.length());
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XRANGE key start end [COUNT count], XREVRANGE key end start [COUNT count]
+     */
+    static byte[] xrange(final String[] args, final boolean reverse) {
+        if (args.length != 3 && args.length != 5) {
+            return args.length < 3 ? Eval.wrongArgs(reverse ? "xrevrange" : "xrange") : SYNTAX_ERROR;
+        }
+        try {
+            final var from = bound(args[reverse ? 2 : 1], true);
+            final var to = bound(args[reverse ? 1 : 2], false);
+            long count = -1;
+            if (args.length == 5) {
+                if (!args[3].equalsIgnoreCase("COUNT")) return SYNTAX_ERROR;
+                count = Math.max(0, integer(args[4]));
+            }
+            final var stream = streamOf(Store.get(args[0]));
+            if (stream == null || count == 0) return RESP_EMPTY_ARRAY;
+            final long limit = count;
+            final var entries = new ArrayList<byte[]>();
+            stream.range(from, to, reverse, e -> {
+                entries.add(entryReply(e));
+                return limit < 0 || entries.size() < limit;
+            });
+            return encodeArray(entries);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * The arguments of XREAD and XREADGROUP.
+     *
+     * @param count -1 for no limit
+     * @param block the BLOCK timeout in milliseconds, -1 without BLOCK
+     * @param group null for XREAD
+     * @param keys  the index of the first key
+     */
+    record Read(long count, long block, String group, String consumer, boolean noAck, int keys, int streams) {
+
+        /**
+         * @throws Invalid if the arguments are malformed
+         */
+        private static Read parse(final String[] args, final boolean xreadgroup) {
+            long count = -1, block = -1;
+            String group = null, consumer = null;
+            boolean noAck = false;
+            final var options = new Args(args, 0);
+            while (true) {
+                final var option = options.next().toUpperCase();
+                if (option.equals("STREAMS")) break;
+                switch (option) {
+                    case "COUNT" -> {
+                        count = integer(options.next());
+                        if (count <= 0) count = -1;
+                    }
+                    case "BLOCK" -> {
+                        try {block = Long.parseLong(options.next());}
+                        catch (final NumberFormatException e) {throw new Invalid(encodeError("ERR timeout is not an integer or out of range"));}
+                        if (block < 0) throw new Invalid(encodeError("ERR timeout is negative"));
+                    }
+                    case "GROUP" -> {
+                        if (!xreadgroup) throw new Invalid(SYNTAX_ERROR);
+                        group = options.next();
+                        consumer = options.next();
+                    }
+                    case "NOACK" -> {
+                        if (!xreadgroup) throw new Invalid(SYNTAX_ERROR);
+                        noAck = true;
+                    }
+                    default -> throw new Invalid(SYNTAX_ERROR);
+                }
+            }
+            final int remaining = args.length - options.i;
+            if (remaining == 0 || remaining % 2 != 0) {
+                throw new Invalid(encodeError(("ERR Unbalanced '%s' list of streams: for each stream key an ID or " +
+                        "'%s' must be specified.").formatted(xreadgroup ? "xreadgroup" : "xread", xreadgroup ? ">" : "$")));
+            }
+            if (xreadgroup && group == null) throw new Invalid(encodeError("ERR Missing GROUP option for XREADGROUP"));
+            return new Read(count, block, group, consumer, noAck, options.i, remaining / 2);
+        }
+
+        private String key(final String[] args, final int i) {
+            return args[keys + i];
+        }
+
+        private String id(final String[] args, final int i) {
+            return args[keys + streams + i];
+        }
+    }
+
+    /**
+     * @return the keys of XREAD or XREADGROUP, empty if the arguments are malformed
+     */
+    static List<String> readKeys(final RedisCmd cmd) {
+        try {
+            final var read = Read.parse(cmd.args(), cmd.cmd().equals("XREADGROUP"));
+            return Arrays.asList(cmd.args()).subList(read.keys, read.keys + read.streams);
+        } catch (final Invalid e) {return List.of();}
+    }
+
+    /**
+     * @return true if the XREAD or XREADGROUP command has the BLOCK option
+     */
+    static boolean isBlocking(final RedisCmd cmd) {
+        try {return Read.parse(cmd.args(), cmd.cmd().equals("XREADGROUP")).block >= 0;}
+        catch (final Invalid e) {return false;}
+    }
+
+    /**
+     * @return the BLOCK timeout of a valid XREAD or XREADGROUP command in milliseconds, 0 to wait forever
+     */
+    static long blockMillis(final RedisCmd cmd) {
+        return Read.parse(cmd.args(), cmd.cmd().equals("XREADGROUP")).block;
+    }
+
+    /**
+     * Rewrites a valid XREAD or XREADGROUP command that found nothing into the one a blocked client runs again
+     * whenever one of its streams receives entries: without BLOCK and with {@code $} replaced by the last ID of its
+     * stream, so that only the entries added from now on are read.
+     */
+    static RedisCmd retry(final RedisCmd cmd) {
+        final var args = cmd.args();
+        final var read = Read.parse(args, cmd.cmd().equals("XREADGROUP"));
+        final var retry = new ArrayList<String>(args.length);
+        for (int i = 0; i < read.keys; i++) {
+            if (args[i].equalsIgnoreCase("BLOCK")) i++;
+            else retry.add(args[i]);
+        }
+        for (int i = 0; i < read.streams; i++) retry.add(read.key(args, i));
+        for (int i = 0; i < read.streams; i++) {
+            var id = read.id(args, i);
+            if (id.equals("$")) {
+                final var obj = Store.peek(read.key(args, i));
+                id = obj != null && obj.type == Obj.TYPE_STREAM ? ((StreamValue) obj.value).lastId().toString() : "0-0";
+            }
+            retry.add(id);
+        }
+        return new RedisCmd(cmd.cmd(), retry.toArray(String[]::new));
+    }
+
+    /**
+     * XREAD [COUNT count] [BLOCK milliseconds] STREAMS key [key ...] id [id ...]
+     * <p>
+     * Replies with the entries after the IDs, {@code $} standing for the last ID of the stream, or with a null
+     * array if there are none.
+     */
+    static byte[] xread(final String[] args) {
+        if (args.length < 3) return Eval.wrongArgs("xread");
+        try {
+            final var read = Read.parse(args, false);
+            final var replies = new ArrayList<byte[]>();
+            final var starts = new StreamId[read.streams];
+            for (int i = 0; i < read.streams; i++) {
+                if (!read.id(args, i).equals("$")) starts[i] = id(read.id(args, i), 0).next();
+            }
+            for (int i = 0; i < read.streams; i++) {
+                final var key = read.key(args, i);
+                final var stream = streamOf(Store.get(key));
+                if (stream == null) continue;
+                final var start = read.id(args, i).equals("$") ? stream.lastId().next() : starts[i];
+                if (start == null) continue;
+                final var entries = new ArrayList<byte[]>();
+                stream.range(start, StreamId.MAX, false, e -> {
+                    entries.add(entryReply(e));
+                    return read.count < 0 || entries.size() < read.count;
+                });
+                if (!entries.isEmpty()) replies.add(streamReply(key, entries));
+            }
+            return replies.isEmpty() ? RESP_NIL_ARRAY : encodeArray(replies);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XREADGROUP GROUP group consumer [COUNT count] [BLOCK milliseconds] [NOACK] STREAMS key [key ...] id [id ...]
+     * <p>
+     * With the ID {@code >} reads the entries never delivered to the group and adds them to the pending entries of
+     * the consumer, unless NOACK. With any other ID reads the pending entries of the consumer after it, as a history
+     * in which the entries deleted since are null. Replies with a null array if nothing was read.
+     */
+    static byte[] xreadgroup(final String[] args) {
+        if (args.length < 6) return Eval.wrongArgs("xreadgroup");
+        try {
+            final var read = Read.parse(args, true);
+            final var starts = new StreamId[read.streams];
+            for (int i = 0; i < read.streams; i++) {
+                final var id = read.id(args, i);
+                if (id.equals("$")) {
+                    return encodeError("ERR The $ ID is meaningless in the context of XREADGROUP: you want to read " +
+                            "the history of this consumer by specifying a proper ID, or use the > ID to get new " +
+                            "messages. The > ID returns new messages.");
+                }
+                if (!id.equals(">")) starts[i] = id(id, 0).next();
+            }
+            final var objs = new Obj[read.streams];
+            for (int i = 0; i < read.streams; i++) {
+                final var key = read.key(args, i);
+                objs[i] = Store.get(key);
+                final var stream = streamOf(objs[i]);
+                if (stream == null || !stream.groups().containsKey(read.group)) {
+                    return encodeError("NOGROUP No such key '%s' or consumer group '%s' in XREADGROUP with GROUP option"
+                            .formatted(key, read.group));
+                }
+            }
+            final long now = System.currentTimeMillis();
+            final var replies = new ArrayList<byte[]>();
+            for (int i = 0; i < read.streams; i++) {
+                final var key = read.key(args, i);
+                final var stream = (StreamValue) objs[i].value;
+                final long before = Memory.value(stream);
+                final var group = stream.groups().get(read.group);
+                final var consumer = group.consumer(read.consumer, now);
+                consumer.seenTime = now;
+                final var entries = new ArrayList<byte[]>();
+                if (read.id(args, i).equals(">")) {
+                    final var start = group.lastDelivered.next();
+                    if (start != null) {
+                        stream.range(start, StreamId.MAX, false, e -> {
+                            group.lastDelivered = e.id();
+                            if (!read.noAck) group.deliver(e.id(), consumer, now, 1);
+                            entries.add(entryReply(e));
+                            return read.count < 0 || entries.size() < read.count;
+                        });
+                    }
+                    if (!entries.isEmpty()) {
+                        consumer.activeTime = now;
+                        replies.add(streamReply(key, entries));
+                    }
+                } else {
+                    var node = starts[i] == null ? null : consumer.pending.ceiling(starts[i].key());
+                    for (; node != null && (read.count < 0 || entries.size() < read.count);
+                         node = consumer.pending.higher(node.getKey())) {
+                        final var id = StreamId.fromKey(node.getKey());
+                        final var entry = stream.get(id);
+                        entries.add(entry != null ? entryReply(entry) :
+                                encodeArray(List.of(encodeBulkString(id.toString()), RESP_NIL_ARRAY)));
+                    }
+                    replies.add(streamReply(key, entries));
+                }
+                written(key, objs[i], before);
+            }
+            return replies.isEmpty() ? RESP_NIL_ARRAY : encodeArray(replies);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XACK key group id [id ...]
+     */
+    static byte[] xack(final String[] args) {
+        if (args.length < 3) return Eval.wrongArgs("xack");
+        try {
+            final var ids = new StreamId[args.length - 2];
+            for (int i = 0; i < ids.length; i++) ids[i] = id(args[i + 2], 0);
+            final var obj = Store.get(args[0]);
+            final var stream = streamOf(obj);
+            final var group = stream == null ? null : stream.groups().get(args[1]);
+            if (group == null) return encodeLong(0);
+            final long before = Memory.value(stream);
+            long acknowledged = 0;
+            for (final var id : ids) {
+                if (group.acknowledge(id.key())) acknowledged++;
+            }
+            if (acknowledged > 0) written(args[0], obj, before);
+            return encodeLong(acknowledged);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XGROUP CREATE key group id | $ [MKSTREAM], XGROUP SETID key group id | $, XGROUP DESTROY key group,
+     * XGROUP CREATECONSUMER key group consumer, XGROUP DELCONSUMER key group consumer
+     */
+    static byte[] xgroup(final String[] args) {
+        if (args.length == 0) return Eval.wrongArgs("xgroup");
+        final var subcommand = args[0].toUpperCase();
+        final int arity = switch (subcommand) {
+            case "CREATE", "SETID", "CREATECONSUMER", "DELCONSUMER" -> 4;
+            case "DESTROY" -> 3;
+            default -> 0;
+        };
+        if (arity == 0) return encodeError("ERR unknown subcommand '%s'. Try XGROUP HELP.".formatted(args[0]));
+        final boolean mkStream = subcommand.equals("CREATE") && args.length == 5 && args[4].equalsIgnoreCase("MKSTREAM");
+        if (args.length != arity && !mkStream) {
+            return args.length > arity && subcommand.equals("CREATE") ? SYNTAX_ERROR :
+                    Eval.wrongArgs("xgroup|" + subcommand.toLowerCase());
+        }
+        try {
+            final var key = args[1];
+            final var name = args[2];
+            final boolean setsId = subcommand.equals("CREATE") || subcommand.equals("SETID");
+            final var id = setsId && !args[3].equals("$") ? id(args[3], 0) : null;
+            final var obj = Store.get(key);
+            var stream = streamOf(obj);
+            if (stream == null && !mkStream) return REQUIRES_KEY;
+            if (stream == null) stream = new StreamValue();
+            final long before = obj == null ? 0 : Memory.value(stream);
+            final byte[] reply;
+            switch (subcommand) {
+                case "CREATE" -> {
+                    if (stream.groups().containsKey(name)) return encodeError("BUSYGROUP Consumer Group name already exists");
+                    stream.groups().put(name, new StreamValue.Group(id != null ? id : stream.lastId()));
+                    reply = RESP_OK;
+                }
+                case "SETID" -> {
+                    groupOf(stream, key, name).lastDelivered = id != null ? id : stream.lastId();
+                    reply = RESP_OK;
+                }
+                case "DESTROY" -> {
+                    if (stream.groups().remove(name) == null) return encodeLong(0);
+                    // its blocked readers get an error
+                    Blocking.keyReady(key);
+                    reply = encodeLong(1);
+                }
+                case "CREATECONSUMER" -> {
+                    final var group = groupOf(stream, key, name);
+                    if (group.consumers.containsKey(args[3])) return encodeLong(0);
+                    group.consumer(args[3], System.currentTimeMillis());
+                    reply = encodeLong(1);
+                }
+                default -> reply = encodeLong(Math.max(0, groupOf(stream, key, name).deleteConsumer(args[3])));
+            }
+            if (obj == null) Store.put(key, new Obj(Obj.TYPE_STREAM, Obj.ENCODING_STREAM, stream));
+            else written(key, obj, before);
+            return reply;
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XPENDING key group [[IDLE min-idle-time] start end count [consumer]]
+     * <p>
+     * Without a range replies with a summary: the number of pending entries, the smallest and greatest of their
+     * IDs and the number of them per consumer. With a range replies with the ID, consumer, idle time and delivery
+     * count of each pending entry in it.
+     */
+    static byte[] xpending(final String[] args) {
+        if (args.length < 2) return Eval.wrongArgs("xpending");
+        try {
+            final boolean extended = args.length > 2;
+            long minIdle = 0, count = 0;
+            StreamId start = null, end = null;
+            String consumerName = null;
+            if (extended) {
+                final var options = new Args(args, 2);
+                if (options.nextIs("IDLE")) {
+                    options.next();
+                    minIdle = integer(options.next());
+                }
+                final int remaining = args.length - options.i;
+                if (remaining != 3 && remaining != 4) return SYNTAX_ERROR;
+                start = bound(options.next(), true);
+                end = bound(options.next(), false);
+                count = Math.max(0, integer(options.next()));
+                if (options.has()) consumerName = options.next();
+            }
+            final var group = groupOf(streamOf(Store.get(args[0])), args[0], args[1]);
+            if (!extended) {
+                if (group.pending.size() == 0) return encodeArray(List.of(encodeLong(0), RESP_NIL, RESP_NIL, RESP_NIL_ARRAY));
+                final var consumers = new ArrayList<byte[]>();
+                for (final var consumer : group.consumers.values()) {
+                    if (consumer.pending.size() == 0) continue;
+                    consumers.add(encodeArray(List.of(encodeBulkString(consumer.name),
+                            encodeBulkString(Long.toString(consumer.pending.size())))));
+                }
+                return encodeArray(List.of(encodeLong(group.pending.size()),
+                        encodeBulkString(StreamId.fromKey(group.pending.first().getKey()).toString()),
+                        encodeBulkString(StreamId.fromKey(group.pending.last().getKey()).toString()),
+                        encodeArray(consumers)));
+            }
+            final Rax<StreamValue.Pending> pending;
+            if (consumerName == null) {
+                pending = group.pending;
+            } else {
+                final var consumer = group.consumers.get(consumerName);
+                if (consumer == null) return RESP_EMPTY_ARRAY;
+                pending = consumer.pending;
+            }
+            final long now = System.currentTimeMillis();
+            final var entries = new ArrayList<byte[]>();
+            for (var node = pending.ceiling(start.key()); node != null && entries.size() < count;
+                 node = pending.higher(node.getKey())) {
+                final var id = StreamId.fromKey(node.getKey());
+                if (id.compareTo(end) > 0) break;
+                final var p = node.getValue();
+                final long idle = Math.max(0, now - p.deliveryTime);
+                if (idle < minIdle) continue;
+                entries.add(encodeArray(List.of(encodeBulkString(id.toString()), encodeBulkString(p.consumer.name),
+                        encodeLong(idle), encodeLong(p.deliveryCount))));
+            }
+            return encodeArray(entries);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XCLAIM key group consumer min-idle-time id [id ...] [IDLE ms] [TIME unix-time-milliseconds]
+     * [RETRYCOUNT count] [FORCE] [JUSTID] [LASTID id]
+     * <p>
+     * Takes the pending entries idle for at least the given time for the consumer. FORCE creates the pending
+     * entries that do not exist yet, of entries still in the stream. Pending entries deleted from the stream are
+     * acknowledged instead. Every claim is propagated as its own XCLAIM with the delivery time and count it set.
+     */
+    static byte[] xclaim(final String[] args) {
+        if (args.length < 5) return Eval.wrongArgs("xclaim");
+        try {
+            final long now = System.currentTimeMillis();
+            final long minIdle = Math.max(0, integer(args[3]));
+            final var options = new Args(args, 4);
+            final var ids = new ArrayList<StreamId>();
+            while (options.has() && StreamId.parse(options.args[options.i], 0) != null) ids.add(id(options.next(), 0));
+            if (ids.isEmpty()) return INVALID_ID;
+            long deliveryTime = now, retryCount = -1;
+            boolean force = false, justId = false;
+            StreamId lastId = null;
+            while (options.has()) {
+                switch (options.next().toUpperCase()) {
+                    case "IDLE" -> deliveryTime = now - Math.max(0, integer(options.next()));
+                    case "TIME" -> deliveryTime = integer(options.next());
+                    case "RETRYCOUNT" -> retryCount = Math.max(0, integer(options.next()));
+                    case "FORCE" -> force = true;
+                    case "JUSTID" -> justId = true;
+                    case "LASTID" -> lastId = id(options.next(), 0);
+                    default -> {return SYNTAX_ERROR;}
+                }
+            }
+            deliveryTime = Math.min(deliveryTime, now);
+            final var key = args[0];
+            final var obj = Store.get(key);
+            final var stream = streamOf(obj);
+            final var group = groupOf(stream, key, args[1]);
+            final long before = Memory.value(stream);
+            final var consumer = group.consumer(args[2], now);
+            consumer.seenTime = now;
+            final boolean movesLastId = lastId != null && lastId.compareTo(group.lastDelivered) > 0;
+            if (movesLastId) group.lastDelivered = lastId;
+            final var claimed = new ArrayList<byte[]>();
+            final var propagated = new ArrayList<RedisCmd>();
+            for (final var id : ids) {
+                final var pending = group.pending.get(id.key());
+                final var entry = stream.get(id);
+                if (pending == null && (!force || entry == null)) continue;
+                if (pending != null && entry == null) {
+                    group.acknowledge(id.key());
+                    propagated.add(new RedisCmd("XACK", new String[]{key, args[1], id.toString()}));
+                    continue;
+                }
+                if (pending != null && minIdle > 0 && now - pending.deliveryTime < minIdle) continue;
+                final long deliveries = retryCount >= 0 ? retryCount :
+                        (pending == null ? 1 : pending.deliveryCount) + (justId ? 0 : 1);
+                group.deliver(id, consumer, deliveryTime, deliveries);
+                consumer.activeTime = now;
+                claimed.add(justId ? encodeBulkString(id.toString()) : entryReply(entry));
+                propagated.add(new RedisCmd("XCLAIM", new String[]{key, args[1], args[2], "0", id.toString(),
+                        "TIME", Long.toString(deliveryTime), "RETRYCOUNT", Long.toString(deliveries), "FORCE",
+                        "JUSTID", "LASTID", group.lastDelivered.toString()}));
+            }
+            if (movesLastId && claimed.isEmpty()) {
+                propagated.add(new RedisCmd("XGROUP", new String[]{"SETID", key, args[1], group.lastDelivered.toString()}));
+            }
+            Eval.propagateAs(propagated);
+            written(key, obj, before);
+            return encodeArray(claimed);
+        } catch (final Invalid e) {return e.reply;}
+    }
+
+    /**
+     * XSETID key last-id
+     * <p>
+     * The last ID cannot be smaller than the last entry of the stream nor than the greatest ID deleted by XDEL.
+     */
+    static byte[] xsetid(final String[] args) {
+        if (args.length != 2) return Eval.wrongArgs("xsetid");
+        try {
+            final var id = id(args[1], 0);
+            final var obj = Store.get(args[0]);
+            final var stream = streamOf(obj);
+            if (stream == null) return encodeError("ERR no such key");
+            final var last = stream.lastEntryId();
+            if (last != null && id.compareTo(last) < 0) {
+                return encodeError("ERR The ID specified in XSETID is smaller than the target stream top item");
+            }
+            if (id.compareTo(stream.maxDeletedId()) < 0) {
+                return encodeError("ERR The ID specified in XSETID is smaller than current max_deleted_entry_id");
+            }
+            final long before = Memory.value(stream);
+            stream.setLastId(id);
+            written(args[0], obj, before);
+            return RESP_OK;
+        } catch (final Invalid e) {return e.reply;}
+    }
+}
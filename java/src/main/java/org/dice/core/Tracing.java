@@ -0,0 +1,79 @@
+package org.dice.core;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sampled tracing of individual requests, switched on and off at runtime with the TRACE command.
+ * <p>
+ * A traced request is logged as one line of key=value pairs to the {@code org.dice.trace} logger, with the time
+ * spent decoding it, the time spent executing it, lock wait included, the size of its reply and the output pending
+ * for the client. Requests are traced at random with the configured probability, and every request of the
+ * clients traced explicitly. When tracing is off the cost per request is the read of a volatile field.
+ */
+public final class Tracing {
+
+    private Tracing() {}
+
+    private static final Logger logger = LogManager.getLogger("org.dice.trace");
+
+    private static volatile double sampleRate;
+
+    /**
+     * Decides whether the next request of the client is traced.
+     */
+    public static boolean sample(final Client client) {
+        final double rate = sampleRate;
+        if (client.isTraced()) return true;
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /**
+     * Logs a traced request.
+     *
+     * @param decodeNanos the time spent decoding the request
+     * @param execNanos   the time spent executing it
+     * @param replyBytes  the size of the reply
+     */
+    public static void span(final Client client, final RedisCmd cmd, final long decodeNanos, final long execNanos,
+                            final int replyBytes) {
+        logger.info("client={} addr={} cmd={} args={} decode_us={} exec_us={} reply_bytes={} pending_bytes={}",
+                client.id, client.addr, cmd.cmd(), cmd.args().length, decodeNanos / 1000.0, execNanos / 1000.0,
+                replyBytes, client.pendingBytes());
+    }
+
+    /**
+     * TRACE RATE probability | CLIENT client-id ON|OFF | STATUS
+     */
+    static byte[] command(final String[] args) {
+        if (args.length == 0) return RESPEncoder.encodeError("ERR wrong number of arguments for 'trace' command");
+        return switch (args[0].toUpperCase()) {
+            case "RATE" -> {
+                if (args.length != 2) yield RESPEncoder.encodeError("ERR wrong number of arguments for 'trace|rate' command");
+                final double rate;
+                try {rate = Double.parseDouble(args[1]);}
+                catch (final NumberFormatException e) {yield RESPEncoder.encodeError("ERR value is not a valid float");}
+                if (!(rate >= 0 && rate <= 1)) yield RESPEncoder.encodeError("ERR rate must be between 0 and 1");
+                sampleRate = rate;
+                yield RESPEncoder.RESP_OK;
+            }
+            case "CLIENT" -> {
+                if (args.length != 3) yield RESPEncoder.encodeError("ERR wrong number of arguments for 'trace|client' command");
+                final Client client;
+                try {client = Client.byId(Long.parseLong(args[1]));}
+                catch (final NumberFormatException e) {yield RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+                if (client == null) yield RESPEncoder.encodeError("ERR No such client");
+                switch (args[2].toUpperCase()) {
+                    case "ON" -> client.traced(true);
+                    case "OFF" -> client.traced(false);
+                    default -> {yield RESPEncoder.encodeError("ERR syntax error");}
+                }
+                yield RESPEncoder.RESP_OK;
+            }
+            case "STATUS" -> RESPEncoder.encodeBulkString("rate:%s\r\n".formatted(sampleRate));
+            default -> RESPEncoder.encodeError("ERR unknown subcommand '%s'".formatted(args[0]));
+        };
+    }
+}
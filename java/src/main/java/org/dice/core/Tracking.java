@@ -0,0 +1,198 @@
+package org.dice.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Server assisted client side caching.
+ * <p>
+ * A client with tracking enabled may cache the values it reads, the server tells it when to drop them with an
+ * {@code invalidate} message. In the default mode the server remembers which clients read which keys and only
+ * notifies those, once per read: a key has to be read again to be tracked again. In broadcast mode nothing is
+ * remembered per key, the client is notified of every write of a key starting with one of its prefixes.
+ * <p>
+ * RESP3 clients receive the messages as pushes on their own connection. RESP2 connections cannot carry pushes,
+ * they have to redirect the messages to another connection subscribed to {@value #CHANNEL}.
+ * <p>
+ * All methods must be called with the {@link Store} lock held.
+ */
+public final class Tracking {
+
+    private Tracking() {}
+
+    static final String CHANNEL = "__redis__:invalidate";
+
+    private static final byte[] INVALIDATE = RESPEncoder.encodeBulkString("invalidate");
+    private static final byte[] MESSAGE = RESPEncoder.encodeBulkString("message");
+    private static final byte[] CHANNEL_BULK = RESPEncoder.encodeBulkString(CHANNEL);
+
+    /**
+     * The clients that read a key since its last invalidation, for the default mode. Entries of clients that
+     * turned tracking off or disconnected are only dropped when the key is invalidated.
+     */
+    private static final HashMap<String, Set<Client>> readers = new HashMap<>();
+
+    /**
+     * The broadcast mode clients per prefix.
+     */
+    private static final HashMap<String, Set<Client>> prefixes = new HashMap<>();
+
+    private static final Set<Client> trackers = new LinkedHashSet<>();
+
+    /**
+     * The client whose command is being executed, null for commands applied from the replication stream. Used to
+     * skip the writer's own invalidations in NOLOOP mode.
+     */
+    static Client caller;
+
+    /**
+     * CLIENT TRACKING ON|OFF [REDIRECT client-id] [PREFIX prefix [PREFIX prefix ...]] [BCAST] [NOLOOP]
+     */
+    static byte[] command(final Client client, final String[] args) {
+        if (args.length == 0) return RESPEncoder.encodeError("ERR wrong number of arguments for 'client|tracking' command");
+        long redirect = 0;
+        boolean bcast = false, noloop = false;
+        final var newPrefixes = new LinkedHashSet<String>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i].toUpperCase()) {
+                case "BCAST" -> bcast = true;
+                case "NOLOOP" -> noloop = true;
+                case "PREFIX" -> {
+                    if (++i == args.length) return RESPEncoder.encodeError("ERR syntax error");
+                    newPrefixes.add(args[i]);
+                }
+                case "REDIRECT" -> {
+                    if (++i == args.length) return RESPEncoder.encodeError("ERR syntax error");
+                    try {redirect = Long.parseLong(args[i]);}
+                    catch (final NumberFormatException e) {return RESPEncoder.encodeError("ERR value is not an integer or out of range");}
+                    if (redirect == client.id) return RESPEncoder.encodeError("ERR A client cannot redirect tracking messages to itself");
+                    if (Client.byId(redirect) == null) return RESPEncoder.encodeError("ERR The client ID you want redirect to does not exist");
+                }
+                case "OPTIN", "OPTOUT" -> {return RESPEncoder.encodeError("ERR OPTIN and OPTOUT are not supported");}
+                default -> {return RESPEncoder.encodeError("ERR syntax error");}
+            }
+        }
+        switch (args[0].toUpperCase()) {
+            case "ON" -> {
+                if (!bcast && !newPrefixes.isEmpty())
+                    return RESPEncoder.encodeError("ERR PREFIX option requires BCAST mode to be enabled");
+                if (client.tracking && client.trackingBcast != bcast)
+                    return RESPEncoder.encodeError("ERR You can't switch BCAST mode on/off before disabling tracking for this client, and then re-enabling it with a different mode.");
+                if (bcast && newPrefixes.isEmpty()) newPrefixes.add("");
+                enable(client, redirect, bcast, noloop, newPrefixes);
+            }
+            case "OFF" -> disable(client);
+            default -> {return RESPEncoder.encodeError("ERR syntax error");}
+        }
+        return RESPEncoder.RESP_OK;
+    }
+
+    private static void enable(final Client client, final long redirect, final boolean bcast, final boolean noloop,
+                               final Set<String> newPrefixes) {
+        client.tracking = true;
+        client.trackingBcast = bcast;
+        client.trackingNoloop = noloop;
+        client.trackingRedirect = redirect;
+        trackers.add(client);
+        for (final var prefix : newPrefixes) {
+            if (client.trackingPrefixes.add(prefix)) prefixes.computeIfAbsent(prefix, p -> new LinkedHashSet<>()).add(client);
+        }
+    }
+
+    /**
+     * Turns tracking off, also called when the client disconnects.
+     */
+    public static void disable(final Client client) {
+        Store.lock.lock();
+        try {
+            if (!client.tracking) return;
+            for (final var prefix : client.trackingPrefixes) {
+                final var clients = prefixes.get(prefix);
+                clients.remove(client);
+                if (clients.isEmpty()) prefixes.remove(prefix);
+            }
+            client.trackingPrefixes.clear();
+            client.tracking = false;
+            client.trackingBcast = false;
+            client.trackingNoloop = false;
+            client.trackingRedirect = 0;
+            trackers.remove(client);
+            if (trackers.isEmpty()) readers.clear();
+        } finally {Store.lock.unlock();}
+    }
+
+    /**
+     * @return the id of the client the messages are redirected to, 0 if they are not redirected, -1 if tracking is off
+     */
+    static long redirect(final Client client) {
+        if (!client.tracking) return -1;
+        return client.trackingRedirect;
+    }
+
+    /**
+     * Remembers the keys read by a client in the default mode.
+     */
+    static void keysRead(final Client client, final List<String> keys) {
+        if (!client.tracking || client.trackingBcast) return;
+        for (final var key : keys) readers.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(client);
+    }
+
+    /**
+     * Notifies the clients that may have cached the key, called on every write of a key.
+     */
+    static void keyWritten(final String key) {
+        if (trackers.isEmpty()) return;
+        final var clients = readers.remove(key);
+        if (clients != null) {
+            for (final var client : clients) if (client.tracking && !client.trackingBcast) send(client, key);
+        }
+        for (final var entry : prefixes.entrySet()) {
+            if (!key.startsWith(entry.getKey())) continue;
+            for (final var client : entry.getValue()) send(client, key);
+        }
+    }
+
+    /**
+     * Tells every tracking client to drop its whole cache, called when the keyspace is flushed.
+     */
+    static void flushed() {
+        if (trackers.isEmpty()) return;
+        readers.clear();
+        for (final var client : trackers) send(client, null);
+    }
+
+    private static void send(final Client client, final String key) {
+        if (client.trackingNoloop && client == caller) return;
+        var target = client;
+        if (client.trackingRedirect != 0) {
+            target = Client.byId(client.trackingRedirect);
+            if (target == null) {
+                if (client.protocol() == 3) {
+                    client.write(RESPEncoder.encodePush(List.of(RESPEncoder.encodeBulkString("tracking-redir-broken"),
+                            RESPEncoder.encodeLong(client.trackingRedirect))));
+                }
+                return;
+            }
+        }
+        final var keys = key == null ? null : RESPEncoder.encodeStrings(List.of(key));
+        final var out = new ByteArrayOutputStream();
+        if (target.protocol() == 3) {
+            out.writeBytes(">2\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(INVALIDATE);
+            out.writeBytes(keys == null ? RESPEncoder.RESP3_NULL : keys);
+        } else if (client != target && target.isSubscribed()) {
+            out.writeBytes("*3\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(MESSAGE);
+            out.writeBytes(CHANNEL_BULK);
+            out.writeBytes(keys == null ? RESPEncoder.RESP_NIL : keys);
+        } else {
+            // a RESP2 connection that is not redirected has no way to receive the message
+            return;
+        }
+        target.write(out.toByteArray());
+    }
+}
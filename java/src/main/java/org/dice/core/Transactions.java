@@ -0,0 +1,179 @@
+package org.dice.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.dice.core.RESPEncoder.RESP3_NULL;
+import static org.dice.core.RESPEncoder.RESP_NIL_ARRAY;
+import static org.dice.core.RESPEncoder.RESP_OK;
+import static org.dice.core.RESPEncoder.encodeArray;
+import static org.dice.core.RESPEncoder.encodeError;
+import static org.dice.core.RESPEncoder.encodeSimpleString;
+
+/**
+ * MULTI/EXEC transactions and the optimistic locking of WATCH, in the manner of Redis.
+ * <p>
+ * Between MULTI and EXEC the commands of a client are queued, then run one after the other under the
+ * {@link Store} lock, so no other client sees or writes in between. A queued command that does not exist, or
+ * whose keys are served by another cluster node, aborts the transaction at EXEC.
+ * <p>
+ * Watched keys are not registered anywhere: the keyspace is split into {@value #VERSION_SLOTS} buckets by the
+ * hash of the key, each with a counter incremented by every write to one of its keys. WATCH only records the
+ * bucket and counter of each key in the client, and EXEC fails if one of them moved. Watching is therefore a
+ * couple of array reads, writes pay an increment whether or not anybody watches, and nothing is left to clean up
+ * when a client goes away. A write to another key of the same bucket fails the EXEC as well, which costs the client
+ * a retry of its check-and-set loop, 1 write in {@value #VERSION_SLOTS} on average.
+ * <p>
+ * The writes of a transaction are propagated to the replicas wrapped in MULTI and EXEC when there are several, so
+ * that replicas apply them atomically as well.
+ */
+final class Transactions {
+
+    private Transactions() {}
+
+    private static final int VERSION_SLOTS = 1 << 16;
+
+    /**
+     * Guarded by the {@link Store} lock.
+     */
+    private static final long[] versions = new long[VERSION_SLOTS];
+
+    private static final byte[] QUEUED = encodeSimpleString("QUEUED");
+
+    /**
+     * The commands queued by a client since MULTI.
+     */
+    static final class Multi {
+        private final List<RedisCmd> queued = new ArrayList<>();
+        /**
+         * True once a command could not be queued, EXEC then discards the transaction.
+         */
+        private boolean aborted;
+    }
+
+    /**
+     * A watched key: its bucket and the counter of the bucket at the time of WATCH.
+     */
+    record Watched(int slot, long version) {}
+
+    private static int slot(final String key) {
+        final int h = key.hashCode();
+        return (h ^ h >>> 16) & (VERSION_SLOTS - 1);
+    }
+
+    /**
+     * Notes that a key was written or deleted, called by the {@link Store}.
+     */
+    static void keyWritten(final String key) {
+        versions[slot(key)]++;
+    }
+
+    /**
+     * @return a counter that moves whenever the key is written or deleted, and sometimes when other keys are
+     */
+    static long version(final String key) {
+        return versions[slot(key)];
+    }
+
+    /**
+     * Notes that the keyspace was emptied, called by the {@link Store}.
+     */
+    static void flushed() {
+        for (int i = 0; i < VERSION_SLOTS; i++) versions[i]++;
+    }
+
+    /**
+     * Queues a command of a client in a transaction.
+     *
+     * @return the reply to the command
+     */
+    static byte[] queue(final RedisCmd cmd, final Client client) {
+        client.multi.queued.add(cmd);
+        return QUEUED;
+    }
+
+    /**
+     * Marks the transaction of a client as failed, for a command that could not be queued.
+     *
+     * @return the reply to the command
+     */
+    static byte[] abort(final Client client, final byte[] reply) {
+        client.multi.aborted = true;
+        return reply;
+    }
+
+    /**
+     * MULTI
+     */
+    static byte[] multi(final String[] args, final Client client) {
+        if (args.length != 0) return Eval.wrongArgs("multi");
+        if (client.multi != null) return encodeError("ERR MULTI calls can not be nested");
+        client.multi = new Multi();
+        return RESP_OK;
+    }
+
+    /**
+     * DISCARD
+     */
+    static byte[] discard(final String[] args, final Client client) {
+        if (args.length != 0) return Eval.wrongArgs("discard");
+        if (client.multi == null) return encodeError("ERR DISCARD without MULTI");
+        client.multi = null;
+        client.watched = null;
+        return RESP_OK;
+    }
+
+    /**
+     * WATCH key [key ...]
+     */
+    static byte[] watch(final String[] args, final Client client) {
+        if (args.length == 0) return Eval.wrongArgs("watch");
+        if (client.multi != null) return encodeError("ERR WATCH inside MULTI is not allowed");
+        if (client.watched == null) client.watched = new ArrayList<>(args.length);
+        for (final var key : args) {
+            final int slot = slot(key);
+            client.watched.add(new Watched(slot, versions[slot]));
+        }
+        return RESP_OK;
+    }
+
+    /**
+     * UNWATCH
+     */
+    static byte[] unwatch(final String[] args, final Client client) {
+        if (args.length != 0) return Eval.wrongArgs("unwatch");
+        client.watched = null;
+        return RESP_OK;
+    }
+
+    /**
+     * EXEC
+     * <p>
+     * Replies with the replies of the queued commands, or with a null array if a watched key was written since
+     * WATCH. Blocking commands do not block in a transaction, they reply as if their timeout expired.
+     */
+    static byte[] exec(final String[] args, final Client client) {
+        if (args.length != 0) return Eval.wrongArgs("exec");
+        final var multi = client.multi;
+        if (multi == null) return encodeError("ERR EXEC without MULTI");
+        final var watched = client.watched;
+        client.multi = null;
+        client.watched = null;
+        if (multi.aborted) return encodeError("EXECABORT Transaction discarded because of previous errors.");
+        if (watched != null) {
+            for (final var w : watched) {
+                if (versions[w.slot()] != w.version()) return client.protocol() == 3 ? RESP3_NULL : RESP_NIL_ARRAY;
+            }
+        }
+        final var replies = new ArrayList<byte[]>(multi.queued.size());
+        Replication.beginTransaction();
+        try {
+            for (final var cmd : multi.queued) {
+                final var command = Eval.lookup(cmd.cmd());
+                // the commands that run outside the store lock take it again, they still run within the transaction
+                replies.add(command != null ? Eval.dispatch(cmd, command, client) : Eval.execute(cmd, client));
+            }
+        } finally {Replication.endTransaction();}
+        return encodeArray(replies);
+    }
+}
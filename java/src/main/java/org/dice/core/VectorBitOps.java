@@ -0,0 +1,83 @@
+package org.dice.core;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BitOps} on the preferred vector shape of the CPU, 256 bits with AVX2 and 512 bits with AVX-512. The loops
+ * stream through the arrays once and leave the tails shorter than a vector to {@link ScalarBitOps}. Must only be
+ * loaded when {@link Simd#isEnabled()}.
+ */
+public final class VectorBitOps implements BitOps {
+
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = BYTES.withLanes(long.class);
+
+    private final ScalarBitOps scalar = new ScalarBitOps();
+
+    @Override
+    public long bitCount(final byte[] a, final int from, final int to) {
+        final int bound = from + BYTES.loopBound(to - from);
+        var counts = LongVector.zero(LONGS);
+        int i = from;
+        for (; i < bound; i += BYTES.length()) {
+            counts = counts.add(ByteVector.fromArray(BYTES, a, i).reinterpretAsLongs()
+                    .lanewise(VectorOperators.BIT_COUNT));
+        }
+        return counts.reduceLanes(VectorOperators.ADD) + scalar.bitCount(a, i, to);
+    }
+
+    @Override
+    public int indexOfNot(final byte[] a, final int from, final int to, final byte b) {
+        final int bound = from + BYTES.loopBound(to - from);
+        final var skip = ByteVector.broadcast(BYTES, b);
+        int i = from;
+        for (; i < bound; i += BYTES.length()) {
+            final var differs = ByteVector.fromArray(BYTES, a, i).compare(VectorOperators.NE, skip);
+            if (differs.anyTrue()) return i + differs.firstTrue();
+        }
+        return scalar.indexOfNot(a, i, to, b);
+    }
+
+    @Override
+    public void apply(final Op op, final byte[] dest, final byte[] src, final int len) {
+        final int bound = BYTES.loopBound(len);
+        int i = 0;
+        // one loop per operation so that each one compiles to a single vector instruction per step
+        switch (op) {
+            case AND -> {
+                for (; i < bound; i += BYTES.length())
+                    ByteVector.fromArray(BYTES, dest, i).and(ByteVector.fromArray(BYTES, src, i)).intoArray(dest, i);
+            }
+            case OR -> {
+                for (; i < bound; i += BYTES.length())
+                    ByteVector.fromArray(BYTES, dest, i).or(ByteVector.fromArray(BYTES, src, i)).intoArray(dest, i);
+            }
+            case XOR -> {
+                for (; i < bound; i += BYTES.length())
+                    ByteVector.fromArray(BYTES, dest, i).lanewise(VectorOperators.XOR, ByteVector.fromArray(BYTES, src, i))
+                            .intoArray(dest, i);
+            }
+        }
+        scalar.apply(op, dest, src, i, len);
+    }
+
+    @Override
+    public void not(final byte[] dest, final byte[] src, final int len) {
+        final int bound = BYTES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += BYTES.length()) ByteVector.fromArray(BYTES, src, i).not().intoArray(dest, i);
+        scalar.not(dest, src, i, len);
+    }
+
+    @Override
+    public void max(final byte[] dest, final byte[] src, final int len) {
+        final int bound = BYTES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += BYTES.length())
+            ByteVector.fromArray(BYTES, dest, i).max(ByteVector.fromArray(BYTES, src, i)).intoArray(dest, i);
+        scalar.max(dest, src, i, len);
+    }
+}
@@ -0,0 +1,29 @@
+package org.dice.core;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link CrlfScanner} on the preferred vector shape of the CPU, one compare per 32 or 64 bytes. Lines shorter than
+ * a vector, and the tails of longer ones, are left to {@link ScalarCrlfScanner}. Must only be loaded when
+ * {@link Simd#isEnabled()}.
+ */
+public final class VectorCrlfScanner implements CrlfScanner {
+
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    private final ScalarCrlfScanner scalar = new ScalarCrlfScanner();
+
+    @Override
+    public int indexOfCr(final byte[] a, final int from, final int to) {
+        final int bound = from + BYTES.loopBound(to - from);
+        final var cr = ByteVector.broadcast(BYTES, (byte) '\r');
+        int i = from;
+        for (; i < bound; i += BYTES.length()) {
+            final var found = ByteVector.fromArray(BYTES, a, i).compare(VectorOperators.EQ, cr);
+            if (found.anyTrue()) return i + found.firstTrue();
+        }
+        return scalar.indexOfCr(a, i, to);
+    }
+}
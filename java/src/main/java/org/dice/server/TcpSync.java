@@ -3,13 +3,25 @@ package org.dice.server;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dice.config.Config;
+import org.dice.core.Blocking;
+import org.dice.core.Client;
+import org.dice.core.Ct;
+import org.dice.core.Eval;
+import org.dice.core.PubSub;
+import org.dice.core.RESPDecoder;
+import org.dice.core.RESPEncoder;
+import org.dice.core.RedisCmd;
+import org.dice.core.Store;
+import org.dice.core.Tracing;
+import org.dice.core.Tracking;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
 final public class TcpSync {
@@ -18,41 +30,119 @@ final public class TcpSync {
 
     private static final Logger logger = LogManager.getLogger(TcpSync.class);
 
-    public static void runSyncTCPServer(){
+    private static final long CRON_FREQUENCY_MS = 100;
+
+    public static void runSyncTCPServer(final int port){
         try(final var serverSocket = new ServerSocket();
-            final var executor = Executors.newVirtualThreadPerTaskExecutor()){
-            serverSocket.bind(new InetSocketAddress(Config.HOST, Config.PORT));
-            logger.info("Started a virtual thread TCP server on {} {}", Config.HOST, Config.PORT);
+            final var executor = Executors.newVirtualThreadPerTaskExecutor();
+            final var cron = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory())){
+            cron.scheduleWithFixedDelay(Store::cron, CRON_FREQUENCY_MS, CRON_FREQUENCY_MS, TimeUnit.MILLISECONDS);
+            serverSocket.bind(new InetSocketAddress(Config.HOST.get(), port));
+            logger.info("Started a virtual thread TCP server on {} {}", Config.HOST.get(), port);
             while(true){
-                final var clientSocket = serverSocket.accept();
+                final var client = new Client(serverSocket.accept());
+                executor.execute(client::writeLoop);
                 executor.execute(()->{
-                    try{writeToSocket(clientSocket, readFromSocket(clientSocket));}
-                    catch(final IOException e){logger.error(e);}
+                    try{serve(client);}
+                    catch(final IOException e){if(!client.isClosed()) logger.error(e);}
+                    catch(final InterruptedException e){Thread.currentThread().interrupt();}
                     finally {
-                        try {clientSocket.close();}
-                        catch (IOException e) {logger.error("Failed to close client socket: ", e);}
+                        Blocking.unblock(client);
+                        PubSub.unsubscribeAll(client);
+                        Tracking.disable(client);
+                        client.closeAfterReply();
                     }});}
         }catch(final IOException e){logger.fatal("Server error: ", e);}
     }
 
-    private static byte[] readFromSocket(final Socket clientSocket) throws IOException {
-        final var input = clientSocket.getInputStream();
-        final var buffer = new byte[512];
-        final var byteArrayOutputStream = new ByteArrayOutputStream();
-        int bytesRead;
-        if((bytesRead = input.read(buffer)) != -1){
-            byteArrayOutputStream.write(buffer, 0, bytesRead);
-            logger.info("Read: {}", new String(buffer));
-
-        }return byteArrayOutputStream.toByteArray();
+    /**
+     * Serves a client until it disconnects. Every read may carry several pipelined commands and end in the middle
+     * of one, the incomplete tail is kept and completed by the following reads. The tail grows in place, and is
+     * only decoded again once it holds as many bytes as the bulk strings received so far announced, so a large
+     * value arriving in many reads is copied and decoded a bounded number of times. A tail larger than
+     * {@link Config#CLIENT_QUERY_BUFFER_LIMIT} closes the connection.
+     */
+    private static void serve(final Client client) throws IOException, InterruptedException {
+        final var buffer = new byte[Config.IO_READ_BUFFER_SIZE.get().intValue()];
+        var pending = new byte[0];
+        int pendingLength = 0;
+        long needed = 0;
+        while(true){
+            // backpressure: stop reading commands from a client that does not read its replies
+            client.awaitPendingBelow(Config.CLIENT_OUTPUT_BACKPRESSURE_BYTES.get());
+            final int read = client.input().read(buffer);
+            if(read <= 0) return;
+            final byte[] data;
+            if(pendingLength == 0) data = Arrays.copyOf(buffer, read);
+            else{
+                if(pendingLength + read > pending.length)
+                    pending = Arrays.copyOf(pending, Math.max(pendingLength + read, pending.length * 2));
+                System.arraycopy(buffer, 0, pending, pendingLength, read);
+                pendingLength += read;
+                if(pendingLength > Config.CLIENT_QUERY_BUFFER_LIMIT.get()){
+                    logger.warn("Client addr={} closed for overcoming of the query buffer limit", client.addr);
+                    return;
+                }
+                if(pendingLength < needed) continue;
+                // commands keep referring to the buffer they were decoded from, it must not change afterwards
+                data = Arrays.copyOf(pending, pendingLength);
+            }
+            final var replies = new ByteArrayOutputStream();
+            int pos = 0;
+            while(pos < data.length){
+                final boolean traced = Tracing.sample(client);
+                final long decodeStart = traced? System.nanoTime(): 0;
+                final Ct.RESPTypes value;
+                try{value = RESPDecoder.decode(data, pos);}
+                catch(final IndexOutOfBoundsException e){break;}
+                catch(final IllegalStateException e){
+                    writeToSocket(client, RESPEncoder.encodeError("ERR Protocol error: " + e.getMessage()));
+                    return;
+                }
+                if(value.pos > data.length) break;
+                final var cmd = RedisCmd.from(value, data, pos);
+                pos = value.pos;
+                if(cmd == null){
+                    replies.writeBytes(RESPEncoder.encodeError("ERR Protocol error: expected an array of bulk strings"));
+                    continue;
+                }
+                // a command pipelined after a blocking one waits for its reply, which is written when it is served
+                Blocking.await(client);
+                if(Blocking.isBlocking(cmd)){
+                    writeToSocket(client, replies.toByteArray());
+                    replies.reset();
+                }
+                // the replies of tracking clients are queued by Eval.execute, the ones before them must be first
+                if(client.isTracking() && replies.size() > 0){
+                    writeToSocket(client, replies.toByteArray());
+                    replies.reset();
+                }
+                final long start = System.nanoTime();
+                final var reply = Eval.execute(cmd, client);
+                final long elapsed = System.nanoTime() - start;
+                if(traced) Tracing.span(client, cmd, start - decodeStart, elapsed, reply.length);
+                replies.writeBytes(reply);
+            }
+            writeToSocket(client, replies.toByteArray());
+            pendingLength = data.length - pos;
+            if(pendingLength == 0){
+                needed = 0;
+                // let go of the room a large value needed
+                if(pending.length > buffer.length) pending = new byte[0];
+                continue;
+            }
+            needed = RESPDecoder.requiredLength(data, pos);
+            if(needed > Config.CLIENT_QUERY_BUFFER_LIMIT.get()){
+                logger.warn("Client addr={} closed for overcoming of the query buffer limit", client.addr);
+                return;
+            }
+            if(pending.length < pendingLength || pending.length > Math.max(2L * needed, buffer.length))
+                pending = new byte[(int) Math.min(Math.max(needed, buffer.length), Integer.MAX_VALUE - 8)];
+            System.arraycopy(data, pos, pending, 0, pendingLength);
+        }
     }
 
-    private static void writeToSocket(final Socket clientSocket, final byte[] message) throws IOException {
-        if(message != null && message.length > 0){
-        final var output = clientSocket.getOutputStream();
-        output.write(message);
-        output.flush();
-        logger.info("Written: {}", new String(message));
-        }else logger.info("Nothing to write");
+    private static void writeToSocket(final Client client, final byte[] message) {
+        if(message != null && message.length > 0) client.write(message);
     }
 }
@@ -0,0 +1,92 @@
+package org.dice;
+
+import org.dice.core.BitOps;
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
+import org.dice.core.ScalarBitOps;
+import org.dice.core.VectorBitOps;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public final class BitOpsTest {
+
+    private static final BitOps[] IMPLEMENTATIONS = {new ScalarBitOps(), new VectorBitOps()};
+
+    private static String execute(final String cmd, final String... args) {
+        return new String(Eval.execute(new RedisCmd(cmd, args), null), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void matchesByteLoopsTest() {
+        final var random = new Random(7);
+        for (final int size : new int[]{0, 1, 7, 8, 31, 64, 65, 1000, 4099}) {
+            final var a = new byte[size];
+            final var b = new byte[size];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            final int from = Math.min(size, 3), to = Math.max(from, size - 5);
+            long count = 0;
+            for (int i = from; i < to; i++) count += Integer.bitCount(a[i] & 0xFF);
+            for (final var ops : IMPLEMENTATIONS) {
+                assertEquals(count, ops.bitCount(a, from, to), ops + " bitCount " + size);
+                for (final var op : BitOps.Op.values()) {
+                    final var expected = a.clone();
+                    for (int i = 0; i < size; i++) {
+                        expected[i] = (byte) switch (op) {
+                            case AND -> a[i] & b[i];
+                            case OR -> a[i] | b[i];
+                            case XOR -> a[i] ^ b[i];
+                        };
+                    }
+                    final var dest = a.clone();
+                    ops.apply(op, dest, b, size);
+                    assertArrayEquals(expected, dest, ops + " " + op + " " + size);
+                }
+                final var max = a.clone();
+                ops.max(max, b, size);
+                for (int i = 0; i < size; i++) assertEquals((byte) Math.max(a[i], b[i]), max[i]);
+                final var not = new byte[size];
+                ops.not(not, a, size);
+                for (int i = 0; i < size; i++) assertEquals((byte) ~a[i], not[i]);
+            }
+        }
+    }
+
+    @Test
+    public void indexOfNotTest() {
+        final var ones = new byte[1000];
+        Arrays.fill(ones, (byte) 0xFF);
+        for (final var ops : IMPLEMENTATIONS) {
+            assertEquals(-1, ops.indexOfNot(ones, 0, ones.length, (byte) 0xFF));
+            for (final int at : new int[]{0, 5, 63, 64, 500, 999}) {
+                ones[at] = (byte) 0x7F;
+                assertEquals(at, ops.indexOfNot(ones, 0, ones.length, (byte) 0xFF), ops + " " + at);
+                assertEquals(-1, ops.indexOfNot(ones, at + 1, ones.length, (byte) 0xFF));
+                ones[at] = (byte) 0xFF;
+            }
+        }
+    }
+
+    @Test
+    public void setbitGrowthTest() {
+        execute("FLUSHALL");
+        // the room reserved as the string grows is not part of it
+        for (int offset = 0; offset < 10_000; offset += 9) execute("SETBIT", "bits", String.valueOf(offset), "1");
+        final var value = execute("GET", "bits");
+        assertEquals("$1250\r\n", value.substring(0, value.indexOf('\n') + 1));
+        assertEquals(":9992\r\n", execute("BITPOS", "bits", "0", "1249"));
+        assertEquals(":1112\r\n", execute("BITCOUNT", "bits"));
+        assertEquals(":1\r\n", execute("GETBIT", "bits", "9999"));
+        assertEquals(":0\r\n", execute("GETBIT", "bits", "100000"));
+        // an integer becomes a string
+        execute("SET", "bits", "12");
+        assertEquals(":0\r\n", execute("SETBIT", "bits", "15", "1"));
+        assertEquals("$2\r\n13\r\n", execute("GET", "bits"));
+    }
+}
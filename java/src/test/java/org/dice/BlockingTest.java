@@ -0,0 +1,141 @@
+package org.dice;
+
+import org.dice.core.Blocking;
+import org.dice.core.Client;
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class BlockingTest {
+
+    /**
+     * A client on a loopback connection, with its writer thread, and the other end of the connection, where the
+     * replies it is served later arrive.
+     */
+    private record Connection(Client client, Socket peer, InputStream in) {}
+
+    private static Connection connect() throws IOException {
+        try (final var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final var socket = new Socket(server.getInetAddress(), server.getLocalPort());
+            final var peer = server.accept();
+            peer.setSoTimeout(5000);
+            final var client = new Client(socket);
+            Thread.ofVirtual().start(client::writeLoop);
+            return new Connection(client, peer, peer.getInputStream());
+        }
+    }
+
+    private static String execute(final Connection connection, final String cmd, final String... args) {
+        final var client = connection == null ? null : connection.client();
+        return new String(Eval.execute(new RedisCmd(cmd, args), client), StandardCharsets.UTF_8);
+    }
+
+    private static String read(final Connection connection, final int length) throws IOException {
+        return new String(connection.in().readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static String blockedClients() {
+        final var info = execute(null, "INFO", "clients");
+        final int start = info.indexOf("blocked_clients:");
+        return info.substring(start, info.indexOf('\r', start));
+    }
+
+    @Test
+    public void oldestWaiterServedFirstTest() throws IOException {
+        execute(null, "FLUSHALL");
+        final var first = connect();
+        final var second = connect();
+        // a blocked command replies later, on the connection
+        assertEquals("", execute(first, "BLPOP", "bl:q", "0"));
+        assertEquals("", execute(second, "BLPOP", "bl:other", "bl:q", "0"));
+        assertEquals(":1\r\n", execute(null, "RPUSH", "bl:q", "a"));
+        assertEquals("*2\r\n$4\r\nbl:q\r\n$1\r\na\r\n", read(first, 21));
+        assertEquals("blocked_clients:1", blockedClients());
+        assertEquals(":1\r\n", execute(null, "LPUSH", "bl:q", "b"));
+        assertEquals("*2\r\n$4\r\nbl:q\r\n$1\r\nb\r\n", read(second, 21));
+        assertEquals(":0\r\n", execute(null, "LLEN", "bl:q"));
+        first.client().close();
+        second.client().close();
+    }
+
+    @Test
+    public void blmoveServesNextWaiterTest() throws IOException {
+        execute(null, "FLUSHALL");
+        final var mover = connect();
+        final var popper = connect();
+        assertEquals("", execute(mover, "BLMOVE", "bl:src", "bl:dst", "LEFT", "RIGHT", "0"));
+        assertEquals("", execute(popper, "BRPOP", "bl:dst", "0"));
+        execute(null, "RPUSH", "bl:src", "x");
+        // the element moved to bl:dst is handed on to the client waiting there
+        assertEquals("$1\r\nx\r\n", read(mover, 7));
+        assertEquals("*2\r\n$6\r\nbl:dst\r\n$1\r\nx\r\n", read(popper, 23));
+        assertEquals("+none\r\n", execute(null, "TYPE", "bl:src"));
+        assertEquals("+none\r\n", execute(null, "TYPE", "bl:dst"));
+        assertEquals("blocked_clients:0", blockedClients());
+        mover.client().close();
+        popper.client().close();
+    }
+
+    @Test
+    public void timeoutTest() throws IOException {
+        execute(null, "FLUSHALL");
+        final var connection = connect();
+        assertEquals("", execute(connection, "BLPOP", "bl:q", "0.05"));
+        assertEquals("*-1\r\n", read(connection, 5));
+        assertEquals("blocked_clients:0", blockedClients());
+        // nothing waits any longer for the key
+        execute(null, "RPUSH", "bl:q", "a");
+        assertEquals(":1\r\n", execute(null, "LLEN", "bl:q"));
+        connection.client().close();
+    }
+
+    @Test
+    public void disconnectedWaiterDroppedTest() throws IOException {
+        execute(null, "FLUSHALL");
+        final var connection = connect();
+        execute(connection, "BLPOP", "bl:q", "0");
+        connection.client().close();
+        Blocking.unblock(connection.client());
+        assertEquals("blocked_clients:0", blockedClients());
+        execute(null, "RPUSH", "bl:q", "a");
+        assertEquals(":1\r\n", execute(null, "LLEN", "bl:q"));
+    }
+
+    @Test
+    public void propagatedAsPopTest() throws IOException {
+        execute(null, "FLUSHALL");
+        final var replica = connect();
+        execute(replica, "PSYNC", "?", "-1");
+        // the keyspace of the full resync ends with an empty frame, the stream follows
+        final var sync = new StringBuilder();
+        while (!sync.toString().endsWith("$0\r\n\r\n")) sync.append((char) replica.in().read());
+        final var client = connect();
+        final var pusher = connect();
+        execute(pusher, "RPUSH", "bl:q", "a", "b");
+        assertTrue(execute(client, "BLPOP", "bl:q", "0").startsWith("*2"));
+        assertTrue(execute(client, "BLMOVE", "bl:q", "bl:dst", "RIGHT", "LEFT", "0").startsWith("$1"));
+        // blocking propagates nothing, the pop serving it later is propagated after the push
+        assertEquals("", execute(client, "BLPOP", "bl:q", "0"));
+        execute(pusher, "RPUSH", "bl:q", "c");
+        assertEquals("*2\r\n$4\r\nbl:q\r\n$1\r\nc\r\n", read(client, 21));
+        final var expected = "*4\r\n$5\r\nRPUSH\r\n$4\r\nbl:q\r\n$1\r\na\r\n$1\r\nb\r\n" +
+                "*2\r\n$4\r\nLPOP\r\n$4\r\nbl:q\r\n" +
+                "*5\r\n$5\r\nLMOVE\r\n$4\r\nbl:q\r\n$6\r\nbl:dst\r\n$5\r\nRIGHT\r\n$4\r\nLEFT\r\n" +
+                "*3\r\n$5\r\nRPUSH\r\n$4\r\nbl:q\r\n$1\r\nc\r\n" +
+                "*2\r\n$4\r\nLPOP\r\n$4\r\nbl:q\r\n";
+        assertEquals(expected, read(replica, expected.length()));
+        client.client().close();
+        pusher.client().close();
+        replica.client().close();
+    }
+}
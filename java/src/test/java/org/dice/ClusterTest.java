@@ -0,0 +1,136 @@
+package org.dice;
+
+import org.dice.core.Cluster;
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class ClusterTest {
+
+    private static String execute(final String cmd, final String... args) {
+        return new String(Eval.execute(new RedisCmd(cmd, args), null), StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final var line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) return null;
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    /**
+     * A MIGRATE target answering each command with the reply of this server, bulk strings and arrays included,
+     * except for the command named {@code failing}, answered with an error.
+     */
+    private static ServerSocket target(final String failing, final List<String> received) throws IOException {
+        return target(failing, received, () -> {});
+    }
+
+    /**
+     * @param meanwhile run before the first reply, while MIGRATE waits for the target
+     */
+    private static ServerSocket target(final String failing, final List<String> received, final Runnable meanwhile) throws IOException {
+        final var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(() -> {
+            try (server; final var socket = server.accept()) {
+                final var in = new BufferedInputStream(socket.getInputStream());
+                final OutputStream out = socket.getOutputStream();
+                String header;
+                while ((header = readLine(in)) != null) {
+                    final var args = new String[Integer.parseInt(header.substring(1))];
+                    for (int i = 0; i < args.length; i++) {
+                        final int len = Integer.parseInt(readLine(in).substring(1));
+                        args[i] = new String(in.readNBytes(len), StandardCharsets.UTF_8);
+                        in.skipNBytes(2);
+                    }
+                    if (received.isEmpty()) meanwhile.run();
+                    received.add(String.join(" ", args));
+                    final var cmd = args[0];
+                    final var reply = cmd.equals(failing) ? "-ERR failing\r\n" : switch (cmd) {
+                        case "EXISTS" -> ":0\r\n";
+                        case "XADD" -> "$%d\r\n%s\r\n".formatted(args[2].length(), args[2]);
+                        case "XCLAIM" -> "*1\r\n$%d\r\n%s\r\n".formatted(args[5].length(), args[5]);
+                        case "XGROUP" -> args[1].equals("CREATECONSUMER") ? ":1\r\n" : "+OK\r\n";
+                        default -> "+OK\r\n";
+                    };
+                    out.write(reply.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (final IOException ignored) {}
+        });
+        return server;
+    }
+
+    private static void stream() {
+        execute("FLUSHALL");
+        execute("XADD", "migrate:s", "1-1", "f", "v");
+        execute("XADD", "migrate:s", "2-1", "f", "w");
+        execute("XGROUP", "CREATE", "migrate:s", "g", "0");
+        execute("XREADGROUP", "GROUP", "g", "c", "STREAMS", "migrate:s", ">");
+    }
+
+    @Test
+    public void keySlotTest() {
+        assertEquals(12182, Cluster.keySlot("foo"));
+        assertEquals(Cluster.keySlot("foo"), Cluster.keySlot("{foo}.bar"));
+        // CRC16 of the UTF-8 bytes, a character outside the BMP included
+        assertEquals(2959, Cluster.keySlot("\uD83D\uDE00"));
+        assertEquals(7421, Cluster.keySlot("{\u00E9\uD83D\uDE00a}b"));
+    }
+
+    @Test
+    public void migrateStreamTest() throws IOException {
+        stream();
+        final var received = new CopyOnWriteArrayList<String>();
+        final var target = target(null, received);
+        assertEquals("+OK\r\n", execute("MIGRATE", "127.0.0.1", String.valueOf(target.getLocalPort()), "migrate:s", "0", "5000"));
+        assertEquals("+none\r\n", execute("TYPE", "migrate:s"));
+        final var commands = new ArrayList<String>();
+        for (final var cmd : received) commands.add(cmd.split(" ")[0]);
+        assertTrue(commands.containsAll(Arrays.asList("XADD", "XGROUP", "XCLAIM", "XSETID")), commands.toString());
+    }
+
+    @Test
+    public void migrateTargetErrorTest() throws IOException {
+        stream();
+        // the last command fails, after replies of several lines
+        final var target = target("XSETID", new CopyOnWriteArrayList<>());
+        final var reply = execute("MIGRATE", "127.0.0.1", String.valueOf(target.getLocalPort()), "migrate:s", "0", "5000");
+        assertTrue(reply.startsWith("-ERR Target instance replied with error: ERR failing"), reply);
+        // the key is kept when the target did not take all of it
+        assertEquals("+stream\r\n", execute("TYPE", "migrate:s"));
+    }
+
+    @Test
+    public void migrateWrittenMeanwhileTest() throws IOException {
+        execute("FLUSHALL");
+        execute("SET", "migrate:a", "1");
+        execute("SET", "migrate:b", "1");
+        // another client writes while the keys are on their way, which needs the store lock
+        final var target = target(null, new CopyOnWriteArrayList<>(), () -> execute("SET", "migrate:b", "2"));
+        final var reply = execute("MIGRATE", "127.0.0.1", String.valueOf(target.getLocalPort()), "", "0", "5000",
+                "KEYS", "migrate:a", "migrate:b");
+        assertTrue(reply.startsWith("-TRYAGAIN"), reply);
+        assertEquals("$-1\r\n", execute("GET", "migrate:a"));
+        assertEquals("$1\r\n2\r\n", execute("GET", "migrate:b"));
+    }
+}
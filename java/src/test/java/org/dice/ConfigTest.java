@@ -0,0 +1,44 @@
+package org.dice;
+
+import org.dice.config.Config;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public final class ConfigTest {
+
+    @Test
+    public void parseBytesTest() {
+        assertEquals(42, Config.parseBytes("42"));
+        assertEquals(42, Config.parseBytes("42b"));
+        assertEquals(3L << 10, Config.parseBytes("3kb"));
+        assertEquals(100L << 20, Config.parseBytes("100MB"));
+        assertEquals(1L << 30, Config.parseBytes("1gb"));
+        assertThrows(IllegalArgumentException.class, () -> Config.parseBytes("-1"));
+        assertThrows(IllegalArgumentException.class, () -> Config.parseBytes("1tb"));
+        assertThrows(IllegalArgumentException.class, () -> Config.parseBytes("99999999999gb"));
+    }
+
+    @Test
+    public void setIsAtomicTest() {
+        final long samples = Config.MAXMEMORY_SAMPLES.get();
+        final var values = new LinkedHashMap<String, String>();
+        values.put("maxmemory-samples", "7");
+        values.put("maxmemory", "not a size");
+        assertThrows(IllegalArgumentException.class, () -> Config.set(values, false));
+        assertEquals(samples, (long) Config.MAXMEMORY_SAMPLES.get());
+
+        assertThrows(IllegalArgumentException.class, () -> Config.set(Map.of("port", "1234"), false));
+        assertThrows(IllegalArgumentException.class, () -> Config.set(Map.of("no-such-setting", "1"), false));
+
+        Config.set(Map.of("client-output-buffer-limit", "pubsub 1mb 512kb 10"), false);
+        final var limits = Config.CLIENT_OUTPUT_BUFFER_LIMIT.get();
+        assertEquals(new Config.OutputBufferLimit(1 << 20, 512 << 10, 10), limits.pubsub());
+        assertEquals(new Config.OutputBufferLimit(256L << 20, 64L << 20, 60), limits.replica());
+        Config.set(Map.of("client-output-buffer-limit", "pubsub 32mb 8mb 60"), false);
+    }
+}
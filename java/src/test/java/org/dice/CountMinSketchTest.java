@@ -0,0 +1,51 @@
+package org.dice;
+
+import org.dice.core.CountMinSketch;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class CountMinSketchTest {
+
+    @Test
+    public void neverUndercountsTest() {
+        final var sketch = new CountMinSketch(4, 256);
+        for (int i = 0; i < 10_000; i++) sketch.increment("key:" + (i % 1000));
+        for (int i = 0; i < 1000; i++) assertTrue(sketch.estimate("key:" + i) >= 10, "key:" + i);
+    }
+
+    @Test
+    public void hotKeyStandsOutTest() {
+        final var sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 5000; i++) {
+            sketch.increment("hot");
+            sketch.increment("cold:" + i);
+        }
+        assertTrue(sketch.estimate("hot") >= 5000);
+        assertTrue(sketch.estimate("cold:42") < 100);
+    }
+
+    @Test
+    public void equalHashCodesTest() {
+        // all four strings have the same String.hashCode
+        assertEquals("AaAa".hashCode(), "BBBB".hashCode());
+        final var sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 1000; i++) sketch.increment("AaAa");
+        assertTrue(sketch.estimate("AaBB") < 1000);
+        assertTrue(sketch.estimate("BBAa") < 1000);
+        assertTrue(sketch.estimate("BBBB") < 1000);
+    }
+
+    @Test
+    public void decayTest() {
+        final var sketch = new CountMinSketch(2, 16);
+        for (int i = 0; i < 8; i++) sketch.increment("a");
+        sketch.decay();
+        assertEquals(4, sketch.estimate("a"));
+        sketch.decay();
+        sketch.decay();
+        sketch.decay();
+        assertEquals(0, sketch.estimate("a"));
+    }
+}
@@ -0,0 +1,38 @@
+package org.dice;
+
+import org.dice.core.CrlfScanner;
+import org.dice.core.ScalarCrlfScanner;
+import org.dice.core.VectorCrlfScanner;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public final class CrlfScannerTest {
+
+    private static final CrlfScanner[] IMPLEMENTATIONS = {new ScalarCrlfScanner(), new VectorCrlfScanner()};
+
+    @Test
+    public void matchesByteLoopTest() {
+        final var random = new Random(11);
+        for (final int size : new int[]{0, 1, 7, 8, 9, 31, 64, 65, 1000, 4099}) {
+            final var a = new byte[size];
+            random.nextBytes(a);
+            // no CR but the bytes around it, which a word-wide test could mistake for it
+            for (int i = 0; i < size; i++) if (a[i] == '\r') a[i] = (byte) (random.nextBoolean() ? 0x0C : 0x0E);
+            for (final var ops : IMPLEMENTATIONS) assertEquals(-1, ops.indexOfCr(a, 0, size), ops + " " + size);
+            for (int at = 0; at < size; at += 1 + size / 17) {
+                a[at] = '\r';
+                if (at + 1 < size) a[at + 1] = '\r';
+                final int from = Math.min(at, 3);
+                for (final var ops : IMPLEMENTATIONS) {
+                    assertEquals(at, ops.indexOfCr(a, from, size), ops + " " + size + " " + at);
+                    assertEquals(-1, ops.indexOfCr(a, from, at), ops + " " + size + " " + at);
+                }
+                a[at] = 0x0C;
+                if (at + 1 < size) a[at + 1] = 0x0C;
+            }
+        }
+    }
+}
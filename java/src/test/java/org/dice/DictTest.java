@@ -0,0 +1,89 @@
+package org.dice;
+
+import org.dice.core.Dict;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class DictTest {
+
+    @Test
+    public void putGetRemoveWhileRehashingTest() {
+        final var dict = new Dict<Integer>();
+        for (int i = 0; i < 10_000; i++) {
+            assertNull(dict.put("key:" + i, i));
+            assertEquals(i, dict.get("key:" + i));
+        }
+        assertEquals(10_000, dict.size());
+        for (int i = 0; i < 10_000; i++) assertEquals(i, dict.get("key:" + i));
+        assertEquals(5, dict.put("key:5", 50));
+        for (int i = 0; i < 10_000; i += 2) assertEquals(i, dict.remove("key:" + i), "key:" + i);
+        assertEquals(5_000, dict.size());
+        assertNull(dict.get("key:0"));
+        assertEquals(50, dict.get("key:5"));
+    }
+
+    @Test
+    public void incrementalRehashTest() {
+        final var dict = new Dict<Integer>();
+        for (int i = 0; i < 1_000; i++) dict.put("key:" + i, i);
+        while (dict.rehash(100)) ;
+        for (int i = 0; i < 1_000; i++) dict.remove("key:" + i);
+        assertTrue(dict.shrinkIfNeeded());
+        assertTrue(dict.isRehashing());
+        dict.rehashFor(Long.MAX_VALUE);
+        assertFalse(dict.isRehashing());
+        assertEquals(Dict.INITIAL_SIZE, dict.buckets());
+    }
+
+    @Test
+    public void unboundedRehashBudgetTest() {
+        final var dict = new Dict<Integer>();
+        for (int i = 0; i < 100_000; i++) dict.put("key:" + i, i);
+        while (dict.rehash(100)) ;
+        for (int i = 0; i < 100_000; i++) if (i % 100 != 0) dict.remove("key:" + i);
+        assertTrue(dict.shrinkIfNeeded());
+        // a budget that overflows when added to the current time still runs the rehash to the end
+        assertTrue(dict.rehashFor(Long.MAX_VALUE) > 1);
+        assertFalse(dict.isRehashing());
+        for (int i = 0; i < 100_000; i += 100) assertEquals(i, dict.get("key:" + i));
+    }
+
+    @Test
+    public void scanAcrossResizeTest() {
+        final var dict = new Dict<Integer>();
+        for (int i = 0; i < 500; i++) dict.put("key:" + i, i);
+        final var seen = new HashSet<String>();
+        long cursor = 0;
+        int step = 0;
+        do {
+            cursor = dict.scan(cursor, (k, v) -> seen.add(k));
+            // grow the table under the running scan
+            if (step++ < 50 && step % 10 == 0) for (int i = 0; i < 200; i++) dict.put("extra:" + step + ":" + i, i);
+        } while (cursor != 0);
+        for (int i = 0; i < 500; i++) assertTrue(seen.contains("key:" + i), "key:" + i);
+    }
+
+    @Test
+    public void sampleWhileRehashingTest() {
+        final var dict = new Dict<Integer>();
+        assertEquals(0, dict.sample(5, (k, v) -> {}));
+        for (int i = 0; i < 1_000; i++) dict.put("key:" + i, i);
+        dict.remove("key:0");
+        for (int round = 0; round < 100; round++) {
+            final var seen = new HashSet<String>();
+            final int n = dict.sample(5, (k, v) -> {
+                assertEquals("key:" + v, k);
+                seen.add(k);
+            });
+            assertTrue(n > 0 && n <= 5);
+            assertFalse(seen.contains("key:0"));
+            dict.rehash(1);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.dice;
+
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public final class FunctionsTest {
+
+    private static String execute(final String cmd, final String... args) {
+        return new String(Eval.execute(new RedisCmd(cmd, args), null), StandardCharsets.UTF_8);
+    }
+
+    private static String load(final String code) {
+        return execute("FUNCTION", "LOAD", "REPLACE", code);
+    }
+
+    @Test
+    public void compileErrorTest() {
+        assertEquals("-ERR Error compiling function: line 2: unterminated string\r\n",
+                load("function f\nreturn 'abc\n"));
+        assertEquals("-ERR Error compiling function: line 2: 'if' without 'end'\r\n",
+                load("function f\nif ARGV[1] == 1\nreturn 1\n"));
+        assertEquals("-ERR Error compiling function: line 2: variable $x used before being assigned\r\n",
+                load("function f\nreturn $x\n"));
+        assertEquals("-ERR Error compiling function: line 2: variable $x used before being assigned\r\n",
+                load("function f\nlet $x = $x + 1\n"));
+        assertEquals("-ERR Error compiling function: line 2: 'end' without 'if'\r\n",
+                load("function f\nend\n"));
+        assertEquals("-ERR Error compiling function: line 1: expected 'function <name>'\r\n",
+                load("return 1\n"));
+    }
+
+    @Test
+    public void arithmeticTest() {
+        load("""
+                function arith
+                let $sum = ARGV[1] + ARGV[2]
+                let $quotient = $sum / ARGV[3]
+                return $quotient""");
+        assertEquals(":5\r\n", execute("FCALL", "arith", "0", "7", "3", "2"));
+        assertEquals("-ERR division by zero\r\n", execute("FCALL", "arith", "0", "7", "3", "0"));
+        assertEquals("-ERR integer overflow\r\n", execute("FCALL", "arith", "0", String.valueOf(Long.MAX_VALUE), "1", "1"));
+        assertEquals("-ERR integer overflow\r\n", execute("FCALL", "arith", "0", String.valueOf(Long.MIN_VALUE), "0", "-1"));
+        assertEquals("-ERR value is not an integer or out of range\r\n", execute("FCALL", "arith", "0", "a", "1", "1"));
+        load("""
+                function remainder
+                return ARGV[1] % ARGV[2]""");
+        assertEquals("-ERR division by zero\r\n", execute("FCALL", "remainder", "0", "7", "0"));
+    }
+
+    @Test
+    public void nilComparisonTest() {
+        execute("FLUSHALL");
+        load("""
+                function compare
+                let $v = call GET KEYS[1]
+                if $v == nil
+                    return 'nil'
+                end
+                if $v < 10
+                    return 'less'
+                else
+                    return 'more'
+                end""");
+        assertEquals("$3\r\nnil\r\n", execute("FCALL", "compare", "1", "fn:a"));
+        execute("SET", "fn:a", "9");
+        assertEquals("$4\r\nless\r\n", execute("FCALL", "compare", "1", "fn:a"));
+        execute("SET", "fn:a", "10");
+        assertEquals("$4\r\nmore\r\n", execute("FCALL", "compare", "1", "fn:a"));
+        // nil only equals nil, and orders with nothing
+        load("""
+                function ordered
+                let $v = call GET KEYS[1]
+                if $v < 10
+                    return 1
+                end
+                if $v >= 10
+                    return 2
+                end
+                if $v != 0
+                    return 3
+                end""");
+        assertEquals(":3\r\n", execute("FCALL", "ordered", "1", "fn:missing"));
+    }
+
+    @Test
+    public void errorReplyAbortsTest() {
+        execute("FLUSHALL");
+        execute("SET", "fn:string", "x");
+        load("""
+                function abort
+                call SET KEYS[1] before
+                call LPUSH KEYS[2] x
+                call SET KEYS[1] after
+                return 1""");
+        assertEquals("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n",
+                execute("FCALL", "abort", "2", "fn:a", "fn:string"));
+        // the writes before the error stay applied, the ones after it never run
+        assertEquals("$6\r\nbefore\r\n", execute("GET", "fn:a"));
+        load("""
+                function fail
+                error 'BUSY try later'""");
+        assertEquals("-BUSY try later\r\n", execute("FCALL", "fail", "0"));
+        load("""
+                function fail
+                error 'no such account'""");
+        assertEquals("-ERR no such account\r\n", execute("FCALL", "fail", "0"));
+    }
+}
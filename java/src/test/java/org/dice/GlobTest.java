@@ -0,0 +1,44 @@
+package org.dice;
+
+import org.dice.core.Glob;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class GlobTest {
+
+    @Test
+    public void matchTest() {
+        final var testcases = Map.ofEntries(
+                Map.entry(new String[]{"*", ""},                    true),
+                Map.entry(new String[]{"*", "anything"},            true),
+                Map.entry(new String[]{"user:*", "user:42"},        true),
+                Map.entry(new String[]{"user:*", "session:42"},     false),
+                Map.entry(new String[]{"h?llo", "hello"},           true),
+                Map.entry(new String[]{"h?llo", "hllo"},            false),
+                Map.entry(new String[]{"h[ae]llo", "hallo"},        true),
+                Map.entry(new String[]{"h[^e]llo", "hello"},        false),
+                Map.entry(new String[]{"h[a-b]llo", "hbllo"},       true),
+                Map.entry(new String[]{"h[b-a]llo", "hallo"},       true),
+                Map.entry(new String[]{"*a*b*c", "xxaxxbxxbxc"},    true),
+                Map.entry(new String[]{"*a*b*c", "xxaxxbxxbx"},     false),
+                Map.entry(new String[]{"h\\*llo", "h*llo"},         true),
+                Map.entry(new String[]{"h\\*llo", "hello"},         false),
+                Map.entry(new String[]{"a*", "b"},                  false)
+        );
+        testcases.forEach((input, expected) ->
+                assertEquals(expected, Glob.match(input[0], input[1]), input[0] + " ~ " + input[1]));
+    }
+
+    @Test
+    public void shortcutTest() {
+        assertTrue(Glob.matchesAll("**"));
+        assertFalse(Glob.matchesAll("a*"));
+        assertTrue(Glob.isLiteral("user:1"));
+        assertFalse(Glob.isLiteral("user:[12]"));
+    }
+}
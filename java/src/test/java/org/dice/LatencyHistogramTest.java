@@ -0,0 +1,36 @@
+package org.dice;
+
+import org.dice.bench.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class LatencyHistogramTest {
+
+    @Test
+    public void exactBelowSubBucketsTest() {
+        final var histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i);
+        assertEquals(500L, histogram.valueAt(50));
+        assertEquals(990L, histogram.valueAt(99));
+        assertEquals(1000L, histogram.valueAt(100));
+        assertEquals(1L, histogram.min());
+    }
+
+    @Test
+    public void boundedRelativeErrorTest() {
+        final var histogram = new LatencyHistogram();
+        final long[] values = {4_095, 123_456, 9_876_543, 3_000_000_000L};
+        for (final var v : values) {
+            final var single = new LatencyHistogram();
+            single.record(v);
+            single.record(v / 2);
+            final long at = single.valueAt(100);
+            assertTrue(at >= v && at - v <= v / 1024, v + " -> " + at);
+            histogram.add(single);
+        }
+        assertEquals(8L, histogram.count());
+        assertEquals(3_000_000_000L, histogram.max());
+    }
+}
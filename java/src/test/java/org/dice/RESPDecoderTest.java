@@ -2,7 +2,11 @@ package org.dice;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dice.core.CrlfScanner;
 import org.dice.core.Ct;
+import org.dice.core.RESPDecoder;
+import org.dice.core.ScalarCrlfScanner;
+import org.dice.core.VectorCrlfScanner;
 import org.junit.jupiter.api.Test;
 
 import java.nio.charset.StandardCharsets;
@@ -12,6 +16,7 @@ import java.util.Set;
 
 import static org.dice.core.RESPDecoder.decode;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public final class RESPDecoderTest {
@@ -171,7 +176,11 @@ public final class RESPDecoderTest {
 
     @Test
     public void nullTest() {
-        final var testcases = Map.of("_\r\n", new Ct.Tuple<>(true, 3));
+        final var testcases = Map.of(
+                "_\r\n",   new Ct.Tuple<>(true, 3),
+                "$-1\r\n", new Ct.Tuple<>(true, 5),
+                "*-1\r\n", new Ct.Tuple<>(true, 5)
+        );
 
         testcases.forEach((input, expected) -> {
             try {
@@ -420,4 +429,56 @@ public final class RESPDecoderTest {
     public void mapTest(){
 
     }
+
+    @Test
+    public void malformedTest() {
+        for (final var input : new String[]{"$\r\n", "$12a\r\n", "$2147483648\r\n", "*-2\r\n", ":12x\r\n",
+                ":9223372036854775808\r\n", ":-9223372036854775809\r\n", ":\r\n", "+OK\rX", "$3\rXfoo\r\n",
+                // above proto-max-bulk-len or the multibulk limit, not worth waiting for
+                "$2147483647\r\n", "$536870913\r\n", "*2000000000\r\n", "*1048577\r\n", "%-1\r\n"}) {
+            assertThrows(IllegalStateException.class, () -> decode(input.getBytes(StandardCharsets.US_ASCII)), input);
+        }
+        // incomplete values are read again once the rest of them arrived
+        for (final var input : new String[]{"+OK", "+OK\r", "$3\r", "$3\r\nfo", ":12", "*3\r\n$1\r\na\r\n",
+                "*1000\r\n", "%1000\r\n+a\r\n+b\r\n"}) {
+            assertThrows(IndexOutOfBoundsException.class, () -> decode(input.getBytes(StandardCharsets.US_ASCII)), input);
+        }
+    }
+
+    @Test
+    public void nullBulkInArrayTest() {
+        final var input = "*3\r\n$-1\r\n$1\r\na\r\n$-1\r\n*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+        final var array = (Ct.RESPArray) decode(input);
+        assertEquals(new Ct.RESPNull(9), array.val[0]);
+        assertEquals("a", ((Ct.RESPBulkString) array.val[1]).val);
+        assertEquals(new Ct.RESPNull(21), array.val[2]);
+        // the next command starts right after
+        assertEquals(21, array.pos);
+        assertEquals(input.length, decode(input, array.pos).pos);
+    }
+
+    @Test
+    public void requiredLengthTest() {
+        final var partial = "*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$100\r\nabc".getBytes(StandardCharsets.US_ASCII);
+        // the 26 bytes up to the value, the value and its CRLF
+        assertEquals(128, RESPDecoder.requiredLength(partial, 0));
+        final var header = "PING\r\n*3\r\n$3".getBytes(StandardCharsets.US_ASCII);
+        // nothing announced yet, one more byte than the 6 after PING
+        assertEquals(7, RESPDecoder.requiredLength(header, 6));
+        final var bulk = "$10\r\nabc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(17, RESPDecoder.requiredLength(bulk, 0));
+    }
+
+    @Test
+    public void longSimpleStringTest() {
+        final var line = "x".repeat(5000);
+        for (final var scanner : new CrlfScanner[]{new ScalarCrlfScanner(), new VectorCrlfScanner()}) {
+            final var data = ("+" + line + "\r\n-ERR " + line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            final var first = (Ct.RESPSimpleString) decode(data, 0, scanner);
+            assertEquals(line, first.val);
+            final var second = (Ct.RESPError) decode(data, first.pos, scanner);
+            assertEquals("ERR " + line, second.val);
+            assertEquals(data.length, second.pos);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package org.dice;
+
+import org.dice.core.Rax;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public final class RaxTest {
+
+    private static byte[] key(final long ms, final long seq) {
+        return ByteBuffer.allocate(16).putLong(ms).putLong(seq).array();
+    }
+
+    private static Long value(final Map.Entry<?, Long> entry) {
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Test
+    public void seeksLikeASortedMapTest() {
+        final var rax = new Rax<Long>(16);
+        final var expected = new TreeMap<Long, Long>(Long::compareUnsigned);
+        final var random = new Random(42);
+        // clustered timestamps share long prefixes, a few huge ones exercise the unsigned order
+        for (int i = 0; i < 20_000; i++) {
+            final long ms = random.nextInt(10) == 0 ? random.nextLong() : 1_700_000_000_000L + random.nextInt(5_000);
+            final long id = ms ^ random.nextInt(4);
+            assertEquals(expected.put(id, (long) i), rax.put(key(id, 0), (long) i));
+        }
+        for (int i = 0; i < 5_000; i++) {
+            final long id = expected.keySet().stream().skip(random.nextInt(expected.size())).findFirst().orElseThrow();
+            assertEquals(expected.remove(id), rax.remove(key(id, 0)));
+            assertNull(rax.remove(key(id, 0)));
+        }
+        assertEquals(expected.size(), rax.size());
+        for (int i = 0; i < 20_000; i++) {
+            final long probe = random.nextBoolean() ? random.nextLong() : 1_700_000_000_000L + random.nextInt(5_000);
+            final var k = key(probe, 0);
+            assertEquals(expected.get(probe), rax.get(k));
+            assertEquals(value(expected.ceilingEntry(probe)), value(rax.ceiling(k)), "ceiling " + probe);
+            assertEquals(value(expected.higherEntry(probe)), value(rax.higher(k)), "higher " + probe);
+            assertEquals(value(expected.floorEntry(probe)), value(rax.floor(k)), "floor " + probe);
+            assertEquals(value(expected.lowerEntry(probe)), value(rax.lower(k)), "lower " + probe);
+        }
+        assertEquals(value(expected.firstEntry()), value(rax.first()));
+        assertEquals(value(expected.lastEntry()), value(rax.last()));
+    }
+
+    @Test
+    public void iteratesInOrderAndEmptiesTest() {
+        final var rax = new Rax<Long>(16);
+        for (long seq = 0; seq < 1_000; seq++) rax.put(key(5, seq * 7), seq);
+        long count = 0;
+        for (var e = rax.first(); e != null; e = rax.higher(e.getKey())) {
+            assertEquals(count, e.getValue());
+            assertEquals(ByteBuffer.wrap(key(5, count * 7)), ByteBuffer.wrap(e.getKey()));
+            count++;
+        }
+        assertEquals(1_000, count);
+        for (long seq = 0; seq < 1_000; seq++) assertEquals(seq, rax.remove(key(5, seq * 7)));
+        assertEquals(0, rax.size());
+        assertNull(rax.first());
+        assertNull(rax.ceiling(key(0, 0)));
+        rax.put(key(1, 1), 1L);
+        assertEquals(1L, value(rax.floor(key(-1, -1))));
+    }
+}
@@ -0,0 +1,85 @@
+package org.dice;
+
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
+import org.dice.core.Snapshot;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class SnapshotTest {
+
+    private static byte[] execute(final String cmd, final String... args) {
+        return Eval.execute(new RedisCmd(cmd, args), null);
+    }
+
+    private static byte[] snapshot() {
+        final var out = new ByteArrayOutputStream();
+        Snapshot.keyspace(out::writeBytes);
+        return out.toByteArray();
+    }
+
+    private static byte[] reply(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void bitmapRoundTripTest() {
+        execute("FLUSHALL");
+        execute("SETBIT", "bits", "0", "1");
+        execute("SETBIT", "bits", "100", "1");
+        // 0x80, not valid UTF-8 on its own
+        final var value = execute("GET", "bits");
+        Snapshot.load(snapshot());
+        assertArrayEquals(value, execute("GET", "bits"));
+        assertArrayEquals(reply(":2\r\n"), execute("BITCOUNT", "bits"));
+        assertArrayEquals(reply(":1\r\n"), execute("GETBIT", "bits", "100"));
+    }
+
+    @Test
+    public void hyperLogLogRoundTripTest() {
+        execute("FLUSHALL");
+        execute("PFADD", "sparse", "a", "b", "c");
+        final var args = new String[5_001];
+        args[0] = "dense";
+        for (int i = 1; i < args.length; i++) args[i] = "element:" + i;
+        execute("PFADD", args);
+        // PFCOUNT caches the cardinality in the header, before the bytes are taken
+        final var sparseCount = execute("PFCOUNT", "sparse");
+        final var denseCount = execute("PFCOUNT", "dense");
+        final var sparse = execute("GET", "sparse");
+        final var dense = execute("GET", "dense");
+        Snapshot.load(snapshot());
+        assertArrayEquals(sparse, execute("GET", "sparse"));
+        assertArrayEquals(dense, execute("GET", "dense"));
+        assertArrayEquals(sparseCount, execute("PFCOUNT", "sparse"));
+        assertArrayEquals(denseCount, execute("PFCOUNT", "dense"));
+        // still a valid HyperLogLog: known elements change nothing, a new one is counted
+        assertArrayEquals(reply(":0\r\n"), execute("PFADD", "sparse", "a"));
+        assertArrayEquals(reply(":1\r\n"), execute("PFADD", "sparse", "d"));
+        assertArrayEquals(reply(":4\r\n"), execute("PFCOUNT", "sparse"));
+        assertArrayEquals(reply(":0\r\n"), execute("PFADD", "dense", "element:1"));
+    }
+
+    @Test
+    public void chunkedSnapshotTest() {
+        execute("FLUSHALL");
+        final var args = new String[10_001];
+        args[0] = "list";
+        for (int i = 1; i < args.length; i++) args[i] = "element:" + i;
+        execute("RPUSH", args);
+        final var chunks = new ArrayList<byte[]>();
+        final long length = Snapshot.keyspace(chunks::add);
+        assertTrue(chunks.size() > 1);
+        assertEquals(length, chunks.stream().mapToLong(c -> c.length).sum());
+        final var range = execute("LRANGE", "list", "0", "-1");
+        Snapshot.load(snapshot());
+        assertArrayEquals(range, execute("LRANGE", "list", "0", "-1"));
+    }
+}
@@ -0,0 +1,106 @@
+package org.dice;
+
+import org.dice.core.Client;
+import org.dice.core.Eval;
+import org.dice.core.RedisCmd;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class TransactionsTest {
+
+    /**
+     * A client on a loopback connection, its replies are only read from the return value of execute.
+     */
+    private static Client client() throws IOException {
+        try (final var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final var socket = new Socket(server.getInetAddress(), server.getLocalPort());
+            server.accept();
+            return new Client(socket);
+        }
+    }
+
+    private static String execute(final Client client, final String cmd, final String... args) {
+        return new String(Eval.execute(new RedisCmd(cmd, args), client), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void execTest() throws IOException {
+        final var client = client();
+        execute(null, "FLUSHALL");
+        assertEquals("+OK\r\n", execute(client, "MULTI"));
+        assertEquals("+QUEUED\r\n", execute(client, "SET", "tx:a", "1"));
+        assertEquals("+QUEUED\r\n", execute(client, "GET", "tx:a"));
+        assertEquals("*2\r\n+OK\r\n$1\r\n1\r\n", execute(client, "EXEC"));
+        client.close();
+    }
+
+    @Test
+    public void watchedKeyWrittenTest() throws IOException {
+        final var client = client();
+        execute(null, "FLUSHALL");
+        assertEquals("+OK\r\n", execute(client, "WATCH", "tx:a"));
+        execute(null, "SET", "tx:a", "other");
+        execute(client, "MULTI");
+        execute(client, "SET", "tx:a", "mine");
+        assertEquals("*-1\r\n", execute(client, "EXEC"));
+        assertEquals("$5\r\nother\r\n", execute(null, "GET", "tx:a"));
+        // the watch ends with the EXEC
+        execute(null, "SET", "tx:a", "other");
+        execute(client, "MULTI");
+        execute(client, "SET", "tx:a", "mine");
+        assertEquals("*1\r\n+OK\r\n", execute(client, "EXEC"));
+        client.close();
+    }
+
+    @Test
+    public void execAbortTest() throws IOException {
+        final var client = client();
+        execute(null, "FLUSHALL");
+        execute(client, "MULTI");
+        assertTrue(execute(client, "NOSUCHCOMMAND").startsWith("-ERR unknown command"));
+        assertEquals("+QUEUED\r\n", execute(client, "SET", "tx:a", "1"));
+        assertTrue(execute(client, "EXEC").startsWith("-EXECABORT"));
+        assertEquals("$-1\r\n", execute(null, "GET", "tx:a"));
+        assertTrue(execute(client, "EXEC").startsWith("-ERR EXEC without MULTI"));
+        client.close();
+    }
+
+    @Test
+    public void unwatchTest() throws IOException {
+        final var client = client();
+        execute(null, "FLUSHALL");
+        execute(client, "WATCH", "tx:a");
+        assertEquals("+OK\r\n", execute(client, "UNWATCH"));
+        execute(null, "SET", "tx:a", "other");
+        execute(client, "MULTI");
+        execute(client, "SET", "tx:a", "mine");
+        assertEquals("*1\r\n+OK\r\n", execute(client, "EXEC"));
+        client.close();
+    }
+
+    @Test
+    public void discardTest() throws IOException {
+        final var client = client();
+        execute(null, "FLUSHALL");
+        execute(client, "WATCH", "tx:a");
+        execute(client, "MULTI");
+        execute(client, "SET", "tx:a", "discarded");
+        assertEquals("+OK\r\n", execute(client, "DISCARD"));
+        assertEquals("$-1\r\n", execute(null, "GET", "tx:a"));
+        // DISCARD drops the watched keys as well
+        execute(null, "SET", "tx:a", "other");
+        execute(client, "MULTI");
+        execute(client, "SET", "tx:a", "mine");
+        assertEquals("*1\r\n+OK\r\n", execute(client, "EXEC"));
+        assertEquals("$4\r\nmine\r\n", execute(null, "GET", "tx:a"));
+        client.close();
+    }
+}
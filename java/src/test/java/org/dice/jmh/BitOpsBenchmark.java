@@ -0,0 +1,99 @@
+package org.dice.jmh;
+
+import org.dice.core.BitOps;
+import org.dice.core.ScalarBitOps;
+import org.dice.core.VectorBitOps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bitmap loops with 64-bit words against the Vector API, on bitmaps from a page to the 12 MB of 100M flags.
+ * {@code max} on 16 KB is the register merge of PFMERGE.
+ * The reported times divided into the sizes give the throughput, BITOP on the largest sizes should be bound by the
+ * memory bandwidth with the Vector API.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class BitOpsBenchmark {
+
+    @Param({"4096", "16384", "1048576", "12500000"})
+    public int size;
+
+    @Param({"scalar", "vector"})
+    public String impl;
+
+    private BitOps ops;
+    private byte[] a;
+    private byte[] b;
+    private byte[] dest;
+    private byte[] ones;
+
+    @Setup
+    public void setup() {
+        ops = impl.equals("vector") ? new VectorBitOps() : new ScalarBitOps();
+        final var random = new Random(42);
+        a = new byte[size];
+        b = new byte[size];
+        random.nextBytes(a);
+        random.nextBytes(b);
+        dest = new byte[size];
+        ones = new byte[size];
+        // the worst case of BITPOS 0: every bit set but the last one
+        Arrays.fill(ones, (byte) 0xFF);
+        ones[size - 1] = (byte) 0xFE;
+    }
+
+    @Benchmark
+    public long bitCount() {
+        return ops.bitCount(a, 0, size);
+    }
+
+    @Benchmark
+    public int indexOfNot() {
+        return ops.indexOfNot(ones, 0, size, (byte) 0xFF);
+    }
+
+    @Benchmark
+    public byte[] and() {
+        System.arraycopy(a, 0, dest, 0, size);
+        ops.apply(BitOps.Op.AND, dest, b, size);
+        return dest;
+    }
+
+    @Benchmark
+    public byte[] xor() {
+        System.arraycopy(a, 0, dest, 0, size);
+        ops.apply(BitOps.Op.XOR, dest, b, size);
+        return dest;
+    }
+
+    @Benchmark
+    public byte[] not() {
+        ops.not(dest, a, size);
+        return dest;
+    }
+
+    @Benchmark
+    public byte[] max() {
+        System.arraycopy(a, 0, dest, 0, size);
+        ops.max(dest, b, size);
+        return dest;
+    }
+}
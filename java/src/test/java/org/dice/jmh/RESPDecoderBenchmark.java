@@ -0,0 +1,79 @@
+package org.dice.jmh;
+
+import org.dice.core.CrlfScanner;
+import org.dice.core.Ct;
+import org.dice.core.RESPDecoder;
+import org.dice.core.ScalarCrlfScanner;
+import org.dice.core.VectorCrlfScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decoding of simple strings and errors with the scalar and the Vector API scanners, from short status
+ * lines to the 64 KB errors a script can raise. {@code pipeline} walks 32 pipelined SET commands as the server
+ * reads them from a socket, it only reads lengths and shows that bulk strings do not depend on the scanner.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class RESPDecoderBenchmark {
+
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    @Param({"scalar", "vector"})
+    public String impl;
+
+    private CrlfScanner scanner;
+    private byte[] simpleString;
+    private byte[] error;
+    private byte[] pipeline;
+
+    @Setup
+    public void setup() {
+        scanner = impl.equals("vector") ? new VectorCrlfScanner() : new ScalarCrlfScanner();
+        final var line = "x".repeat(size);
+        simpleString = ("+" + line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        error = ("-ERR " + line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        final var out = new ByteArrayOutputStream();
+        for (int i = 0; i < 32; i++) {
+            final var key = "key:" + i;
+            out.writeBytes("*3\r\n$3\r\nSET\r\n$%d\r\n%s\r\n$%d\r\n%s\r\n".formatted(key.length(), key, size, line)
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        pipeline = out.toByteArray();
+    }
+
+    @Benchmark
+    public Ct.RESPTypes simpleString() {
+        return RESPDecoder.decode(simpleString, 0, scanner);
+    }
+
+    @Benchmark
+    public Ct.RESPTypes error() {
+        return RESPDecoder.decode(error, 0, scanner);
+    }
+
+    @Benchmark
+    public int pipeline() {
+        int pos = 0;
+        while (pos < pipeline.length) pos = RESPDecoder.decode(pipeline, pos, scanner).pos;
+        return pos;
+    }
+}